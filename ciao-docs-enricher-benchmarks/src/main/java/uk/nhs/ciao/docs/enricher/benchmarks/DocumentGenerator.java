@@ -0,0 +1,143 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.docs.enricher.PropertyMaps;
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Generates parsed documents for the benchmarks
+ * <p>
+ * Each document has a set of top-level fields, and an <code>authors</code> list of {@link #setSectionCount(int) sectionCount}
+ * enrichable sections - each identified by an <code>id</code> lookup key drawn from {@link #setKeyCardinality(int) keyCardinality}
+ * distinct keys (see {@link #getKey(int)}). The size of the document is controlled by the number of top-level
+ * {@link #setFieldCount(int) fields} and the size of the original document {@link #setContentSize(int) content}.
+ * <p>
+ * Documents are generated from a seeded random source, so each run of a benchmark uses the same documents.
+ */
+public class DocumentGenerator {
+	/**
+	 * Selects the enrichable sections of generated documents
+	 */
+	public static final String ENRICHABLE_PROPERTIES_SELECTOR = "authors[*]";
+
+	/**
+	 * Selects the lookup key of each enrichable section
+	 */
+	public static final String LOOKUP_KEY_SELECTOR = "id";
+
+	private final Random random;
+	private int sectionCount = 10;
+	private int keyCardinality = 1000;
+	private int fieldCount = 10;
+	private int contentSize = 1024;
+
+	public DocumentGenerator(final long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * The number of enrichable sections in each document (default is 10)
+	 */
+	public void setSectionCount(final int sectionCount) {
+		Preconditions.checkArgument(sectionCount >= 0, "sectionCount must not be negative");
+		this.sectionCount = sectionCount;
+	}
+
+	/**
+	 * The number of distinct lookup keys (default is 1000)
+	 */
+	public void setKeyCardinality(final int keyCardinality) {
+		Preconditions.checkArgument(keyCardinality > 0, "keyCardinality must be positive");
+		this.keyCardinality = keyCardinality;
+	}
+
+	/**
+	 * The number of top-level (non-enrichable) fields in each document (default is 10)
+	 */
+	public void setFieldCount(final int fieldCount) {
+		Preconditions.checkArgument(fieldCount >= 0, "fieldCount must not be negative");
+		this.fieldCount = fieldCount;
+	}
+
+	/**
+	 * The size (in bytes) of the original document content (default is 1024)
+	 */
+	public void setContentSize(final int contentSize) {
+		Preconditions.checkArgument(contentSize >= 0, "contentSize must not be negative");
+		this.contentSize = contentSize;
+	}
+
+	/**
+	 * The lookup key with the specified index
+	 */
+	public static String getKey(final int index) {
+		return "key-" + index;
+	}
+
+	/**
+	 * Returns a random lookup key
+	 */
+	public String nextKey() {
+		return getKey(random.nextInt(keyCardinality));
+	}
+
+	/**
+	 * Generates a new document
+	 */
+	public ParsedDocument generate() {
+		final Map<String, Object> properties = Maps.newLinkedHashMap();
+		properties.put("documentId", Long.toHexString(random.nextLong()));
+		for (int index = 0; index < fieldCount; index++) {
+			properties.put("field-" + index, randomText(16));
+		}
+
+		final List<Object> authors = Lists.newArrayListWithCapacity(sectionCount);
+		for (int index = 0; index < sectionCount; index++) {
+			final Map<String, Object> author = Maps.newLinkedHashMap();
+			author.put(LOOKUP_KEY_SELECTOR, nextKey());
+			author.put("role", "author");
+			authors.add(author);
+		}
+		properties.put("authors", authors);
+
+		final byte[] content = new byte[contentSize];
+		random.nextBytes(content);
+		return new ParsedDocument(new Document("document-" + properties.get("documentId") + ".txt", content), properties);
+	}
+
+	/**
+	 * Generates the specified number of documents
+	 */
+	public List<ParsedDocument> generate(final int count) {
+		final List<ParsedDocument> documents = Lists.newArrayListWithCapacity(count);
+		for (int index = 0; index < count; index++) {
+			documents.add(generate());
+		}
+		return documents;
+	}
+
+	/**
+	 * Copies the document so that it can be enriched without altering the original
+	 * <p>
+	 * The original document content is shared by the copy
+	 */
+	public static ParsedDocument copy(final ParsedDocument document) {
+		return new ParsedDocument(document.getOriginalDocument(), PropertyMaps.deepCopy(document.getProperties()));
+	}
+
+	private String randomText(final int length) {
+		final StringBuilder text = new StringBuilder(length);
+		for (int index = 0; index < length; index++) {
+			text.append((char) ('a' + random.nextInt(26)));
+		}
+		return text.toString();
+	}
+}
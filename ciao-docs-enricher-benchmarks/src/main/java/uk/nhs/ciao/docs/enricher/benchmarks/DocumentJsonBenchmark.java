@@ -0,0 +1,70 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.component.jackson.JacksonDataFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+import uk.nhs.ciao.docs.enricher.route.EnrichDocumentRoute;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Benchmarks the JSON unmarshal and marshal stages of {@link EnrichDocumentRoute}
+ * <p>
+ * The route uses a {@link JacksonDataFormat} backed by the shared {@link JsonCodec} object mapper - the benchmarks
+ * call the same object mapper directly (without a Camel exchange). The size of the encoded document is dominated
+ * by the (base64 encoded) original document {@link #contentSize content}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DocumentJsonBenchmark {
+	@Param({"1024", "1048576"})
+	public int contentSize;
+
+	@Param({"10", "100"})
+	public int sectionCount;
+
+	private ObjectMapper objectMapper;
+	private ParsedDocument document;
+	private byte[] json;
+
+	@Setup
+	public void setup() throws Exception {
+		final JsonCodec jsonCodec = new JsonCodec();
+		objectMapper = jsonCodec.getObjectMapper();
+
+		final DocumentGenerator generator = new DocumentGenerator(42);
+		generator.setContentSize(contentSize);
+		generator.setSectionCount(sectionCount);
+		document = generator.generate();
+		json = objectMapper.writeValueAsBytes(document);
+	}
+
+	@Benchmark
+	public ParsedDocument unmarshal() throws Exception {
+		return objectMapper.readValue(new ByteArrayInputStream(json), ParsedDocument.class);
+	}
+
+	@Benchmark
+	public byte[] marshal() throws Exception {
+		return objectMapper.writeValueAsBytes(document);
+	}
+}
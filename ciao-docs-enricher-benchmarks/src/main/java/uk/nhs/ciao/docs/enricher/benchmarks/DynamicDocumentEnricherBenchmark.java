@@ -0,0 +1,97 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.docs.enricher.DocumentPropertiesFinder;
+import uk.nhs.ciao.docs.enricher.DynamicDocumentEnricher;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Benchmarks {@link DynamicDocumentEnricher#enrichDocument(ParsedDocument)}
+ * <p>
+ * Lookups are served from an in-memory map, so the results measure the cost of selecting sections and lookup keys
+ * and merging the found properties - not the cost of the backing finder. Each invocation enriches a fresh copy of a
+ * generated document: {@link #copyDocument()} measures the cost of the copy alone.
+ *
+ * @see TreeMergeBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DynamicDocumentEnricherBenchmark {
+	private static final int DOCUMENT_COUNT = 64;
+
+	@Param({"1", "10", "100"})
+	public int sectionCount;
+
+	@Param({"10", "10000"})
+	public int keyCardinality;
+
+	@Param({"5", "50"})
+	public int recordFieldCount;
+
+	private List<ParsedDocument> documents;
+	private DynamicDocumentEnricher enricher;
+	private int nextDocument;
+
+	@Setup
+	public void setup() {
+		final DocumentGenerator generator = new DocumentGenerator(42);
+		generator.setSectionCount(sectionCount);
+		generator.setKeyCardinality(keyCardinality);
+		documents = generator.generate(DOCUMENT_COUNT);
+
+		final Map<String, Map<String, Object>> records = Maps.newHashMapWithExpectedSize(keyCardinality);
+		for (int index = 0; index < keyCardinality; index++) {
+			final String key = DocumentGenerator.getKey(index);
+			records.put(key, ReferenceDataGenerator.createRecord(key, recordFieldCount));
+		}
+
+		enricher = new DynamicDocumentEnricher(new DocumentPropertiesFinder() {
+			@Override
+			public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) {
+				final Map<String, Object> properties = records.get(lookupKeys.get(DocumentGenerator.LOOKUP_KEY_SELECTOR));
+				return properties == null ? Collections.<String, Object>emptyMap() : properties;
+			}
+		});
+		enricher.setEnrichablePropertiesSelectors(Arrays.asList(DocumentGenerator.ENRICHABLE_PROPERTIES_SELECTOR));
+		enricher.setLookupKeySelectors(Arrays.asList(DocumentGenerator.LOOKUP_KEY_SELECTOR));
+	}
+
+	private ParsedDocument nextDocument() {
+		final ParsedDocument document = documents.get(nextDocument);
+		nextDocument = (nextDocument + 1) % documents.size();
+		return document;
+	}
+
+	@Benchmark
+	public ParsedDocument copyDocument() {
+		return DocumentGenerator.copy(nextDocument());
+	}
+
+	@Benchmark
+	public ParsedDocument enrichDocument() throws Exception {
+		return enricher.enrichDocument(DocumentGenerator.copy(nextDocument()));
+	}
+}
@@ -0,0 +1,149 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.camel.CamelUtils;
+import uk.nhs.ciao.docs.enricher.DataSourceDocumentPropertiesFinder;
+import uk.nhs.ciao.docs.enricher.JdbcDocumentPropertiesFinder;
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+
+/**
+ * Benchmarks the database finders against an embedded (in-memory) Derby database
+ * <ul>
+ * <li>{@link #camelJdbcFinder()} - {@link JdbcDocumentPropertiesFinder} (queries via the Camel JDBC component)
+ * <li>{@link #dataSourceFinder()} - {@link DataSourceDocumentPropertiesFinder} (queries the data source directly)
+ * </ul>
+ * Each lookup selects the row of a random key - either as columns or as an embedded JSON document, depending
+ * on {@link #jsonColumn}. Both finders share a connection pool configured as in <code>lookup-database-common.xml</code>
+ * (with the default pool properties) - connections and prepared statements are reused between lookups.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JdbcFinderBenchmark {
+	private static final String DATABASE_URL = "jdbc:derby:memory:benchmarks";
+	private static final int POOL_MIN_SIZE = 1;
+	private static final int POOL_MAX_SIZE = 10;
+	private static final int STATEMENT_CACHE_SIZE = 50;
+
+	@Param({"100", "100000"})
+	public int keyCardinality;
+
+	@Param({"false", "true"})
+	public boolean jsonColumn;
+
+	private DocumentGenerator generator;
+	private BasicDataSource dataSource;
+	private CamelContext context;
+	private ProducerTemplate producerTemplate;
+	private JdbcDocumentPropertiesFinder camelJdbcFinder;
+	private DataSourceDocumentPropertiesFinder dataSourceFinder;
+
+	@Setup
+	public void setup() throws Exception {
+		final JsonCodec jsonCodec = new JsonCodec();
+		dataSource = new BasicDataSource();
+		dataSource.setUrl(DATABASE_URL + ";create=true");
+		dataSource.setInitialSize(POOL_MIN_SIZE);
+		dataSource.setMinIdle(POOL_MIN_SIZE);
+		dataSource.setMaxIdle(POOL_MAX_SIZE);
+		dataSource.setMaxTotal(POOL_MAX_SIZE);
+		dataSource.setTestOnBorrow(true);
+		dataSource.setPoolPreparedStatements(true);
+		dataSource.setMaxOpenPreparedStatements(STATEMENT_CACHE_SIZE);
+		ReferenceDataGenerator.loadDatabase(dataSource, keyCardinality, 10, jsonCodec);
+
+		final String sqlQuery = "SELECT " + (jsonColumn ? "JSON" : "ID AS \"id\", NAME AS \"name\"") + " FROM "
+				+ ReferenceDataGenerator.TABLE_NAME + " WHERE ID = :?id";
+
+		final SimpleRegistry registry = new SimpleRegistry();
+		registry.put("dataSource", dataSource);
+		context = new DefaultCamelContext(registry);
+		context.start();
+		producerTemplate = context.createProducerTemplate();
+
+		camelJdbcFinder = new JdbcDocumentPropertiesFinder(producerTemplate);
+		camelJdbcFinder.setJsonCodec(jsonCodec);
+		camelJdbcFinder.setDataSourceId("dataSource");
+		camelJdbcFinder.setSqlQuery(sqlQuery);
+		camelJdbcFinder.setIdParameter("id");
+		camelJdbcFinder.setIdSelector(DocumentGenerator.LOOKUP_KEY_SELECTOR);
+
+		dataSourceFinder = new DataSourceDocumentPropertiesFinder(dataSource);
+		dataSourceFinder.setJsonCodec(jsonCodec);
+		dataSourceFinder.setSqlQuery(sqlQuery);
+		dataSourceFinder.setIdParameter("id");
+		dataSourceFinder.setIdSelector(DocumentGenerator.LOOKUP_KEY_SELECTOR);
+
+		if (jsonColumn) {
+			camelJdbcFinder.setJsonColumn("JSON");
+			dataSourceFinder.setJsonColumn("JSON");
+		}
+
+		generator = new DocumentGenerator(42);
+		generator.setKeyCardinality(keyCardinality);
+	}
+
+	@TearDown
+	public void tearDown() {
+		CamelUtils.stopQuietly(producerTemplate, context);
+		try {
+			dataSource.close();
+		} catch (SQLException e) {
+			// The database is dropped regardless
+		}
+		try {
+			DriverManager.getConnection(DATABASE_URL + ";drop=true");
+		} catch (SQLException e) {
+			// Derby is expected to throw an exception on drop
+		}
+	}
+
+	private Map<String, Object> nextLookupKeys() {
+		final Map<String, Object> lookupKeys = Maps.newLinkedHashMap();
+		lookupKeys.put(DocumentGenerator.LOOKUP_KEY_SELECTOR, nextKey());
+		return lookupKeys;
+	}
+
+	private String nextKey() {
+		synchronized (generator) {
+			return generator.nextKey();
+		}
+	}
+
+	@Benchmark
+	public Map<String, Object> camelJdbcFinder() throws Exception {
+		return camelJdbcFinder.findProperties(nextLookupKeys());
+	}
+
+	@Benchmark
+	public Map<String, Object> dataSourceFinder() throws Exception {
+		return dataSourceFinder.findProperties(nextLookupKeys());
+	}
+}
@@ -0,0 +1,102 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.util.FileSystemUtils;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+import uk.nhs.ciao.docs.enricher.JsonResourceDocumentEnricher;
+import uk.nhs.ciao.docs.enricher.JsonResourceDocumentPropertiesFinder;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Benchmarks the JSON resource enricher and finder against generated JSON files on the local filesystem
+ * <ul>
+ * <li>{@link #includeResource()} - {@link JsonResourceDocumentEnricher} merging a single (cached) resource into each document
+ * <li>{@link #findResource()} - {@link JsonResourceDocumentPropertiesFinder} reading the resource of a random lookup key
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonResourceBenchmark {
+	private static final int DOCUMENT_COUNT = 64;
+
+	@Param({"10", "1000"})
+	public int keyCardinality;
+
+	@Param({"5", "50", "500"})
+	public int recordFieldCount;
+
+	private File directory;
+	private List<ParsedDocument> documents;
+	private JsonResourceDocumentEnricher enricher;
+	private JsonResourceDocumentPropertiesFinder finder;
+	private DocumentGenerator generator;
+	private int nextDocument;
+
+	@Setup
+	public void setup() throws Exception {
+		final JsonCodec jsonCodec = new JsonCodec();
+		directory = Files.createTempDir();
+		ReferenceDataGenerator.writeJsonResources(directory, keyCardinality, recordFieldCount, jsonCodec);
+
+		final File includedResource = new File(directory, "included.json");
+		ReferenceDataGenerator.writeJsonResource(includedResource, ReferenceDataGenerator.createRecord("included",
+				recordFieldCount), jsonCodec);
+
+		generator = new DocumentGenerator(42);
+		generator.setKeyCardinality(keyCardinality);
+		documents = generator.generate(DOCUMENT_COUNT);
+
+		enricher = new JsonResourceDocumentEnricher(jsonCodec.getObjectMapper(), includedResource.toURI().toString());
+		enricher.setJsonCodec(jsonCodec);
+		enricher.warmUp();
+
+		finder = new JsonResourceDocumentPropertiesFinder(new DefaultResourceLoader());
+		finder.setJsonCodec(jsonCodec);
+		finder.setResourcePath(directory.toURI().toString());
+		finder.setResourceNameSelector(DocumentGenerator.LOOKUP_KEY_SELECTOR);
+	}
+
+	@TearDown
+	public void tearDown() {
+		FileSystemUtils.deleteRecursively(directory);
+	}
+
+	@Benchmark
+	public ParsedDocument includeResource() throws Exception {
+		final ParsedDocument document = documents.get(nextDocument);
+		nextDocument = (nextDocument + 1) % documents.size();
+		return enricher.enrichDocument(DocumentGenerator.copy(document));
+	}
+
+	@Benchmark
+	public Map<String, Object> findResource() throws Exception {
+		final Map<String, Object> lookupKeys = Maps.newLinkedHashMap();
+		lookupKeys.put(DocumentGenerator.LOOKUP_KEY_SELECTOR, generator.nextKey());
+		return finder.findProperties(lookupKeys);
+	}
+}
@@ -0,0 +1,559 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.util.FileSystemUtils;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.RateLimiter;
+
+import uk.nhs.ciao.camel.CamelApplicationRunner;
+import uk.nhs.ciao.camel.CamelApplicationRunner.AsyncExecution;
+import uk.nhs.ciao.configuration.CIAOConfig;
+import uk.nhs.ciao.configuration.impl.MemoryCipProperties;
+import uk.nhs.ciao.docs.enricher.DocumentEnricherApplication;
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+import uk.nhs.ciao.docs.enricher.route.EnrichDocumentRoute;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * End-to-end load test of the document enricher application
+ * <p>
+ * The application is started in-process using the <code>activemq-embedded</code> messaging configuration, with
+ * {@link #setRoutes(int) routes} enrich routes. Synthetic documents (see {@link DocumentGenerator}) are sent to the
+ * input queues of the routes (round-robin) by {@link #setProducers(int) producers} threads - optionally limited
+ * to a fixed {@link #setRate(int) rate} - while the shared output queue is drained.
+ * <p>
+ * After a warm-up phase, the test reports the sustained throughput, the end-to-end latency percentiles (from
+ * sending a document to receiving the enriched document) and the heap / GC activity during the measured phase.
+ * <p>
+ * All other application properties (processor configuration, JMS consumers, caching etc) are taken from the
+ * default <code>ciao-docs-enricher.properties</code> and can be overridden via {@link #setProperty(String, String)},
+ * so that capacity can be compared between configurations.
+ */
+public class LoadTest {
+	private static final String CIP_NAME = "ciao-docs-enricher";
+	private static final String ROUTE_NAME_PREFIX = "load";
+	private static final String INPUT_QUEUE_PREFIX = "load-test-input-";
+	private static final String OUTPUT_QUEUE = "load-test-output";
+	private static final String SENT_NANOS_HEADER = "LoadTestSentNanos";
+	private static final int DISTINCT_DOCUMENTS = 100;
+
+	private final Properties properties = new Properties();
+	private int routes = 1;
+	private int documents = 10000;
+	private int warmUpDocuments = 1000;
+	private int rate;
+	private int producers = 1;
+	private int outputConsumers = 4;
+	private int sectionCount = 10;
+	private int keyCardinality = 1000;
+	private int contentSize = 1024;
+	private long timeout = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Overrides an application property (e.g. <code>processorConfig</code>)
+	 */
+	public void setProperty(final String name, final String value) {
+		properties.setProperty(name, value);
+	}
+
+	/**
+	 * Overrides application properties
+	 */
+	public void setProperties(final Properties properties) {
+		this.properties.putAll(properties);
+	}
+
+	/**
+	 * The number of enrich routes to create (default is 1)
+	 */
+	public void setRoutes(final int routes) {
+		Preconditions.checkArgument(routes > 0, "routes must be positive");
+		this.routes = routes;
+	}
+
+	/**
+	 * The number of documents to send in the measured phase (default is 10000)
+	 */
+	public void setDocuments(final int documents) {
+		Preconditions.checkArgument(documents > 0, "documents must be positive");
+		this.documents = documents;
+	}
+
+	/**
+	 * The number of documents to send (and receive) before measuring (default is 1000)
+	 */
+	public void setWarmUpDocuments(final int warmUpDocuments) {
+		Preconditions.checkArgument(warmUpDocuments >= 0, "warmUpDocuments must not be negative");
+		this.warmUpDocuments = warmUpDocuments;
+	}
+
+	/**
+	 * The maximum rate (in documents per second) to send documents at. A value of zero (the default) sends
+	 * documents as fast as possible.
+	 */
+	public void setRate(final int rate) {
+		Preconditions.checkArgument(rate >= 0, "rate must not be negative");
+		this.rate = rate;
+	}
+
+	/**
+	 * The number of threads sending documents (default is 1)
+	 */
+	public void setProducers(final int producers) {
+		Preconditions.checkArgument(producers > 0, "producers must be positive");
+		this.producers = producers;
+	}
+
+	/**
+	 * The number of consumers draining the output queue (default is 4)
+	 */
+	public void setOutputConsumers(final int outputConsumers) {
+		Preconditions.checkArgument(outputConsumers > 0, "outputConsumers must be positive");
+		this.outputConsumers = outputConsumers;
+	}
+
+	/**
+	 * The number of enrichable sections in each document (default is 10)
+	 */
+	public void setSectionCount(final int sectionCount) {
+		this.sectionCount = sectionCount;
+	}
+
+	/**
+	 * The number of distinct lookup keys (default is 1000)
+	 */
+	public void setKeyCardinality(final int keyCardinality) {
+		this.keyCardinality = keyCardinality;
+	}
+
+	/**
+	 * The size (in bytes) of the original document content (default is 1024)
+	 */
+	public void setContentSize(final int contentSize) {
+		this.contentSize = contentSize;
+	}
+
+	/**
+	 * The maximum time (in milliseconds) to wait for each phase to be received (default is 5 minutes)
+	 */
+	public void setTimeout(final long timeout) {
+		Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Runs the load test
+	 */
+	public Report run() throws Exception {
+		final File inProgressFolder = Files.createTempDir();
+		final ExecutorService applicationExecutor = Executors.newSingleThreadExecutor();
+		final ExecutorService producerExecutor = Executors.newFixedThreadPool(producers);
+		AsyncExecution execution = null;
+		try {
+			execution = CamelApplicationRunner.runApplication(new DocumentEnricherApplication(createConfig(inProgressFolder)),
+					applicationExecutor);
+			final CamelContext context = execution.getRunner().getCamelContexts().get(0);
+			awaitRoutesStarted(context);
+
+			final OutputConsumer consumer = new OutputConsumer();
+			context.addRoutes(new RouteBuilder() {
+				@Override
+				public void configure() throws Exception {
+					from("jms:queue:" + OUTPUT_QUEUE + "?concurrentConsumers=" + outputConsumers)
+					.routeId("load-test-output")
+					.process(consumer);
+				}
+			});
+
+			final List<byte[]> bodies = generateDocuments();
+			final ProducerTemplate producerTemplate = context.createProducerTemplate();
+			try {
+				if (warmUpDocuments > 0) {
+					send(producerTemplate, producerExecutor, bodies, warmUpDocuments);
+					consumer.await(warmUpDocuments);
+				}
+
+				consumer.reset();
+				final JvmStats jvmStatsBefore = JvmStats.capture(true);
+				final long startNanos = System.nanoTime();
+
+				send(producerTemplate, producerExecutor, bodies, documents);
+				final long sendNanos = System.nanoTime() - startNanos;
+				final int received = consumer.await(documents);
+
+				final long elapsedNanos = Math.max(1, consumer.getLastReceivedNanos() - startNanos);
+				final JvmStats jvmStats = JvmStats.capture(false).minus(jvmStatsBefore);
+				return new Report(documents, received, sendNanos, elapsedNanos, consumer.getLatency(),
+						jvmStats, context.getRegistry().lookupByNameAndType(EnrichDocumentRoute.METRICS_REGISTRY_ID,
+								MetricsRegistry.class));
+			} finally {
+				producerTemplate.stop();
+			}
+		} finally {
+			producerExecutor.shutdownNow();
+			if (execution != null) {
+				execution.getRunner().stop();
+				execution.getFuture().get();
+			}
+			applicationExecutor.shutdownNow();
+			FileSystemUtils.deleteRecursively(inProgressFolder);
+		}
+	}
+
+	private CIAOConfig createConfig(final File inProgressFolder) throws Exception {
+		final MemoryCipProperties cipProperties = new MemoryCipProperties(CIP_NAME, "load-test");
+		cipProperties.addConfigValues(PropertiesLoaderUtils.loadProperties(new ClassPathResource(CIP_NAME + ".properties")));
+
+		// All routes use the default enricher unless overridden
+		final Properties defaultProperties = new Properties();
+		defaultProperties.setProperty(EnrichDocumentRoute.ROOT_PROPERTY + ".enricherId", "enricher");
+		cipProperties.addConfigValues(defaultProperties);
+		cipProperties.addConfigValues(properties);
+
+		// The messaging and queue properties are controlled by the load test
+		final Properties loadTestProperties = new Properties();
+		loadTestProperties.setProperty("messagingConfig", "activemq-embedded");
+		loadTestProperties.setProperty("inProgressFolder", inProgressFolder.getAbsolutePath());
+
+		final List<String> routeNames = Lists.newArrayList();
+		for (int index = 0; index < routes; index++) {
+			final String routeName = ROUTE_NAME_PREFIX + index;
+			routeNames.add(routeName);
+			loadTestProperties.setProperty(EnrichDocumentRoute.ROOT_PROPERTY + "." + routeName + ".inputQueue",
+					INPUT_QUEUE_PREFIX + index);
+		}
+		loadTestProperties.setProperty(EnrichDocumentRoute.ROOT_PROPERTY, Joiner.on(',').join(routeNames));
+		loadTestProperties.setProperty(EnrichDocumentRoute.ROOT_PROPERTY + ".outputQueue", OUTPUT_QUEUE);
+		cipProperties.addConfigValues(loadTestProperties);
+
+		return new CIAOConfig(cipProperties);
+	}
+
+	/**
+	 * Waits for the enrich routes to start (they may be delayed by the application warm-up)
+	 */
+	private void awaitRoutesStarted(final CamelContext context) throws Exception {
+		final long deadline = System.currentTimeMillis() + timeout;
+		for (int index = 0; index < routes; index++) {
+			final String routeId = "parse-document-" + ROUTE_NAME_PREFIX + index;
+			while (context.getRouteStatus(routeId) == null || !context.getRouteStatus(routeId).isStarted()) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IllegalStateException("Route " + routeId + " did not start within " + timeout + " ms");
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private List<byte[]> generateDocuments() throws Exception {
+		final DocumentGenerator generator = new DocumentGenerator(42);
+		generator.setSectionCount(sectionCount);
+		generator.setKeyCardinality(keyCardinality);
+		generator.setContentSize(contentSize);
+
+		final JsonCodec jsonCodec = new JsonCodec();
+		final List<byte[]> bodies = Lists.newArrayListWithCapacity(DISTINCT_DOCUMENTS);
+		for (final ParsedDocument document: generator.generate(DISTINCT_DOCUMENTS)) {
+			bodies.add(jsonCodec.getWriter().writeValueAsBytes(document));
+		}
+		return bodies;
+	}
+
+	/**
+	 * Sends the documents to the input queues (round-robin) and waits until they have all been sent
+	 */
+	private void send(final ProducerTemplate producerTemplate, final ExecutorService producerExecutor,
+			final List<byte[]> bodies, final int count) throws Exception {
+		final RateLimiter rateLimiter = rate > 0 ? RateLimiter.create(rate) : null;
+		final AtomicInteger nextDocument = new AtomicInteger();
+		final List<Future<?>> futures = Lists.newArrayListWithCapacity(producers);
+		for (int producer = 0; producer < producers; producer++) {
+			futures.add(producerExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (int index = nextDocument.getAndIncrement(); index < count; index = nextDocument.getAndIncrement()) {
+						if (rateLimiter != null) {
+							rateLimiter.acquire();
+						}
+						producerTemplate.sendBodyAndHeader("jms:queue:" + INPUT_QUEUE_PREFIX + (index % routes),
+								bodies.get(index % bodies.size()), SENT_NANOS_HEADER, System.nanoTime());
+					}
+				}
+			}));
+		}
+
+		for (final Future<?> future: futures) {
+			future.get();
+		}
+	}
+
+	/**
+	 * Receives the enriched documents and records their end-to-end latency
+	 * <p>
+	 * The latency is recorded in a cumulative histogram (not a {@link uk.nhs.ciao.docs.enricher.metrics.Distribution},
+	 * which only reports percentiles of its recent window) so the percentiles cover the whole measured phase.
+	 */
+	private class OutputConsumer implements Processor {
+		private final Recorder latency = new Recorder(3);
+		private final AtomicInteger received = new AtomicInteger();
+		private volatile long lastReceivedNanos;
+
+		@Override
+		public void process(final Exchange exchange) {
+			final Long sentNanos = exchange.getIn().getHeader(SENT_NANOS_HEADER, Long.class);
+			if (sentNanos != null) {
+				latency.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos)));
+			}
+			lastReceivedNanos = System.nanoTime();
+			received.incrementAndGet();
+		}
+
+		public void reset() {
+			latency.reset();
+			received.set(0);
+		}
+
+		/**
+		 * The end-to-end latency (in microseconds) of the documents received since the consumer was last reset (or
+		 * since the latency was last returned)
+		 */
+		public Histogram getLatency() {
+			return latency.getIntervalHistogram();
+		}
+
+		public long getLastReceivedNanos() {
+			return lastReceivedNanos;
+		}
+
+		/**
+		 * Waits until the expected number of documents have been received (or the timeout has elapsed)
+		 *
+		 * @return The number of documents received
+		 */
+		public int await(final int expected) throws InterruptedException {
+			final long deadline = System.currentTimeMillis() + timeout;
+			while (received.get() < expected && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			return received.get();
+		}
+	}
+
+	/**
+	 * Garbage collection and heap statistics
+	 */
+	private static class JvmStats {
+		private final long gcCount;
+		private final long gcTimeMillis;
+		private final long peakHeapUsed;
+
+		private JvmStats(final long gcCount, final long gcTimeMillis, final long peakHeapUsed) {
+			this.gcCount = gcCount;
+			this.gcTimeMillis = gcTimeMillis;
+			this.peakHeapUsed = peakHeapUsed;
+		}
+
+		/**
+		 * @param resetPeakUsage true if the peak heap usage should be reset after capturing the statistics
+		 */
+		public static JvmStats capture(final boolean resetPeakUsage) {
+			long gcCount = 0;
+			long gcTimeMillis = 0;
+			for (final GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(0, collector.getCollectionCount());
+				gcTimeMillis += Math.max(0, collector.getCollectionTime());
+			}
+
+			long peakHeapUsed = 0;
+			for (final MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+				if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+					peakHeapUsed += pool.getPeakUsage().getUsed();
+					if (resetPeakUsage) {
+						pool.resetPeakUsage();
+					}
+				}
+			}
+
+			return new JvmStats(gcCount, gcTimeMillis, peakHeapUsed);
+		}
+
+		/**
+		 * The GC activity since the earlier statistics were captured
+		 */
+		public JvmStats minus(final JvmStats earlier) {
+			return new JvmStats(gcCount - earlier.gcCount, gcTimeMillis - earlier.gcTimeMillis, peakHeapUsed);
+		}
+	}
+
+	/**
+	 * The results of a load test
+	 */
+	public static class Report {
+		private final int sent;
+		private final int received;
+		private final long sendNanos;
+		private final long elapsedNanos;
+		private final Histogram latency;
+		private final JvmStats jvmStats;
+		private final MemoryUsage heapUsage;
+		private final MetricsRegistry metrics;
+
+		private Report(final int sent, final int received, final long sendNanos, final long elapsedNanos,
+				final Histogram latency, final JvmStats jvmStats, final MetricsRegistry metrics) {
+			this.sent = sent;
+			this.received = received;
+			this.sendNanos = sendNanos;
+			this.elapsedNanos = elapsedNanos;
+			this.latency = latency;
+			this.jvmStats = jvmStats;
+			this.heapUsage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+			this.metrics = metrics;
+		}
+
+		/**
+		 * The sustained throughput (in documents per second) - from sending the first measured document until
+		 * receiving the last
+		 */
+		public double getThroughput() {
+			return received * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+		}
+
+		public int getSent() {
+			return sent;
+		}
+
+		public int getReceived() {
+			return received;
+		}
+
+		/**
+		 * The end-to-end latency distribution (in microseconds)
+		 */
+		public Histogram getLatency() {
+			return latency;
+		}
+
+		/**
+		 * Writes the report in a human readable format
+		 *
+		 * @param includeMetrics true if the application metrics (per route stage etc) should also be written
+		 */
+		public void print(final PrintStream out, final boolean includeMetrics) throws Exception {
+			out.println("Documents sent:         " + sent);
+			out.println("Documents received:     " + received + (received < sent ? " (" + (sent - received)
+					+ " missing - failed or timed out)" : ""));
+			out.println(String.format("Send rate:              %.1f documents/s", sent * (double) TimeUnit.SECONDS.toNanos(1) / sendNanos));
+			out.println(String.format("Throughput:             %.1f documents/s", getThroughput()));
+			final boolean noLatency = latency.getTotalCount() == 0;
+			out.println(String.format("Latency (ms):           p50=%.2f p99=%.2f p999=%.2f max=%.2f mean=%.2f",
+					latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+					latency.getValueAtPercentile(99.9) / 1000.0, noLatency ? 0 : latency.getMaxValue() / 1000.0,
+					noLatency ? 0 : latency.getMean() / 1000.0));
+			out.println(String.format("GC:                     %d collections, %d ms (%.1f%% of elapsed time)",
+					jvmStats.gcCount, jvmStats.gcTimeMillis,
+					100.0 * TimeUnit.MILLISECONDS.toNanos(jvmStats.gcTimeMillis) / elapsedNanos));
+			out.println(String.format("Heap (MB):              peak=%d used=%d committed=%d max=%d",
+					toMegabytes(jvmStats.peakHeapUsed), toMegabytes(heapUsage.getUsed()),
+					toMegabytes(heapUsage.getCommitted()), toMegabytes(heapUsage.getMax())));
+
+			if (includeMetrics && metrics != null) {
+				out.println();
+				out.println("Application metrics (including warm-up):");
+				metrics.writeText(out);
+			}
+		}
+
+		private static long toMegabytes(final long bytes) {
+			return bytes < 0 ? -1 : bytes / (1024 * 1024);
+		}
+	}
+
+	/**
+	 * Runs the load test from the command line and prints the report
+	 */
+	public static void main(final String[] args) throws Exception {
+		final LoadTest loadTest = new LoadTest();
+		boolean printMetrics = false;
+
+		try {
+			for (int index = 0; index < args.length; index++) {
+				final String arg = args[index];
+				if ("--printMetrics".equals(arg)) {
+					printMetrics = true;
+					continue;
+				} else if (index + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+
+				final String value = args[++index];
+				if ("--documents".equals(arg)) {
+					loadTest.setDocuments(Integer.parseInt(value));
+				} else if ("--warmUpDocuments".equals(arg)) {
+					loadTest.setWarmUpDocuments(Integer.parseInt(value));
+				} else if ("--rate".equals(arg)) {
+					loadTest.setRate(Integer.parseInt(value));
+				} else if ("--producers".equals(arg)) {
+					loadTest.setProducers(Integer.parseInt(value));
+				} else if ("--outputConsumers".equals(arg)) {
+					loadTest.setOutputConsumers(Integer.parseInt(value));
+				} else if ("--routes".equals(arg)) {
+					loadTest.setRoutes(Integer.parseInt(value));
+				} else if ("--sections".equals(arg)) {
+					loadTest.setSectionCount(Integer.parseInt(value));
+				} else if ("--keyCardinality".equals(arg)) {
+					loadTest.setKeyCardinality(Integer.parseInt(value));
+				} else if ("--contentSize".equals(arg)) {
+					loadTest.setContentSize(Integer.parseInt(value));
+				} else if ("--timeout".equals(arg)) {
+					loadTest.setTimeout(Long.parseLong(value));
+				} else if ("--properties".equals(arg)) {
+					loadTest.setProperties(PropertiesLoaderUtils.loadProperties(new FileSystemResource(value)));
+				} else if ("--property".equals(arg) && value.contains("=")) {
+					loadTest.setProperty(value.substring(0, value.indexOf('=')), value.substring(value.indexOf('=') + 1));
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: " + LoadTest.class.getName() + " [--documents n] [--warmUpDocuments n]"
+					+ " [--rate documentsPerSecond] [--producers n] [--outputConsumers n] [--routes n] [--sections n]"
+					+ " [--keyCardinality n] [--contentSize bytes] [--timeout ms] [--properties file]"
+					+ " [--property name=value]... [--printMetrics]");
+			System.exit(1);
+			return;
+		}
+
+		loadTest.run().print(System.out, printMetrics);
+		System.exit(0);
+	}
+}
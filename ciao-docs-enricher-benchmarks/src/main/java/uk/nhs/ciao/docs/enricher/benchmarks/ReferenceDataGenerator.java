@@ -0,0 +1,119 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+
+/**
+ * Generates the reference data looked up by the benchmarks - one record for each of the lookup keys
+ * generated by {@link DocumentGenerator}
+ * <p>
+ * The size of each record is controlled by the number of additional fields.
+ */
+public final class ReferenceDataGenerator {
+	/**
+	 * The table created by {@link #loadDatabase(DataSource, int, int, JsonCodec)}
+	 */
+	public static final String TABLE_NAME = "REFERENCE_DATA";
+
+	private ReferenceDataGenerator() {
+		// Suppress default constructor
+	}
+
+	/**
+	 * Creates the record associated with the specified key
+	 */
+	public static Map<String, Object> createRecord(final String key, final int fieldCount) {
+		final Map<String, Object> organisation = Maps.newLinkedHashMap();
+		organisation.put("code", "ORG-" + Math.abs(key.hashCode() % 100));
+		organisation.put("name", "Organisation " + key);
+
+		final Map<String, Object> record = Maps.newLinkedHashMap();
+		record.put(DocumentGenerator.LOOKUP_KEY_SELECTOR, key);
+		record.put("name", "Name of " + key);
+		record.put("organisation", organisation);
+		for (int index = 0; index < fieldCount; index++) {
+			record.put("attribute-" + index, key + "-value-" + index);
+		}
+		return record;
+	}
+
+	/**
+	 * Writes the record of each key to a separate JSON file (named <code>${key}.json</code>) in the directory
+	 */
+	public static void writeJsonResources(final File directory, final int keyCardinality, final int fieldCount,
+			final JsonCodec jsonCodec) throws IOException {
+		for (int index = 0; index < keyCardinality; index++) {
+			final String key = DocumentGenerator.getKey(index);
+			writeJsonResource(new File(directory, key + ".json"), createRecord(key, fieldCount), jsonCodec);
+		}
+	}
+
+	/**
+	 * Writes the properties to a JSON file
+	 */
+	public static void writeJsonResource(final File file, final Map<String, Object> properties,
+			final JsonCodec jsonCodec) throws IOException {
+		Files.write(jsonCodec.getWriter().writeValueAsBytes(properties), file);
+	}
+
+	/**
+	 * Creates the {@link #TABLE_NAME} table (if required) and inserts the record of each key - with
+	 * <code>ID</code>, <code>NAME</code> and (complete record) <code>JSON</code> columns
+	 */
+	public static void loadDatabase(final DataSource dataSource, final int keyCardinality, final int fieldCount,
+			final JsonCodec jsonCodec) throws SQLException, IOException {
+		final Connection connection = dataSource.getConnection();
+		try {
+			final Statement statement = connection.createStatement();
+			try {
+				statement.executeUpdate("DROP TABLE " + TABLE_NAME);
+			} catch (SQLException e) {
+				// The table does not exist yet
+			} finally {
+				statement.close();
+			}
+
+			final Statement createStatement = connection.createStatement();
+			try {
+				createStatement.executeUpdate("CREATE TABLE " + TABLE_NAME
+						+ " (ID VARCHAR(40) PRIMARY KEY, NAME VARCHAR(100), JSON VARCHAR(32000))");
+			} finally {
+				createStatement.close();
+			}
+
+			final PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE_NAME
+					+ " (ID, NAME, JSON) VALUES (?, ?, ?)");
+			try {
+				for (int index = 0; index < keyCardinality; index++) {
+					final String key = DocumentGenerator.getKey(index);
+					final Map<String, Object> record = createRecord(key, fieldCount);
+					insert.setString(1, key);
+					insert.setString(2, (String) record.get("name"));
+					insert.setString(3, jsonCodec.getWriter().writeValueAsString(record));
+					insert.addBatch();
+
+					if (index % 1000 == 999) {
+						insert.executeBatch();
+					}
+				}
+				insert.executeBatch();
+			} finally {
+				insert.close();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+}
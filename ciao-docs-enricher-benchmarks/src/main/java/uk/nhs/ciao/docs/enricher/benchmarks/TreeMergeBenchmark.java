@@ -0,0 +1,66 @@
+package uk.nhs.ciao.docs.enricher.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.docs.enricher.PropertyMaps;
+import uk.nhs.ciao.util.TreeMerge;
+
+/**
+ * Benchmarks the {@link TreeMerge} of a single reference data record into a document section - as performed
+ * for each section enriched by the dynamic enrichers
+ * <p>
+ * {@link #copyRecord()} measures the cost of the (defensive) record copy made before each merge alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TreeMergeBenchmark {
+	@Param({"5", "50", "500"})
+	public int recordFieldCount;
+
+	private TreeMerge treeMerge;
+	private Map<String, Object> record;
+
+	@Setup
+	public void setup() {
+		treeMerge = new TreeMerge();
+		record = ReferenceDataGenerator.createRecord(DocumentGenerator.getKey(0), recordFieldCount);
+	}
+
+	private Map<String, Object> createSection() {
+		final Map<String, Object> section = Maps.newLinkedHashMap();
+		section.put(DocumentGenerator.LOOKUP_KEY_SELECTOR, DocumentGenerator.getKey(0));
+		section.put("role", "author");
+		return section;
+	}
+
+	@Benchmark
+	public Map<String, Object> copyRecord() {
+		return PropertyMaps.deepCopy(record);
+	}
+
+	@Benchmark
+	public Map<String, Object> mergeRecord() {
+		final Map<String, Object> section = createSection();
+		treeMerge.mergeInto(PropertyMaps.deepCopy(record), section);
+		return section;
+	}
+}
@@ -0,0 +1,141 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import uk.nhs.ciao.docs.enricher.metrics.Distribution;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsAware;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+import uk.nhs.ciao.docs.parser.PropertySelector;
+import uk.nhs.ciao.util.TreeMerge;
+
+/**
+ * Base class for enrichers which select the sections of a document to enrich, and the lookup keys
+ * of each section, via configurable property selectors.
+ * <p>
+ * {@link #setEnrichablePropertiesSelectors(Collection) enrichablePropertiesSelectors} selects which section
+ * or sections of the document should be enriched. The selected object must be a dynamic map - if nothing is
+ * selected the root document properties are used.
+ * <p>
+ * {@link #setLookupKeySelectors(Collection) lookupKeySelectors} selects a set of key/value pairs from
+ * each section to use as lookup keys for the dynamic data.
+ * <p>
+ * Once {@link #bindMetrics(MetricsRegistry, String) bound} to a metrics registry, the time spent looking up
+ * and merging additional properties is recorded in the {@link #ENRICHER_DURATION_METRIC} distributions.
+ *
+ * @see DynamicDocumentEnricher
+ * @see AsyncDynamicDocumentEnricher
+ */
+public abstract class AbstractDynamicDocumentEnricher implements MetricsAware {
+	/**
+	 * Duration (in microseconds) of the lookup and merge stages - tagged by enricher and stage
+	 */
+	public static final String ENRICHER_DURATION_METRIC = "enricher_enrichment_duration_micros";
+
+	private final TreeMerge treeMerge;
+	private final Set<PropertySelector> enrichablePropertiesSelectors;
+	private final Set<PropertySelector> lookupKeySelectors;
+	private volatile Distribution lookupDuration;
+	private volatile Distribution mergeDuration;
+
+	public AbstractDynamicDocumentEnricher() {
+		treeMerge = new TreeMerge();
+		enrichablePropertiesSelectors = Sets.newLinkedHashSet();
+		lookupKeySelectors = Sets.newLinkedHashSet();
+	}
+
+	public void setEnrichablePropertiesSelectors(final Collection<String> enrichablePropertiesSelectors) {
+		this.enrichablePropertiesSelectors.clear();
+		for (final String selector: enrichablePropertiesSelectors) {
+			if (!Strings.isNullOrEmpty(selector)) {
+				this.enrichablePropertiesSelectors.add(PropertySelector.valueOf(selector));
+			}
+		}
+	}
+
+	public void setLookupKeySelectors(final Collection<String> lookupKeySelectors) {
+		this.lookupKeySelectors.clear();
+		for (final String selector: lookupKeySelectors) {
+			if (!Strings.isNullOrEmpty(selector)) {
+				this.lookupKeySelectors.add(PropertySelector.valueOf(selector));
+			}
+		}
+	}
+
+	@Override
+	public void bindMetrics(final MetricsRegistry metrics, final String componentId) {
+		lookupDuration = metrics.distribution(ENRICHER_DURATION_METRIC, "enricher", componentId, "stage", "lookup");
+		mergeDuration = metrics.distribution(ENRICHER_DURATION_METRIC, "enricher", componentId, "stage", "merge");
+	}
+
+	/**
+	 * Records the time spent looking up additional properties (if bound to a metrics registry)
+	 * 
+	 * @param startNanos The start time of the lookup as returned by {@link System#nanoTime()}
+	 */
+	protected void recordLookupTime(final long startNanos) {
+		final Distribution distribution = lookupDuration;
+		if (distribution != null) {
+			distribution.recordTimeSince(startNanos);
+		}
+	}
+
+	/**
+	 * Records the time spent merging additional properties (if bound to a metrics registry)
+	 * 
+	 * @param startNanos The start time of the merge as returned by {@link System#nanoTime()}
+	 */
+	protected void recordMergeTime(final long startNanos) {
+		final Distribution distribution = mergeDuration;
+		if (distribution != null) {
+			distribution.recordTimeSince(startNanos);
+		}
+	}
+
+	/**
+	 * Selects the sections of the document to enrich
+	 */
+	protected List<Map<String, Object>> getEnrichableProperties(final ParsedDocument document) {
+		final List<Map<String, Object>> enrichableProperties = Lists.newArrayList();
+
+		if (enrichablePropertiesSelectors.isEmpty()) {
+			enrichableProperties.add(document.getProperties());
+		} else {
+			for (final PropertySelector selector: enrichablePropertiesSelectors) {
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				final Collection<Map<String, Object>> result = (Collection)selector.selectAllValues(Map.class, document.getProperties());
+				enrichableProperties.addAll(result);
+			}
+		}
+
+		return enrichableProperties;
+	}
+
+	/**
+	 * Selects the lookup keys of a single document section
+	 */
+	protected Map<String, Object> getLookupKeys(final Map<String, Object> properties) {
+		final Map<String, Object> lookupKeys = Maps.newLinkedHashMap();
+		for (final PropertySelector selector: lookupKeySelectors) {
+			lookupKeys.putAll(selector.selectAll(properties));
+		}
+		return lookupKeys;
+	}
+
+	/**
+	 * Merges the additional properties (if any) into the document section
+	 */
+	protected void addAdditionalProperties(final Map<String, Object> additionalProperties, final Map<String, Object> properties) {
+		if (additionalProperties != null && !additionalProperties.isEmpty()) {
+			treeMerge.mergeInto(additionalProperties, properties);
+		}
+	}
+}
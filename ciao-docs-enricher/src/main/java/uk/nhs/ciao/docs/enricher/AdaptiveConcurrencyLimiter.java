@@ -0,0 +1,432 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.nhs.ciao.docs.enricher.metrics.Counter;
+import uk.nhs.ciao.docs.enricher.metrics.Gauge;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Limits the number of concurrent calls to a backend (e.g. the reference database), adapting the limit to the
+ * latency observed by the calls (AIMD - additive increase / multiplicative decrease)
+ * <p>
+ * Each call completing within {@link #setLatencyThreshold(long) latencyThreshold} increases the limit by
+ * <code>1 / limit</code> (i.e. by one for every <code>limit</code> successful calls) - provided the limit is
+ * actually being used. Each call which fails or is slower than the threshold multiplies the limit by
+ * {@link #setBackoffRatio(double) backoffRatio}. The limit is kept between {@link #setMinLimit(int) minLimit}
+ * and {@link #setMaxLimit(int) maxLimit} - a <code>maxLimit</code> of zero disables limiting.
+ * <p>
+ * Calls over the limit wait for a permit (for up to {@link #setMaxWait(long) maxWait} milliseconds). While calls
+ * are waiting the limiter is <em>saturated</em> - registered {@link Listener listeners} (e.g. a route policy
+ * suspending the JMS consumers) are notified when the limiter becomes saturated, and again once the number of
+ * in-flight calls has dropped below {@link #setResumeRatio(double) resumeRatio} of the limit. Listeners are
+ * notified in order on a dedicated notification thread (never while the limiter's lock is held), so a slow
+ * listener does not hold up calls acquiring or releasing permits. The notification thread should be shut
+ * down via {@link #close()} when the limiter is no longer required.
+ * <p>
+ * The following metrics are recorded in the {@link MetricsRegistry} (tagged by limiter id):
+ * <ul>
+ * <li>{@link #LIMIT_METRIC} - the current concurrency limit
+ * <li>{@link #IN_FLIGHT_METRIC} - the number of calls currently in-flight
+ * <li>{@link #LIMITED_METRIC} - the number of calls which had to wait for a permit (waited) or gave up waiting (rejected)
+ * </ul>
+ */
+public class AdaptiveConcurrencyLimiter implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+	/**
+	 * The current concurrency limit - tagged by limiter
+	 */
+	public static final String LIMIT_METRIC = "enricher_concurrency_limit";
+
+	/**
+	 * The number of in-flight calls - tagged by limiter
+	 */
+	public static final String IN_FLIGHT_METRIC = "enricher_concurrency_in_flight";
+
+	/**
+	 * Number of calls which were limited - tagged by limiter and outcome
+	 */
+	public static final String LIMITED_METRIC = "enricher_concurrency_limited_total";
+
+	/**
+	 * Notified when the saturation of the limiter changes
+	 */
+	public interface Listener {
+		/**
+		 * Invoked (in order) whenever the limiter becomes saturated or unsaturated
+		 * <p>
+		 * Listeners are invoked on the limiter's notification thread, one transition at a time.
+		 */
+		void onSaturationChanged(AdaptiveConcurrencyLimiter limiter, boolean saturated);
+	}
+
+	private final String limiterId;
+	private final Lock lock = new ReentrantLock();
+	private final Condition permitReleased = lock.newCondition();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private final ThreadPoolExecutor notificationExecutor;
+	private final Gauge limitGauge;
+	private final Gauge inFlightGauge;
+	private final Counter waitedCount;
+	private final Counter rejectedCount;
+	private int minLimit = 1;
+	private int maxLimit;
+	private long latencyThreshold = 500;
+	private double backoffRatio = 0.9;
+	private double resumeRatio = 0.7;
+	private long maxWait;
+
+	// guarded by lock
+	private double limit = 10;
+	private int inFlight;
+	private int waiting;
+	private boolean saturated;
+
+	/**
+	 * @param metrics The registry to record metrics in
+	 * @param limiterId Identifies the limiter in metrics and log events
+	 */
+	public AdaptiveConcurrencyLimiter(final MetricsRegistry metrics, final String limiterId) {
+		this.limiterId = Preconditions.checkNotNull(limiterId);
+
+		limitGauge = metrics.gauge(LIMIT_METRIC, "limiter", limiterId);
+		inFlightGauge = metrics.gauge(IN_FLIGHT_METRIC, "limiter", limiterId);
+		waitedCount = metrics.counter(LIMITED_METRIC, "limiter", limiterId, "outcome", "waited");
+		rejectedCount = metrics.counter(LIMITED_METRIC, "limiter", limiterId, "outcome", "rejected");
+		limitGauge.set(getLimit());
+
+		// A single thread delivers the notifications in the order the transitions were made
+		notificationExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder()
+					.setNameFormat("concurrency-limiter-" + limiterId + "-%d")
+					.setDaemon(true)
+					.build());
+		notificationExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * The limit before any calls have been made (default is 10)
+	 */
+	public void setInitialLimit(final int initialLimit) {
+		Preconditions.checkArgument(initialLimit > 0, "initialLimit must be positive");
+		lock.lock();
+		try {
+			limit = initialLimit;
+			limitGauge.set(getLimit());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The limit is never reduced below this value (default is 1)
+	 */
+	public void setMinLimit(final int minLimit) {
+		Preconditions.checkArgument(minLimit > 0, "minLimit must be positive");
+		this.minLimit = minLimit;
+	}
+
+	/**
+	 * The limit is never increased above this value. A value of zero (the default) disables limiting.
+	 */
+	public void setMaxLimit(final int maxLimit) {
+		Preconditions.checkArgument(maxLimit >= 0, "maxLimit must not be negative");
+		this.maxLimit = maxLimit;
+	}
+
+	/**
+	 * Calls taking longer than this threshold (in milliseconds) reduce the limit. A value of zero only reduces
+	 * the limit when calls fail (default is 500).
+	 */
+	public void setLatencyThreshold(final long latencyThreshold) {
+		Preconditions.checkArgument(latencyThreshold >= 0, "latencyThreshold must not be negative");
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	/**
+	 * The ratio the limit is multiplied by for each failed or slow call (default is 0.9)
+	 */
+	public void setBackoffRatio(final double backoffRatio) {
+		Preconditions.checkArgument(backoffRatio > 0 && backoffRatio < 1, "backoffRatio must be between 0 and 1");
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * A saturated limiter becomes unsaturated once no calls are waiting and the number of in-flight calls is
+	 * at most this ratio of the limit (default is 0.7)
+	 */
+	public void setResumeRatio(final double resumeRatio) {
+		Preconditions.checkArgument(resumeRatio > 0 && resumeRatio <= 1, "resumeRatio must be between 0 and 1");
+		this.resumeRatio = resumeRatio;
+	}
+
+	/**
+	 * The maximum time (in milliseconds) a call will wait for a permit before failing with a
+	 * {@link TimeoutException}. A value of zero (the default) waits indefinitely.
+	 */
+	public void setMaxWait(final long maxWait) {
+		Preconditions.checkArgument(maxWait >= 0, "maxWait must not be negative");
+		this.maxWait = maxWait;
+	}
+
+	public void addListener(final Listener listener) {
+		listeners.add(Preconditions.checkNotNull(listener));
+	}
+
+	public boolean isEnabled() {
+		return maxLimit > 0;
+	}
+
+	/**
+	 * The current concurrency limit
+	 */
+	public int getLimit() {
+		lock.lock();
+		try {
+			final int currentLimit = Math.max(minLimit, (int) limit);
+			return maxLimit > 0 ? Math.min(maxLimit, currentLimit) : currentLimit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isSaturated() {
+		lock.lock();
+		try {
+			return saturated;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquires a permit for a call - waiting if the limit has been reached
+	 * <p>
+	 * Each acquired permit must be released by calling {@link #release(long, boolean)} when the call completes.
+	 *
+	 * @return The start time of the call (as returned by {@link System#nanoTime()})
+	 * @throws TimeoutException If a permit could not be acquired within <code>maxWait</code> milliseconds
+	 */
+	public long acquire() throws InterruptedException, TimeoutException {
+		if (!acquirePermit(maxWait > 0 ? TimeUnit.MILLISECONDS.toNanos(maxWait) : -1)) {
+			throw new TimeoutException("Concurrency limit of " + limiterId + " was not available within "
+					+ maxWait + " ms (limit: " + getLimit() + ")");
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Acquires a permit for a call - waiting if the limit has been reached, for no longer than the specified
+	 * timeout (or <code>maxWait</code> if that is shorter)
+	 * <p>
+	 * Each acquired permit must be released by calling {@link #release(long, boolean)} when the call completes.
+	 *
+	 * @return true if a permit was acquired, or false if the wait timed out
+	 */
+	public boolean tryAcquire(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long timeoutNanos = Math.max(0, unit.toNanos(timeout));
+		return acquirePermit(maxWait > 0 ? Math.min(timeoutNanos, TimeUnit.MILLISECONDS.toNanos(maxWait)) : timeoutNanos);
+	}
+
+	/**
+	 * @param maxWaitNanos The maximum time to wait for a permit, or a negative value to wait indefinitely
+	 * @return true if a permit was acquired, or false if the wait timed out
+	 */
+	private boolean acquirePermit(final long maxWaitNanos) throws InterruptedException {
+		if (!isEnabled()) {
+			return true;
+		}
+
+		lock.lock();
+		try {
+			if (inFlight >= getLimit()) {
+				waitedCount.increment();
+				waiting++;
+				try {
+					setSaturated(true);
+					if (!awaitPermit(maxWaitNanos)) {
+						rejectedCount.increment();
+						return false;
+					}
+				} finally {
+					waiting--;
+					updateSaturation();
+				}
+			}
+
+			inFlight++;
+			inFlightGauge.set(inFlight);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acquires a permit for an optional call (e.g. a hedged lookup) only if one is immediately available - the
+	 * limiter does not become saturated if it is not
+	 * <p>
+	 * Each acquired permit must be released by calling {@link #release(long, boolean)} when the call completes.
+	 *
+	 * @return true if a permit was acquired
+	 */
+	public boolean tryAcquire() {
+		if (!isEnabled()) {
+			return true;
+		}
+
+		lock.lock();
+		try {
+			if (waiting > 0 || inFlight >= getLimit()) {
+				return false;
+			}
+
+			inFlight++;
+			inFlightGauge.set(inFlight);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// guarded by lock
+	private boolean awaitPermit(final long maxWaitNanos) throws InterruptedException {
+		long remainingNanos = maxWaitNanos;
+		while (inFlight >= getLimit()) {
+			if (maxWaitNanos < 0) {
+				permitReleased.await();
+			} else if (remainingNanos <= 0) {
+				return false;
+			} else {
+				remainingNanos = permitReleased.awaitNanos(remainingNanos);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the permit of a completed call, adapting the limit to the outcome of the call
+	 *
+	 * @param startNanos The start time of the call (as returned by {@link #acquire()})
+	 * @param failed true if the call failed
+	 */
+	public void release(final long startNanos, final boolean failed) {
+		if (!isEnabled()) {
+			return;
+		}
+
+		final long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		final boolean dropped = failed || (latencyThreshold > 0 && durationMillis >= latencyThreshold);
+
+		lock.lock();
+		try {
+			if (dropped) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+			} else if (inFlight * 2 >= limit) {
+				// Only increase the limit if it is being used (otherwise it would grow without bound)
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			}
+			limitGauge.set(getLimit());
+			releasePermit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases a permit which was acquired but not used for a call (e.g. a hedged lookup which was no longer
+	 * required) - the limit is not adapted
+	 */
+	public void releaseUnused() {
+		if (!isEnabled()) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			releasePermit();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// guarded by lock
+	private void releasePermit() {
+		inFlight = Math.max(0, inFlight - 1);
+		inFlightGauge.set(inFlight);
+		updateSaturation();
+		permitReleased.signalAll();
+	}
+
+	// guarded by lock
+	private void updateSaturation() {
+		if (saturated && waiting == 0 && inFlight <= (int) (getLimit() * resumeRatio)) {
+			setSaturated(false);
+		}
+	}
+
+	// guarded by lock - the transition is recorded under the lock, and the listeners are notified by the
+	// notification thread (in the order the transitions were queued)
+	private void setSaturated(final boolean saturated) {
+		if (this.saturated == saturated) {
+			return;
+		}
+
+		this.saturated = saturated;
+		LOGGER.info("Concurrency limiter {} is {} (limit: {}, in-flight: {})", limiterId,
+				saturated ? "saturated" : "no longer saturated", getLimit(), inFlight);
+		if (listeners.isEmpty() || notificationExecutor.isShutdown()) {
+			return;
+		}
+
+		notificationExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				notifyListeners(saturated);
+			}
+		});
+	}
+
+	private void notifyListeners(final boolean saturated) {
+		for (final Listener listener: listeners) {
+			try {
+				listener.onSaturationChanged(this, saturated);
+			} catch (RuntimeException e) {
+				LOGGER.warn("Concurrency limiter listener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Shuts down the notification thread - notifications already queued are still delivered
+	 */
+	@Override
+	public void close() {
+		notificationExecutor.shutdown();
+	}
+}
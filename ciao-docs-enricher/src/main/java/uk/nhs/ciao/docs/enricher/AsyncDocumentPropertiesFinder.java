@@ -0,0 +1,23 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Finds dynamic document properties from a set of lookup key/value pairs in an asynchronous manner
+ * 
+ * @see DocumentPropertiesFinder
+ * @see AsyncDynamicDocumentEnricher
+ */
+public interface AsyncDocumentPropertiesFinder {
+	/**
+	 * Finds dynamic document properties from a set of lookup key/value pairs without blocking
+	 * the calling thread
+	 * 
+	 * @param lookupKeys Key/value pairs identifying the properties to find
+	 * @return A future which is completed with the properties associated with the <code>lookupKeys</code>,
+	 * 		or failed if the properties could not be found
+	 */
+	ListenableFuture<Map<String, Object>> findPropertiesAsync(Map<String, Object> lookupKeys);
+}
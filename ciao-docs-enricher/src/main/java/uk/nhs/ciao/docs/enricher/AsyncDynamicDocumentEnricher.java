@@ -0,0 +1,77 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Asynchronous variant of {@link DynamicDocumentEnricher}.
+ * <p>
+ * The lookup keys of every selected document section are sent to the {@link AsyncDocumentPropertiesFinder}
+ * without waiting for the results, so that all lookups of the document are in flight at the same time.
+ * Once every lookup has completed, the returned properties are merged into their document sections (on a
+ * single thread) and the callback is notified. If any lookup fails, the callback is notified of the first
+ * failure.
+ * <p>
+ * The enricher does not block while lookups are in progress - the merge and callback run on the thread
+ * which completes the final lookup (e.g. a {@link BatchingDocumentPropertiesFinder} thread). Note that Camel
+ * executes transacted routes synchronously, so the route itself still waits for the callback before the
+ * message is acknowledged.
+ */
+public class AsyncDynamicDocumentEnricher extends AbstractDynamicDocumentEnricher implements AsyncDocumentEnricher {
+	private final AsyncDocumentPropertiesFinder propertiesFinder;
+	
+	public AsyncDynamicDocumentEnricher(final AsyncDocumentPropertiesFinder propertiesFinder) {
+		super();
+		this.propertiesFinder = Preconditions.checkNotNull(propertiesFinder);
+	}
+	
+	@Override
+	public void enrichDocument(final ParsedDocument document, final AsyncDocumentEnricherCallback asyncCallback)
+			throws Exception {
+		if (document == null) {
+			asyncCallback.onDocumentWasEnriched(null);
+			return;
+		}
+		
+		final List<Map<String, Object>> enrichableProperties = getEnrichableProperties(document);
+		final List<ListenableFuture<Map<String, Object>>> lookups = Lists.newArrayListWithCapacity(
+				enrichableProperties.size());
+		final long lookupStart = System.nanoTime();
+		for (final Map<String, Object> properties: enrichableProperties) {
+			lookups.add(propertiesFinder.findPropertiesAsync(getLookupKeys(properties)));
+		}
+		
+		Futures.addCallback(Futures.allAsList(lookups), new FutureCallback<List<Map<String, Object>>>() {
+			@Override
+			public void onSuccess(final List<Map<String, Object>> allAdditionalProperties) {
+				recordLookupTime(lookupStart);
+				
+				final long mergeStart = System.nanoTime();
+				try {
+					for (int index = 0; index < enrichableProperties.size(); index++) {
+						addAdditionalProperties(allAdditionalProperties.get(index), enrichableProperties.get(index));
+					}
+					recordMergeTime(mergeStart);
+				} catch (Exception e) {
+					asyncCallback.onDocumentEnrichmentFailed(e);
+					return;
+				}
+				
+				asyncCallback.onDocumentWasEnriched(document);
+			}
+			
+			@Override
+			public void onFailure(final Throwable cause) {
+				asyncCallback.onDocumentEnrichmentFailed(cause);
+			}
+		});
+	}
+}
@@ -0,0 +1,21 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link DocumentPropertiesFinder} which can find the properties for multiple sets of lookup
+ * key/value pairs in a single operation (e.g. a single database round trip).
+ * 
+ * @see DocumentPropertiesFinders#findAllProperties(DocumentPropertiesFinder, List)
+ */
+public interface BatchDocumentPropertiesFinder extends DocumentPropertiesFinder {
+	/**
+	 * Finds dynamic document properties for each set of lookup key/value pairs
+	 * 
+	 * @param lookupKeys The sets of key/value pairs identifying the properties to find
+	 * @return The properties associated with each entry in <code>lookupKeys</code> - the returned
+	 * 		list has the same size and order as <code>lookupKeys</code>
+	 */
+	List<Map<String, Object>> findAllProperties(List<Map<String, Object>> lookupKeys) throws Exception;
+}
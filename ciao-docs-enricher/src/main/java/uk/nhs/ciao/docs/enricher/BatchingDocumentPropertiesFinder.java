@@ -0,0 +1,405 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * {@link DocumentPropertiesFinder} which collects lookups from many concurrent callers (e.g. the
+ * documents being processed by multiple consumers) into micro-batches, and sends each batch to the
+ * delegate finder as a single {@link BatchDocumentPropertiesFinder#findAllProperties(List) bulk lookup}.
+ * <p>
+ * A batch is sent when either:
+ * <ul>
+ * <li>{@link #setMaxBatchSize(int) maxBatchSize} lookups have been collected, or
+ * <li>{@link #setMaxDelay(long) maxDelay} milliseconds have elapsed since the first lookup of the batch
+ * </ul>
+ * This trades a bounded increase in lookup latency for fewer (larger) requests to the backend. A
+ * <code>maxDelay</code> of zero disables batching - {@link #findProperties(Map) synchronous lookups} are then
+ * passed directly to the delegate on the calling thread, and each {@link #findPropertiesAsync(Map) asynchronous lookup}
+ * is sent to the delegate on its own (so the lookups of a document run concurrently on the batch threads).
+ * <p>
+ * Batches are executed on a dedicated pool of {@link #setThreads(int) threads} - the pool should be
+ * shut down via {@link #close()} when the finder is no longer required. Lookups made after the finder
+ * has been closed are rejected.
+ * <p>
+ * At most {@link #setMaxQueuedLookups(int) maxQueuedLookups} lookups may be waiting for a batch thread -
+ * once this limit is reached further lookups fail immediately with a {@link RejectedExecutionException},
+ * rather than queueing without limit while the backend is slow.
+ * <p>
+ * Each batch is sent with the logging MDC of the lookups it contains - where the lookups were made with different
+ * values (e.g. the correlation ids of different documents) the distinct values are joined with commas, so log
+ * events of the delegate finders identify every document in the batch.
+ */
+public class BatchingDocumentPropertiesFinder implements BatchDocumentPropertiesFinder, AsyncDocumentPropertiesFinder, Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(BatchingDocumentPropertiesFinder.class);
+
+	private final DocumentPropertiesFinder finder;
+	private final Object lock = new Object();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong lookupCount = new AtomicLong();
+	private long maxDelay;
+	private int maxBatchSize = 100;
+	private int threads = 4;
+	private int maxQueuedLookups = 1000;
+	private boolean batchLookupSupported = true;
+
+	// guarded by lock
+	private List<PendingLookup> pendingLookups = Lists.newArrayList();
+	private ScheduledFuture<?> scheduledBatch;
+	private ScheduledExecutorService executorService;
+	private int queuedLookups;
+	private boolean closed;
+
+	/**
+	 * Constructs a new batching finder backed by the specified delegate
+	 * <p>
+	 * The delegate should typically be a {@link BatchDocumentPropertiesFinder}
+	 */
+	public BatchingDocumentPropertiesFinder(final DocumentPropertiesFinder finder) {
+		this.finder = Preconditions.checkNotNull(finder);
+	}
+
+	/**
+	 * The maximum time (in milliseconds) a lookup waits for other lookups to join its batch.
+	 * A value of zero disables batching.
+	 */
+	public void setMaxDelay(final long maxDelay) {
+		Preconditions.checkArgument(maxDelay >= 0, "maxDelay must not be negative");
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * The maximum number of lookups to include in a single batch (default is 100)
+	 */
+	public void setMaxBatchSize(final int maxBatchSize) {
+		Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * The number of threads used to execute batches (default is 4)
+	 */
+	public void setThreads(final int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be positive");
+		this.threads = threads;
+	}
+
+	/**
+	 * The maximum number of lookups waiting for a batch thread (default is 1000)
+	 */
+	public void setMaxQueuedLookups(final int maxQueuedLookups) {
+		Preconditions.checkArgument(maxQueuedLookups > 0, "maxQueuedLookups must be positive");
+		this.maxQueuedLookups = maxQueuedLookups;
+	}
+
+	/**
+	 * Whether the delegate finder can look up a batch in a single request (default is true). If not, each
+	 * batch is split back into individual lookups - so batching only adds latency.
+	 */
+	public void setBatchLookupSupported(final boolean batchLookupSupported) {
+		this.batchLookupSupported = batchLookupSupported;
+	}
+
+	public boolean isBatchingEnabled() {
+		return maxDelay > 0;
+	}
+
+	/**
+	 * Logs a warning if batching is enabled but the delegate finder cannot look up a batch in a single request
+	 */
+	public void start() {
+		if (isBatchingEnabled() && !batchLookupSupported) {
+			LOGGER.warn("Micro-batching is enabled (maxDelay: {} ms) but batch lookups are not supported by the "
+					+ "delegate finder - each lookup will be delayed and then sent individually", maxDelay);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The calling thread waits until the batch containing the lookup has completed
+	 */
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		if (!isBatchingEnabled()) {
+			return finder.findProperties(lookupKeys);
+		}
+
+		return getResult(findPropertiesAsync(lookupKeys));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The lookups join the current batch(es) - the calling thread waits until they have completed
+	 */
+	@Override
+	public List<Map<String, Object>> findAllProperties(final List<Map<String, Object>> lookupKeys) throws Exception {
+		if (!isBatchingEnabled()) {
+			return DocumentPropertiesFinders.findAllProperties(finder, lookupKeys);
+		}
+
+		final List<ListenableFuture<Map<String, Object>>> futures = Lists.newArrayListWithCapacity(lookupKeys.size());
+		for (final Map<String, Object> entry: lookupKeys) {
+			futures.add(findPropertiesAsync(entry));
+		}
+
+		final List<Map<String, Object>> results = Lists.newArrayListWithCapacity(futures.size());
+		for (final ListenableFuture<Map<String, Object>> future: futures) {
+			results.add(getResult(future));
+		}
+		return results;
+	}
+
+	/**
+	 * Adds the lookup to the current batch without waiting for the result
+	 * <p>
+	 * If batching is disabled the lookup is still performed asynchronously on the batch threads - it
+	 * is sent on its own as soon as a thread is available.
+	 *
+	 * @return A future which is completed once the batch containing the lookup has completed, or which
+	 * 		has failed with an {@link IllegalStateException} if the finder has been closed or with a
+	 * 		{@link RejectedExecutionException} if too many lookups are already waiting
+	 */
+	@Override
+	public ListenableFuture<Map<String, Object>> findPropertiesAsync(final Map<String, Object> lookupKeys) {
+		final PendingLookup lookup = new PendingLookup(lookupKeys);
+
+		synchronized (lock) {
+			if (closed) {
+				return Futures.immediateFailedFuture(new IllegalStateException("Properties finder has been closed"));
+			} else if (queuedLookups >= maxQueuedLookups) {
+				return Futures.immediateFailedFuture(new RejectedExecutionException(
+						"Too many lookups are waiting for a batch thread - maxQueuedLookups: " + maxQueuedLookups));
+			}
+
+			queuedLookups++;
+			lookupCount.incrementAndGet();
+			final ScheduledExecutorService executor = getExecutorService();
+			if (!isBatchingEnabled()) {
+				executor.execute(new BatchTask(Collections.singletonList(lookup)));
+				return lookup.future;
+			}
+
+			pendingLookups.add(lookup);
+			if (pendingLookups.size() >= maxBatchSize) {
+				final List<PendingLookup> batch = takePendingLookups();
+				executor.execute(new BatchTask(batch));
+			} else if (scheduledBatch == null) {
+				scheduledBatch = executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						final List<PendingLookup> batch;
+						synchronized (lock) {
+							scheduledBatch = null;
+							batch = takePendingLookups();
+						}
+						new BatchTask(batch).run();
+					}
+				}, maxDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		return lookup.future;
+	}
+
+	// guarded by lock
+	private List<PendingLookup> takePendingLookups() {
+		final List<PendingLookup> batch = pendingLookups;
+		pendingLookups = Lists.newArrayList();
+		if (scheduledBatch != null) {
+			scheduledBatch.cancel(false);
+			scheduledBatch = null;
+		}
+		return batch;
+	}
+
+	// guarded by lock
+	private ScheduledExecutorService getExecutorService() {
+		if (executorService == null) {
+			final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads,
+					new ThreadFactoryBuilder()
+						.setNameFormat("properties-finder-batch-%d")
+						.setDaemon(true)
+						.build());
+			executor.setRemoveOnCancelPolicy(true);
+			executorService = executor;
+		}
+		return executorService;
+	}
+
+	/**
+	 * Shuts down the batch threads - any pending lookups are failed, as are any subsequent lookups
+	 */
+	@Override
+	public void close() {
+		final List<PendingLookup> batch;
+		synchronized (lock) {
+			closed = true;
+			batch = takePendingLookups();
+			if (executorService != null) {
+				executorService.shutdown();
+				executorService = null;
+			}
+		}
+
+		final IllegalStateException cause = new IllegalStateException("Properties finder has been closed");
+		for (final PendingLookup lookup: batch) {
+			lookup.future.setException(cause);
+		}
+	}
+
+	/**
+	 * The number of batches sent to the delegate finder (including lookups sent on their own while
+	 * batching is disabled)
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * The number of lookups added to batches
+	 */
+	public long getLookupCount() {
+		return lookupCount.get();
+	}
+
+	private Map<String, Object> getResult(final ListenableFuture<Map<String, Object>> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Merges the logging MDCs of the lookups in a batch - keys with different values are mapped to the
+	 * comma separated distinct values
+	 */
+	static Map<String, String> mergeContexts(final List<Map<String, String>> contexts) {
+		final Map<String, Set<String>> valuesByKey = Maps.newLinkedHashMap();
+		for (final Map<String, String> context: contexts) {
+			if (context == null) {
+				continue;
+			}
+
+			for (final Map.Entry<String, String> entry: context.entrySet()) {
+				Set<String> values = valuesByKey.get(entry.getKey());
+				if (values == null) {
+					values = Sets.newLinkedHashSet();
+					valuesByKey.put(entry.getKey(), values);
+				}
+				values.add(entry.getValue());
+			}
+		}
+
+		if (valuesByKey.isEmpty()) {
+			return null;
+		}
+
+		final Map<String, String> mergedContext = Maps.newLinkedHashMap();
+		for (final Map.Entry<String, Set<String>> entry: valuesByKey.entrySet()) {
+			mergedContext.put(entry.getKey(), Joiner.on(',').useForNull("null").join(entry.getValue()));
+		}
+		return mergedContext;
+	}
+
+	private static class PendingLookup {
+		private final Map<String, Object> lookupKeys;
+		private final SettableFuture<Map<String, Object>> future;
+		private final Map<String, String> context;
+
+		public PendingLookup(final Map<String, Object> lookupKeys) {
+			this.lookupKeys = lookupKeys;
+			this.future = SettableFuture.create();
+			this.context = MDC.getCopyOfContextMap();
+		}
+	}
+
+	/**
+	 * Sends a batch of lookups to the delegate finder and fans the results back out to each lookup
+	 */
+	private class BatchTask implements Runnable, Callable<Void> {
+		private final List<PendingLookup> batch;
+
+		public BatchTask(final List<PendingLookup> batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			if (batch.isEmpty()) {
+				return;
+			}
+
+			synchronized (lock) {
+				queuedLookups -= batch.size();
+			}
+
+			batchCount.incrementAndGet();
+			try {
+				final List<Map<String, String>> contexts = Lists.newArrayListWithCapacity(batch.size());
+				for (final PendingLookup lookup: batch) {
+					contexts.add(lookup.context);
+				}
+
+				new MdcCallable<Void>(this, mergeContexts(contexts)).call();
+			} catch (Throwable e) {
+				for (final PendingLookup lookup: batch) {
+					lookup.future.setException(e);
+				}
+			}
+		}
+
+		@Override
+		public Void call() throws Exception {
+			if (batch.size() == 1) {
+				final PendingLookup lookup = batch.get(0);
+				lookup.future.set(finder.findProperties(lookup.lookupKeys));
+				return null;
+			}
+
+			final List<Map<String, Object>> lookupKeys = Lists.newArrayListWithCapacity(batch.size());
+			for (final PendingLookup lookup: batch) {
+				lookupKeys.add(lookup.lookupKeys);
+			}
+
+			final List<Map<String, Object>> results = DocumentPropertiesFinders.findAllProperties(finder, lookupKeys);
+			for (int index = 0; index < batch.size(); index++) {
+				batch.get(index).future.set(results.get(index));
+			}
+			return null;
+		}
+	}
+}
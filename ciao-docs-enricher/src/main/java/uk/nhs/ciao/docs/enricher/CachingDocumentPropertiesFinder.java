@@ -0,0 +1,337 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import uk.nhs.ciao.docs.enricher.metrics.Counter;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * {@link DocumentPropertiesFinder} which caches the properties returned by a delegate finder.
+ * <p>
+ * Results are keyed on a normalised copy of the incoming lookup keys (see {@link PropertyMaps#normalise(Map)}),
+ * so equal keys hit the same entry regardless of map ordering or later changes to the document.
+ * <p>
+ * The cache is configured by:
+ * <ul>
+ * <li>{@link #setMaximumSize(long) maximumSize} - the maximum number of cached entries (least-recently-used entries
+ * 		are evicted first). A value of zero disables caching entirely.
+ * <li>{@link #setExpireAfterWrite(long) expireAfterWrite} - the time-to-live (in seconds) of each entry. A value of
+ * 		zero keeps entries until they are evicted by size.
+ * <li>{@link #setCacheEmptyResults(boolean) cacheEmptyResults} - whether empty results (i.e. no matching properties)
+ * 		should also be cached
+ * </ul>
+ * <p>
+ * Exceptions thrown by the delegate finder are never cached.
+ * <p>
+ * Batch lookups are supported - only the keys missing from the cache are passed on to the delegate
+ * (as a single batch if the delegate is a {@link BatchDocumentPropertiesFinder}).
+ * <p>
+ * Asynchronous lookups are supported - cache hits complete immediately, and misses are passed on to the delegate
+ * without waiting (if the delegate is an {@link AsyncDocumentPropertiesFinder}).
+ * <p>
+ * Individual entries can be discarded when the backing data changes (see {@link #invalidate(Map)} and
+ * {@link #invalidateMatching(Predicate)}) - e.g. by a {@link DataSourceCacheRefresher} - allowing long
+ * time-to-live values to be used without serving stale data.
+ * <p>
+ * The following metrics are recorded in the {@link MetricsRegistry} (tagged by finder id) while caching is enabled:
+ * <ul>
+ * <li>{@link #LOOKUPS_METRIC} - the number of lookups which were served from the cache (hit) or passed on to the
+ * 		delegate finder (miss)
+ * <li>{@link #EVICTIONS_METRIC} - the number of entries evicted from the cache (by size or expiry)
+ * </ul>
+ */
+public class CachingDocumentPropertiesFinder implements BatchDocumentPropertiesFinder, AsyncDocumentPropertiesFinder {
+	/**
+	 * Number of cache lookups - tagged by finder and outcome
+	 */
+	public static final String LOOKUPS_METRIC = "enricher_cache_lookups_total";
+
+	/**
+	 * Number of entries evicted from the cache - tagged by finder
+	 */
+	public static final String EVICTIONS_METRIC = "enricher_cache_evictions_total";
+
+	private final DocumentPropertiesFinder finder;
+	private final Counter hitCount;
+	private final Counter missCount;
+	private final Counter evictionCount;
+	private long maximumSize = 10000;
+	private long expireAfterWrite = TimeUnit.MINUTES.toSeconds(5);
+	private boolean cacheEmptyResults = true;
+	private volatile Cache<Map<String, Object>, Map<String, Object>> cache;
+
+	/**
+	 * Constructs a new caching finder backed by the specified delegate
+	 *
+	 * @param finder The finder to call on a cache miss
+	 * @param metrics The registry to record metrics in
+	 * @param finderId Identifies the finder in metrics
+	 */
+	public CachingDocumentPropertiesFinder(final DocumentPropertiesFinder finder, final MetricsRegistry metrics,
+			final String finderId) {
+		this.finder = Preconditions.checkNotNull(finder);
+
+		hitCount = metrics.counter(LOOKUPS_METRIC, "finder", finderId, "outcome", "hit");
+		missCount = metrics.counter(LOOKUPS_METRIC, "finder", finderId, "outcome", "miss");
+		evictionCount = metrics.counter(EVICTIONS_METRIC, "finder", finderId);
+		this.cache = buildCache();
+	}
+
+	/**
+	 * The maximum number of entries to cache - a value of zero disables caching
+	 * <p>
+	 * Any previously cached entries are discarded
+	 */
+	public void setMaximumSize(final long maximumSize) {
+		Preconditions.checkArgument(maximumSize >= 0, "maximumSize must not be negative");
+		this.maximumSize = maximumSize;
+		this.cache = buildCache();
+	}
+
+	/**
+	 * The time-to-live (in seconds) of cached entries - a value of zero disables expiry
+	 * <p>
+	 * Any previously cached entries are discarded
+	 */
+	public void setExpireAfterWrite(final long expireAfterWrite) {
+		Preconditions.checkArgument(expireAfterWrite >= 0, "expireAfterWrite must not be negative");
+		this.expireAfterWrite = expireAfterWrite;
+		this.cache = buildCache();
+	}
+
+	/**
+	 * Whether empty results should be cached (negative caching). The default is true.
+	 */
+	public void setCacheEmptyResults(final boolean cacheEmptyResults) {
+		this.cacheEmptyResults = cacheEmptyResults;
+	}
+
+	private Cache<Map<String, Object>, Map<String, Object>> buildCache() {
+		if (maximumSize == 0) {
+			return null;
+		}
+
+		final CacheBuilder<Map<String, Object>, Map<String, Object>> builder = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.removalListener(new RemovalListener<Map<String, Object>, Map<String, Object>>() {
+					@Override
+					public void onRemoval(final RemovalNotification<Map<String, Object>, Map<String, Object>> notification) {
+						if (notification.wasEvicted()) {
+							evictionCount.increment();
+						}
+					}
+				});
+		if (expireAfterWrite > 0) {
+			builder.expireAfterWrite(expireAfterWrite, TimeUnit.SECONDS);
+		}
+
+		return builder.build();
+	}
+
+	/**
+	 * Returns the cached properties of the (normalised) key - recording the hit or miss
+	 */
+	private Map<String, Object> getCachedProperties(final Cache<Map<String, Object>, Map<String, Object>> currentCache,
+			final Map<String, Object> key) {
+		final Map<String, Object> properties = currentCache.getIfPresent(key);
+		if (properties == null) {
+			missCount.increment();
+		} else {
+			hitCount.increment();
+		}
+		return properties;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Cached properties are returned as a copy - callers are free to modify the returned map.
+	 */
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final Cache<Map<String, Object>, Map<String, Object>> currentCache = cache;
+		if (currentCache == null) {
+			return finder.findProperties(lookupKeys);
+		}
+
+		final Map<String, Object> key = PropertyMaps.normalise(lookupKeys);
+		Map<String, Object> properties = getCachedProperties(currentCache, key);
+		if (properties == null) {
+			properties = cacheProperties(currentCache, key, finder.findProperties(lookupKeys));
+		}
+
+		return PropertyMaps.deepCopy(properties);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Cached properties are returned as a copy - callers are free to modify the returned maps.
+	 */
+	@Override
+	public List<Map<String, Object>> findAllProperties(final List<Map<String, Object>> lookupKeys) throws Exception {
+		final Cache<Map<String, Object>, Map<String, Object>> currentCache = cache;
+		if (currentCache == null) {
+			return DocumentPropertiesFinders.findAllProperties(finder, lookupKeys);
+		}
+
+		// Resolve what is available from the cache, and collect the distinct misses
+		final List<Map<String, Object>> keys = Lists.newArrayListWithCapacity(lookupKeys.size());
+		final Map<Map<String, Object>, Map<String, Object>> found = Maps.newHashMap();
+		final Map<Map<String, Object>, Map<String, Object>> misses = Maps.newLinkedHashMap();
+		for (final Map<String, Object> entry: lookupKeys) {
+			final Map<String, Object> key = PropertyMaps.normalise(entry);
+			keys.add(key);
+
+			if (!found.containsKey(key) && !misses.containsKey(key)) {
+				final Map<String, Object> properties = getCachedProperties(currentCache, key);
+				if (properties == null) {
+					misses.put(key, entry);
+				} else {
+					found.put(key, properties);
+				}
+			}
+		}
+
+		if (!misses.isEmpty()) {
+			final List<Map<String, Object>> missedProperties = DocumentPropertiesFinders.findAllProperties(
+					finder, Lists.newArrayList(misses.values()));
+			int index = 0;
+			for (final Map<String, Object> key: misses.keySet()) {
+				found.put(key, cacheProperties(currentCache, key, missedProperties.get(index++)));
+			}
+		}
+
+		final List<Map<String, Object>> results = Lists.newArrayListWithCapacity(keys.size());
+		for (final Map<String, Object> key: keys) {
+			results.add(PropertyMaps.deepCopy(found.get(key)));
+		}
+		return results;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Cached properties are returned as a copy - callers are free to modify the returned map.
+	 */
+	@Override
+	public ListenableFuture<Map<String, Object>> findPropertiesAsync(final Map<String, Object> lookupKeys) {
+		final Cache<Map<String, Object>, Map<String, Object>> currentCache = cache;
+		if (currentCache == null) {
+			return DocumentPropertiesFinders.findPropertiesAsync(finder, lookupKeys);
+		}
+
+		final Map<String, Object> key = PropertyMaps.normalise(lookupKeys);
+		final Map<String, Object> properties = getCachedProperties(currentCache, key);
+		if (properties != null) {
+			return Futures.immediateFuture(PropertyMaps.deepCopy(properties));
+		}
+
+		return Futures.transform(DocumentPropertiesFinders.findPropertiesAsync(finder, lookupKeys),
+				new Function<Map<String, Object>, Map<String, Object>>() {
+			@Override
+			public Map<String, Object> apply(final Map<String, Object> missedProperties) {
+				return PropertyMaps.deepCopy(cacheProperties(currentCache, key, missedProperties));
+			}
+		});
+	}
+
+	private Map<String, Object> cacheProperties(final Cache<Map<String, Object>, Map<String, Object>> currentCache,
+			final Map<String, Object> key, final Map<String, Object> properties) {
+		final Map<String, Object> result = properties == null ? Collections.<String, Object>emptyMap() : properties;
+		if (cacheEmptyResults || !result.isEmpty()) {
+			currentCache.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Discards the cached entry (if any) of the lookup keys
+	 */
+	public void invalidate(final Map<String, Object> lookupKeys) {
+		final Cache<Map<String, Object>, Map<String, Object>> currentCache = cache;
+		if (currentCache != null) {
+			currentCache.invalidate(PropertyMaps.normalise(lookupKeys));
+		}
+	}
+
+	/**
+	 * Discards the cached entries whose (normalised) lookup keys match the predicate
+	 * <p>
+	 * Every cached entry is tested, so the cost is proportional to the size of the cache.
+	 *
+	 * @return The lookup keys of the discarded entries
+	 */
+	public List<Map<String, Object>> invalidateMatching(final Predicate<? super Map<String, Object>> predicate) {
+		final List<Map<String, Object>> invalidated = Lists.newArrayList();
+		final Cache<Map<String, Object>, Map<String, Object>> currentCache = cache;
+		if (currentCache == null) {
+			return invalidated;
+		}
+
+		final Iterator<Map<String, Object>> iterator = currentCache.asMap().keySet().iterator();
+		while (iterator.hasNext()) {
+			final Map<String, Object> key = iterator.next();
+			if (predicate.apply(key)) {
+				iterator.remove();
+				invalidated.add(key);
+			}
+		}
+		return invalidated;
+	}
+
+	/**
+	 * Discards all cached entries
+	 */
+	public void invalidateAll() {
+		final Cache<Map<String, Object>, Map<String, Object>> currentCache = cache;
+		if (currentCache != null) {
+			currentCache.invalidateAll();
+		}
+	}
+
+	/**
+	 * The number of lookups which were served from the cache
+	 */
+	public long getHitCount() {
+		return hitCount.getCount();
+	}
+
+	/**
+	 * The number of lookups which were passed on to the delegate finder
+	 */
+	public long getMissCount() {
+		return missCount.getCount();
+	}
+
+	/**
+	 * The number of entries evicted from the cache (by size or expiry)
+	 */
+	public long getEvictionCount() {
+		return evictionCount.getCount();
+	}
+
+	/**
+	 * The approximate number of entries currently in the cache
+	 */
+	public long getSize() {
+		final Cache<Map<String, Object>, Map<String, Object>> currentCache = cache;
+		return currentCache == null ? 0 : currentCache.size();
+	}
+}
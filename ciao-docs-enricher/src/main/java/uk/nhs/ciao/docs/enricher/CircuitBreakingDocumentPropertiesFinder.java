@@ -0,0 +1,326 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+
+import uk.nhs.ciao.docs.enricher.metrics.Counter;
+import uk.nhs.ciao.docs.enricher.metrics.Gauge;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * {@link DocumentPropertiesFinder} which stops calling the delegate finder while it is failing (circuit breaker)
+ * <p>
+ * The outcomes of the last {@link #setWindowSize(int) windowSize} calls are tracked in a sliding window - calls
+ * which fail, or take longer than {@link #setSlowCallThreshold(long) slowCallThreshold} milliseconds, count as
+ * failures. Once the window is full and the failure rate reaches {@link #setFailureRateThreshold(int)
+ * failureRateThreshold} percent the circuit <em>opens</em>:
+ * <ul>
+ * <li>While open, lookups do not call the delegate - they return the last-known properties for the lookup keys
+ * (if {@link #setFallbackCacheSize(long) retained}) or fail fast with a {@link CircuitOpenException}
+ * <li>After {@link #setOpenDuration(long) openDuration} milliseconds the circuit is <em>half-open</em> - up to
+ * {@link #setHalfOpenCalls(int) halfOpenCalls} probe lookups are passed to the delegate. The circuit closes again
+ * if they all succeed, or re-opens if any probe fails.
+ * </ul>
+ * The following metrics are recorded in the {@link MetricsRegistry} (tagged by finder id):
+ * <ul>
+ * <li>{@link #STATE_METRIC} - the current state of the circuit (0 = closed, 1 = open, 2 = half-open)
+ * <li>{@link #REJECTED_METRIC} - the number of lookups not passed to the delegate, which were served from the
+ * last-known properties (fallback) or failed fast (rejected)
+ * </ul>
+ */
+public class CircuitBreakingDocumentPropertiesFinder implements BatchDocumentPropertiesFinder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreakingDocumentPropertiesFinder.class);
+
+	/**
+	 * The state of the circuit (the ordinal of {@link State}) - tagged by finder
+	 */
+	public static final String STATE_METRIC = "enricher_circuit_state";
+
+	/**
+	 * Number of lookups not passed to the delegate while the circuit was open - tagged by finder and outcome
+	 */
+	public static final String REJECTED_METRIC = "enricher_circuit_rejected_total";
+
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+
+	private final DocumentPropertiesFinder finder;
+	private final String finderId;
+	private final Gauge stateGauge;
+	private final Counter fallbackCount;
+	private final Counter rejectedCount;
+	private int failureRateThreshold = 50;
+	private long slowCallThreshold;
+	private long openDuration = TimeUnit.SECONDS.toMillis(30);
+	private int halfOpenCalls = 3;
+	private volatile Cache<Map<String, Object>, Map<String, Object>> lastKnownProperties;
+
+	// guarded by this
+	private boolean[] window = new boolean[20];
+	private int windowIndex;
+	private int windowCount;
+	private int windowFailures;
+	private State state = State.CLOSED;
+	private long openedNanos;
+	private int probesInFlight;
+	private int probesSucceeded;
+
+	/**
+	 * Constructs a new circuit breaking finder backed by the specified delegate
+	 *
+	 * @param finder The finder to protect
+	 * @param metrics The registry to record metrics in
+	 * @param finderId Identifies the finder in metrics and log events
+	 */
+	public CircuitBreakingDocumentPropertiesFinder(final DocumentPropertiesFinder finder, final MetricsRegistry metrics,
+			final String finderId) {
+		this.finder = Preconditions.checkNotNull(finder);
+		this.finderId = Preconditions.checkNotNull(finderId);
+
+		stateGauge = metrics.gauge(STATE_METRIC, "finder", finderId);
+		fallbackCount = metrics.counter(REJECTED_METRIC, "finder", finderId, "outcome", "fallback");
+		rejectedCount = metrics.counter(REJECTED_METRIC, "finder", finderId, "outcome", "rejected");
+		lastKnownProperties = buildCache(10000);
+	}
+
+	/**
+	 * The number of recent calls used to calculate the failure rate (default is 20). A value of zero disables
+	 * the circuit breaker.
+	 */
+	public synchronized void setWindowSize(final int windowSize) {
+		Preconditions.checkArgument(windowSize >= 0, "windowSize must not be negative");
+		window = new boolean[windowSize];
+		resetWindow();
+	}
+
+	/**
+	 * The percentage of failed calls in the window which opens the circuit (default is 50)
+	 */
+	public void setFailureRateThreshold(final int failureRateThreshold) {
+		Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 100,
+				"failureRateThreshold must be between 1 and 100");
+		this.failureRateThreshold = failureRateThreshold;
+	}
+
+	/**
+	 * Calls taking longer than this threshold (in milliseconds) count as failures. A value of zero (the default)
+	 * only counts calls which throw an exception.
+	 */
+	public void setSlowCallThreshold(final long slowCallThreshold) {
+		Preconditions.checkArgument(slowCallThreshold >= 0, "slowCallThreshold must not be negative");
+		this.slowCallThreshold = slowCallThreshold;
+	}
+
+	/**
+	 * The time (in milliseconds) the circuit stays open before probing the delegate (default is 30 seconds)
+	 */
+	public void setOpenDuration(final long openDuration) {
+		Preconditions.checkArgument(openDuration > 0, "openDuration must be positive");
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * The number of successful probe calls required to close a half-open circuit (default is 3)
+	 */
+	public void setHalfOpenCalls(final int halfOpenCalls) {
+		Preconditions.checkArgument(halfOpenCalls > 0, "halfOpenCalls must be positive");
+		this.halfOpenCalls = halfOpenCalls;
+	}
+
+	/**
+	 * The maximum number of last-known lookup results to retain as a fallback while the circuit is open
+	 * (default is 10000). Least-recently-used results are discarded first. A value of zero disables the fallback.
+	 * <p>
+	 * Any previously retained results are discarded
+	 */
+	public void setFallbackCacheSize(final long fallbackCacheSize) {
+		Preconditions.checkArgument(fallbackCacheSize >= 0, "fallbackCacheSize must not be negative");
+		this.lastKnownProperties = buildCache(fallbackCacheSize);
+	}
+
+	private static Cache<Map<String, Object>, Map<String, Object>> buildCache(final long maximumSize) {
+		return maximumSize == 0 ? null : CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.<Map<String, Object>, Map<String, Object>>build();
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final State permittedState = acquirePermission();
+		if (permittedState == null) {
+			return getLastKnownProperties(lookupKeys);
+		}
+
+		final long startNanos = System.nanoTime();
+		final Map<String, Object> properties;
+		boolean completed = false;
+		try {
+			properties = finder.findProperties(lookupKeys);
+			completed = true;
+		} finally {
+			// Errors are also recorded as failures - otherwise a half-open probe would never be released
+			if (!completed) {
+				onResult(permittedState, true);
+			}
+		}
+
+		onResult(permittedState, isSlow(startNanos));
+		retainProperties(lookupKeys, properties);
+		return properties;
+	}
+
+	@Override
+	public List<Map<String, Object>> findAllProperties(final List<Map<String, Object>> lookupKeys) throws Exception {
+		final State permittedState = acquirePermission();
+		if (permittedState == null) {
+			final List<Map<String, Object>> allProperties = Lists.newArrayListWithCapacity(lookupKeys.size());
+			for (final Map<String, Object> keys: lookupKeys) {
+				allProperties.add(getLastKnownProperties(keys));
+			}
+			return allProperties;
+		}
+
+		final long startNanos = System.nanoTime();
+		final List<Map<String, Object>> allProperties;
+		boolean completed = false;
+		try {
+			allProperties = DocumentPropertiesFinders.findAllProperties(finder, lookupKeys);
+			completed = true;
+		} finally {
+			if (!completed) {
+				onResult(permittedState, true);
+			}
+		}
+
+		onResult(permittedState, isSlow(startNanos));
+		for (int index = 0; index < lookupKeys.size(); index++) {
+			retainProperties(lookupKeys.get(index), allProperties.get(index));
+		}
+		return allProperties;
+	}
+
+	private boolean isSlow(final long startNanos) {
+		return slowCallThreshold > 0
+				&& TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) >= slowCallThreshold;
+	}
+
+	private void retainProperties(final Map<String, Object> lookupKeys, final Map<String, Object> properties) {
+		final Cache<Map<String, Object>, Map<String, Object>> cache = lastKnownProperties;
+		if (cache != null && properties != null && window.length > 0) {
+			cache.put(PropertyMaps.normalise(lookupKeys), PropertyMaps.deepCopy(properties));
+		}
+	}
+
+	/**
+	 * Returns a copy of the last-known properties of the lookup keys, or fails fast if none are retained
+	 */
+	private Map<String, Object> getLastKnownProperties(final Map<String, Object> lookupKeys) throws CircuitOpenException {
+		final Cache<Map<String, Object>, Map<String, Object>> cache = lastKnownProperties;
+		final Map<String, Object> properties = cache == null ? null : cache.getIfPresent(PropertyMaps.normalise(lookupKeys));
+		if (properties == null) {
+			rejectedCount.increment();
+			throw new CircuitOpenException("Circuit breaker of " + finderId + " is open - lookup rejected: " + lookupKeys);
+		}
+
+		fallbackCount.increment();
+		return PropertyMaps.deepCopy(properties);
+	}
+
+	/**
+	 * Determines whether a call can be passed to the delegate
+	 *
+	 * @return The state the call was permitted in (closed or half-open), or null if the call is not permitted
+	 */
+	private synchronized State acquirePermission() {
+		if (window.length == 0 || state == State.CLOSED) {
+			return State.CLOSED;
+		}
+
+		if (state == State.OPEN) {
+			if (System.nanoTime() - openedNanos < TimeUnit.MILLISECONDS.toNanos(openDuration)) {
+				return null;
+			}
+			setState(State.HALF_OPEN);
+		}
+
+		if (probesInFlight + probesSucceeded >= halfOpenCalls) {
+			return null;
+		}
+		probesInFlight++;
+		return State.HALF_OPEN;
+	}
+
+	private synchronized void onResult(final State permittedState, final boolean failed) {
+		if (window.length == 0 || permittedState != state) {
+			// The state has changed since the call was permitted
+			return;
+		}
+
+		if (state == State.HALF_OPEN) {
+			probesInFlight--;
+			if (failed) {
+				setState(State.OPEN);
+			} else if (++probesSucceeded >= halfOpenCalls) {
+				setState(State.CLOSED);
+			}
+			return;
+		}
+
+		if (windowCount == window.length) {
+			// Evict the oldest outcome
+			windowFailures -= window[windowIndex] ? 1 : 0;
+		} else {
+			windowCount++;
+		}
+		window[windowIndex] = failed;
+		windowFailures += failed ? 1 : 0;
+		windowIndex = (windowIndex + 1) % window.length;
+
+		if (windowCount == window.length && windowFailures * 100 >= failureRateThreshold * windowCount) {
+			setState(State.OPEN);
+		}
+	}
+
+	// guarded by this
+	private void setState(final State state) {
+		final State previousState = this.state;
+		this.state = state;
+		stateGauge.set(state.ordinal());
+
+		if (state == State.OPEN) {
+			openedNanos = System.nanoTime();
+			LOGGER.warn("Circuit breaker of {} opened (previous state: {}, failures: {}/{}) - lookups will be rejected for {} ms",
+					finderId, previousState, windowFailures, windowCount, openDuration);
+		} else if (state == State.HALF_OPEN) {
+			probesInFlight = 0;
+			probesSucceeded = 0;
+			LOGGER.info("Circuit breaker of {} is half-open - probing with up to {} lookups", finderId, halfOpenCalls);
+		} else {
+			LOGGER.info("Circuit breaker of {} closed", finderId);
+		}
+
+		resetWindow();
+	}
+
+	// guarded by this
+	private void resetWindow() {
+		windowIndex = 0;
+		windowCount = 0;
+		windowFailures = 0;
+	}
+}
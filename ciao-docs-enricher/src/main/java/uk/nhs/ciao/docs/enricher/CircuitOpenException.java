@@ -0,0 +1,17 @@
+package uk.nhs.ciao.docs.enricher;
+
+/**
+ * Thrown when a lookup is rejected because the circuit breaker of the finder is open
+ * <p>
+ * The exception does not capture a stack trace - it is thrown for every lookup during an outage, and the
+ * trace would only identify the circuit breaker itself.
+ *
+ * @see CircuitBreakingDocumentPropertiesFinder
+ */
+public class CircuitOpenException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(final String message) {
+		super(message, null, false, false);
+	}
+}
@@ -0,0 +1,190 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * {@link DocumentPropertiesFinder} which coalesces concurrent lookups for equal keys into
+ * a single call to the delegate finder (single-flight).
+ * <p>
+ * The first caller for a given (normalised) set of lookup keys performs the lookup, while any
+ * concurrent callers with equal keys wait for and share the result - including any exception
+ * thrown by the delegate. Once the lookup completes it is no longer tracked, so subsequent
+ * callers trigger a new lookup (combine with {@link CachingDocumentPropertiesFinder} to retain
+ * results).
+ * <p>
+ * Batch lookups are also coalesced - keys already in flight are shared, and the remaining keys are
+ * passed on to the delegate as a single batch.
+ * <p>
+ * Asynchronous lookups are also coalesced - the lookup is passed on to the delegate without waiting (if the
+ * delegate is an {@link AsyncDocumentPropertiesFinder}), and is tracked until the delegate completes it.
+ */
+public class CoalescingDocumentPropertiesFinder implements BatchDocumentPropertiesFinder, AsyncDocumentPropertiesFinder {
+	private final DocumentPropertiesFinder finder;
+	private final ConcurrentMap<Map<String, Object>, SettableFuture<Map<String, Object>>> inFlightLookups;
+	private final AtomicLong coalescedCount;
+
+	/**
+	 * Constructs a new coalescing finder backed by the specified delegate
+	 */
+	public CoalescingDocumentPropertiesFinder(final DocumentPropertiesFinder finder) {
+		this.finder = Preconditions.checkNotNull(finder);
+		this.inFlightLookups = Maps.newConcurrentMap();
+		this.coalescedCount = new AtomicLong();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The properties are shared between coalesced callers, so each caller receives its own copy.
+	 */
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final Map<String, Object> key = PropertyMaps.normalise(lookupKeys);
+		final SettableFuture<Map<String, Object>> lookup = SettableFuture.create();
+
+		final SettableFuture<Map<String, Object>> inFlightLookup = inFlightLookups.putIfAbsent(key, lookup);
+		if (inFlightLookup != null) {
+			coalescedCount.incrementAndGet();
+			return getResult(inFlightLookup);
+		}
+
+		try {
+			lookup.set(finder.findProperties(lookupKeys));
+		} catch (Throwable e) {
+			lookup.setException(e);
+		} finally {
+			inFlightLookups.remove(key, lookup);
+		}
+
+		return getResult(lookup);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The properties are shared between coalesced callers, so each caller receives its own copy.
+	 */
+	@Override
+	public List<Map<String, Object>> findAllProperties(final List<Map<String, Object>> lookupKeys) throws Exception {
+		final List<Future<Map<String, Object>>> results = Lists.newArrayListWithCapacity(lookupKeys.size());
+		final Map<Map<String, Object>, SettableFuture<Map<String, Object>>> ownedLookups = Maps.newLinkedHashMap();
+		final List<Map<String, Object>> ownedLookupKeys = Lists.newArrayList();
+
+		for (final Map<String, Object> entry: lookupKeys) {
+			final Map<String, Object> key = PropertyMaps.normalise(entry);
+			SettableFuture<Map<String, Object>> lookup = ownedLookups.get(key);
+			if (lookup == null) {
+				lookup = SettableFuture.create();
+				final SettableFuture<Map<String, Object>> inFlightLookup = inFlightLookups.putIfAbsent(key, lookup);
+				if (inFlightLookup == null) {
+					ownedLookups.put(key, lookup);
+					ownedLookupKeys.add(entry);
+				} else {
+					coalescedCount.incrementAndGet();
+					lookup = inFlightLookup;
+				}
+			}
+			results.add(lookup);
+		}
+
+		if (!ownedLookups.isEmpty()) {
+			try {
+				final List<Map<String, Object>> properties = DocumentPropertiesFinders.findAllProperties(finder, ownedLookupKeys);
+				int index = 0;
+				for (final SettableFuture<Map<String, Object>> lookup: ownedLookups.values()) {
+					lookup.set(properties.get(index++));
+				}
+			} catch (Throwable e) {
+				for (final SettableFuture<Map<String, Object>> lookup: ownedLookups.values()) {
+					lookup.setException(e);
+				}
+			} finally {
+				for (final Map.Entry<Map<String, Object>, SettableFuture<Map<String, Object>>> entry: ownedLookups.entrySet()) {
+					inFlightLookups.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+
+		final List<Map<String, Object>> properties = Lists.newArrayListWithCapacity(results.size());
+		for (final Future<Map<String, Object>> result: results) {
+			properties.add(getResult(result));
+		}
+		return properties;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The properties are shared between coalesced callers, so each caller receives its own copy.
+	 */
+	@Override
+	public ListenableFuture<Map<String, Object>> findPropertiesAsync(final Map<String, Object> lookupKeys) {
+		final Map<String, Object> key = PropertyMaps.normalise(lookupKeys);
+		final SettableFuture<Map<String, Object>> lookup = SettableFuture.create();
+
+		final SettableFuture<Map<String, Object>> inFlightLookup = inFlightLookups.putIfAbsent(key, lookup);
+		if (inFlightLookup != null) {
+			coalescedCount.incrementAndGet();
+			return DocumentPropertiesFinders.deepCopy(inFlightLookup);
+		}
+
+		Futures.addCallback(DocumentPropertiesFinders.findPropertiesAsync(finder, lookupKeys),
+				new FutureCallback<Map<String, Object>>() {
+			@Override
+			public void onSuccess(final Map<String, Object> properties) {
+				inFlightLookups.remove(key, lookup);
+				lookup.set(properties);
+			}
+
+			@Override
+			public void onFailure(final Throwable cause) {
+				inFlightLookups.remove(key, lookup);
+				lookup.setException(cause);
+			}
+		});
+
+		return DocumentPropertiesFinders.deepCopy(lookup);
+	}
+
+	private Map<String, Object> getResult(final Future<Map<String, Object>> lookup) throws Exception {
+		try {
+			return PropertyMaps.deepCopy(lookup.get());
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * The number of lookups which shared the result of a concurrent lookup instead of
+	 * calling the delegate finder
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/**
+	 * The number of distinct lookups currently in progress
+	 */
+	public int getInFlightCount() {
+		return inFlightLookups.size();
+	}
+}
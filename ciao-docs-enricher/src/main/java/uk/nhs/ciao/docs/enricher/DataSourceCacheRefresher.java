@@ -0,0 +1,405 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.nhs.ciao.docs.parser.PropertySelector;
+
+/**
+ * Keeps a {@link CachingDocumentPropertiesFinder} fresh by polling a database for changed reference data, and
+ * discarding (or replacing) only the cached entries of the changed IDs.
+ * <p>
+ * Every {@link #setInterval(long) interval} milliseconds the {@link #setChangesSqlQuery(String) changes query} is executed
+ * with the current watermark. The query should return the ID and the watermark (e.g. a last-updated timestamp or a
+ * version number) of each row changed since the watermark - each occurrence of the named parameter <code>:?watermark</code>
+ * is replaced with the current value, e.g:
+ * <pre>
+ * SELECT ID, LAST_UPDATED FROM PATIENT WHERE LAST_UPDATED &gt; :?watermark
+ * </pre>
+ * The highest watermark returned becomes the watermark of the next poll. The initial watermark is found using
+ * {@link #setInitialWatermarkSqlQuery(String) initialWatermarkSqlQuery} (e.g. <code>SELECT MAX(LAST_UPDATED) FROM PATIENT</code>).
+ * <p>
+ * A last-updated timestamp is assigned when a row is written, not when the transaction commits - so a row written by a
+ * long-running transaction can become visible after the watermark has already passed it, and would never be detected.
+ * Either use a watermark which increases in commit order (e.g. a sequence assigned by a trigger or a change log), or
+ * configure a {@link #setLookback(long) lookback} at least as long as the longest transaction. With a lookback, each
+ * poll binds <code>watermark - lookback</code> (queries should use <code>&gt;=</code>) and rows which were already
+ * seen with the same watermark in the overlapping window are not reported again.
+ * <p>
+ * Cached entries are matched to changed rows by selecting the ID from the cached lookup keys using
+ * {@link #setIdSelector(String) idSelector} - padded CHAR IDs are trimmed and numeric IDs are matched by value. If {@link #setReloadChanged(boolean) reloadChanged} is enabled, the discarded
+ * entries are immediately looked up again (replacing them in the cache) instead of waiting for the next document to miss.
+ * <p>
+ * A lookup which started before a change was detected could still cache the old properties after they have been discarded,
+ * so the IDs of each poll are discarded a second time by the following poll.
+ */
+public class DataSourceCacheRefresher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceCacheRefresher.class);
+	private static final String WATERMARK_PARAMETER = "watermark";
+	
+	private final DataSource dataSource;
+	private final CachingDocumentPropertiesFinder finder;
+	private final Object lock = new Object();
+	private final AtomicLong refreshCount = new AtomicLong();
+	private final AtomicLong changedCount = new AtomicLong();
+	private final AtomicLong invalidatedCount = new AtomicLong();
+	private long interval;
+	private String changesSqlQuery;
+	private String initialWatermarkSqlQuery;
+	private String idColumn;
+	private String watermarkColumn;
+	private PropertySelector idSelector;
+	private boolean reloadChanged;
+	private long lookback;
+	private volatile Object watermark; // only updated while holding lock
+	
+	// guarded by lock
+	private Set<Object> previousChangedIds = Collections.emptySet();
+	private final Map<Object, Object> seenWatermarks = Maps.newHashMap();
+	private ScheduledExecutorService executorService;
+	
+	public DataSourceCacheRefresher(final DataSource dataSource, final CachingDocumentPropertiesFinder finder) {
+		this.dataSource = Preconditions.checkNotNull(dataSource);
+		this.finder = Preconditions.checkNotNull(finder);
+	}
+	
+	/**
+	 * The interval (in milliseconds) between polls for changes. A value of zero (the default) disables
+	 * background polling.
+	 */
+	public void setInterval(final long interval) {
+		Preconditions.checkArgument(interval >= 0, "interval must not be negative");
+		this.interval = interval;
+	}
+	
+	/**
+	 * The select query used to find the rows changed since the watermark (using the named parameter <code>:?watermark</code>)
+	 */
+	public void setChangesSqlQuery(final String changesSqlQuery) {
+		this.changesSqlQuery = Strings.emptyToNull(changesSqlQuery);
+	}
+	
+	/**
+	 * The select query used to find the initial watermark - the first column of the first row is used
+	 */
+	public void setInitialWatermarkSqlQuery(final String initialWatermarkSqlQuery) {
+		this.initialWatermarkSqlQuery = Strings.emptyToNull(initialWatermarkSqlQuery);
+	}
+	
+	/**
+	 * The name of the column containing the ID of each changed row
+	 */
+	public void setIdColumn(final String idColumn) {
+		this.idColumn = Strings.emptyToNull(idColumn);
+	}
+	
+	/**
+	 * The name of the column containing the watermark (timestamp or version) of each changed row
+	 */
+	public void setWatermarkColumn(final String watermarkColumn) {
+		this.watermarkColumn = Strings.emptyToNull(watermarkColumn);
+	}
+	
+	/**
+	 * Selects the ID from the lookup keys of each cached entry
+	 */
+	public void setIdSelector(final String idSelector) {
+		this.idSelector = Strings.isNullOrEmpty(idSelector) ? null : PropertySelector.valueOf(idSelector);
+	}
+	
+	/**
+	 * Whether discarded entries should be looked up again immediately (default is false)
+	 */
+	public void setReloadChanged(final boolean reloadChanged) {
+		this.reloadChanged = reloadChanged;
+	}
+	
+	/**
+	 * The amount subtracted from the watermark before each poll - in milliseconds for timestamp watermarks, or
+	 * versions for numeric watermarks. Rows committed up to this long after the watermark has passed them are
+	 * still detected. A value of zero (the default) polls from the watermark itself.
+	 */
+	public void setLookback(final long lookback) {
+		Preconditions.checkArgument(lookback >= 0, "lookback must not be negative");
+		this.lookback = lookback;
+	}
+	
+	public boolean isEnabled() {
+		return interval > 0 && changesSqlQuery != null;
+	}
+	
+	/**
+	 * Starts polling for changes (if enabled)
+	 */
+	public void start() {
+		if (!isEnabled()) {
+			return;
+		}
+		
+		Preconditions.checkState(idColumn != null, "idColumn has not been configured");
+		Preconditions.checkState(watermarkColumn != null, "watermarkColumn has not been configured");
+		Preconditions.checkState(idSelector != null, "idSelector has not been configured");
+		Preconditions.checkState(initialWatermarkSqlQuery != null, "initialWatermarkSqlQuery has not been configured");
+		
+		synchronized (lock) {
+			if (executorService == null) {
+				executorService = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+						.setNameFormat("cache-refresher-%d")
+						.setDaemon(true)
+						.build());
+				executorService.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refresh();
+						} catch (Exception e) {
+							LOGGER.warn("Unable to refresh cached reference data - cached entries will expire normally", e);
+						}
+					}
+				}, 0, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Stops polling for changes
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (executorService != null) {
+				executorService.shutdownNow();
+				executorService = null;
+			}
+		}
+	}
+	
+	/**
+	 * Polls for changes and discards the cached entries of any changed IDs
+	 * <p>
+	 * The first poll only finds the initial watermark. If the reference table is empty (no initial watermark), the
+	 * whole cache is discarded once the first row appears - any cached (empty) results may be out of date.
+	 * 
+	 * @return The number of changed rows found
+	 * @throws Exception If the database could not be queried, or the changed entries could not be reloaded
+	 */
+	public int refresh() throws Exception {
+		synchronized (lock) {
+			refreshCount.incrementAndGet();
+			if (watermark == null) {
+				watermark = queryInitialWatermark();
+				if (watermark != null && refreshCount.get() > 1) {
+					finder.invalidateAll();
+				}
+				return 0;
+			}
+			
+			final Set<Object> changedIds = queryChangedIds();
+			final Set<Object> invalidatedIds = Sets.union(changedIds, previousChangedIds);
+			previousChangedIds = changedIds;
+			if (invalidatedIds.isEmpty()) {
+				return 0;
+			}
+			
+			final List<Map<String, Object>> invalidated = finder.invalidateMatching(new Predicate<Map<String, Object>>() {
+				@Override
+				public boolean apply(final Map<String, Object> lookupKeys) {
+					final Object id = idSelector.selectValue(lookupKeys);
+					return id != null && DataSourceDocumentPropertiesFinder.containsId(invalidatedIds, id);
+				}
+			});
+			
+			invalidatedCount.addAndGet(invalidated.size());
+			LOGGER.debug("Found {} changed rows - discarded {} cached entries", changedIds.size(), invalidated.size());
+			
+			if (reloadChanged && !invalidated.isEmpty()) {
+				finder.findAllProperties(invalidated);
+			}
+			
+			return changedIds.size();
+		}
+	}
+	
+	// guarded by lock
+	private Object queryInitialWatermark() throws SQLException {
+		final Connection connection = dataSource.getConnection();
+		try {
+			final Statement statement = connection.createStatement();
+			try {
+				final ResultSet resultSet = statement.executeQuery(initialWatermarkSqlQuery);
+				try {
+					return resultSet.next() ? resultSet.getObject(1) : null;
+				} finally {
+					resultSet.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+	
+	// guarded by lock
+	private Set<Object> queryChangedIds() throws SQLException {
+		final Set<Object> changedIds = Sets.newHashSet();
+		final Object lowerBound = subtractLookback(watermark);
+		final Connection connection = dataSource.getConnection();
+		try {
+			final DataSourceDocumentPropertiesFinder.PreparedSql sql =
+					DataSourceDocumentPropertiesFinder.toPreparedSql(changesSqlQuery, WATERMARK_PARAMETER);
+			final PreparedStatement statement = connection.prepareStatement(sql.getSql());
+			try {
+				sql.bind(statement, lowerBound);
+				
+				final ResultSet resultSet = statement.executeQuery();
+				try {
+					while (resultSet.next()) {
+						final Object id = resultSet.getObject(idColumn);
+						final Object rowWatermark = resultSet.getObject(watermarkColumn);
+						if (id != null && isUnseen(DataSourceDocumentPropertiesFinder.toIdKey(id), rowWatermark)) {
+							changedIds.add(DataSourceDocumentPropertiesFinder.toIdKey(id));
+						}
+						
+						if (isAfter(rowWatermark, watermark)) {
+							watermark = rowWatermark;
+						}
+					}
+				} finally {
+					resultSet.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+		
+		forgetSeenBefore(subtractLookback(watermark));
+		changedCount.addAndGet(changedIds.size());
+		return changedIds;
+	}
+	
+	/**
+	 * Records the watermark of a changed row - returning false if the row has already been reported with the same
+	 * watermark (i.e. it was returned again because of the lookback window)
+	 */
+	// guarded by lock
+	private boolean isUnseen(final Object idKey, final Object rowWatermark) {
+		if (lookback <= 0) {
+			return true;
+		}
+		
+		final Object previous = seenWatermarks.put(idKey, rowWatermark);
+		return previous == null || !Objects.equal(previous, rowWatermark);
+	}
+	
+	/**
+	 * Discards the seen rows which are now outside of the lookback window - they will not be returned again
+	 */
+	// guarded by lock
+	private void forgetSeenBefore(final Object lowerBound) {
+		final Iterator<Object> iterator = seenWatermarks.values().iterator();
+		while (iterator.hasNext()) {
+			final Object rowWatermark = iterator.next();
+			if (rowWatermark == null || isAfter(lowerBound, rowWatermark)) {
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * The lower bound of the next poll - the watermark minus the lookback
+	 */
+	private Object subtractLookback(final Object value) {
+		if (lookback <= 0 || value == null) {
+			return value;
+		} else if (value instanceof Timestamp) {
+			// getTime() includes the milliseconds - only the sub-millisecond nanos are lost by the constructor
+			final Timestamp original = (Timestamp)value;
+			final Timestamp timestamp = new Timestamp(original.getTime() - lookback);
+			timestamp.setNanos(timestamp.getNanos() + original.getNanos() % 1000000);
+			return timestamp;
+		} else if (value instanceof Date) {
+			return new Date(((Date)value).getTime() - lookback);
+		} else if (value instanceof BigDecimal) {
+			return ((BigDecimal)value).subtract(BigDecimal.valueOf(lookback));
+		} else if (value instanceof Double || value instanceof Float) {
+			return ((Number)value).doubleValue() - lookback;
+		} else if (value instanceof Number) {
+			return ((Number)value).longValue() - lookback;
+		}
+		
+		throw new IllegalStateException("lookback is not supported for watermarks of type " + value.getClass().getName());
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static boolean isAfter(final Object value, final Object other) {
+		if (value == null) {
+			return false;
+		} else if (value instanceof Comparable && value.getClass().isInstance(other)) {
+			return ((Comparable)value).compareTo(other) > 0;
+		}
+		
+		// Watermarks of different types (e.g. numeric types) are compared by value
+		return value instanceof Number && other instanceof Number
+				&& ((Number)value).doubleValue() > ((Number)other).doubleValue();
+	}
+	
+	/**
+	 * The current watermark (or null if it has not been found)
+	 */
+	public Object getWatermark() {
+		return watermark;
+	}
+	
+	/**
+	 * The number of times the database has been polled
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+	
+	/**
+	 * The number of changed rows found
+	 */
+	public long getChangedCount() {
+		return changedCount.get();
+	}
+	
+	/**
+	 * The number of cached entries discarded
+	 */
+	public long getInvalidatedCount() {
+		return invalidatedCount.get();
+	}
+}
@@ -0,0 +1,562 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import uk.nhs.ciao.docs.parser.PropertySelector;
+
+/**
+ * {@link DocumentPropertiesFinder} which finds properties from a database by querying a
+ * {@link DataSource} directly.
+ * <p>
+ * This finder supports the same configuration as {@link JdbcDocumentPropertiesFinder}, but bypasses
+ * the Camel JDBC component - avoiding the per-lookup exchange creation, endpoint resolution and
+ * in-memory materialisation of the full result set:
+ * <ul>
+ * <li>The named parameter in {@link #sqlQuery} (of the form <code>:?id</code>) is translated to a JDBC
+ * 		positional parameter once when the finder is configured
+ * <li>Each lookup executes a {@link PreparedStatement} limited to a single row (<code>maxRows=1</code>). Prepared
+ * 		statements are reused across lookups when the data source pools statements (e.g. the
+ * 		<code>poolPreparedStatements</code> option of commons-dbcp2)
+ * <li>Only the first row is read - if {@link #jsonColumn} is specified only that column is read from the row,
+ * 		unless it is NULL (the columns of the row are then mapped, as they are by {@link JdbcDocumentPropertiesFinder})
+ * </ul>
+ * <p>
+ * Batch lookups (see {@link BatchDocumentPropertiesFinder}) share a single connection. If {@link #batchSqlQuery}
+ * is specified, the distinct IDs of the batch are resolved using chunks of up to {@link #batchSize} IDs per query:
+ * <ul>
+ * <li>{@link #batchSqlQuery} - The select query used to find the properties of multiple IDs. The named
+ * 		parameter should form part of an IN clause, e.g. <code>WHERE ID IN (:?id)</code> - it is expanded
+ * 		to {@link #batchSize} positional parameters. Smaller chunks are padded by repeating an ID so the same
+ * 		statement is always used.
+ * <li>{@link #batchIdColumn} - The name of the returned column containing the ID of each row - used
+ * 		to match rows to the incoming lookup keys. Returned strings are trimmed (CHAR columns are padded) and
+ * 		returned numbers are matched by value (e.g. <code>2.00</code> matches the lookup ID <code>2</code>).
+ * </ul>
+ * Otherwise each distinct ID is queried in turn using {@link #sqlQuery}.
+ * <p>
+ * The finder will return an empty map if the sql query returns no rows, but throws an exception if either
+ * the database query or the JSON conversion fails.
+ */
+public class DataSourceDocumentPropertiesFinder implements BatchDocumentPropertiesFinder, Warmable {
+	private static final Map<String, Object> EMPTY_PROPERTIES = Collections.emptyMap();
+
+	private final DataSource dataSource;
+	private volatile JsonCodec jsonCodec;
+	private String sqlQuery;
+	private String idParameter;
+	private PropertySelector idSelector;
+	private String jsonColumn;
+	private String batchSqlQuery;
+	private String batchIdColumn;
+	private int batchSize = 100;
+	private int queryTimeout;
+	private int warmUpConnections = 1;
+	private volatile PreparedSql preparedSql;
+	private volatile PreparedSql preparedBatchSql;
+
+	/**
+	 * Constructs a new finder backed by the specified data source
+	 */
+	public DataSourceDocumentPropertiesFinder(final DataSource dataSource) {
+		this(dataSource, new ObjectMapper());
+	}
+
+	/**
+	 * Constructs a new finder backed by the specified data source and Jackson
+	 * object mapper
+	 */
+	public DataSourceDocumentPropertiesFinder(final DataSource dataSource, final ObjectMapper objectMapper) {
+		this.dataSource = Preconditions.checkNotNull(dataSource);
+		this.jsonCodec = objectMapper == null ? new JsonCodec() : new JsonCodec(objectMapper);
+	}
+
+	/**
+	 * Sets the (shared) codec used for converting embedded JSON values
+	 */
+	@Autowired(required = false)
+	public void setJsonCodec(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+	}
+
+	/**
+	 * The select query to use when finding data.
+	 * <p>
+	 * The named parameter (called {@link #idParameter}) is required
+	 * as part of the WHERE clause. The property value returned by {@link #idSelector}
+	 * is bound as the value of each occurrence of the parameter.
+	 * <p>
+	 * The format of the named parameter is <code>:?id</code>
+	 */
+	public void setSqlQuery(final String sqlQuery) {
+		this.sqlQuery = Strings.emptyToNull(sqlQuery);
+		this.preparedSql = null;
+	}
+
+	/**
+	 * The name of the ID parameter included in {@link #sqlQuery}
+	 */
+	public void setIdParameter(final String idParameter) {
+		this.idParameter = Strings.emptyToNull(idParameter);
+		this.preparedSql = null;
+		this.preparedBatchSql = null;
+	}
+
+	/**
+	 * Selector for finding the ID value from the incoming lookup keys
+	 */
+	public void setIdSelector(final String idSelector) {
+		this.idSelector = idSelector == null ? null : PropertySelector.valueOf(idSelector);
+	}
+
+	/**
+	 * Optional value defining which column (if any) contains the embedded
+	 * JSON properties strings
+	 */
+	public void setJsonColumn(final String jsonColumn) {
+		this.jsonColumn = Strings.emptyToNull(jsonColumn);
+	}
+
+	/**
+	 * Optional select query to use when finding data for multiple IDs.
+	 * <p>
+	 * The named parameter (called {@link #idParameter}) should be used in an IN clause,
+	 * e.g. <code>WHERE ID IN (:?id)</code>
+	 */
+	public void setBatchSqlQuery(final String batchSqlQuery) {
+		this.batchSqlQuery = Strings.emptyToNull(batchSqlQuery);
+		this.preparedBatchSql = null;
+	}
+
+	/**
+	 * Whether a {@link #batchSqlQuery} has been configured - otherwise batches are looked up one ID at a time
+	 */
+	public boolean isBatchQueryEnabled() {
+		return batchSqlQuery != null;
+	}
+
+	/**
+	 * The name of the column (returned by {@link #batchSqlQuery}) containing the ID of each row
+	 */
+	public void setBatchIdColumn(final String batchIdColumn) {
+		this.batchIdColumn = Strings.emptyToNull(batchIdColumn);
+	}
+
+	/**
+	 * The maximum number of IDs to include in each {@link #batchSqlQuery} (default is 100)
+	 */
+	public void setBatchSize(final int batchSize) {
+		Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+		this.batchSize = batchSize;
+		this.preparedBatchSql = null;
+	}
+
+	/**
+	 * The maximum time (in seconds) the driver waits for each query to execute before cancelling it
+	 * (see {@link java.sql.Statement#setQueryTimeout(int)}). A value of zero (the default) waits indefinitely.
+	 */
+	public void setQueryTimeout(final int queryTimeout) {
+		Preconditions.checkArgument(queryTimeout >= 0, "queryTimeout must not be negative");
+		this.queryTimeout = queryTimeout;
+	}
+
+	/**
+	 * The number of connections to prepare statements on during {@link #warmUp()} (default is 1) - typically the
+	 * minimum number of idle connections kept open by the data source's pool
+	 */
+	public void setWarmUpConnections(final int warmUpConnections) {
+		Preconditions.checkArgument(warmUpConnections > 0, "warmUpConnections must be positive");
+		this.warmUpConnections = warmUpConnections;
+	}
+
+	/**
+	 * Prepares the configured SQL statements on each of the pool's idle connections - when the data source pools
+	 * prepared statements they are then reused by the first lookups, whichever connection they borrow.
+	 * <p>
+	 * {@link #setWarmUpConnections(int) warmUpConnections} connections are held open together, so that each is a
+	 * distinct pooled connection.
+	 */
+	@Override
+	public void warmUp() throws SQLException {
+		final List<Connection> connections = Lists.newArrayList();
+		try {
+			for (int index = 0; index < warmUpConnections; index++) {
+				final Connection connection = dataSource.getConnection();
+				connections.add(connection);
+
+				connection.prepareStatement(getPreparedSql().getSql()).close();
+				if (batchSqlQuery != null) {
+					connection.prepareStatement(getPreparedBatchSql().getSql()).close();
+				}
+			}
+		} finally {
+			for (final Connection connection: connections) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * If the database query executes without error but returns no data and empty properties
+	 * map is returned.
+	 *
+	 * @throws Exception If the database query fails or if the optional embedded JSON value is not valid
+	 */
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final Object id = idSelector.selectValue(lookupKeys);
+		if (id == null) {
+			return EMPTY_PROPERTIES;
+		}
+
+		try {
+			return queryDatabase(id);
+		} catch (SQLException e) {
+			throw new IOException("Unable to lookup document properties for id: " + id, e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Lookup keys sharing the same ID are only queried once.
+	 *
+	 * @throws Exception If the database query fails or if the optional embedded JSON value is not valid
+	 */
+	@Override
+	public List<Map<String, Object>> findAllProperties(final List<Map<String, Object>> lookupKeys) throws Exception {
+		final List<Object> ids = Lists.newArrayListWithCapacity(lookupKeys.size());
+		final Map<Object, Object> distinctIds = Maps.newLinkedHashMap();
+		for (final Map<String, Object> entry: lookupKeys) {
+			final Object id = idSelector.selectValue(entry);
+			ids.add(id);
+			if (id != null) {
+				distinctIds.put(toIdKey(id.toString()), id);
+			}
+		}
+
+		final Map<Object, Map<String, Object>> propertiesById;
+		try {
+			propertiesById = queryDatabase(distinctIds);
+		} catch (SQLException e) {
+			throw new IOException("Unable to lookup document properties for ids: " + distinctIds.keySet(), e);
+		}
+
+		final List<Map<String, Object>> results = Lists.newArrayListWithCapacity(ids.size());
+		final Set<Map<String, Object>> returnedProperties = Sets.newIdentityHashSet();
+		for (final Object id: ids) {
+			final Map<String, Object> properties = id == null ? null : getById(propertiesById, id);
+			if (properties == null) {
+				results.add(EMPTY_PROPERTIES);
+			} else if (returnedProperties.add(properties)) {
+				results.add(properties);
+			} else {
+				// Repeated ID - each entry receives a separate copy
+				results.add(PropertyMaps.deepCopy(properties));
+			}
+		}
+		return results;
+	}
+
+	private Map<String, Object> queryDatabase(final Object id) throws SQLException, IOException {
+		final Connection connection = dataSource.getConnection();
+		try {
+			return queryDatabase(connection, id);
+		} finally {
+			connection.close();
+		}
+	}
+
+	private Map<String, Object> queryDatabase(final Connection connection, final Object id) throws SQLException, IOException {
+		final PreparedSql sql = getPreparedSql();
+		final PreparedStatement statement = connection.prepareStatement(sql.getSql());
+		try {
+			statement.setMaxRows(1);
+			statement.setFetchSize(1);
+			statement.setQueryTimeout(queryTimeout);
+			sql.bind(statement, id);
+
+			final ResultSet resultSet = statement.executeQuery();
+			try {
+				if (!resultSet.next()) {
+					// no matching rows were found
+					return EMPTY_PROPERTIES;
+				}
+
+				return mapRow(resultSet);
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Queries the properties of the distinct IDs using a single connection
+	 *
+	 * @return The properties of each ID that was found, keyed by {@link #toIdKey(Object)}
+	 */
+	private Map<Object, Map<String, Object>> queryDatabase(final Map<Object, Object> distinctIds) throws SQLException, IOException {
+		final Map<Object, Map<String, Object>> propertiesById = Maps.newHashMap();
+		if (distinctIds.isEmpty()) {
+			return propertiesById;
+		}
+
+		final Connection connection = dataSource.getConnection();
+		try {
+			if (batchSqlQuery == null) {
+				for (final Map.Entry<Object, Object> entry: distinctIds.entrySet()) {
+					propertiesById.put(entry.getKey(), queryDatabase(connection, entry.getValue()));
+				}
+			} else {
+				for (final List<Object> chunk: Iterables.partition(distinctIds.values(), batchSize)) {
+					queryDatabase(connection, chunk, propertiesById);
+				}
+			}
+		} finally {
+			connection.close();
+		}
+
+		return propertiesById;
+	}
+
+	private void queryDatabase(final Connection connection, final List<Object> ids,
+			final Map<Object, Map<String, Object>> propertiesById) throws SQLException, IOException {
+		final PreparedSql sql = getPreparedBatchSql();
+		final PreparedStatement statement = connection.prepareStatement(sql.getSql());
+		try {
+			statement.setFetchSize(batchSize);
+			statement.setQueryTimeout(queryTimeout);
+			for (int occurrence = 0; occurrence < sql.getOccurrences(); occurrence++) {
+				for (int index = 0; index < batchSize; index++) {
+					// Pad the final chunk by repeating the last ID
+					statement.setObject(occurrence * batchSize + index + 1, ids.get(Math.min(index, ids.size() - 1)));
+				}
+			}
+
+			final ResultSet resultSet = statement.executeQuery();
+			try {
+				while (resultSet.next()) {
+					final Object id = resultSet.getObject(batchIdColumn);
+					final Object key = id == null ? null : toIdKey(id);
+					if (key != null && !propertiesById.containsKey(key)) {
+						// Only the first row of each ID is used
+						propertiesById.put(key, mapRow(resultSet));
+					}
+				}
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	private Map<String, Object> mapRow(final ResultSet resultSet) throws SQLException, IOException {
+		return jsonColumn == null ? mapColumns(resultSet) : mapJsonColumn(resultSet);
+	}
+
+	/**
+	 * Maps each column of the current row to a property - the column label is used as the key
+	 */
+	private Map<String, Object> mapColumns(final ResultSet resultSet) throws SQLException {
+		final ResultSetMetaData metaData = resultSet.getMetaData();
+		final int columnCount = metaData.getColumnCount();
+
+		final Map<String, Object> properties = Maps.newLinkedHashMap();
+		for (int index = 1; index <= columnCount; index++) {
+			properties.put(metaData.getColumnLabel(index), resultSet.getObject(index));
+		}
+		return properties;
+	}
+
+	/**
+	 * Converts the embedded JSON column of the current row into properties - if the column is NULL each column
+	 * of the row is mapped instead
+	 */
+	private Map<String, Object> mapJsonColumn(final ResultSet resultSet) throws SQLException, IOException {
+		final String json = resultSet.getString(jsonColumn);
+		return json == null ? mapColumns(resultSet) : jsonCodec.readMap(json);
+	}
+
+	/**
+	 * The SQL query with the named ID parameter translated into a JDBC positional parameter
+	 */
+	private PreparedSql getPreparedSql() {
+		PreparedSql sql = preparedSql;
+		if (sql == null) {
+			sql = toPreparedSql(sqlQuery, idParameter);
+			preparedSql = sql;
+		}
+		return sql;
+	}
+
+	/**
+	 * The batch SQL query with the named ID parameter expanded into {@link #batchSize} JDBC positional parameters
+	 */
+	private PreparedSql getPreparedBatchSql() {
+		PreparedSql sql = preparedBatchSql;
+		if (sql == null) {
+			Preconditions.checkState(batchIdColumn != null, "batchIdColumn has not been configured");
+			sql = toPreparedSql(batchSqlQuery, idParameter, batchSize);
+			preparedBatchSql = sql;
+		}
+		return sql;
+	}
+
+	/**
+	 * The key used to match an ID returned by the database to the lookup IDs.
+	 * <p>
+	 * CHAR columns are padded with spaces, and numeric columns may be returned with a different type or scale
+	 * to the lookup ID - so strings are trimmed and numbers are keyed by value.
+	 */
+	static Object toIdKey(final Object id) {
+		if (id instanceof Number) {
+			final BigDecimal value = toDecimal(id.toString());
+			if (value != null) {
+				return value;
+			}
+		}
+		return id.toString().trim();
+	}
+
+	/**
+	 * Finds the value keyed by {@link #toIdKey(Object)} which matches the lookup ID - either as a string, or
+	 * by value if the lookup ID is numeric
+	 */
+	static <V> V getById(final Map<Object, V> valuesByKey, final Object id) {
+		final String key = id.toString().trim();
+		V value = valuesByKey.get(key);
+		if (value == null) {
+			final BigDecimal numericKey = toDecimal(key);
+			if (numericKey != null) {
+				value = valuesByKey.get(numericKey);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Determines whether the set of keys (see {@link #toIdKey(Object)}) contains the lookup ID - either as a
+	 * string, or by value if the lookup ID is numeric
+	 */
+	static boolean containsId(final Set<Object> keys, final Object id) {
+		final String key = id.toString().trim();
+		if (keys.contains(key)) {
+			return true;
+		}
+
+		final BigDecimal numericKey = toDecimal(key);
+		return numericKey != null && keys.contains(numericKey);
+	}
+
+	/**
+	 * Parses the numeric value of the string - normalised so that equal values have equal keys
+	 *
+	 * @return The parsed value, or null if the string is not numeric
+	 */
+	private static BigDecimal toDecimal(final String value) {
+		final BigDecimal decimal;
+		try {
+			decimal = new BigDecimal(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return decimal.signum() == 0 ? BigDecimal.ZERO : decimal.stripTrailingZeros();
+	}
+
+	static PreparedSql toPreparedSql(final String sqlQuery, final String idParameter) {
+		return toPreparedSql(sqlQuery, idParameter, 1);
+	}
+
+	/**
+	 * Translates each occurrence of the named parameter into <code>parameterCount</code> JDBC positional parameters
+	 *
+	 * @throws IllegalStateException If the query does not contain the named parameter
+	 */
+	static PreparedSql toPreparedSql(final String sqlQuery, final String idParameter, final int parameterCount) {
+		Preconditions.checkState(sqlQuery != null, "sqlQuery has not been configured");
+		Preconditions.checkState(idParameter != null, "idParameter has not been configured");
+
+		final StringBuilder parameters = new StringBuilder("?");
+		for (int index = 1; index < parameterCount; index++) {
+			parameters.append(", ?");
+		}
+
+		final Matcher matcher = Pattern.compile(":\\?" + Pattern.quote(idParameter) + "(?![\\w])").matcher(sqlQuery);
+		final StringBuffer sql = new StringBuffer();
+		int occurrences = 0;
+		while (matcher.find()) {
+			matcher.appendReplacement(sql, parameters.toString());
+			occurrences++;
+		}
+		matcher.appendTail(sql);
+
+		Preconditions.checkState(occurrences > 0, "sqlQuery does not contain the named parameter :?%s", idParameter);
+		return new PreparedSql(sql.toString(), occurrences);
+	}
+
+	/**
+	 * A SQL query with its named parameter translated into JDBC positional parameters
+	 */
+	static class PreparedSql {
+		private final String sql;
+		private final int occurrences;
+
+		public PreparedSql(final String sql, final int occurrences) {
+			this.sql = sql;
+			this.occurrences = occurrences;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * The number of times the named parameter occurred in the original query
+		 */
+		public int getOccurrences() {
+			return occurrences;
+		}
+
+		/**
+		 * Binds the value to every positional parameter of the statement
+		 */
+		public void bind(final PreparedStatement statement, final Object value) throws SQLException {
+			for (int index = 1; index <= occurrences; index++) {
+				statement.setObject(index, value);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return sql;
+		}
+	}
+}
@@ -97,10 +97,11 @@ public abstract class DocumentEnricherProcessor implements Processor {
 				exchange.setException(e);
 				final boolean doneSync = true;
 				callback.done(doneSync);
-				return false;
+				return doneSync;
 			}
 			
-			return true;
+			// Processing continues asynchronously - the return value must match the doneSync flag passed to the callback
+			return false;
 		}
 	}
 }
@@ -30,6 +30,29 @@ import uk.nhs.ciao.docs.parser.route.InProgressFolderManagerRoute;
  * 
  * <dt>outputQueue<dt>
  * <dd>The name of the queue output messages should be sent to</dd>
+ * 
+ * <dt>concurrentConsumers<dt>
+ * <dd>Optional number of concurrent JMS consumers reading from the input queue</dd>
+ * 
+ * <dt>maxConcurrentConsumers<dt>
+ * <dd>Optional maximum number of concurrent JMS consumers (consumers are added under load)</dd>
+ * 
+ * <dt>prefetchSize<dt>
+ * <dd>Optional number of messages ActiveMQ dispatches to each consumer in advance</dd>
+ * 
+ * <dt>cacheLevelName<dt>
+ * <dd>Optional JMS resource cache level (e.g. <code>CACHE_CONSUMER</code>)</dd>
+ * 
+ * <dt>streaming<dt>
+ * <dd>Optional flag to enrich documents using the Jackson streaming API (default is false)</dd>
+ * 
+ * <dt>transacted<dt>
+ * <dd>Optional flag to consume messages within a JMS transaction (default is true) - if false, messages are
+ * consumed asynchronously so asynchronous enrichers release the consumer thread</dd>
+ * </dl>
+ * <p>
+ * If <code>warmUp.enabled</code> is true, the routes are only started once the application has been
+ * warmed up (see {@link DocumentEnricherWarmUp}).
  */
 public class DocumentEnricherRoutes implements RoutesBuilder {	
 	/**
@@ -47,6 +70,7 @@ public class DocumentEnricherRoutes implements RoutesBuilder {
 	
 	private void addEnrichDocumentRoutes(final CamelContext context) throws Exception {
 		final CIAOConfig config = CamelApplication.getConfig(context);
+		final DocumentEnricherWarmUp warmUp = DocumentEnricherWarmUp.fromConfig(config);
 		
 		final String[] routeNames = config.getConfigValue(EnrichDocumentRoute.ROOT_PROPERTY).split(",");
 		for (final String routeName: routeNames) {
@@ -54,8 +78,18 @@ public class DocumentEnricherRoutes implements RoutesBuilder {
 					routeName, config);
 			route.setInProgressFolderManagerUri("direct:in-progress-folder-manager");
 			
+			if (warmUp != null) {
+				// The route is started by the warm-up once it has completed
+				route.setAutoStartup(false);
+				warmUp.addRoute(route.getRouteId(), route.getEnricherId());
+			}
+			
 			context.addRoutes(route);
 		}
+		
+		if (warmUp != null) {
+			context.addStartupListener(warmUp);
+		}
 	}
 	
 	private void addInProgressFolderManagerRoute(final CamelContext context) throws Exception {
@@ -0,0 +1,266 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.StartupListener;
+import org.apache.camel.impl.DefaultExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+import uk.nhs.ciao.configuration.CIAOConfig;
+import uk.nhs.ciao.docs.enricher.route.EnrichDocumentRoute;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+import uk.nhs.ciao.exceptions.CIAOConfigurationException;
+
+/**
+ * Warms up the application before the enrichment routes start consuming documents - flattening the latency
+ * spike otherwise seen by the first documents after a deploy (cold connections, resources, caches and JIT).
+ * <p>
+ * When enabled, the enrichment routes are created with <code>autoStartup=false</code>. Once the Camel context
+ * has started, the warm-up runs on a background thread and then starts the routes:
+ * <ol>
+ * <li>Each {@link Warmable} bean in the registry is warmed up (e.g. JSON resources are preloaded, and connections
+ * 		opened and SQL statements prepared on the lookup connection pool) - each component warms only the resources
+ * 		it uses
+ * <li>The {@link #PROPERTY_SAMPLES sample documents} (if any) are replayed through each route's enricher
+ * 		{@link #PROPERTY_ITERATIONS iterations} times, or until {@link #PROPERTY_MAX_DURATION maxDuration} milliseconds have elapsed
+ * </ol>
+ * Warm-up is best-effort: failures are logged and the routes are always started. A route which fails to start is
+ * logged, and does not prevent the remaining routes from starting.
+ */
+public class DocumentEnricherWarmUp implements StartupListener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DocumentEnricherWarmUp.class);
+	
+	public static final String PROPERTY_ENABLED = "warmUp.enabled";
+	public static final String PROPERTY_SAMPLES = "warmUp.samples";
+	public static final String PROPERTY_ITERATIONS = "warmUp.iterations";
+	public static final String PROPERTY_MAX_DURATION = "warmUp.maxDuration";
+	
+	private final Map<String, String> enricherIdsByRouteId = Maps.newLinkedHashMap();
+	private String samples;
+	private int iterations = 100;
+	private long maxDuration = TimeUnit.MINUTES.toMillis(1);
+	private volatile boolean completed;
+	
+	/**
+	 * Creates a warm-up configured by the {@link CIAOConfig} properties, or returns null if warm-up
+	 * has not been enabled
+	 * 
+	 * @throws CIAOConfigurationException If the properties are not valid
+	 */
+	public static DocumentEnricherWarmUp fromConfig(final CIAOConfig config) throws CIAOConfigurationException {
+		if (!Boolean.parseBoolean(getOptionalProperty(config, PROPERTY_ENABLED))) {
+			return null;
+		}
+		
+		final DocumentEnricherWarmUp warmUp = new DocumentEnricherWarmUp();
+		warmUp.setSamples(getOptionalProperty(config, PROPERTY_SAMPLES));
+		
+		final String iterations = getOptionalProperty(config, PROPERTY_ITERATIONS);
+		final String maxDuration = getOptionalProperty(config, PROPERTY_MAX_DURATION);
+		try {
+			if (iterations != null) {
+				warmUp.setIterations(Integer.parseInt(iterations));
+			}
+			if (maxDuration != null) {
+				warmUp.setMaxDuration(Long.parseLong(maxDuration));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new CIAOConfigurationException("Invalid warm-up property: " + e.getMessage());
+		}
+		
+		return warmUp;
+	}
+	
+	private static String getOptionalProperty(final CIAOConfig config, final String name) throws CIAOConfigurationException {
+		return config.getConfigKeys().contains(name) ? Strings.emptyToNull(config.getConfigValue(name).trim()) : null;
+	}
+	
+	/**
+	 * The sample documents (JSON serialised {@link ParsedDocument}s) to replay - a spring resource pattern,
+	 * e.g. <code>classpath*:/warm-up/*.json</code> or <code>file:./warm-up/*.json</code>
+	 */
+	public void setSamples(final String samples) {
+		this.samples = Strings.emptyToNull(samples);
+	}
+	
+	/**
+	 * The number of times each sample document is replayed (default is 100)
+	 */
+	public void setIterations(final int iterations) {
+		Preconditions.checkArgument(iterations >= 0, "iterations must not be negative");
+		this.iterations = iterations;
+	}
+	
+	/**
+	 * The maximum time (in milliseconds) to spend replaying sample documents (default is one minute)
+	 */
+	public void setMaxDuration(final long maxDuration) {
+		Preconditions.checkArgument(maxDuration >= 0, "maxDuration must not be negative");
+		this.maxDuration = maxDuration;
+	}
+	
+	/**
+	 * Registers a route to start once warm-up has completed
+	 * 
+	 * @param routeId The ID of the route (which should not be started automatically)
+	 * @param enricherId The registry ID of the route's enricher
+	 */
+	public void addRoute(final String routeId, final String enricherId) {
+		enricherIdsByRouteId.put(routeId, enricherId);
+	}
+	
+	/**
+	 * Whether warm-up has completed (and the routes have been started)
+	 */
+	public boolean isCompleted() {
+		return completed;
+	}
+	
+	@Override
+	public void onCamelContextStarted(final CamelContext context, final boolean alreadyStarted) throws Exception {
+		if (alreadyStarted) {
+			return;
+		}
+		
+		// The listener is called before the context has fully started - warm up in the background
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					warmUp(context);
+					startRoutes(context);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Exception e) {
+					LOGGER.error("Unable to start enrichment routes after warm-up", e);
+				}
+			}
+		}, "document-enricher-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Performs the warm-up steps - failures are logged rather than thrown
+	 */
+	public void warmUp(final CamelContext context) {
+		final long startTime = System.currentTimeMillis();
+		LOGGER.info("Warming up before starting routes {}", enricherIdsByRouteId.keySet());
+		
+		for (final Map.Entry<String, Warmable> entry: context.getRegistry().findByTypeWithName(Warmable.class).entrySet()) {
+			try {
+				entry.getValue().warmUp();
+			} catch (Exception e) {
+				LOGGER.warn("Unable to warm up {}", entry.getKey(), e);
+			}
+		}
+		
+		try {
+			replaySamples(context);
+		} catch (Exception e) {
+			LOGGER.warn("Unable to replay warm-up sample documents", e);
+		}
+		
+		LOGGER.info("Warm-up completed in {} ms", System.currentTimeMillis() - startTime);
+	}
+	
+	private void replaySamples(final CamelContext context) throws Exception {
+		final List<byte[]> documents = loadSamples();
+		if (documents.isEmpty() || iterations == 0) {
+			return;
+		}
+		
+		final JsonCodec jsonCodec = getJsonCodec(context);
+		final long endTime = System.currentTimeMillis() + maxDuration;
+		int replayCount = 0;
+		int failureCount = 0;
+		
+		for (final String enricherId: Sets.newLinkedHashSet(enricherIdsByRouteId.values())) {
+			final DocumentEnricherProcessor processor = DocumentEnricherProcessor.createProcessor(
+					context.getRegistry().lookupByName(enricherId));
+			
+			for (int iteration = 0; iteration < iterations && System.currentTimeMillis() < endTime; iteration++) {
+				for (final byte[] document: documents) {
+					// Each replay uses a new copy of the document - enrichment modifies the document in place
+					final Exchange exchange = new DefaultExchange(context);
+					exchange.getIn().setBody(jsonCodec.getObjectMapper().readValue(document, ParsedDocument.class));
+					try {
+						processor.process(exchange);
+					} catch (Exception e) {
+						exchange.setException(e);
+					}
+					
+					replayCount++;
+					if (exchange.getException() != null) {
+						failureCount++;
+						LOGGER.debug("Warm-up sample document could not be enriched by {}", enricherId, exchange.getException());
+					}
+				}
+			}
+		}
+		
+		LOGGER.info("Replayed {} warm-up sample documents ({} failed)", replayCount, failureCount);
+	}
+	
+	private List<byte[]> loadSamples() throws Exception {
+		final List<byte[]> documents = Lists.newArrayList();
+		if (samples == null) {
+			return documents;
+		}
+		
+		for (final Resource resource: new PathMatchingResourcePatternResolver().getResources(samples)) {
+			final InputStream in = resource.getInputStream();
+			try {
+				documents.add(ByteStreams.toByteArray(in));
+			} finally {
+				Closeables.closeQuietly(in);
+			}
+		}
+		return documents;
+	}
+	
+	private JsonCodec getJsonCodec(final CamelContext context) {
+		final JsonCodec jsonCodec = context.getRegistry().lookupByNameAndType(EnrichDocumentRoute.JSON_CODEC_ID, JsonCodec.class);
+		return jsonCodec == null ? new JsonCodec() : jsonCodec;
+	}
+	
+	/**
+	 * Starts the registered routes once the context has fully started - each route is started independently
+	 */
+	private void startRoutes(final CamelContext context) throws Exception {
+		while (!context.getStatus().isStarted()) {
+			if (context.getStatus().isStopping() || context.getStatus().isStopped()) {
+				return;
+			}
+			Thread.sleep(100);
+		}
+		
+		final List<String> startedRouteIds = Lists.newArrayList();
+		for (final String routeId: enricherIdsByRouteId.keySet()) {
+			try {
+				context.startRoute(routeId);
+				startedRouteIds.add(routeId);
+			} catch (Exception e) {
+				LOGGER.error("Unable to start route {} after warm-up", routeId, e);
+			}
+		}
+		completed = true;
+		LOGGER.info("Started routes {} after warm-up", startedRouteIds);
+	}
+}
@@ -0,0 +1,83 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Utility methods for working with {@link DocumentPropertiesFinder}s
+ */
+public final class DocumentPropertiesFinders {
+	private static final Function<Map<String, Object>, Map<String, Object>> DEEP_COPY =
+			new Function<Map<String, Object>, Map<String, Object>>() {
+		@Override
+		public Map<String, Object> apply(final Map<String, Object> properties) {
+			return PropertyMaps.deepCopy(properties);
+		}
+	};
+	
+	private DocumentPropertiesFinders() {
+		// Suppress default constructor
+	}
+	
+	/**
+	 * Finds the properties for each set of lookup keys.
+	 * <p>
+	 * If the finder is a {@link BatchDocumentPropertiesFinder} the lookups are performed in a single
+	 * batch, otherwise each set of lookup keys is found in turn.
+	 * 
+	 * @param finder The finder to use
+	 * @param lookupKeys The sets of key/value pairs identifying the properties to find
+	 * @return The properties associated with each entry in <code>lookupKeys</code> (in the same order)
+	 * @throws Exception If the finder failed to find the properties
+	 */
+	public static List<Map<String, Object>> findAllProperties(final DocumentPropertiesFinder finder,
+			final List<Map<String, Object>> lookupKeys) throws Exception {
+		if (lookupKeys.isEmpty()) {
+			return Lists.newArrayList();
+		} else if (finder instanceof BatchDocumentPropertiesFinder) {
+			return ((BatchDocumentPropertiesFinder)finder).findAllProperties(lookupKeys);
+		}
+		
+		final List<Map<String, Object>> results = Lists.newArrayListWithCapacity(lookupKeys.size());
+		for (final Map<String, Object> keys: lookupKeys) {
+			results.add(finder.findProperties(keys));
+		}
+		return results;
+	}
+	
+	/**
+	 * Finds the properties for the lookup keys without waiting for the result.
+	 * <p>
+	 * If the finder is an {@link AsyncDocumentPropertiesFinder} the lookup is passed on asynchronously, otherwise
+	 * the lookup is performed on the calling thread and an already completed future is returned.
+	 * 
+	 * @param finder The finder to use
+	 * @param lookupKeys Key/value pairs identifying the properties to find
+	 * @return A future which is completed with the properties associated with the <code>lookupKeys</code>,
+	 * 		or failed if the properties could not be found
+	 */
+	public static ListenableFuture<Map<String, Object>> findPropertiesAsync(final DocumentPropertiesFinder finder,
+			final Map<String, Object> lookupKeys) {
+		if (finder instanceof AsyncDocumentPropertiesFinder) {
+			return ((AsyncDocumentPropertiesFinder)finder).findPropertiesAsync(lookupKeys);
+		}
+		
+		try {
+			return Futures.immediateFuture(finder.findProperties(lookupKeys));
+		} catch (Exception e) {
+			return Futures.immediateFailedFuture(e);
+		}
+	}
+	
+	/**
+	 * A future which is completed with a deep copy of the properties of the specified future
+	 */
+	static ListenableFuture<Map<String, Object>> deepCopy(final ListenableFuture<Map<String, Object>> properties) {
+		return Futures.transform(properties, DEEP_COPY);
+	}
+}
@@ -1,77 +1,87 @@
 package uk.nhs.ciao.docs.enricher;
 
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import com.google.common.base.Strings;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 
 import uk.nhs.ciao.docs.parser.ParsedDocument;
-import uk.nhs.ciao.docs.parser.PropertySelector;
-import uk.nhs.ciao.util.TreeMerge;
 
 /**
  * Enriches documents dynamically based on content extracted from the existing
  * document properties.
  * <p>
- * {@link #enrichablePropertiesSelectors} selects which section or sections of the document
- * should be enriched. The selected object must be a dynamic map - if nothing is selected the
- * root document properties are used.
+ * {@link #setEnrichablePropertiesSelectors(java.util.Collection) enrichablePropertiesSelectors} selects which
+ * section or sections of the document should be enriched. The selected object must be a dynamic map - if nothing
+ * is selected the root document properties are used.
  * <p>
- * {@link #lookupKeySelectors} selects a set of key/value pairs from the document to use
- * as lookup keys for the dynamic data.
+ * {@link #setLookupKeySelectors(java.util.Collection) lookupKeySelectors} selects a set of key/value pairs from
+ * the document to use as lookup keys for the dynamic data.
  * <p>
  * The selected lookup keys are sent to {@link #propertiesFinder}, and any returned properties
- * are added to the current document section.
+ * are added to the current document section. If the finder is a {@link BatchDocumentPropertiesFinder},
+ * the lookup keys of every selected section are sent to the finder in a single batch.
+ * <p>
+ * When many documents are enriched concurrently, the finder can be wrapped in a
+ * {@link CoalescingDocumentPropertiesFinder} so that concurrent lookups for the same keys
+ * share a single call to the backing finder.
+ * <p>
+ * If an {@link #setExecutorService(ExecutorService) executorService} is configured and
+ * {@link #setMaxParallelism(int) maxParallelism} is greater than one, the lookups of a multi-section document
+ * are split into stripes which are performed in parallel (the calling thread performs one of the stripes, and each
+ * stripe is sent to a {@link BatchDocumentPropertiesFinder} as a single batch). The results are merged into
+ * the document on the calling thread once every lookup has completed.
+ *
+ * @see AsyncDynamicDocumentEnricher
  */
-public class DynamicDocumentEnricher implements DocumentEnricher {
-	private final TreeMerge treeMerge;	
-	private final Set<PropertySelector> enrichablePropertiesSelectors;
-	private final Set<PropertySelector> lookupKeySelectors;
+public class DynamicDocumentEnricher extends AbstractDynamicDocumentEnricher implements DocumentEnricher {
 	private DocumentPropertiesFinder propertiesFinder;
-	
+	private ExecutorService executorService;
+	private int maxParallelism = 1;
+
 	public DynamicDocumentEnricher() {
-		treeMerge = new TreeMerge();	
-		enrichablePropertiesSelectors = Sets.newLinkedHashSet();
-		lookupKeySelectors = Sets.newLinkedHashSet();
+		super();
 	}
-	
+
 	public DynamicDocumentEnricher(final DocumentPropertiesFinder propertiesFinder) {
 		this();
 		this.propertiesFinder = propertiesFinder;
 	}
-	
+
 	public void setPropertiesFinder(final DocumentPropertiesFinder propertiesFinder) {
 		this.propertiesFinder = propertiesFinder;
 	}
-	
-	public void setEnrichablePropertiesSelectors(final Collection<String> enrichablePropertiesSelectors) {
-		this.enrichablePropertiesSelectors.clear();
-		for (final String selector: enrichablePropertiesSelectors) {
-			if (!Strings.isNullOrEmpty(selector)) {
-				this.enrichablePropertiesSelectors.add(PropertySelector.valueOf(selector));
-			}
-		}
+
+	/**
+	 * The (shared) executor used to perform the lookups of a single document in parallel.
+	 * <p>
+	 * If the executor rejects a task (e.g. all threads are busy) the lookups are performed on the calling thread instead.
+	 */
+	public void setExecutorService(final ExecutorService executorService) {
+		this.executorService = executorService;
 	}
-	
-	public void setLookupKeySelectors(final Collection<String> lookupKeySelectors) {
-		this.lookupKeySelectors.clear();
-		for (final String selector: lookupKeySelectors) {
-			if (!Strings.isNullOrEmpty(selector)) {
-				this.lookupKeySelectors.add(PropertySelector.valueOf(selector));
-			}
-		}
+
+	/**
+	 * The maximum number of threads (including the calling thread) used to perform the lookups of
+	 * a single document. A value of one (the default) disables parallel lookups.
+	 */
+	public void setMaxParallelism(final int maxParallelism) {
+		Preconditions.checkArgument(maxParallelism > 0, "maxParallelism must be positive");
+		this.maxParallelism = maxParallelism;
 	}
-	
+
 	/**
 	 * Enriches the document by selecting the sections to enrich, extracting lookup keys and
 	 * adding properties returned by the properties finder.
-	 * 
+	 *
 	 * @throws Exception If {@link #propertiesFinder} fails when attempting to find properties
 	 */
 	@Override
@@ -79,46 +89,147 @@ public class DynamicDocumentEnricher implements DocumentEnricher {
 		if (document == null) {
 			return null;
 		}
-	
-		for (final Map<String, Object> properties: getEnrichableProperties(document)) {
-			final Map<String, Object> lookupKeys = Maps.newLinkedHashMap();
-			getLookupKeys(properties, lookupKeys);
-			final Map<String, Object> additionalProperties = findAdditionalProperties(lookupKeys);
-			addAdditionalProperties(additionalProperties, properties);
+
+		final List<Map<String, Object>> enrichableProperties = getEnrichableProperties(document);
+		if (isParallelismEnabled(enrichableProperties.size())) {
+			enrichDocumentInParallel(enrichableProperties);
+		} else if (propertiesFinder instanceof BatchDocumentPropertiesFinder && enrichableProperties.size() > 1) {
+			enrichDocumentInBatch(enrichableProperties);
+		} else {
+			for (final Map<String, Object> properties: enrichableProperties) {
+				final Map<String, Object> lookupKeys = getLookupKeys(properties);
+				final long lookupStart = System.nanoTime();
+				final Map<String, Object> additionalProperties = findAdditionalProperties(lookupKeys);
+				recordLookupTime(lookupStart);
+
+				final long mergeStart = System.nanoTime();
+				addAdditionalProperties(additionalProperties, properties);
+				recordMergeTime(mergeStart);
+			}
 		}
-		
+
 		return document;
 	}
-	
-	private List<Map<String, Object>> getEnrichableProperties(final ParsedDocument document) {
-		final List<Map<String, Object>> enrichableProperties = Lists.newArrayList();
-		
-		if (enrichablePropertiesSelectors.isEmpty()) {
-			enrichableProperties.add(document.getProperties());
-		} else {
-			for (final PropertySelector selector: enrichablePropertiesSelectors) {
-				@SuppressWarnings({ "unchecked", "rawtypes" })
-				final Collection<Map<String, Object>> result = (Collection)selector.selectAllValues(Map.class, document.getProperties());
-				enrichableProperties.addAll(result);
+
+	/**
+	 * Finds the additional properties of all enrichable sections in a single batch, then
+	 * adds them to each section
+	 */
+	private void enrichDocumentInBatch(final List<Map<String, Object>> enrichableProperties) throws Exception {
+		final List<Map<String, Object>> allLookupKeys = Lists.newArrayListWithCapacity(enrichableProperties.size());
+		for (final Map<String, Object> properties: enrichableProperties) {
+			allLookupKeys.add(getLookupKeys(properties));
+		}
+
+		final long lookupStart = System.nanoTime();
+		final List<Map<String, Object>> allAdditionalProperties = DocumentPropertiesFinders.findAllProperties(
+				propertiesFinder, allLookupKeys);
+		recordLookupTime(lookupStart);
+
+		final long mergeStart = System.nanoTime();
+		for (int index = 0; index < enrichableProperties.size(); index++) {
+			addAdditionalProperties(allAdditionalProperties.get(index), enrichableProperties.get(index));
+		}
+		recordMergeTime(mergeStart);
+	}
+
+	private boolean isParallelismEnabled(final int sectionCount) {
+		return propertiesFinder != null && executorService != null && maxParallelism > 1 && sectionCount > 1;
+	}
+
+	/**
+	 * Finds the additional properties of all enrichable sections using up to {@link #maxParallelism} threads,
+	 * then adds them to each section on the calling thread (TreeMerge is not performed concurrently)
+	 */
+	private void enrichDocumentInParallel(final List<Map<String, Object>> enrichableProperties) throws Exception {
+		final List<Map<String, Object>> allLookupKeys = Lists.newArrayListWithCapacity(enrichableProperties.size());
+		for (final Map<String, Object> properties: enrichableProperties) {
+			allLookupKeys.add(getLookupKeys(properties));
+		}
+
+		final AtomicReferenceArray<Map<String, Object>> allAdditionalProperties =
+				new AtomicReferenceArray<Map<String, Object>>(allLookupKeys.size());
+		final int stripeCount = Math.min(maxParallelism, allLookupKeys.size());
+		final long lookupStart = System.nanoTime();
+		final List<Future<Void>> futures = Lists.newArrayListWithCapacity(stripeCount - 1);
+		try {
+			for (int stripe = 1; stripe < stripeCount; stripe++) {
+				final LookupStripe task = new LookupStripe(allLookupKeys, allAdditionalProperties, stripe, stripeCount);
+				try {
+					futures.add(executorService.submit(new MdcCallable<Void>(task)));
+				} catch (RejectedExecutionException e) {
+					task.call();
+				}
+			}
+
+			new LookupStripe(allLookupKeys, allAdditionalProperties, 0, stripeCount).call();
+			for (final Future<Void> future: futures) {
+				getResult(future);
 			}
+		} finally {
+			// Running lookups are not interrupted - their results may be shared with other documents (e.g. coalesced lookups)
+			for (final Future<Void> future: futures) {
+				future.cancel(false);
+			}
+		}
+		recordLookupTime(lookupStart);
+
+		final long mergeStart = System.nanoTime();
+		for (int index = 0; index < enrichableProperties.size(); index++) {
+			addAdditionalProperties(allAdditionalProperties.get(index), enrichableProperties.get(index));
 		}
-		
-		return enrichableProperties;
+		recordMergeTime(mergeStart);
 	}
-	
-	private void getLookupKeys(final Map<String, Object> properties, final  Map<String, Object> lookupKeys) {
-		for (final PropertySelector selector: lookupKeySelectors) {
-			lookupKeys.putAll(selector.selectAll(properties));
+
+	private void getResult(final Future<?> future) throws Exception {
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw e;
 		}
 	}
-	
+
 	private Map<String, Object> findAdditionalProperties(final Map<String, Object> lookupKeys) throws Exception {
 		return propertiesFinder == null ? Collections.<String, Object>emptyMap() : propertiesFinder.findProperties(lookupKeys);
 	}
-	
-	private void addAdditionalProperties(final Map<String, Object> additionalProperties, final Map<String, Object> properties) {
-		if (additionalProperties != null && !additionalProperties.isEmpty()) {
-			treeMerge.mergeInto(additionalProperties, properties);
+
+	/**
+	 * Finds the additional properties of every n-th set of lookup keys (starting at the stripe index) as a single batch
+	 */
+	private class LookupStripe implements Callable<Void> {
+		private final List<Map<String, Object>> allLookupKeys;
+		private final AtomicReferenceArray<Map<String, Object>> allAdditionalProperties;
+		private final int stripe;
+		private final int stripeCount;
+
+		public LookupStripe(final List<Map<String, Object>> allLookupKeys,
+				final AtomicReferenceArray<Map<String, Object>> allAdditionalProperties,
+				final int stripe, final int stripeCount) {
+			this.allLookupKeys = allLookupKeys;
+			this.allAdditionalProperties = allAdditionalProperties;
+			this.stripe = stripe;
+			this.stripeCount = stripeCount;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			final List<Map<String, Object>> lookupKeys = Lists.newArrayList();
+			for (int index = stripe; index < allLookupKeys.size(); index += stripeCount) {
+				lookupKeys.add(allLookupKeys.get(index));
+			}
+
+			final List<Map<String, Object>> additionalProperties = DocumentPropertiesFinders.findAllProperties(
+					propertiesFinder, lookupKeys);
+			for (int offset = 0; offset < additionalProperties.size(); offset++) {
+				allAdditionalProperties.set(stripe + offset * stripeCount, additionalProperties.get(offset));
+			}
+			return null;
 		}
 	}
 }
@@ -0,0 +1,440 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.nhs.ciao.docs.parser.PropertySelector;
+
+/**
+ * {@link DocumentPropertiesFinder} which preloads an entire reference dataset of JSON objects into an
+ * in-memory index, so that each lookup is a hash probe with no filesystem access.
+ * <p>
+ * The {@link #setSourcePath(String) source} (loaded via the spring resource loader) can be:
+ * <ul>
+ * <li>A directory - each file with the {@link #setResourceSuffix(String) resource suffix} is indexed by its name
+ * 		(excluding the suffix). This is the same layout used by {@link JsonResourceDocumentPropertiesFinder}.
+ * <li>An NDJSON file (<code>.ndjson</code> / <code>.jsonl</code>) - each line is a JSON object indexed by the value
+ * 		returned by {@link #setRecordKeySelector(String) recordKeySelector}
+ * <li>A JSON file - a single JSON object whose fields map each key to the indexed JSON object
+ * </ul>
+ * Lookups use {@link #setKeySelector(String) keySelector} to select the key from the incoming lookup keys. If
+ * {@link #setPropertySelector(String) propertySelector} is specified, it is used to select a section of the indexed
+ * object to return (again using incoming lookup keys) - as in {@link JsonResourceDocumentPropertiesFinder}. Otherwise
+ * the entire indexed object is returned.
+ * <p>
+ * Once {@link #start() started}, the source is checked for changes every {@link #setCheckInterval(long) checkInterval}
+ * milliseconds. Changed sources are re-indexed in the background and the new index replaces the old index
+ * atomically - lookups continue to use the old index until the rebuild completes. If a rebuild fails the old
+ * index is retained.
+ * <p>
+ * Changes are detected using the last-modified time and length of the source (and the number of files in a
+ * directory source) - the file content is not compared. A rewrite which keeps the same length within the
+ * timestamp resolution of the filesystem (e.g. one second) is therefore not detected. Sources should be
+ * replaced by writing a new file and renaming it over the old one.
+ */
+public class IndexedJsonDocumentPropertiesFinder implements DocumentPropertiesFinder, Closeable, Warmable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(IndexedJsonDocumentPropertiesFinder.class);
+	
+	/**
+	 * The maximum number of compiled dynamic property selectors to cache
+	 */
+	private static final int SELECTOR_CACHE_SIZE = 1000;
+	
+	private final ResourceLoader resourceLoader;
+	private final Object lock = new Object();
+	private final AtomicLong loadCount = new AtomicLong();
+	private final LoadingCache<String, PropertySelector> selectorCache = CacheBuilder.newBuilder()
+			.maximumSize(SELECTOR_CACHE_SIZE)
+			.build(new CacheLoader<String, PropertySelector>() {
+				@Override
+				public PropertySelector load(final String selector) {
+					return PropertySelector.valueOf(selector);
+				}
+			});
+	private volatile JsonCodec jsonCodec;
+	private String sourcePath;
+	private PropertySelector keySelector;
+	private PropertySelector recordKeySelector;
+	private PropertySelector propertySelector;
+	private String resourceSuffix = ".json";
+	private long checkInterval = TimeUnit.MINUTES.toMillis(1);
+	private volatile Index index;
+	
+	// guarded by lock
+	private ScheduledExecutorService executorService;
+	
+	@Autowired
+	public IndexedJsonDocumentPropertiesFinder(final ResourceLoader resourceLoader) {
+		this.resourceLoader = Preconditions.checkNotNull(resourceLoader);
+		this.jsonCodec = new JsonCodec();
+	}
+	
+	/**
+	 * Sets the (shared) codec used to parse the JSON source
+	 */
+	@Autowired(required = false)
+	public void setJsonCodec(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+	}
+	
+	/**
+	 * The directory or file containing the dataset to index (using spring URLs)
+	 */
+	public void setSourcePath(final String sourcePath) {
+		this.sourcePath = Strings.emptyToNull(sourcePath);
+	}
+	
+	/**
+	 * Selects the index key from the incoming lookup keys
+	 */
+	public void setKeySelector(final String keySelector) {
+		this.keySelector = Strings.isNullOrEmpty(keySelector) ? null : PropertySelector.valueOf(keySelector);
+	}
+	
+	/**
+	 * Selects the index key of each record in an NDJSON source
+	 */
+	public void setRecordKeySelector(final String recordKeySelector) {
+		this.recordKeySelector = Strings.isNullOrEmpty(recordKeySelector) ? null : PropertySelector.valueOf(recordKeySelector);
+	}
+	
+	/**
+	 * Selects (from the incoming lookup keys) the selector of the section of the indexed object to return. If not
+	 * specified the entire indexed object is returned.
+	 */
+	public void setPropertySelector(final String propertySelector) {
+		this.propertySelector = Strings.isNullOrEmpty(propertySelector) ? null : PropertySelector.valueOf(propertySelector);
+	}
+	
+	/**
+	 * The suffix of the files to index in a directory source (default is .json)
+	 */
+	public void setResourceSuffix(final String resourceSuffix) {
+		this.resourceSuffix = Strings.nullToEmpty(resourceSuffix);
+	}
+	
+	/**
+	 * The interval (in milliseconds) between checks to see if the source has changed. A value of
+	 * zero disables background checks. The default is one minute.
+	 */
+	public void setCheckInterval(final long checkInterval) {
+		Preconditions.checkArgument(checkInterval >= 0, "checkInterval must not be negative");
+		this.checkInterval = checkInterval;
+	}
+	
+	/**
+	 * Builds the initial index and starts checking the source for changes
+	 * 
+	 * @throws IOException If the initial index could not be built
+	 */
+	public void start() throws IOException {
+		getIndex();
+		
+		synchronized (lock) {
+			if (executorService == null && checkInterval > 0) {
+				executorService = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+						.setNameFormat("json-index-refresh-%d")
+						.setDaemon(true)
+						.build());
+				executorService.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refresh();
+						} catch (Exception e) {
+							LOGGER.warn("Unable to re-index JSON source {} - continuing with the previous index", sourcePath, e);
+						}
+					}
+				}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Builds the initial index (if it has not already been built)
+	 */
+	@Override
+	public void warmUp() throws IOException {
+		getIndex();
+	}
+	
+	/**
+	 * Stops checking the source for changes
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (executorService != null) {
+				executorService.shutdownNow();
+				executorService = null;
+			}
+		}
+	}
+	
+	/**
+	 * Re-indexes the source if it has changed since the current index was built
+	 * <p>
+	 * Refreshes are serialised with the background checks and the initial build, so concurrent callers
+	 * cannot replace a newer index with an older one.
+	 * 
+	 * @return true if the index was rebuilt
+	 * @throws IOException If the source could not be indexed (the current index is retained)
+	 */
+	public boolean refresh() throws IOException {
+		synchronized (lock) {
+			final Index current = index;
+			if (current != null && current.signature.equals(getSignature(getSource()))) {
+				return false;
+			}
+			
+			index = buildIndex();
+			return true;
+		}
+	}
+	
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final Object key = keySelector == null ? null : keySelector.selectValue(lookupKeys);
+		if (key == null) {
+			return Collections.emptyMap();
+		}
+		
+		final Map<String, Object> properties = selectProperties(getIndex().entries.get(key.toString()), lookupKeys);
+		
+		// The indexed instance is shared - return a copy to keep it isolated from the document
+		return properties == null ? Collections.<String, Object>emptyMap() : PropertyMaps.deepCopy(properties);
+	}
+	
+	/**
+	 * Selects the section of the indexed object specified by the property selector (if any)
+	 * 
+	 * @return The selected properties, or null if there are none
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> selectProperties(final Map<String, Object> properties, final Map<String, Object> lookupKeys) {
+		if (properties == null || propertySelector == null) {
+			return properties;
+		}
+		
+		final Object value = propertySelector.selectValue(lookupKeys);
+		if (value == null) {
+			return null;
+		}
+		
+		return selectorCache.getUnchecked(value.toString()).selectValue(Map.class, properties);
+	}
+	
+	/**
+	 * The number of entries in the current index
+	 */
+	public int getSize() {
+		final Index current = index;
+		return current == null ? 0 : current.entries.size();
+	}
+	
+	/**
+	 * The number of times the index has been built
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+	
+	private Index getIndex() throws IOException {
+		Index current = index;
+		if (current == null) {
+			synchronized (lock) {
+				current = index;
+				if (current == null) {
+					current = buildIndex();
+					index = current;
+				}
+			}
+		}
+		return current;
+	}
+	
+	private Resource getSource() throws IOException {
+		Preconditions.checkState(sourcePath != null, "sourcePath has not been specified");
+		
+		final Resource resource = resourceLoader.getResource(sourcePath);
+		if (!resource.exists()) {
+			throw new FileNotFoundException("JSON source does not exist: " + sourcePath);
+		}
+		return resource;
+	}
+	
+	private Index buildIndex() throws IOException {
+		final Resource source = getSource();
+		final String signature = getSignature(source);
+		final Map<String, Map<String, Object>> entries;
+		
+		final File directory = getDirectory(source);
+		if (directory != null) {
+			entries = indexDirectory(directory);
+		} else if (isNdjson(source)) {
+			entries = indexNdjson(source);
+		} else {
+			entries = indexJsonObject(source);
+		}
+		
+		loadCount.incrementAndGet();
+		LOGGER.info("Indexed {} entries from JSON source {}", entries.size(), sourcePath);
+		return new Index(signature, entries);
+	}
+	
+	private Map<String, Map<String, Object>> indexDirectory(final File directory) throws IOException {
+		final List<File> files = listFiles(directory);
+		final Map<String, Map<String, Object>> entries = Maps.newHashMapWithExpectedSize(files.size());
+		for (final File file: files) {
+			final String name = file.getName();
+			entries.put(name.substring(0, name.length() - resourceSuffix.length()), jsonCodec.readMap(file));
+		}
+		return entries;
+	}
+	
+	private Map<String, Map<String, Object>> indexNdjson(final Resource source) throws IOException {
+		Preconditions.checkState(recordKeySelector != null, "recordKeySelector is required for NDJSON sources");
+		
+		final Map<String, Map<String, Object>> entries = Maps.newHashMap();
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(source.getInputStream(), Charsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				
+				final Map<String, Object> record = jsonCodec.readMap(line);
+				final Object key = recordKeySelector.selectValue(record);
+				if (key != null) {
+					entries.put(key.toString(), record);
+				}
+			}
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+		return entries;
+	}
+	
+	private Map<String, Map<String, Object>> indexJsonObject(final Resource source) throws IOException {
+		final Map<String, Map<String, Object>> entries = Maps.newHashMap();
+		final InputStream in = source.getInputStream();
+		try {
+			final JsonParser parser = jsonCodec.getObjectMapper().getFactory().createParser(in);
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					throw new JsonParseException("Expected a JSON object", parser.getCurrentLocation());
+				}
+				
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final String key = parser.getCurrentName();
+					if (parser.nextToken() == JsonToken.START_OBJECT) {
+						entries.put(key, jsonCodec.readMap(parser));
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} finally {
+				parser.close();
+			}
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		return entries;
+	}
+	
+	/**
+	 * A value which changes whenever the source content is likely to have changed
+	 * <p>
+	 * Only file metadata is used - a same-length rewrite within the timestamp resolution is not detected
+	 */
+	private String getSignature(final Resource source) throws IOException {
+		final File directory = getDirectory(source);
+		if (directory == null) {
+			return source.lastModified() + ":" + source.contentLength();
+		}
+		
+		final List<File> files = listFiles(directory);
+		long lastModified = directory.lastModified();
+		long totalLength = 0;
+		for (final File file: files) {
+			lastModified = Math.max(lastModified, file.lastModified());
+			totalLength += file.length();
+		}
+		return files.size() + ":" + lastModified + ":" + totalLength;
+	}
+	
+	private File getDirectory(final Resource source) {
+		try {
+			final File file = source.getFile();
+			return file.isDirectory() ? file : null;
+		} catch (IOException e) {
+			return null; // not a filesystem resource
+		}
+	}
+	
+	private List<File> listFiles(final File directory) throws IOException {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list JSON source directory: " + directory);
+		}
+		
+		final List<File> matches = Lists.newArrayListWithCapacity(files.length);
+		for (final File file: files) {
+			if (file.isFile() && file.getName().endsWith(resourceSuffix)) {
+				matches.add(file);
+			}
+		}
+		return matches;
+	}
+	
+	private boolean isNdjson(final Resource source) {
+		final String name = Strings.nullToEmpty(source.getFilename()).toLowerCase();
+		return name.endsWith(".ndjson") || name.endsWith(".jsonl");
+	}
+	
+	/**
+	 * Immutable snapshot of the indexed source
+	 */
+	private static class Index {
+		private final String signature;
+		private final Map<String, Map<String, Object>> entries;
+		
+		public Index(final String signature, final Map<String, Map<String, Object>> entries) {
+			this.signature = signature;
+			this.entries = entries;
+		}
+	}
+}
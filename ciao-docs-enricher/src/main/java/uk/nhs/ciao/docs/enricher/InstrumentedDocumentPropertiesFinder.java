@@ -0,0 +1,156 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import com.google.common.base.Preconditions;
+
+import uk.nhs.ciao.docs.enricher.metrics.Counter;
+import uk.nhs.ciao.docs.enricher.metrics.Distribution;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * {@link DocumentPropertiesFinder} which records metrics for each lookup made to the delegate finder, and
+ * traces lookups which are slower than expected.
+ * <p>
+ * The following metrics are recorded in the {@link MetricsRegistry} (tagged by finder id):
+ * <ul>
+ * <li>{@link #LOOKUP_DURATION_METRIC} - lookup latency in microseconds (tagged by single or batch operation)
+ * <li>{@link #RESULT_SIZE_METRIC} - the number of top-level properties found by each lookup
+ * <li>{@link #LOOKUPS_METRIC} - the number of lookups which found properties, found nothing (empty) or failed (error)
+ * </ul>
+ * If a lookup takes longer than {@link #setSlowLookupThreshold(long) slowLookupThreshold} milliseconds, a
+ * <code>slow-lookup</code> event is logged containing the finder id, the duration, the lookup keys and the
+ * correlation id of the document being enriched. The correlation id is taken from the
+ * {@link #CORRELATION_ID_MDC_KEY} entry in the logging MDC of the calling thread - the enrich route sets this to the
+ * {@link org.apache.camel.Exchange#CORRELATION_ID} header of the document (whether or not Camel MDC logging is
+ * enabled). Decorators which move lookups to other threads propagate the MDC - lookups sent in a batch by
+ * {@link BatchingDocumentPropertiesFinder} are logged with the comma separated correlation ids of the batch.
+ */
+public class InstrumentedDocumentPropertiesFinder implements BatchDocumentPropertiesFinder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(InstrumentedDocumentPropertiesFinder.class);
+
+	/**
+	 * Duration (in microseconds) of lookups - tagged by finder and operation
+	 */
+	public static final String LOOKUP_DURATION_METRIC = "enricher_finder_lookup_duration_micros";
+
+	/**
+	 * Number of top-level properties found by lookups - tagged by finder
+	 */
+	public static final String RESULT_SIZE_METRIC = "enricher_finder_result_size";
+
+	/**
+	 * Number of lookups - tagged by finder and outcome
+	 */
+	public static final String LOOKUPS_METRIC = "enricher_finder_lookups_total";
+
+	/**
+	 * MDC key holding the correlation id of the document being enriched
+	 */
+	public static final String CORRELATION_ID_MDC_KEY = "ciao.correlationId";
+
+	private final DocumentPropertiesFinder finder;
+	private final String finderId;
+	private final Distribution singleLookupDuration;
+	private final Distribution batchLookupDuration;
+	private final Distribution resultSize;
+	private final Counter foundCount;
+	private final Counter emptyCount;
+	private final Counter errorCount;
+	private long slowLookupThreshold;
+
+	/**
+	 * Constructs a new instrumented finder backed by the specified delegate
+	 *
+	 * @param finder The finder to instrument
+	 * @param metrics The registry to record metrics in
+	 * @param finderId Identifies the finder in metrics and trace events
+	 */
+	public InstrumentedDocumentPropertiesFinder(final DocumentPropertiesFinder finder, final MetricsRegistry metrics,
+			final String finderId) {
+		this.finder = Preconditions.checkNotNull(finder);
+		this.finderId = Preconditions.checkNotNull(finderId);
+
+		singleLookupDuration = metrics.distribution(LOOKUP_DURATION_METRIC, "finder", finderId, "operation", "single");
+		batchLookupDuration = metrics.distribution(LOOKUP_DURATION_METRIC, "finder", finderId, "operation", "batch");
+		resultSize = metrics.distribution(RESULT_SIZE_METRIC, "finder", finderId);
+		foundCount = metrics.counter(LOOKUPS_METRIC, "finder", finderId, "outcome", "found");
+		emptyCount = metrics.counter(LOOKUPS_METRIC, "finder", finderId, "outcome", "empty");
+		errorCount = metrics.counter(LOOKUPS_METRIC, "finder", finderId, "outcome", "error");
+	}
+
+	/**
+	 * Lookups taking longer than this threshold (in milliseconds) are logged. A value of zero (the default)
+	 * disables slow lookup tracing.
+	 */
+	public void setSlowLookupThreshold(final long slowLookupThreshold) {
+		Preconditions.checkArgument(slowLookupThreshold >= 0, "slowLookupThreshold must not be negative");
+		this.slowLookupThreshold = slowLookupThreshold;
+	}
+
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final long startNanos = System.nanoTime();
+		final Map<String, Object> properties;
+		try {
+			properties = finder.findProperties(lookupKeys);
+		} catch (Exception e) {
+			errorCount.increment();
+			throw e;
+		} finally {
+			singleLookupDuration.recordTimeSince(startNanos);
+			traceSlowLookup(startNanos, lookupKeys);
+		}
+
+		recordResult(properties);
+		return properties;
+	}
+
+	@Override
+	public List<Map<String, Object>> findAllProperties(final List<Map<String, Object>> lookupKeys) throws Exception {
+		final long startNanos = System.nanoTime();
+		final List<Map<String, Object>> allProperties;
+		try {
+			allProperties = DocumentPropertiesFinders.findAllProperties(finder, lookupKeys);
+		} catch (Exception e) {
+			errorCount.increment(lookupKeys.size());
+			throw e;
+		} finally {
+			batchLookupDuration.recordTimeSince(startNanos);
+			traceSlowLookup(startNanos, lookupKeys);
+		}
+
+		for (final Map<String, Object> properties: allProperties) {
+			recordResult(properties);
+		}
+		return allProperties;
+	}
+
+	private void recordResult(final Map<String, Object> properties) {
+		final int size = properties == null ? 0 : properties.size();
+		resultSize.record(size);
+		if (size == 0) {
+			emptyCount.increment();
+		} else {
+			foundCount.increment();
+		}
+	}
+
+	private void traceSlowLookup(final long startNanos, final Object lookupKeys) {
+		if (slowLookupThreshold <= 0) {
+			return;
+		}
+
+		final long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+		if (durationMillis >= slowLookupThreshold) {
+			LOGGER.warn("Slow properties lookup: event=slow-lookup finder={} durationMillis={} thresholdMillis={} correlationId={} lookupKeys={}",
+					finderId, durationMillis, slowLookupThreshold, MDC.get(CORRELATION_ID_MDC_KEY), lookupKeys);
+		}
+	}
+}
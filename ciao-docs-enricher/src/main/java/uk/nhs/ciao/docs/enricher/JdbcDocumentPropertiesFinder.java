@@ -12,7 +12,6 @@ import org.apache.camel.ProducerTemplate;
 import org.apache.camel.impl.DefaultExchange;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
@@ -30,7 +29,7 @@ import uk.nhs.ciao.docs.parser.PropertySelector;
  * <li>{@link #idParameter} - The name of the SQL parameter included in the WHERE clause
  * <li>{@link #idSelector} - The selector for finding ID values from the incoming lookup keys - the resulting
  * 		value forms the dynamic part of the SQL WHERE clause
- * <li>{@link #objectMapper} - Optional mapper used for converting embedded JSON values
+ * <li>{@link #jsonCodec} - Optional (shared) codec used for converting embedded JSON values
  * <li>{@link #jsonColumn} - Optional name of a returned column containing data as an embedded JSON string
  * </ul>
  * <p>
@@ -44,20 +43,20 @@ import uk.nhs.ciao.docs.parser.PropertySelector;
  * <p>
  * The finder will return an empty map if the sql query returns no rows, but throws an exception if either
  * the database query or the JSON conversion fails.
+ * 
+ * @see DataSourceDocumentPropertiesFinder
  */
 public class JdbcDocumentPropertiesFinder implements DocumentPropertiesFinder {
 	private static final Map<String, Object> EMPTY_PROPERTIES = Collections.emptyMap();
-	private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
-		// Jackson type reference - required to ensure generic type is available via reflection
-	};
 	
 	private final ProducerTemplate producerTemplate;
-	private final ObjectMapper objectMapper;
+	private volatile JsonCodec jsonCodec;
 	private String dataSourceId;
 	private String sqlQuery;
 	private String idParameter;
 	private PropertySelector idSelector;
 	private String jsonColumn;
+	private int queryTimeout;
 
 	/**
 	 * Constructs a new finder backed by the specified Camel producer template
@@ -77,7 +76,15 @@ public class JdbcDocumentPropertiesFinder implements DocumentPropertiesFinder {
 	 */
 	public JdbcDocumentPropertiesFinder(final ProducerTemplate producerTemplate, final ObjectMapper objectMapper) {
 		this.producerTemplate = Preconditions.checkNotNull(producerTemplate);
-		this.objectMapper = objectMapper;
+		this.jsonCodec = objectMapper == null ? new JsonCodec() : new JsonCodec(objectMapper);
+	}
+	
+	/**
+	 * Sets the (shared) codec used for converting embedded JSON values
+	 */
+	@Autowired(required = false)
+	public void setJsonCodec(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
 	}
 	
 	/**
@@ -122,6 +129,16 @@ public class JdbcDocumentPropertiesFinder implements DocumentPropertiesFinder {
 		this.jsonColumn = Strings.emptyToNull(jsonColumn);
 	}
 	
+	/**
+	 * The maximum time (in seconds) the driver waits for the query to execute before cancelling it
+	 * (passed to the JDBC component as <code>statement.queryTimeout</code>). A value of zero (the
+	 * default) waits indefinitely.
+	 */
+	public void setQueryTimeout(final int queryTimeout) {
+		Preconditions.checkArgument(queryTimeout >= 0, "queryTimeout must not be negative");
+		this.queryTimeout = queryTimeout;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * <p>
@@ -141,7 +158,7 @@ public class JdbcDocumentPropertiesFinder implements DocumentPropertiesFinder {
 			if (jsonColumn != null) {
 				Object value = properties.get(jsonColumn);
 				if (value != null) {
-					properties = objectMapper.readValue(value.toString(), MAP_TYPE);
+					properties = jsonCodec.readMap(value.toString());
 				}
 			}
 		}
@@ -164,7 +181,8 @@ public class JdbcDocumentPropertiesFinder implements DocumentPropertiesFinder {
 		exchange.getIn().setHeader(idParameter, id);
 		exchange.getIn().setBody(sqlQuery);
 		
-		producerTemplate.send("jdbc:" + dataSourceId + "?useHeadersAsParameters=true", exchange);
+		producerTemplate.send("jdbc:" + dataSourceId + "?useHeadersAsParameters=true"
+				+ (queryTimeout > 0 ? "&statement.queryTimeout=" + queryTimeout : ""), exchange);
 		if (exchange.getException() != null) {
 			throw new IOException("Unable to lookup document properties for id: " + id,
 					exchange.getException());
@@ -0,0 +1,127 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+import com.google.common.base.Preconditions;
+
+/**
+ * Shared, pre-configured JSON reader/writer used by the routes, enrichers and finders.
+ * <p>
+ * A single {@link ObjectMapper} (and therefore a single {@link JsonFactory} with its symbol tables and
+ * recycled buffers) is shared by every component. Readers for the common property map type and a writer
+ * are built once from the mapper, avoiding the per-call type resolution of
+ * {@link ObjectMapper#readValue(InputStream, TypeReference)}.
+ * <p>
+ * The configurable features are applied to the shared mapper - they should be set before the codec
+ * is first used.
+ */
+public class JsonCodec {
+	private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
+		// Jackson type reference - required to ensure generic type is available via reflection
+	};
+	
+	private final ObjectMapper objectMapper;
+	private volatile ObjectReader mapReader;
+	private volatile ObjectWriter writer;
+	private boolean afterburnerEnabled;
+	
+	public JsonCodec() {
+		this(new ObjectMapper());
+	}
+	
+	/**
+	 * Constructs a new codec backed by the specified (shared) mapper
+	 */
+	public JsonCodec(final ObjectMapper objectMapper) {
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+		updateReaderAndWriter();
+	}
+	
+	/**
+	 * Whether field names are canonicalized (i.e. looked up in a shared symbol table rather than
+	 * allocated for each occurrence). Default is true.
+	 */
+	public void setCanonicalizeFieldNames(final boolean canonicalizeFieldNames) {
+		objectMapper.getFactory().configure(JsonFactory.Feature.CANONICALIZE_FIELD_NAMES, canonicalizeFieldNames);
+		updateReaderAndWriter();
+	}
+	
+	/**
+	 * Whether canonicalized field names are also interned. Default is true.
+	 */
+	public void setInternFieldNames(final boolean internFieldNames) {
+		objectMapper.getFactory().configure(JsonFactory.Feature.INTERN_FIELD_NAMES, internFieldNames);
+		updateReaderAndWriter();
+	}
+	
+	/**
+	 * Whether the Jackson afterburner module (bytecode generated serializers / deserializers) should be
+	 * registered. Default is false.
+	 * <p>
+	 * Once registered the module cannot be removed from the shared mapper.
+	 */
+	public void setAfterburnerEnabled(final boolean afterburnerEnabled) {
+		if (afterburnerEnabled && !this.afterburnerEnabled) {
+			objectMapper.registerModule(new AfterburnerModule());
+			this.afterburnerEnabled = true;
+			updateReaderAndWriter();
+		}
+	}
+	
+	public boolean isAfterburnerEnabled() {
+		return afterburnerEnabled;
+	}
+	
+	public ObjectMapper getObjectMapper() {
+		return objectMapper;
+	}
+	
+	/**
+	 * Reader for JSON objects as dynamic property maps
+	 */
+	public ObjectReader getMapReader() {
+		return mapReader;
+	}
+	
+	public ObjectWriter getWriter() {
+		return writer;
+	}
+	
+	public Map<String, Object> readMap(final InputStream in) throws IOException {
+		return mapReader.readValue(in);
+	}
+	
+	public Map<String, Object> readMap(final File file) throws IOException {
+		return mapReader.readValue(file);
+	}
+	
+	public Map<String, Object> readMap(final byte[] json) throws IOException {
+		return mapReader.readValue(json);
+	}
+	
+	public Map<String, Object> readMap(final String json) throws IOException {
+		return mapReader.readValue(json);
+	}
+	
+	/**
+	 * Reads the JSON object starting at the current token of the parser
+	 */
+	public Map<String, Object> readMap(final JsonParser parser) throws IOException {
+		return mapReader.readValue(parser);
+	}
+	
+	private void updateReaderAndWriter() {
+		mapReader = objectMapper.readerFor(MAP_TYPE);
+		writer = objectMapper.writer();
+	}
+}
@@ -0,0 +1,176 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Cache of parsed JSON resources keyed by resource path.
+ * <p>
+ * Each resource is loaded and parsed once, and then served from memory. After
+ * {@link #checkInterval} has elapsed, the next request for the resource checks whether
+ * the underlying resource has changed:
+ * <ul>
+ * <li>If the last-modified time of the resource is unchanged the cached content is retained
+ * <li>Otherwise the content is re-read and a checksum is compared against the cached content - the
+ * 		JSON is only re-parsed if the checksum has changed
+ * </ul>
+ * Resources which do not support last-modified times (e.g. some classpath resources) are always
+ * compared using the checksum.
+ * <p>
+ * Returned properties are shared across callers and must not be modified - use
+ * {@link PropertyMaps#deepCopy(Map)} before merging them into a document.
+ */
+public class JsonResourceCache {
+	private static final long UNKNOWN_LAST_MODIFIED = -1;
+
+	private final ResourceLoader resourceLoader;
+	private final JsonCodec jsonCodec;
+	private final ConcurrentMap<String, Entry> entries;
+	private volatile long checkInterval = TimeUnit.SECONDS.toMillis(5);
+
+	public JsonResourceCache(final ResourceLoader resourceLoader, final ObjectMapper objectMapper) {
+		this(resourceLoader, new JsonCodec(objectMapper));
+	}
+
+	public JsonResourceCache(final ResourceLoader resourceLoader, final JsonCodec jsonCodec) {
+		this.resourceLoader = Preconditions.checkNotNull(resourceLoader);
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+		this.entries = Maps.newConcurrentMap();
+	}
+
+	/**
+	 * Sets the minimum interval (in milliseconds) between checks to see if a cached resource has changed.
+	 * <p>
+	 * A value of zero will check the resource on every request. The default is 5 seconds.
+	 */
+	public void setCheckInterval(final long checkInterval) {
+		Preconditions.checkArgument(checkInterval >= 0, "checkInterval must not be negative");
+		this.checkInterval = checkInterval;
+	}
+
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	/**
+	 * Returns the parsed properties of the specified resource
+	 *
+	 * @param resourcePath The path of the resource to get (using spring URLs)
+	 * @return The (shared) properties of the resource, or null if the resource does not exist
+	 * @throws IOException If the resource could not be read or parsed
+	 */
+	public Map<String, Object> getProperties(final String resourcePath) throws IOException {
+		Entry entry = entries.get(resourcePath);
+		if (entry == null) {
+			final Entry newEntry = new Entry(resourcePath);
+			entry = entries.putIfAbsent(resourcePath, newEntry);
+			if (entry == null) {
+				entry = newEntry;
+			}
+		}
+
+		return entry.getProperties();
+	}
+
+	/**
+	 * Removes all cached resources - the next request for each resource will reload it
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Cached state of a single resource
+	 * <p>
+	 * Staleness checks are synchronized per entry - concurrent requests for the same resource
+	 * wait for a single reload, while other resources remain available.
+	 */
+	private class Entry {
+		private final String resourcePath;
+		private volatile Map<String, Object> properties;
+		private volatile long nextCheckTime;
+		private volatile boolean loaded;
+		private long lastModified = UNKNOWN_LAST_MODIFIED;
+		private HashCode checksum;
+
+		public Entry(final String resourcePath) {
+			this.resourcePath = resourcePath;
+		}
+
+		public Map<String, Object> getProperties() throws IOException {
+			if (loaded && System.currentTimeMillis() < nextCheckTime) {
+				return properties;
+			}
+
+			synchronized (this) {
+				// Another thread may have refreshed while waiting for the lock
+				final long now = System.currentTimeMillis();
+				if (!loaded || now >= nextCheckTime) {
+					refresh();
+					loaded = true;
+					nextCheckTime = now + checkInterval;
+				}
+
+				return properties;
+			}
+		}
+
+		private void refresh() throws IOException {
+			final Resource resource = resourceLoader.getResource(resourcePath);
+			if (!resource.exists()) {
+				properties = null;
+				lastModified = UNKNOWN_LAST_MODIFIED;
+				checksum = null;
+				return;
+			}
+
+			final long currentLastModified = getLastModified(resource);
+			if (properties != null && currentLastModified != UNKNOWN_LAST_MODIFIED
+					&& currentLastModified == lastModified) {
+				return;
+			}
+
+			final byte[] content = readContent(resource);
+			final HashCode currentChecksum = Hashing.crc32().hashBytes(content);
+			if (properties == null || !currentChecksum.equals(checksum)) {
+				properties = jsonCodec.readMap(content);
+				checksum = currentChecksum;
+			}
+			lastModified = currentLastModified;
+		}
+
+		private long getLastModified(final Resource resource) {
+			try {
+				final long value = resource.lastModified();
+				return value > 0 ? value : UNKNOWN_LAST_MODIFIED;
+			} catch (IOException e) {
+				// Not supported by this resource type - fall back to checksums
+				return UNKNOWN_LAST_MODIFIED;
+			}
+		}
+
+		private byte[] readContent(final Resource resource) throws IOException {
+			InputStream in = null;
+			try {
+				in = resource.getInputStream();
+				return ByteStreams.toByteArray(in);
+			} finally {
+				Closeables.closeQuietly(in);
+			}
+		}
+	}
+}
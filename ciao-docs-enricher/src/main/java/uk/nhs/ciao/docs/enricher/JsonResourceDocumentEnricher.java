@@ -1,21 +1,16 @@
 package uk.nhs.ciao.docs.enricher;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.DefaultResourceLoader;
-import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.io.Closeables;
 
 import uk.nhs.ciao.docs.parser.ParsedDocument;
 import uk.nhs.ciao.util.TreeMerge;
@@ -26,28 +21,28 @@ import uk.nhs.ciao.util.TreeMerge;
  * <p>
  * The resource is loaded using the configured spring resource loader - therefore the standard
  * spring URLs are supported (e.g. classpath, file, etc)
+ * <p>
+ * Parsed resources are cached in memory (see {@link JsonResourceCache}) - changes to the
+ * underlying resources are detected after {@link #setResourceCheckInterval(long) resourceCheckInterval}
+ * has elapsed.
  * 
  * @see ResourceLoader
  */
-public class JsonResourceDocumentEnricher implements DocumentEnricher {
-	private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
-		// Jackson type reference - required to ensure generic type is available via reflection
-	};
-	
+public class JsonResourceDocumentEnricher implements DocumentEnricher, Warmable {
 	private final List<String> resourcePaths;
-	private final ObjectMapper objectMapper;
 	private final TreeMerge treeMerge;
 	private boolean failOnMissingResource = false;
 	
 	/**
-	 * Loads the specified JSON resources
+	 * Caches the parsed JSON resources
 	 * <p>
-	 * A default is provided on construction - however the @Autowired annotation allows
-	 * spring to inject a suitable replacement at runtime (typically the main application
-	 * context).
+	 * A default (using the default resource loader) is provided on construction - however
+	 * {@link #setResourceLoader(ResourceLoader)} allows spring to inject a suitable replacement
+	 * at runtime (typically the main application context).
 	 */
-	@Autowired
-	private final ResourceLoader resourceLoader;
+	private volatile JsonResourceCache resourceCache;
+	private volatile ResourceLoader resourceLoader;
+	private volatile JsonCodec jsonCodec;
 	
 	/**
 	 * Constructs a new enricher which will add properties from the specified path
@@ -66,10 +61,11 @@ public class JsonResourceDocumentEnricher implements DocumentEnricher {
 	 * @param objectMapper The jackson object mapper to use when unmarshalling the JSON resource
 	 */
 	public JsonResourceDocumentEnricher(final ObjectMapper objectMapper, final String... resourcePaths) {
-		this.objectMapper = objectMapper == null ? new ObjectMapper() : objectMapper;
+		this.jsonCodec = new JsonCodec(objectMapper == null ? new ObjectMapper() : objectMapper);
 		this.resourcePaths = Lists.newArrayList(resourcePaths);
 		this.treeMerge = new TreeMerge();
 		this.resourceLoader = new DefaultResourceLoader();
+		this.resourceCache = new JsonResourceCache(resourceLoader, jsonCodec);
 		
 		// Remove any null/empty paths
 		final Iterator<String> iterator = this.resourcePaths.iterator();
@@ -80,6 +76,44 @@ public class JsonResourceDocumentEnricher implements DocumentEnricher {
 		}
 	}
 	
+	/**
+	 * Sets the resource loader used to load the JSON resources
+	 * <p>
+	 * Any previously cached resources are discarded
+	 */
+	@Autowired(required = false)
+	public void setResourceLoader(final ResourceLoader resourceLoader) {
+		this.resourceLoader = resourceLoader;
+		replaceResourceCache();
+	}
+	
+	/**
+	 * Sets the (shared) codec used to parse the JSON resources
+	 * <p>
+	 * Any previously cached resources are discarded
+	 */
+	@Autowired(required = false)
+	public void setJsonCodec(final JsonCodec jsonCodec) {
+		this.jsonCodec = jsonCodec;
+		replaceResourceCache();
+	}
+	
+	private void replaceResourceCache() {
+		final JsonResourceCache cache = new JsonResourceCache(resourceLoader, jsonCodec);
+		cache.setCheckInterval(resourceCache.getCheckInterval());
+		this.resourceCache = cache;
+	}
+	
+	/**
+	 * Sets the minimum interval (in milliseconds) between checks to see if a cached
+	 * resource has changed.
+	 * <p>
+	 * A value of zero checks the resources on every document. The default is 5 seconds.
+	 */
+	public void setResourceCheckInterval(final long resourceCheckInterval) {
+		resourceCache.setCheckInterval(resourceCheckInterval);
+	}
+	
 	/**
 	 * Sets if the enrichment should fail if the resource is not found.
 	 * <p>
@@ -92,18 +126,31 @@ public class JsonResourceDocumentEnricher implements DocumentEnricher {
 	}
 	
 	/**
-	 * Enriches the document by loading the JSON resource, then merging the content with 
+	 * Loads and caches each of the JSON resources
+	 */
+	@Override
+	public void warmUp() throws Exception {
+		final JsonResourceCache cache = resourceCache;
+		for (final String resourcePath: resourcePaths) {
+			cache.getProperties(resourcePath);
+		}
+	}
+	
+	/**
+	 * Enriches the document by loading the (cached) JSON resource, then merging the content with 
 	 * the incoming parsed document properties
 	 */
 	@Override
 	public ParsedDocument enrichDocument(final ParsedDocument document) throws Exception {
 		final Map<String, Object> properties = document.getProperties();
+		final JsonResourceCache cache = resourceCache;
 
 		for (final String resourcePath: resourcePaths) {
-			final Resource resource = resourceLoader.getResource(resourcePath);
+			final Map<String, Object> cachedProperties = cache.getProperties(resourcePath);
 			
-			if (resource.exists()) {
-				final Map<String, Object> additionalProperties = readJsonResource(resource);
+			if (cachedProperties != null) {
+				// The cached instance is shared - merge a copy to keep it isolated from the document
+				final Map<String, Object> additionalProperties = PropertyMaps.deepCopy(cachedProperties);
 				treeMerge.mergeInto(additionalProperties, properties);
 			} else if (failOnMissingResource) {
 				throw new Exception("Resource could not be loaded: " + resourcePath);
@@ -112,14 +159,4 @@ public class JsonResourceDocumentEnricher implements DocumentEnricher {
 		
 		return document;
 	}
-	
-	private Map<String, Object> readJsonResource(final Resource resource) throws IOException {
-		InputStream in = null;
-		try {
-			in = resource.getInputStream();
-			return objectMapper.readValue(in, MAP_TYPE);
-		} finally {
-			Closeables.closeQuietly(in);
-		}
-	}
 }
@@ -11,10 +11,13 @@ import org.springframework.core.io.ResourceLoader;
 
 import uk.nhs.ciao.docs.parser.PropertySelector;
 
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.io.Closeables;
 
 /**
@@ -31,18 +34,21 @@ import com.google.common.io.Closeables;
  * <p>
  * If {@link #propertySelector} is specified, it is used to select a section of the JSON resource to return (again using
  * incoming lookup keys). Otherwise the entire JSON structure is returned.
+ * <p>
+ * Dynamic property selectors and resolved resource handles are kept in bounded caches (see {@link #setCacheSize(int)}),
+ * so selector parsing and resource path resolution happen once per distinct value rather than once per lookup.
+ * The resource content is still read on each lookup (combine with {@link CachingDocumentPropertiesFinder} to retain
+ * the parsed results).
  */
 public class JsonResourceDocumentPropertiesFinder implements DocumentPropertiesFinder {
-	private static final TypeReference<Map<String, Object>> MAP_TYPE = new TypeReference<Map<String, Object>>() {
-		// Jackson type reference - required to ensure generic type is available via reflection
-	};
-	
 	private final ResourceLoader resourceLoader;
-	private final ObjectMapper objectMapper;
+	private volatile JsonCodec jsonCodec;
 	private String resourcePath;
 	private PropertySelector resourceNameSelector;
 	private String resourceSuffix = ".json";
 	private PropertySelector propertySelector;
+	private volatile LoadingCache<String, PropertySelector> selectorCache;
+	private volatile LoadingCache<Optional<String>, Resource> resourceCache;
 	
 	@Autowired
 	public JsonResourceDocumentPropertiesFinder(final ResourceLoader resourceLoader) {
@@ -51,20 +57,57 @@ public class JsonResourceDocumentPropertiesFinder implements DocumentPropertiesF
 	
 	public JsonResourceDocumentPropertiesFinder(final ResourceLoader resourceLoader, final ObjectMapper objectMapper) {
 		this.resourceLoader = Preconditions.checkNotNull(resourceLoader);
-		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+		this.jsonCodec = new JsonCodec(objectMapper);
+		setCacheSize(1000);
+	}
+	
+	/**
+	 * The maximum number of compiled selectors and resolved resource handles to cache (default is 1000)
+	 */
+	public void setCacheSize(final int cacheSize) {
+		Preconditions.checkArgument(cacheSize > 0, "cacheSize must be positive");
+		
+		selectorCache = CacheBuilder.newBuilder()
+				.maximumSize(cacheSize)
+				.build(new CacheLoader<String, PropertySelector>() {
+					@Override
+					public PropertySelector load(final String selector) {
+						return PropertySelector.valueOf(selector);
+					}
+				});
+		
+		resourceCache = CacheBuilder.newBuilder()
+				.maximumSize(cacheSize)
+				.build(new CacheLoader<Optional<String>, Resource>() {
+					@Override
+					public Resource load(final Optional<String> dynamicName) {
+						return resolveResource(dynamicName);
+					}
+				});
+	}
+	
+	/**
+	 * Sets the (shared) codec used to parse the JSON resources
+	 */
+	@Autowired(required = false)
+	public void setJsonCodec(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
 	}
 	
 	public void setResourcePath(final String resourcePath) {
 		this.resourcePath = Strings.emptyToNull(resourcePath);
+		resourceCache.invalidateAll();
 	}
 	
 	public void setResourceNameSelector(final String resourceNameSelector) {
 		this.resourceNameSelector = Strings.isNullOrEmpty(resourceNameSelector) ? null :
 			PropertySelector.valueOf(resourceNameSelector);
+		resourceCache.invalidateAll();
 	}
 	
 	public void setResourceSuffix(final String resourceSuffix) {
 		this.resourceSuffix = Strings.emptyToNull(resourceSuffix);
+		resourceCache.invalidateAll();
 	}
 	
 	public void setPropertySelector(final String propertySelector) {
@@ -81,7 +124,7 @@ public class JsonResourceDocumentPropertiesFinder implements DocumentPropertiesF
 				return Collections.emptyMap();
 			}
 			
-			final Map<String, Object> properties = objectMapper.readValue(inputStream, MAP_TYPE);
+			final Map<String, Object> properties = jsonCodec.readMap(inputStream);
 			if (propertySelector == null) {
 				return properties;
 			}
@@ -91,31 +134,33 @@ public class JsonResourceDocumentPropertiesFinder implements DocumentPropertiesF
 				return Collections.emptyMap();
 			}
 			
-			return PropertySelector.valueOf(value.toString()).selectValue(Map.class, properties);
+			return selectorCache.getUnchecked(value.toString()).selectValue(Map.class, properties);
 		} finally {
 			Closeables.closeQuietly(inputStream);
 		}
 	}
 	
 	private InputStream getJson(final Map<String, Object> lookupKeys) throws IOException {
+		final Object value = resourceNameSelector == null ? null : resourceNameSelector.selectValue(lookupKeys);
+		final Resource resource = resourceCache.getUnchecked(Optional.fromNullable(value == null ? null : value.toString()));
+		return resource.exists() ? resource.getInputStream() : null;
+	}
+	
+	/**
+	 * Resolves the resource for the (optional) dynamic name selected from the lookup keys
+	 */
+	private Resource resolveResource(final Optional<String> dynamicName) {
 		String parent = null;
 		String resourceName = Strings.isNullOrEmpty(resourcePath) ? null : resourcePath;
 		
-		if (resourceNameSelector != null) {
-			final Object value = resourceNameSelector.selectValue(lookupKeys);
-			if (value != null) {
-				parent = resourceName;
-				resourceName = value.toString();
-				if (resourceSuffix != null) {
-					resourceName += resourceSuffix;
-				}
+		if (dynamicName.isPresent()) {
+			parent = resourceName;
+			resourceName = dynamicName.get();
+			if (resourceSuffix != null) {
+				resourceName += resourceSuffix;
 			}
 		}
-
-		return getJson(parent, resourceName);
-	}
-	
-	private InputStream getJson(final String parent, final String resourceName) throws IOException {
+		
 		final StringBuilder path = new StringBuilder();
 		if (!Strings.isNullOrEmpty(parent)) {
 			path.append(parent);
@@ -125,7 +170,6 @@ public class JsonResourceDocumentPropertiesFinder implements DocumentPropertiesF
 		}
 		path.append(resourceName);
 
-		final Resource resource = resourceLoader.getResource(path.toString());		
-		return resource.exists() ? resource.getInputStream() : null;
+		return resourceLoader.getResource(path.toString());
 	}
 }
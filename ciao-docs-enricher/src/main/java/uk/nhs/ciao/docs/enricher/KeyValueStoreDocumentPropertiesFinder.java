@@ -0,0 +1,616 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.sql.DataSource;
+
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ResourceLoader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.nhs.ciao.docs.enricher.metrics.Counter;
+import uk.nhs.ciao.docs.enricher.metrics.Gauge;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+import uk.nhs.ciao.docs.enricher.store.ReferenceDataReader;
+import uk.nhs.ciao.docs.parser.PropertySelector;
+
+/**
+ * {@link DocumentPropertiesFinder} backed by an embedded on-disk key/value store (a MapDB B-tree), so that
+ * lookups are served locally by each enrichment node instead of querying a shared database.
+ * <p>
+ * The first time the store is {@link #start() started} it is loaded from either:
+ * <ul>
+ * <li>A {@link #setLoadPath(String) reference data file} - a JSON dump, NDJSON or CSV export (see {@link ReferenceDataReader}), or
+ * <li>A {@link #setDataSource(DataSource) data source} - each row returned by the {@link #setLoadSqlQuery(String) load query}
+ * 		is stored under the value of the {@link #setLoadKeyColumn(String) key column}. Rows are stored either as the parsed
+ * 		{@link #setLoadJsonColumn(String) JSON column}, or as a map of column label to value.
+ * </ul>
+ * Once loaded the store is persisted, so subsequent restarts do not repeat the load. An interrupted load is restarted from
+ * scratch.
+ * <p>
+ * Incremental updates are ingested from {@link #setUpdatesPath(String) updatesPath} every {@link #setUpdateInterval(long) updateInterval}
+ * milliseconds. Each update file (using the same formats as the initial load) is applied in name order in a single transaction and is then
+ * renamed with a <code>.done</code> suffix (or <code>.failed</code> if it could not be applied). Records selected as deleted by
+ * {@link #setDeletedSelector(String) deletedSelector} are removed from the store.
+ * <p>
+ * Only completed update files are ingested - files are picked up once they have one of the reference data extensions
+ * (<code>.json</code>, <code>.ndjson</code>, <code>.jsonl</code> or <code>.csv</code>). Producers should write each update
+ * file under another name (e.g. <code>0001.ndjson.tmp</code>) in the same directory and then atomically rename it, so
+ * partially written files are never ingested.
+ * <p>
+ * Values are stored as serialised JSON and decoded on each hit. Recently used B-tree nodes and values are held in an instance
+ * cache of {@link #setCacheSize(int) cacheSize} objects - the remainder of the store is read from disk on demand.
+ * <p>
+ * The following metrics are recorded in the {@link MetricsRegistry} (tagged by finder id):
+ * <ul>
+ * <li>{@link #ENTRIES_METRIC} - the number of entries in the store
+ * <li>{@link #LOOKUPS_METRIC} - the number of lookups which found an entry (hit) or not (miss)
+ * <li>{@link #UPDATED_RECORDS_METRIC} - the number of records updated or deleted by update files
+ * <li>{@link #UPDATE_FILES_METRIC} - the number of update files which were ingested or failed
+ * </ul>
+ */
+public class KeyValueStoreDocumentPropertiesFinder implements DocumentPropertiesFinder, Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(KeyValueStoreDocumentPropertiesFinder.class);
+	
+	/**
+	 * The number of entries in the store - tagged by finder
+	 */
+	public static final String ENTRIES_METRIC = "enricher_kv_store_entries";
+	
+	/**
+	 * Number of lookups performed (excluding lookups without a key) - tagged by finder and outcome
+	 */
+	public static final String LOOKUPS_METRIC = "enricher_kv_store_lookups_total";
+	
+	/**
+	 * Number of records changed by update files - tagged by finder and outcome
+	 */
+	public static final String UPDATED_RECORDS_METRIC = "enricher_kv_store_updated_records_total";
+	
+	/**
+	 * Number of update files processed - tagged by finder and outcome
+	 */
+	public static final String UPDATE_FILES_METRIC = "enricher_kv_store_update_files_total";
+	
+	private static final String ENTRIES_NAME = "entries";
+	private static final String LOADED_NAME = "loaded";
+	private static final String DONE_SUFFIX = ".done";
+	private static final String FAILED_SUFFIX = ".failed";
+	private static final String[] UPDATE_FILE_SUFFIXES = { ".json", ".ndjson", ".jsonl", ".csv" };
+	private static final int LOAD_COMMIT_INTERVAL = 10000;
+	
+	private final ResourceLoader resourceLoader;
+	private final Object lock = new Object();
+	
+	// Lookups hold the read lock while using the store, so it is not closed under them
+	private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+	private final Gauge entriesGauge;
+	private final Counter hitCount;
+	private final Counter missCount;
+	private final Counter updatedRecordCount;
+	private final Counter deletedRecordCount;
+	private final Counter updateFileCount;
+	private final Counter failedUpdateFileCount;
+	private volatile JsonCodec jsonCodec;
+	private String storePath;
+	private PropertySelector keySelector;
+	private int cacheSize = 32768;
+	private String loadPath;
+	private String recordKeySelector;
+	private DataSource dataSource;
+	private String loadSqlQuery;
+	private String loadKeyColumn;
+	private String loadJsonColumn;
+	private String updatesPath;
+	private long updateInterval = TimeUnit.MINUTES.toMillis(1);
+	private PropertySelector deletedSelector;
+	private volatile BTreeMap<String, byte[]> entries;
+	
+	// guarded by lock
+	private DB db;
+	private ScheduledExecutorService executorService;
+	
+	/**
+	 * Constructs a new key/value store finder
+	 * 
+	 * @param resourceLoader Loads the store, reference data and update files
+	 * @param metrics The registry to record metrics in
+	 * @param finderId Identifies the finder in metrics
+	 */
+	@Autowired
+	public KeyValueStoreDocumentPropertiesFinder(final ResourceLoader resourceLoader, final MetricsRegistry metrics,
+			final String finderId) {
+		this.resourceLoader = Preconditions.checkNotNull(resourceLoader);
+		this.jsonCodec = new JsonCodec();
+		
+		entriesGauge = metrics.gauge(ENTRIES_METRIC, "finder", finderId);
+		hitCount = metrics.counter(LOOKUPS_METRIC, "finder", finderId, "outcome", "hit");
+		missCount = metrics.counter(LOOKUPS_METRIC, "finder", finderId, "outcome", "miss");
+		updatedRecordCount = metrics.counter(UPDATED_RECORDS_METRIC, "finder", finderId, "outcome", "updated");
+		deletedRecordCount = metrics.counter(UPDATED_RECORDS_METRIC, "finder", finderId, "outcome", "deleted");
+		updateFileCount = metrics.counter(UPDATE_FILES_METRIC, "finder", finderId, "outcome", "ingested");
+		failedUpdateFileCount = metrics.counter(UPDATE_FILES_METRIC, "finder", finderId, "outcome", "failed");
+	}
+	
+	/**
+	 * Sets the (shared) codec used to encode and decode the stored JSON
+	 */
+	@Autowired(required = false)
+	public void setJsonCodec(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+	}
+	
+	/**
+	 * The store file (using spring URLs) - it is created if it does not exist
+	 */
+	public void setStorePath(final String storePath) {
+		this.storePath = Strings.emptyToNull(storePath);
+	}
+	
+	/**
+	 * Selects the store key from the incoming lookup keys
+	 */
+	public void setKeySelector(final String keySelector) {
+		this.keySelector = Strings.isNullOrEmpty(keySelector) ? null : PropertySelector.valueOf(keySelector);
+	}
+	
+	/**
+	 * The number of objects (B-tree nodes and values) held in the instance cache (default is 32768) - this is not
+	 * the number of records, since each cached node holds many keys. A value of zero disables the cache.
+	 */
+	public void setCacheSize(final int cacheSize) {
+		Preconditions.checkArgument(cacheSize >= 0, "cacheSize must not be negative");
+		this.cacheSize = cacheSize;
+	}
+	
+	/**
+	 * The reference data file (using spring URLs) used to perform the initial load
+	 */
+	public void setLoadPath(final String loadPath) {
+		this.loadPath = Strings.emptyToNull(loadPath);
+	}
+	
+	/**
+	 * Selects the key of each NDJSON record, or the key column of a CSV file (initial load and update files)
+	 */
+	public void setRecordKeySelector(final String recordKeySelector) {
+		this.recordKeySelector = Strings.emptyToNull(recordKeySelector);
+	}
+	
+	/**
+	 * The data source used to perform the initial load (if {@link #setLoadSqlQuery(String) loadSqlQuery} is specified)
+	 */
+	public void setDataSource(final DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+	
+	/**
+	 * The select query used to perform the initial load from the data source
+	 */
+	public void setLoadSqlQuery(final String loadSqlQuery) {
+		this.loadSqlQuery = Strings.emptyToNull(loadSqlQuery);
+	}
+	
+	/**
+	 * The name of the column containing the key of each row returned by the load query
+	 */
+	public void setLoadKeyColumn(final String loadKeyColumn) {
+		this.loadKeyColumn = Strings.emptyToNull(loadKeyColumn);
+	}
+	
+	/**
+	 * The optional name of the column containing the JSON properties of each row returned by the load query
+	 */
+	public void setLoadJsonColumn(final String loadJsonColumn) {
+		this.loadJsonColumn = Strings.emptyToNull(loadJsonColumn);
+	}
+	
+	/**
+	 * The directory (using spring URLs) to ingest update files from
+	 */
+	public void setUpdatesPath(final String updatesPath) {
+		this.updatesPath = Strings.emptyToNull(updatesPath);
+	}
+	
+	/**
+	 * The interval (in milliseconds) between checks for update files. A value of zero disables
+	 * background checks. The default is one minute.
+	 */
+	public void setUpdateInterval(final long updateInterval) {
+		Preconditions.checkArgument(updateInterval >= 0, "updateInterval must not be negative");
+		this.updateInterval = updateInterval;
+	}
+	
+	/**
+	 * Selects whether an update record is a deletion - the record is deleted if the selected value is <code>true</code>
+	 */
+	public void setDeletedSelector(final String deletedSelector) {
+		this.deletedSelector = Strings.isNullOrEmpty(deletedSelector) ? null : PropertySelector.valueOf(deletedSelector);
+	}
+	
+	/**
+	 * Opens the store, performs the initial load (if required) and starts checking for update files
+	 * 
+	 * @throws Exception If the store could not be opened or loaded
+	 */
+	public void start() throws Exception {
+		synchronized (lock) {
+			if (db != null) {
+				return;
+			}
+			
+			Preconditions.checkState(storePath != null, "storePath has not been specified");
+			final File file = resourceLoader.getResource(storePath).getFile();
+			final DBMaker<?> maker = DBMaker.newFileDB(file).closeOnJvmShutdown();
+			if (cacheSize > 0) {
+				maker.cacheSize(cacheSize);
+			} else {
+				maker.cacheDisable();
+			}
+			db = maker.make();
+			
+			try {
+				// The counter keeps sizeLong() constant time - otherwise it walks the whole B-tree
+				final BTreeMap<String, byte[]> map = db.createTreeMap(ENTRIES_NAME)
+						.keySerializer(BTreeKeySerializer.STRING)
+						.valueSerializer(Serializer.BYTE_ARRAY)
+						.counterEnable()
+						.makeOrGet();
+				
+				final Atomic.Boolean loaded = db.getAtomicBoolean(LOADED_NAME);
+				if (!loaded.get()) {
+					load(map);
+					loaded.set(true);
+					db.commit();
+				}
+				entries = map;
+				final long size = map.sizeLong();
+				entriesGauge.set(size);
+				LOGGER.info("Opened key/value store {} containing {} entries", storePath, size);
+				
+				ingestUpdates();
+			} catch (Exception e) {
+				closeStore();
+				throw e;
+			}
+			
+			if (updatesPath != null && updateInterval > 0) {
+				executorService = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+						.setNameFormat("kv-store-updates-%d")
+						.setDaemon(true)
+						.build());
+				executorService.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							ingestUpdates();
+						} catch (Exception e) {
+							LOGGER.warn("Unable to ingest updates from {}", updatesPath, e);
+						}
+					}
+				}, updateInterval, updateInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Stops checking for update files and closes the store
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			if (executorService != null) {
+				executorService.shutdownNow();
+				executorService = null;
+			}
+			
+			closeStore();
+		}
+	}
+	
+	/**
+	 * Closes the store once any in-flight lookups have completed
+	 */
+	// guarded by lock
+	private void closeStore() {
+		storeLock.writeLock().lock();
+		try {
+			entries = null;
+			entriesGauge.set(0);
+			if (db != null) {
+				db.close();
+				db = null;
+			}
+		} finally {
+			storeLock.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final Object key = keySelector == null ? null : keySelector.selectValue(lookupKeys);
+		if (key == null) {
+			Preconditions.checkState(entries != null, "The key/value store has not been started");
+			return Collections.emptyMap();
+		}
+		
+		final byte[] value;
+		storeLock.readLock().lock();
+		try {
+			final BTreeMap<String, byte[]> map = entries;
+			Preconditions.checkState(map != null, "The key/value store has not been started");
+			
+			value = map.get(key.toString());
+		} finally {
+			storeLock.readLock().unlock();
+		}
+		
+		if (value == null) {
+			missCount.increment();
+			return Collections.emptyMap();
+		}
+		
+		hitCount.increment();
+		return jsonCodec.readMap(value);
+	}
+	
+	/**
+	 * Ingests any pending update files
+	 * 
+	 * @return The number of update files ingested
+	 * @throws IOException If the updates directory could not be listed
+	 */
+	public int ingestUpdates() throws IOException {
+		if (updatesPath == null) {
+			return 0;
+		}
+		
+		synchronized (lock) {
+			Preconditions.checkState(db != null, "The key/value store has not been started");
+			
+			final File[] files = resourceLoader.getResource(updatesPath).getFile().listFiles();
+			if (files == null) {
+				throw new IOException("Unable to list updates directory: " + updatesPath);
+			}
+			
+			Arrays.sort(files);
+			int count = 0;
+			for (final File file: files) {
+				if (!file.isFile() || !isCompletedUpdateFile(file.getName())) {
+					continue;
+				}
+				
+				if (ingestUpdate(file)) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+	
+	// guarded by lock
+	private boolean ingestUpdate(final File file) throws IOException {
+		final BTreeMap<String, byte[]> map = entries;
+		final long[] counts = new long[2];
+		try {
+			newReader().read(file, new ReferenceDataReader.RecordHandler() {
+				@Override
+				public void handleRecord(final String key, final Map<String, Object> record) throws IOException {
+					if (deletedSelector != null && "true".equals(String.valueOf(deletedSelector.selectValue(record)))) {
+						map.remove(key);
+						counts[1]++;
+					} else {
+						map.put(key, encode(record));
+						counts[0]++;
+					}
+				}
+			});
+			db.commit();
+		} catch (Exception e) {
+			db.rollback();
+			failedUpdateFileCount.increment();
+			LOGGER.warn("Unable to ingest update file {} - the file will be ignored", file, e);
+			rename(file, FAILED_SUFFIX);
+			return false;
+		}
+		
+		updatedRecordCount.increment(counts[0]);
+		deletedRecordCount.increment(counts[1]);
+		updateFileCount.increment();
+		entriesGauge.set(map.sizeLong());
+		LOGGER.info("Ingested update file {} - {} records updated, {} records deleted", file, counts[0], counts[1]);
+		rename(file, DONE_SUFFIX);
+		return true;
+	}
+	
+	/**
+	 * Update files in progress (e.g. <code>0001.ndjson.tmp</code>), hidden files and files which have already
+	 * been ingested (<code>.done</code> / <code>.failed</code>) do not have a reference data extension
+	 */
+	private static boolean isCompletedUpdateFile(final String name) {
+		if (name.startsWith(".")) {
+			return false;
+		}
+		
+		final String lowerCaseName = name.toLowerCase();
+		for (final String suffix: UPDATE_FILE_SUFFIXES) {
+			if (lowerCaseName.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void rename(final File file, final String suffix) throws IOException {
+		final File target = new File(file.getPath() + suffix);
+		if (!file.renameTo(target)) {
+			throw new IOException("Unable to rename update file " + file + " to " + target);
+		}
+	}
+	
+	// guarded by lock
+	private void load(final BTreeMap<String, byte[]> map) throws Exception {
+		map.clear(); // discard any partial load
+		
+		final long[] count = new long[1];
+		if (loadPath != null) {
+			newReader().read(resourceLoader.getResource(loadPath).getFile(), new ReferenceDataReader.RecordHandler() {
+				@Override
+				public void handleRecord(final String key, final Map<String, Object> record) throws IOException {
+					map.put(key, encode(record));
+					commitPeriodically(++count[0]);
+				}
+			});
+		} else if (dataSource != null && loadSqlQuery != null) {
+			loadFromDataSource(map, count);
+		} else {
+			LOGGER.info("No initial load has been configured for key/value store {}", storePath);
+			return;
+		}
+		
+		LOGGER.info("Loaded {} entries into key/value store {}", count[0], storePath);
+	}
+	
+	// guarded by lock
+	private void loadFromDataSource(final BTreeMap<String, byte[]> map, final long[] count) throws SQLException, IOException {
+		Preconditions.checkState(loadKeyColumn != null, "loadKeyColumn is required to load from a data source");
+		
+		final Connection connection = dataSource.getConnection();
+		try {
+			final Statement statement = connection.createStatement();
+			try {
+				statement.setFetchSize(1000);
+				final ResultSet resultSet = statement.executeQuery(loadSqlQuery);
+				try {
+					final ResultSetMetaData metaData = resultSet.getMetaData();
+					while (resultSet.next()) {
+						final Object key = resultSet.getObject(loadKeyColumn);
+						if (key == null) {
+							continue;
+						}
+						
+						final byte[] value;
+						if (loadJsonColumn == null) {
+							final Map<String, Object> record = Maps.newLinkedHashMap();
+							for (int index = 1; index <= metaData.getColumnCount(); index++) {
+								record.put(metaData.getColumnLabel(index), resultSet.getObject(index));
+							}
+							value = encode(record);
+						} else {
+							final String json = resultSet.getString(loadJsonColumn);
+							if (json == null) {
+								continue;
+							}
+							value = encode(jsonCodec.readMap(json));
+						}
+						
+						map.put(key.toString(), value);
+						commitPeriodically(++count[0]);
+					}
+				} finally {
+					resultSet.close();
+				}
+			} finally {
+				statement.close();
+			}
+		} finally {
+			connection.close();
+		}
+	}
+	
+	/**
+	 * Large loads are committed in chunks to bound the size of the write-ahead log
+	 */
+	private void commitPeriodically(final long count) {
+		if (count % LOAD_COMMIT_INTERVAL == 0) {
+			db.commit();
+		}
+	}
+	
+	private ReferenceDataReader newReader() {
+		final ReferenceDataReader reader = new ReferenceDataReader(jsonCodec);
+		reader.setRecordKeySelector(recordKeySelector);
+		return reader;
+	}
+	
+	private byte[] encode(final Map<String, Object> record) throws IOException {
+		return jsonCodec.getWriter().writeValueAsBytes(record);
+	}
+	
+	/**
+	 * The number of entries in the store
+	 */
+	public long getSize() {
+		final BTreeMap<String, byte[]> map = entries;
+		return map == null ? 0 : map.sizeLong();
+	}
+	
+	/**
+	 * The number of lookups performed (excluding lookups without a key)
+	 */
+	public long getLookupCount() {
+		return hitCount.getCount() + missCount.getCount();
+	}
+	
+	/**
+	 * The number of lookups which found an entry
+	 */
+	public long getHitCount() {
+		return hitCount.getCount();
+	}
+	
+	/**
+	 * The number of records added or replaced by update files
+	 */
+	public long getUpdatedRecordCount() {
+		return updatedRecordCount.getCount();
+	}
+	
+	/**
+	 * The number of records deleted by update files
+	 */
+	public long getDeletedRecordCount() {
+		return deletedRecordCount.getCount();
+	}
+	
+	/**
+	 * The number of update files ingested
+	 */
+	public long getUpdateFileCount() {
+		return updateFileCount.getCount();
+	}
+	
+	/**
+	 * The number of update files which could not be ingested
+	 */
+	public long getFailedUpdateFileCount() {
+		return failedUpdateFileCount.getCount();
+	}
+}
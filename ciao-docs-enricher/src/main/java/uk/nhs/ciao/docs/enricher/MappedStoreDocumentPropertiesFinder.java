@@ -0,0 +1,233 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ResourceLoader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.nhs.ciao.docs.enricher.store.MappedPropertiesStore;
+import uk.nhs.ciao.docs.enricher.store.MappedPropertiesStoreBuilder;
+import uk.nhs.ciao.docs.parser.PropertySelector;
+
+/**
+ * {@link DocumentPropertiesFinder} backed by a memory-mapped {@link MappedPropertiesStore} file.
+ * <p>
+ * The store is built offline (see {@link MappedPropertiesStoreBuilder}) and mapped into memory when the finder
+ * is {@link #start() started} - startup time does not depend on the size of the dataset, and the keys and values
+ * are held off-heap (in the OS page cache) rather than on the JVM heap. Lookups use
+ * {@link #setKeySelector(String) keySelector} to select the key from the incoming lookup keys, and
+ * the stored JSON is only decoded when the key is found.
+ * <p>
+ * The store file must be on the filesystem (it cannot be loaded from the classpath of a packaged jar).
+ * <p>
+ * Once {@link #start() started}, the store file is checked for changes every {@link #setCheckInterval(long) checkInterval}
+ * milliseconds. A replaced file (e.g. renamed over the old file by {@link MappedPropertiesStoreBuilder}) is mapped
+ * and swapped in atomically - lookups continue to use the old mapping until then. Changes are detected using the
+ * last-modified time and length of the file.
+ * <p>
+ * Once {@link #close() closed} the finder cannot be restarted - further lookups fail with an {@link IllegalStateException}.
+ */
+public class MappedStoreDocumentPropertiesFinder implements DocumentPropertiesFinder, Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedStoreDocumentPropertiesFinder.class);
+	
+	private final ResourceLoader resourceLoader;
+	private final Object lock = new Object();
+	private volatile JsonCodec jsonCodec;
+	private String storePath;
+	private PropertySelector keySelector;
+	private long checkInterval = TimeUnit.MINUTES.toMillis(1);
+	private volatile MappedPropertiesStore store;
+	private volatile boolean closed;
+	
+	// guarded by lock
+	private String storeSignature;
+	private ScheduledExecutorService executorService;
+	
+	@Autowired
+	public MappedStoreDocumentPropertiesFinder(final ResourceLoader resourceLoader) {
+		this.resourceLoader = Preconditions.checkNotNull(resourceLoader);
+		this.jsonCodec = new JsonCodec();
+	}
+	
+	/**
+	 * Sets the (shared) codec used to decode the stored JSON
+	 */
+	@Autowired(required = false)
+	public void setJsonCodec(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+	}
+	
+	/**
+	 * The store file (using spring URLs)
+	 */
+	public void setStorePath(final String storePath) {
+		this.storePath = Strings.emptyToNull(storePath);
+	}
+	
+	/**
+	 * Selects the store key from the incoming lookup keys
+	 */
+	public void setKeySelector(final String keySelector) {
+		this.keySelector = Strings.isNullOrEmpty(keySelector) ? null : PropertySelector.valueOf(keySelector);
+	}
+	
+	/**
+	 * The interval (in milliseconds) between checks to see if the store file has been replaced. A value of
+	 * zero disables background checks. The default is one minute.
+	 */
+	public void setCheckInterval(final long checkInterval) {
+		Preconditions.checkArgument(checkInterval >= 0, "checkInterval must not be negative");
+		this.checkInterval = checkInterval;
+	}
+	
+	/**
+	 * Maps the store file into memory and starts checking the file for changes
+	 * 
+	 * @throws IOException If the store could not be opened
+	 */
+	public void start() throws IOException {
+		getStore();
+		
+		synchronized (lock) {
+			if (executorService == null && checkInterval > 0 && !closed) {
+				executorService = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+						.setNameFormat("mapped-store-refresh-%d")
+						.setDaemon(true)
+						.build());
+				executorService.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refresh();
+						} catch (Exception e) {
+							LOGGER.warn("Unable to re-map store {} - continuing with the previous mapping", storePath, e);
+						}
+					}
+				}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Stops checking for changes and closes the store file - the finder cannot be used once closed
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			closed = true;
+			if (executorService != null) {
+				executorService.shutdownNow();
+				executorService = null;
+			}
+			
+			if (store != null) {
+				store.close();
+				store = null;
+			}
+		}
+	}
+	
+	/**
+	 * Re-maps the store file if it has changed since it was last mapped
+	 * <p>
+	 * The previous store is closed once replaced - lookups still reading it are unaffected, since the old
+	 * mapping is only released once it is garbage collected.
+	 * 
+	 * @return true if the store was re-mapped
+	 * @throws IOException If the store could not be opened (the current mapping is retained)
+	 * @throws IllegalStateException If the finder has been closed
+	 */
+	public boolean refresh() throws IOException {
+		synchronized (lock) {
+			checkNotClosed();
+			
+			final MappedPropertiesStore previous = store;
+			if (previous != null && storeSignature.equals(getSignature(getStoreFile()))) {
+				return false;
+			}
+			
+			openStore();
+			if (previous != null) {
+				previous.close();
+			}
+			return true;
+		}
+	}
+	
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		final Object key = keySelector == null ? null : keySelector.selectValue(lookupKeys);
+		if (key == null) {
+			return Collections.emptyMap();
+		}
+		
+		// Each hit is decoded into a new instance - no copy is required to isolate it from the document
+		final byte[] value = getStore().get(key.toString());
+		return value == null ? Collections.<String, Object>emptyMap() : jsonCodec.readMap(value);
+	}
+	
+	/**
+	 * The number of entries in the store
+	 */
+	public int getSize() throws IOException {
+		return getStore().size();
+	}
+	
+	private MappedPropertiesStore getStore() throws IOException {
+		MappedPropertiesStore current = store;
+		if (current == null) {
+			synchronized (lock) {
+				checkNotClosed();
+				current = store;
+				if (current == null) {
+					current = openStore();
+				}
+			}
+		}
+		return current;
+	}
+	
+	// guarded by lock
+	private MappedPropertiesStore openStore() throws IOException {
+		final File file = getStoreFile();
+		
+		// Read the signature first - a change made while mapping is then detected by the next check
+		final String signature = getSignature(file);
+		final MappedPropertiesStore current = new MappedPropertiesStore(file);
+		store = current;
+		storeSignature = signature;
+		LOGGER.info("Mapped {} entries from store {}", current.size(), storePath);
+		return current;
+	}
+	
+	private File getStoreFile() throws IOException {
+		Preconditions.checkState(storePath != null, "storePath has not been specified");
+		return resourceLoader.getResource(storePath).getFile();
+	}
+	
+	private void checkNotClosed() {
+		if (closed) {
+			throw new IllegalStateException("Properties finder has been closed");
+		}
+	}
+	
+	/**
+	 * A value which changes whenever the store file is replaced
+	 */
+	private static String getSignature(final File file) {
+		return file.lastModified() + ":" + file.length();
+	}
+}
@@ -0,0 +1,46 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.slf4j.MDC;
+
+/**
+ * Runs a task with the logging MDC of the thread which created it - so lookups performed on pool threads
+ * are logged with the correlation id of the document being enriched
+ */
+class MdcCallable<V> implements Callable<V> {
+	private final Callable<V> task;
+	private final Map<String, String> context;
+
+	public MdcCallable(final Callable<V> task) {
+		this(task, MDC.getCopyOfContextMap());
+	}
+
+	/**
+	 * Runs the task with the specified logging MDC (or an empty MDC if null)
+	 */
+	public MdcCallable(final Callable<V> task, final Map<String, String> context) {
+		this.task = task;
+		this.context = context;
+	}
+
+	@Override
+	public V call() throws Exception {
+		final Map<String, String> previousContext = MDC.getCopyOfContextMap();
+		setContext(context);
+		try {
+			return task.call();
+		} finally {
+			setContext(previousContext);
+		}
+	}
+
+	private static void setContext(final Map<String, String> context) {
+		if (context == null) {
+			MDC.clear();
+		} else {
+			MDC.setContextMap(context);
+		}
+	}
+}
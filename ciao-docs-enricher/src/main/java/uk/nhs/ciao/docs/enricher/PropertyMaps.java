@@ -0,0 +1,104 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Utility methods for working with dynamic document property maps
+ * <p>
+ * Property maps are the nested map / list / value structures produced by Jackson
+ * when unmarshalling JSON content.
+ */
+public final class PropertyMaps {
+	private PropertyMaps() {
+		// Suppress default constructor
+	}
+
+	/**
+	 * Creates a deep copy of the specified properties
+	 * <p>
+	 * Nested maps and lists are copied, other values are treated as immutable and
+	 * are shared with the original structure. This allows shared (e.g. cached) properties
+	 * to be merged into a document without the document changes leaking back into
+	 * the shared instance.
+	 *
+	 * @param properties The properties to copy
+	 * @return A deep copy of <code>properties</code> or null if properties is null
+	 */
+	public static Map<String, Object> deepCopy(final Map<String, Object> properties) {
+		if (properties == null) {
+			return null;
+		}
+
+		final Map<String, Object> copy = Maps.newLinkedHashMap();
+		for (final Entry<String, Object> entry: properties.entrySet()) {
+			copy.put(entry.getKey(), deepCopyValue(entry.getValue()));
+		}
+		return copy;
+	}
+
+	/**
+	 * Creates a normalised deep copy of the specified properties, suitable for use as a key
+	 * <p>
+	 * Nested maps are copied into maps sorted by key and nested lists are copied - the
+	 * resulting structure is independent of both the original map implementation and any
+	 * subsequent changes to the original properties.
+	 *
+	 * @param properties The properties to normalise
+	 * @return A normalised deep copy of <code>properties</code> or null if properties is null
+	 */
+	public static SortedMap<String, Object> normalise(final Map<String, Object> properties) {
+		if (properties == null) {
+			return null;
+		}
+
+		final SortedMap<String, Object> copy = Maps.newTreeMap();
+		for (final Entry<String, Object> entry: properties.entrySet()) {
+			copy.put(entry.getKey(), normaliseValue(entry.getValue()));
+		}
+		return copy;
+	}
+
+	private static List<Object> normalise(final List<?> values) {
+		final List<Object> copy = Lists.newArrayListWithCapacity(values.size());
+		for (final Object value: values) {
+			copy.add(normaliseValue(value));
+		}
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object normaliseValue(final Object value) {
+		if (value instanceof Map) {
+			return normalise((Map<String, Object>)value);
+		} else if (value instanceof List) {
+			return normalise((List<?>)value);
+		}
+
+		return value;
+	}
+
+	private static List<Object> deepCopy(final List<?> values) {
+		final List<Object> copy = Lists.newArrayListWithCapacity(values.size());
+		for (final Object value: values) {
+			copy.add(deepCopyValue(value));
+		}
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object deepCopyValue(final Object value) {
+		if (value instanceof Map) {
+			return deepCopy((Map<String, Object>)value);
+		} else if (value instanceof List) {
+			return deepCopy((List<?>)value);
+		}
+
+		return value;
+	}
+}
@@ -0,0 +1,173 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.converter.stream.CachedOutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.SettableFuture;
+
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Enriches a JSON-encoded {@link ParsedDocument} without unmarshalling / marshalling the whole document.
+ * <p>
+ * The incoming JSON is read token by token using the Jackson streaming API. Only the <code>properties</code>
+ * object is materialised (and passed to the enricher) - all other fields (e.g. the potentially large
+ * encoded content of the original document) are copied directly to the output stream without being
+ * decoded.
+ * <p>
+ * The enricher is given a placeholder original document, so streaming is only suitable for enrichers
+ * which select from and add to the document properties (e.g. {@link DynamicDocumentEnricher},
+ * {@link JsonResourceDocumentEnricher}). Asynchronous enrichers are supported, however the calling
+ * thread waits for enrichment to complete.
+ * <p>
+ * The enriched JSON is written to a {@link CachedOutputStream} (spooled to disk for large documents
+ * if configured by the Camel stream caching strategy).
+ */
+public class StreamingDocumentEnricherProcessor implements Processor {
+	private static final String PROPERTIES_FIELD = "properties";
+	
+	private final Object enricher;
+	private final JsonCodec jsonCodec;
+	
+	/**
+	 * Constructs a new streaming processor for the specified enricher
+	 * 
+	 * @param enricher A {@link DocumentEnricher} or {@link AsyncDocumentEnricher}
+	 */
+	public StreamingDocumentEnricherProcessor(final Object enricher) {
+		this(enricher, new JsonCodec());
+	}
+	
+	/**
+	 * Constructs a new streaming processor for the specified enricher using the specified
+	 * (shared) JSON codec
+	 * 
+	 * @param enricher A {@link DocumentEnricher} or {@link AsyncDocumentEnricher}
+	 */
+	public StreamingDocumentEnricherProcessor(final Object enricher, final JsonCodec jsonCodec) {
+		Preconditions.checkArgument(enricher instanceof DocumentEnricher || enricher instanceof AsyncDocumentEnricher,
+				"invalid enricher type: %s", enricher);
+		this.enricher = enricher;
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+	}
+	
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		final InputStream in = exchange.getIn().getMandatoryBody(InputStream.class);
+		final CachedOutputStream out = new CachedOutputStream(exchange);
+		try {
+			enrichDocument(in, out);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+		
+		exchange.getIn().setBody(out.newStreamCache());
+	}
+	
+	/**
+	 * Reads the JSON-encoded document from <code>in</code> and writes the enriched document to <code>out</code>
+	 * <p>
+	 * Neither stream is closed by this method
+	 */
+	void enrichDocument(final InputStream in, final OutputStream out) throws Exception {
+		final JsonFactory jsonFactory = jsonCodec.getObjectMapper().getFactory();
+		final JsonParser parser = jsonFactory.createParser(in);
+		parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+		final JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected a JSON-encoded document object", parser.getCurrentLocation());
+			}
+			
+			generator.writeStartObject();
+			boolean foundProperties = false;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String fieldName = parser.getCurrentName();
+				parser.nextToken();
+				
+				generator.writeFieldName(fieldName);
+				if (PROPERTIES_FIELD.equals(fieldName)) {
+					writeEnrichedProperties(readProperties(parser), generator);
+					foundProperties = true;
+				} else {
+					generator.copyCurrentStructure(parser);
+				}
+			}
+			
+			if (!foundProperties) {
+				generator.writeFieldName(PROPERTIES_FIELD);
+				writeEnrichedProperties(Maps.<String, Object>newLinkedHashMap(), generator);
+			}
+			
+			generator.writeEndObject();
+			generator.flush();
+		} finally {
+			generator.close();
+			parser.close();
+		}
+	}
+	
+	private Map<String, Object> readProperties(final JsonParser parser) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+			return Maps.newLinkedHashMap();
+		}
+		
+		return jsonCodec.readMap(parser);
+	}
+	
+	private void writeEnrichedProperties(final Map<String, Object> properties, final JsonGenerator generator) throws Exception {
+		final ParsedDocument document = new ParsedDocument(new Document("streamed-document", new byte[0]), properties);
+		final ParsedDocument enrichedDocument = enrich(document);
+		jsonCodec.getWriter().writeValue(generator, enrichedDocument == null ? properties : enrichedDocument.getProperties());
+	}
+	
+	private ParsedDocument enrich(final ParsedDocument document) throws Exception {
+		if (enricher instanceof DocumentEnricher) {
+			return ((DocumentEnricher)enricher).enrichDocument(document);
+		}
+		
+		final SettableFuture<ParsedDocument> result = SettableFuture.create();
+		((AsyncDocumentEnricher)enricher).enrichDocument(document, new AsyncDocumentEnricherCallback() {
+			@Override
+			public void onDocumentWasEnriched(final ParsedDocument enrichedDocument) {
+				result.set(enrichedDocument);
+			}
+			
+			@Override
+			public void onDocumentEnrichmentFailed(final Throwable cause) {
+				result.setException(cause);
+			}
+		});
+		
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			} else if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw e;
+		}
+	}
+}
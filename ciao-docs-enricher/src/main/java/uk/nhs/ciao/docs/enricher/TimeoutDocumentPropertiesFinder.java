@@ -0,0 +1,548 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import uk.nhs.ciao.docs.enricher.metrics.Counter;
+import uk.nhs.ciao.docs.enricher.metrics.Distribution;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * {@link DocumentPropertiesFinder} which bounds the time spent waiting for the delegate finder, and optionally
+ * hedges slow lookups.
+ * <p>
+ * Lookups are performed on a dedicated bounded pool of {@link #setThreads(int) threads}. If a lookup does not
+ * complete within {@link #setTimeout(long) timeout} milliseconds it fails with a {@link TimeoutException} - so a
+ * hung query cannot pin the calling consumer thread. The abandoned lookup is not interrupted: interrupting a thread
+ * inside a JDBC driver can leave its connection unusable, and drivers do not generally respond to interrupts. The
+ * query itself is bounded by the delegate instead (e.g. {@link DataSourceDocumentPropertiesFinder#setQueryTimeout(int)},
+ * which the driver enforces via <code>Statement.cancel()</code>) - {@link #start()} checks that the timeout is at
+ * least the configured {@link #setQueryTimeout(int) queryTimeout}.
+ * <p>
+ * If {@link #setHedgePercentile(double) hedgePercentile} is set, a single lookup which has not completed
+ * within that percentile of the observed lookup latency (e.g. p95) is sent again (hedged) - the first result
+ * to arrive is returned and the other lookup is cancelled. Hedging is only suitable for idempotent lookups, and
+ * is not applied to batch lookups or until enough lookups have been observed.
+ * <p>
+ * The hedge delay is taken from a sliding window (the last minute) of the latency of every attempt - including
+ * hedges and the attempts they beat - so it follows the current latency of the backend. The number of hedges is
+ * limited to {@link #setHedgeBudget(double) hedgeBudget} percent of lookups.
+ * <p>
+ * If a {@link #setConcurrencyLimiter(AdaptiveConcurrencyLimiter) concurrencyLimiter} is configured, each attempt
+ * holds its own permit until the attempt itself has finished - an abandoned lookup keeps its permit while its
+ * query is still running, so the limiter reflects the real load on the backend. The calling thread waits for the
+ * permit of the first attempt (applying back-pressure) - the wait counts towards the timeout, and a lookup which
+ * cannot obtain a permit in time fails with a {@link TimeoutException}. A hedge is only sent if a permit is
+ * immediately available - so hedging cannot add more load to a backend which is already struggling.
+ * <p>
+ * The following metrics are recorded in the {@link MetricsRegistry} (tagged by finder id):
+ * <ul>
+ * <li>{@link #TIMEOUTS_METRIC} - the number of lookups which timed out
+ * <li>{@link #HEDGED_METRIC} - the number of hedged lookups sent, and how many of them won
+ * </ul>
+ * The logging MDC of the calling thread is propagated to the pool threads. The pool should be shut down via
+ * {@link #close()} when the finder is no longer required - lookups made after the finder has been closed fail with
+ * a {@link RejectedExecutionException}.
+ */
+public class TimeoutDocumentPropertiesFinder implements BatchDocumentPropertiesFinder, Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TimeoutDocumentPropertiesFinder.class);
+
+	/**
+	 * Number of lookups which timed out - tagged by finder
+	 */
+	public static final String TIMEOUTS_METRIC = "enricher_finder_timeouts_total";
+
+	/**
+	 * Number of hedged lookups - tagged by finder and outcome (sent, won, or throttled by the budget or limiter)
+	 */
+	public static final String HEDGED_METRIC = "enricher_finder_hedged_total";
+
+	/**
+	 * The number of lookups to observe before hedging
+	 */
+	private static final int MIN_HEDGE_SAMPLES = 100;
+
+	/**
+	 * How often the hedge delay is recalculated from the observed latency
+	 */
+	private static final long HEDGE_DELAY_UPDATE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * The maximum number of unused hedges which can accumulate while lookups are fast
+	 */
+	private static final double MAX_HEDGE_TOKENS = 10;
+
+	private final DocumentPropertiesFinder finder;
+	private final String finderId;
+	private final Counter timeoutCount;
+	private final Counter hedgesSentCount;
+	private final Counter hedgesWonCount;
+	private final Counter hedgesThrottledCount;
+	private final Distribution attemptLatency = new Distribution();
+	private final Object lock = new Object();
+	private long timeout;
+	private double hedgePercentile;
+	private double hedgeBudget = 5;
+	private int queryTimeout;
+	private AdaptiveConcurrencyLimiter concurrencyLimiter;
+	private int threads = 20;
+	private int queueSize = 1000;
+	private volatile long hedgeDelayNanos = -1;
+	private volatile long nextHedgeDelayUpdateNanos = System.nanoTime();
+
+	// guarded by lock
+	private boolean closed;
+	private ExecutorService executorService;
+	private double hedgeTokens;
+
+	/**
+	 * Constructs a new timeout finder backed by the specified delegate
+	 *
+	 * @param finder The finder to call
+	 * @param metrics The registry to record metrics in
+	 * @param finderId Identifies the finder in metrics
+	 */
+	public TimeoutDocumentPropertiesFinder(final DocumentPropertiesFinder finder, final MetricsRegistry metrics,
+			final String finderId) {
+		this.finder = Preconditions.checkNotNull(finder);
+		this.finderId = Preconditions.checkNotNull(finderId);
+
+		timeoutCount = metrics.counter(TIMEOUTS_METRIC, "finder", finderId);
+		hedgesSentCount = metrics.counter(HEDGED_METRIC, "finder", finderId, "outcome", "sent");
+		hedgesWonCount = metrics.counter(HEDGED_METRIC, "finder", finderId, "outcome", "won");
+		hedgesThrottledCount = metrics.counter(HEDGED_METRIC, "finder", finderId, "outcome", "throttled");
+	}
+
+	/**
+	 * The maximum time (in milliseconds) to wait for a lookup. A value of zero (the default) waits indefinitely.
+	 */
+	public void setTimeout(final long timeout) {
+		Preconditions.checkArgument(timeout >= 0, "timeout must not be negative");
+		this.timeout = timeout;
+	}
+
+	/**
+	 * The query timeout (in seconds) enforced by the delegate finder, e.g. by the JDBC driver. A value of zero
+	 * (the default) means queries are not bounded.
+	 */
+	public void setQueryTimeout(final int queryTimeout) {
+		Preconditions.checkArgument(queryTimeout >= 0, "queryTimeout must not be negative");
+		this.queryTimeout = queryTimeout;
+	}
+
+	/**
+	 * Checks that abandoned lookups are bounded by the query timeout - the timeout must not be shorter than the
+	 * query timeout, otherwise lookups would be abandoned while the driver is still allowed to run their queries
+	 *
+	 * @throws IllegalStateException If the timeout is shorter than the query timeout
+	 */
+	public void start() {
+		if (timeout <= 0) {
+			return;
+		}
+
+		if (queryTimeout <= 0) {
+			LOGGER.warn("Lookups by {} time out after {} ms but queries have no timeout - abandoned queries can "
+					+ "hold lookup threads and connections indefinitely", finderId, timeout);
+		} else {
+			Preconditions.checkState(timeout >= TimeUnit.SECONDS.toMillis(queryTimeout),
+					"timeout (%s ms) must not be shorter than queryTimeout (%s s)", timeout, queryTimeout);
+		}
+	}
+
+	/**
+	 * The percentile of the observed lookup latency (e.g. 95) after which a single lookup is hedged. A value of
+	 * zero (the default) disables hedging.
+	 */
+	public void setHedgePercentile(final double hedgePercentile) {
+		Preconditions.checkArgument(hedgePercentile >= 0 && hedgePercentile < 100,
+				"hedgePercentile must be between 0 and 100");
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * The maximum percentage of lookups which may be hedged (default is 5)
+	 */
+	public void setHedgeBudget(final double hedgeBudget) {
+		Preconditions.checkArgument(hedgeBudget > 0 && hedgeBudget <= 100, "hedgeBudget must be between 0 and 100");
+		this.hedgeBudget = hedgeBudget;
+	}
+
+	/**
+	 * The limiter which each attempt (including hedged lookups) must take a permit from - hedges are not sent while
+	 * no permit is immediately available. The lookups should not also be limited above this finder.
+	 */
+	public void setConcurrencyLimiter(final AdaptiveConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
+	}
+
+	/**
+	 * The number of threads used to perform lookups (default is 20)
+	 */
+	public void setThreads(final int threads) {
+		Preconditions.checkArgument(threads > 0, "threads must be positive");
+		this.threads = threads;
+	}
+
+	/**
+	 * The maximum number of lookups waiting for a free thread (default is 1000)
+	 */
+	public void setQueueSize(final int queueSize) {
+		Preconditions.checkArgument(queueSize > 0, "queueSize must be positive");
+		this.queueSize = queueSize;
+	}
+
+	private boolean isEnabled() {
+		return timeout > 0 || hedgePercentile > 0;
+	}
+
+	@Override
+	public Map<String, Object> findProperties(final Map<String, Object> lookupKeys) throws Exception {
+		checkNotClosed();
+		final Callable<Map<String, Object>> lookup = new Callable<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> call() throws Exception {
+				return finder.findProperties(lookupKeys);
+			}
+		};
+
+		if (!isEnabled()) {
+			return callDirectly(lookup);
+		}
+		return call(new MdcCallable<Map<String, Object>>(lookup), true, lookupKeys);
+	}
+
+	@Override
+	public List<Map<String, Object>> findAllProperties(final List<Map<String, Object>> lookupKeys) throws Exception {
+		checkNotClosed();
+		final Callable<List<Map<String, Object>>> lookup = new Callable<List<Map<String, Object>>>() {
+			@Override
+			public List<Map<String, Object>> call() throws Exception {
+				return DocumentPropertiesFinders.findAllProperties(finder, lookupKeys);
+			}
+		};
+
+		if (!isEnabled()) {
+			return callDirectly(lookup);
+		}
+		return call(new MdcCallable<List<Map<String, Object>>>(lookup), false, lookupKeys);
+	}
+
+	/**
+	 * Performs the lookup on the calling thread - holding a permit of the concurrency limiter (if configured)
+	 */
+	private <T> T callDirectly(final Callable<T> lookup) throws Exception {
+		if (concurrencyLimiter == null) {
+			return lookup.call();
+		}
+
+		final long startNanos = concurrencyLimiter.acquire();
+		boolean failed = true;
+		try {
+			final T result = lookup.call();
+			failed = false;
+			return result;
+		} finally {
+			concurrencyLimiter.release(startNanos, failed);
+		}
+	}
+
+	/**
+	 * Performs the lookup on the pool - waiting until the first attempt succeeds, all attempts have failed,
+	 * or the timeout has elapsed. Attempts which have not started are cancelled, and attempts still running
+	 * are abandoned (without interrupting them) - they release their permits once they finish.
+	 */
+	private <T> T call(final Callable<T> lookup, final boolean hedgeable, final Object lookupKeys) throws Exception {
+		final long startNanos = System.nanoTime();
+		final long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeout);
+		final Callable<T> attempt = hedgeable ? new TimedAttempt<T>(lookup) : lookup;
+		final List<LimitedAttempt<T>> limitedAttempts = Lists.newArrayListWithCapacity(2);
+		limitedAttempts.add(new LimitedAttempt<T>(attempt, acquirePermit(deadlineNanos, lookupKeys)));
+
+		final List<Future<T>> attempts = Lists.newArrayListWithCapacity(2);
+		try {
+			final ExecutorCompletionService<T> completionService = new ExecutorCompletionService<T>(getExecutorService());
+			attempts.add(completionService.submit(limitedAttempts.get(0)));
+
+			Future<T> completed = null;
+			final long delayNanos = hedgeable ? getHedgeDelayNanos() : -1;
+			if (delayNanos >= 0 && (timeout <= 0 || startNanos + delayNanos < deadlineNanos)) {
+				completed = completionService.poll(delayNanos, TimeUnit.NANOSECONDS);
+				if (completed == null) {
+					submitHedge(completionService, attempt, attempts, limitedAttempts);
+				}
+			}
+
+			int pending = attempts.size();
+			while (true) {
+				if (completed == null) {
+					completed = awaitNext(completionService, deadlineNanos, lookupKeys);
+				}
+				pending--;
+
+				try {
+					final T result = completed.get();
+					if (completed != attempts.get(0)) {
+						hedgesWonCount.increment();
+					}
+					return result;
+				} catch (ExecutionException e) {
+					if (pending == 0) {
+						throw unwrap(e);
+					}
+				}
+				completed = null;
+			}
+		} finally {
+			for (final Future<T> future: attempts) {
+				future.cancel(false);
+			}
+			for (final LimitedAttempt<T> limitedAttempt: limitedAttempts) {
+				limitedAttempt.abandon();
+			}
+		}
+	}
+
+	/**
+	 * Acquires the permit of the first attempt of a lookup - waiting if the limit has been reached, but not
+	 * beyond the deadline of the lookup
+	 *
+	 * @return true if a permit was acquired, or false if no concurrency limiter is configured
+	 * @throws TimeoutException If no permit was available before the deadline
+	 */
+	private boolean acquirePermit(final long deadlineNanos, final Object lookupKeys)
+			throws InterruptedException, TimeoutException {
+		if (concurrencyLimiter == null) {
+			return false;
+		} else if (timeout <= 0) {
+			concurrencyLimiter.acquire();
+			return true;
+		}
+
+		if (!concurrencyLimiter.tryAcquire(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+			timeoutCount.increment();
+			throw new TimeoutException("Lookup by " + finderId + " did not obtain a concurrency permit within "
+					+ timeout + " ms: " + lookupKeys);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends a hedged lookup - if the budget allows, and a permit is available from the concurrency limiter
+	 */
+	private <T> void submitHedge(final ExecutorCompletionService<T> completionService, final Callable<T> attempt,
+			final List<Future<T>> attempts, final List<LimitedAttempt<T>> limitedAttempts) {
+		if (!takeHedgeToken()) {
+			hedgesThrottledCount.increment();
+			return;
+		} else if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+			returnHedgeToken();
+			hedgesThrottledCount.increment();
+			return;
+		}
+
+		final LimitedAttempt<T> hedge = new LimitedAttempt<T>(attempt, concurrencyLimiter != null);
+		limitedAttempts.add(hedge);
+		try {
+			attempts.add(completionService.submit(hedge));
+			hedgesSentCount.increment();
+		} catch (RejectedExecutionException e) {
+			// No capacity for the hedged lookup - continue waiting for the original (the permit is released on return)
+			returnHedgeToken();
+		}
+	}
+
+	/**
+	 * Each hedgeable lookup adds <code>hedgeBudget</code> percent of a hedge to the budget
+	 */
+	private void depositHedgeToken() {
+		synchronized (lock) {
+			hedgeTokens = Math.min(MAX_HEDGE_TOKENS, hedgeTokens + hedgeBudget / 100);
+		}
+	}
+
+	private boolean takeHedgeToken() {
+		synchronized (lock) {
+			if (hedgeTokens < 1) {
+				return false;
+			}
+			hedgeTokens--;
+			return true;
+		}
+	}
+
+	private void returnHedgeToken() {
+		synchronized (lock) {
+			hedgeTokens++;
+		}
+	}
+
+	private <T> Future<T> awaitNext(final ExecutorCompletionService<T> completionService, final long deadlineNanos,
+			final Object lookupKeys) throws InterruptedException, TimeoutException {
+		if (timeout <= 0) {
+			return completionService.take();
+		}
+
+		final long remainingNanos = deadlineNanos - System.nanoTime();
+		final Future<T> completed = remainingNanos > 0 ? completionService.poll(remainingNanos, TimeUnit.NANOSECONDS) : null;
+		if (completed == null) {
+			timeoutCount.increment();
+			throw new TimeoutException("Lookup by " + finderId + " did not complete within " + timeout + " ms: " + lookupKeys);
+		}
+		return completed;
+	}
+
+	/**
+	 * The delay (in nanoseconds) before hedging a lookup, or -1 if lookups should not be hedged
+	 */
+	private long getHedgeDelayNanos() {
+		if (hedgePercentile <= 0) {
+			return -1;
+		}
+
+		depositHedgeToken();
+		final long now = System.nanoTime();
+		if (now - nextHedgeDelayUpdateNanos >= 0) {
+			nextHedgeDelayUpdateNanos = now + HEDGE_DELAY_UPDATE_NANOS;
+			hedgeDelayNanos = attemptLatency.getWindowCount() < MIN_HEDGE_SAMPLES ? -1
+					: TimeUnit.MICROSECONDS.toNanos(attemptLatency.getValueAtPercentile(hedgePercentile));
+		}
+		return hedgeDelayNanos;
+	}
+
+	private static Exception unwrap(final ExecutionException e) {
+		final Throwable cause = e.getCause();
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return cause instanceof Exception ? (Exception) cause : e;
+	}
+
+	private void checkNotClosed() {
+		synchronized (lock) {
+			if (closed) {
+				throw new RejectedExecutionException("Properties finder has been closed");
+			}
+		}
+	}
+
+	/**
+	 * @throws RejectedExecutionException If the finder has been closed
+	 */
+	private ExecutorService getExecutorService() {
+		synchronized (lock) {
+			if (closed) {
+				throw new RejectedExecutionException("Properties finder has been closed");
+			} else if (executorService == null) {
+				final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+						60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+						new ThreadFactoryBuilder()
+							.setNameFormat("properties-finder-timeout-%d")
+							.setDaemon(true)
+							.build());
+				executor.allowCoreThreadTimeOut(true);
+				executorService = executor;
+			}
+			return executorService;
+		}
+	}
+
+	/**
+	 * Records the latency of each attempt of a hedgeable lookup - whether or not its result was used
+	 */
+	private class TimedAttempt<T> implements Callable<T> {
+		private final Callable<T> lookup;
+
+		public TimedAttempt(final Callable<T> lookup) {
+			this.lookup = lookup;
+		}
+
+		@Override
+		public T call() throws Exception {
+			final long startNanos = System.nanoTime();
+			try {
+				return lookup.call();
+			} finally {
+				attemptLatency.recordTimeSince(startNanos);
+			}
+		}
+	}
+
+	/**
+	 * An attempt of a lookup, holding a permit of the concurrency limiter (if one was acquired) - the permit is
+	 * released when the attempt finishes (even if the lookup has been abandoned by then), or when it is abandoned
+	 * before it has started
+	 */
+	private class LimitedAttempt<T> implements Callable<T> {
+		private final Callable<T> attempt;
+		private final boolean permitted;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		public LimitedAttempt(final Callable<T> attempt, final boolean permitted) {
+			this.attempt = attempt;
+			this.permitted = permitted;
+		}
+
+		@Override
+		public T call() throws Exception {
+			if (!claimed.compareAndSet(false, true)) {
+				throw new CancellationException("Lookup attempt is no longer required");
+			}
+
+			final long startNanos = System.nanoTime();
+			boolean failed = true;
+			try {
+				final T result = attempt.call();
+				failed = false;
+				return result;
+			} finally {
+				if (permitted) {
+					concurrencyLimiter.release(startNanos, failed);
+				}
+			}
+		}
+
+		/**
+		 * Releases the permit if the attempt has not started - it will no longer be performed
+		 */
+		public void abandon() {
+			if (claimed.compareAndSet(false, true) && permitted) {
+				concurrencyLimiter.releaseUnused();
+			}
+		}
+	}
+
+	/**
+	 * Shuts down the lookup threads - lookups already submitted are allowed to complete, further lookups are rejected
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			if (executorService != null) {
+				executorService.shutdown();
+				executorService = null;
+			}
+		}
+	}
+}
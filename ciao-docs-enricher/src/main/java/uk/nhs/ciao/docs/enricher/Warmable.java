@@ -0,0 +1,17 @@
+package uk.nhs.ciao.docs.enricher;
+
+/**
+ * A component which can prepare itself (e.g. load resources, open connections, compile queries)
+ * before the first document is enriched.
+ * <p>
+ * Warmable beans in the registry are warmed up by {@link DocumentEnricherWarmUp} before the
+ * enrichment routes start consuming documents.
+ */
+public interface Warmable {
+	/**
+	 * Prepares the component for use - implementations should be safe to call more than once
+	 * 
+	 * @throws Exception If the component could not be prepared
+	 */
+	void warmUp() throws Exception;
+}
@@ -0,0 +1,25 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A monotonically increasing count (e.g. the number of documents received by a route)
+ * <p>
+ * Throughput is derived by sampling the count over time (e.g. by a metrics scraper).
+ */
+public class Counter implements CounterMBean {
+	private final AtomicLong count = new AtomicLong();
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void increment(final long amount) {
+		count.addAndGet(amount);
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+}
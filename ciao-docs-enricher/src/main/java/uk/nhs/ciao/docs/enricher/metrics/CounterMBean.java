@@ -0,0 +1,8 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+/**
+ * JMX view of a {@link Counter}
+ */
+public interface CounterMBean {
+	long getCount();
+}
@@ -0,0 +1,24 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+/**
+ * Increments a {@link Counter} for each exchange passing through a route
+ * <p>
+ * If the counter is null (i.e. metrics are disabled) the processor does nothing.
+ */
+public class CountingProcessor implements Processor {
+	private final Counter counter;
+
+	public CountingProcessor(final Counter counter) {
+		this.counter = counter;
+	}
+
+	@Override
+	public void process(final Exchange exchange) {
+		if (counter != null) {
+			counter.increment();
+		}
+	}
+}
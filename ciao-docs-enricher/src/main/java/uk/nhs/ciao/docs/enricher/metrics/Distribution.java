@@ -0,0 +1,266 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Records the distribution of a value (e.g. the duration of a route stage) in an HDR histogram
+ * <p>
+ * Values are recorded with three significant digits of precision over an (auto-resizing) unbounded
+ * range, so high percentiles (p99, p999) are reported accurately rather than being approximated.
+ * Recording is wait-free - values are written to a {@link Recorder} and only folded into the
+ * histograms when a {@link #getSnapshot() snapshot} is taken (or once per interval when the window advances).
+ * <p>
+ * The percentiles, mean and maximum describe a sliding window of recent values - by default the last
+ * six 10 second intervals - so they reflect the current behaviour rather than everything seen since startup.
+ * The count and sum are cumulative.
+ * <p>
+ * The JMX getters share a snapshot which is rebuilt at most once a second, so reading every attribute
+ * of the MBean only folds the histograms once.
+ * <p>
+ * Durations are recorded in microseconds.
+ */
+public class Distribution implements DistributionMBean {
+	private static final int SIGNIFICANT_DIGITS = 3;
+	private static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	private static final int DEFAULT_INTERVALS = 6;
+	private static final long SNAPSHOT_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final Recorder recorder;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final long intervalNanos;
+	private volatile long nextIntervalNanos;
+	private volatile Snapshot cachedSnapshot;
+	private volatile long cachedSnapshotNanos;
+
+	// guarded by this
+	private final Histogram[] intervalHistograms;
+	private final Histogram windowHistogram;
+	private Histogram recordedHistogram;
+	private int intervalIndex;
+	private long intervalStartNanos;
+
+	public Distribution() {
+		this(DEFAULT_INTERVAL_MILLIS, DEFAULT_INTERVALS);
+	}
+
+	/**
+	 * Creates a distribution reporting percentiles over the specified window
+	 *
+	 * @param intervalMillis The duration of each interval in the window
+	 * @param intervals The number of intervals in the window
+	 */
+	public Distribution(final long intervalMillis, final int intervals) {
+		Preconditions.checkArgument(intervalMillis > 0, "intervalMillis must be positive");
+		Preconditions.checkArgument(intervals > 0, "intervals must be positive");
+
+		recorder = new Recorder(SIGNIFICANT_DIGITS);
+		count = new AtomicLong();
+		sum = new AtomicLong();
+		intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		intervalHistograms = new Histogram[intervals];
+		for (int index = 0; index < intervals; index++) {
+			intervalHistograms[index] = new Histogram(SIGNIFICANT_DIGITS);
+		}
+		windowHistogram = new Histogram(SIGNIFICANT_DIGITS);
+		intervalStartNanos = System.nanoTime();
+		nextIntervalNanos = intervalStartNanos + intervalNanos;
+	}
+
+	/**
+	 * Records a value - negative values are recorded as zero
+	 */
+	public void record(final long value) {
+		if (System.nanoTime() - nextIntervalNanos >= 0) {
+			// The values already recorded belong to the previous interval
+			synchronized (this) {
+				advanceWindow();
+			}
+		}
+
+		final long recordedValue = Math.max(0, value);
+		recorder.recordValue(recordedValue);
+		count.incrementAndGet();
+		sum.addAndGet(recordedValue);
+	}
+
+	/**
+	 * Records the time elapsed (in microseconds) since the specified start time
+	 *
+	 * @param startNanos The start time as returned by {@link System#nanoTime()}
+	 */
+	public void recordTimeSince(final long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Returns the cumulative count and sum, and the distribution of the values recorded within the window
+	 */
+	public synchronized Snapshot getSnapshot() {
+		advanceWindow();
+		final Snapshot snapshot = new Snapshot(getWindowHistogram(), count.get(), sum.get());
+		cachedSnapshot = snapshot;
+		cachedSnapshotNanos = System.nanoTime();
+		return snapshot;
+	}
+
+	/**
+	 * Returns the value at the specified percentile (e.g. 95) of the values recorded within the window
+	 */
+	public synchronized long getValueAtPercentile(final double percentile) {
+		advanceWindow();
+		return getWindowHistogram().getValueAtPercentile(percentile);
+	}
+
+	/**
+	 * Returns the number of values recorded within the window
+	 */
+	public synchronized long getWindowCount() {
+		advanceWindow();
+		return getWindowHistogram().getTotalCount();
+	}
+
+	/**
+	 * Folds the recorded values into the current interval, and discards any intervals which have left the window
+	 */
+	// guarded by this
+	private void advanceWindow() {
+		recordedHistogram = recorder.getIntervalHistogram(recordedHistogram);
+		intervalHistograms[intervalIndex].add(recordedHistogram);
+
+		final long elapsedIntervals = (System.nanoTime() - intervalStartNanos) / intervalNanos;
+		if (elapsedIntervals > 0) {
+			for (int index = 0; index < Math.min(elapsedIntervals, intervalHistograms.length); index++) {
+				intervalIndex = (intervalIndex + 1) % intervalHistograms.length;
+				intervalHistograms[intervalIndex].reset();
+			}
+			intervalStartNanos += elapsedIntervals * intervalNanos;
+			nextIntervalNanos = intervalStartNanos + intervalNanos;
+		}
+	}
+
+	// guarded by this
+	private Histogram getWindowHistogram() {
+		windowHistogram.reset();
+		for (final Histogram intervalHistogram: intervalHistograms) {
+			windowHistogram.add(intervalHistogram);
+		}
+		return windowHistogram;
+	}
+
+	/**
+	 * Returns the snapshot shared by the JMX getters - rebuilt if it is more than a second old
+	 */
+	private Snapshot getCachedSnapshot() {
+		final Snapshot snapshot = cachedSnapshot;
+		if (snapshot != null && System.nanoTime() - cachedSnapshotNanos < SNAPSHOT_MAX_AGE_NANOS) {
+			return snapshot;
+		}
+		return getSnapshot();
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMean() {
+		return getCachedSnapshot().getMean();
+	}
+
+	@Override
+	public long getMax() {
+		return getCachedSnapshot().getMax();
+	}
+
+	@Override
+	public long get50thPercentile() {
+		return getCachedSnapshot().get50thPercentile();
+	}
+
+	@Override
+	public long get99thPercentile() {
+		return getCachedSnapshot().get99thPercentile();
+	}
+
+	@Override
+	public long get999thPercentile() {
+		return getCachedSnapshot().get999thPercentile();
+	}
+
+	@Override
+	public synchronized void reset() {
+		recorder.reset();
+		for (final Histogram intervalHistogram: intervalHistograms) {
+			intervalHistogram.reset();
+		}
+		count.set(0);
+		sum.set(0);
+		cachedSnapshot = null;
+	}
+
+	/**
+	 * Immutable summary of a distribution at a point in time
+	 */
+	public static final class Snapshot {
+		private final long count;
+		private final long sum;
+		private final double mean;
+		private final long max;
+		private final long p50;
+		private final long p99;
+		private final long p999;
+
+		private Snapshot(final Histogram windowHistogram, final long count, final long sum) {
+			final boolean empty = windowHistogram.getTotalCount() == 0;
+			this.count = count;
+			this.sum = sum;
+			this.mean = empty ? 0 : windowHistogram.getMean();
+			this.max = empty ? 0 : windowHistogram.getMaxValue();
+			this.p50 = windowHistogram.getValueAtPercentile(50);
+			this.p99 = windowHistogram.getValueAtPercentile(99);
+			this.p999 = windowHistogram.getValueAtPercentile(99.9);
+		}
+
+		/**
+		 * The number of values recorded since the distribution was created (or last reset)
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * The sum of the values recorded since the distribution was created (or last reset)
+		 */
+		public long getSum() {
+			return sum;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public long get50thPercentile() {
+			return p50;
+		}
+
+		public long get99thPercentile() {
+			return p99;
+		}
+
+		public long get999thPercentile() {
+			return p999;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+/**
+ * JMX view of a {@link Distribution}
+ */
+public interface DistributionMBean {
+	long getCount();
+
+	double getMean();
+
+	long getMax();
+
+	long get50thPercentile();
+
+	long get99thPercentile();
+
+	long get999thPercentile();
+
+	void reset();
+}
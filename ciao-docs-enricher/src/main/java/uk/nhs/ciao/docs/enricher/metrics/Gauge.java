@@ -0,0 +1,17 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+/**
+ * The current value of a quantity which can go up and down (e.g. the concurrency limit of a finder)
+ */
+public class Gauge implements GaugeMBean {
+	private volatile long value;
+
+	public void set(final long value) {
+		this.value = value;
+	}
+
+	@Override
+	public long getValue() {
+		return value;
+	}
+}
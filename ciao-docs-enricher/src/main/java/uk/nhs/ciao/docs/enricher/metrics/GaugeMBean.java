@@ -0,0 +1,8 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+/**
+ * JMX view of a {@link Gauge}
+ */
+public interface GaugeMBean {
+	long getValue();
+}
@@ -0,0 +1,76 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import java.util.Map;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedMap;
+
+/**
+ * Identifies a metric by name and a set of tags (e.g. <code>route=default</code>, <code>stage=enrich</code>)
+ * <p>
+ * Tags are sorted by key, so names with equal tags are equal regardless of the order the tags were specified.
+ */
+public final class MetricName implements Comparable<MetricName> {
+	private final String name;
+	private final ImmutableSortedMap<String, String> tags;
+
+	private MetricName(final String name, final ImmutableSortedMap<String, String> tags) {
+		this.name = name;
+		this.tags = tags;
+	}
+
+	/**
+	 * Creates a new metric name
+	 *
+	 * @param name The name of the metric
+	 * @param tags Alternating tag keys and values
+	 */
+	public static MetricName of(final String name, final String... tags) {
+		Preconditions.checkArgument(!Strings.isNullOrEmpty(name), "name is required");
+		Preconditions.checkArgument(tags.length % 2 == 0, "tags must be specified as key/value pairs");
+
+		final ImmutableSortedMap.Builder<String, String> builder = ImmutableSortedMap.naturalOrder();
+		for (int index = 0; index < tags.length; index += 2) {
+			builder.put(Preconditions.checkNotNull(tags[index]), Strings.nullToEmpty(tags[index + 1]));
+		}
+		return new MetricName(name, builder.build());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Map<String, String> getTags() {
+		return tags;
+	}
+
+	@Override
+	public int compareTo(final MetricName other) {
+		final int result = name.compareTo(other.name);
+		return result != 0 ? result : tags.toString().compareTo(other.tags.toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hashCode(name, tags);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		} else if (obj == null || getClass() != obj.getClass()) {
+			return false;
+		}
+
+		final MetricName other = (MetricName) obj;
+		return name.equals(other.name) && tags.equals(other.tags);
+	}
+
+	@Override
+	public String toString() {
+		return tags.isEmpty() ? name : name + tags;
+	}
+}
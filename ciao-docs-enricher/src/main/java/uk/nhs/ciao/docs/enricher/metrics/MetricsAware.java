@@ -0,0 +1,17 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+/**
+ * Component (e.g. a document enricher) which records its own metrics in a shared {@link MetricsRegistry}
+ * <p>
+ * The route binds the registry when it is configured. A component shared by several routes may be bound
+ * more than once, so binding should be idempotent.
+ */
+public interface MetricsAware {
+	/**
+	 * Binds the component to the registry
+	 *
+	 * @param metrics The registry to record metrics in
+	 * @param componentId The registry ID of the component (used to tag its metrics)
+	 */
+	void bindMetrics(MetricsRegistry metrics, String componentId);
+}
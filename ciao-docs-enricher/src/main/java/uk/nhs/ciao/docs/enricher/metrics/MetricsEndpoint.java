@@ -0,0 +1,131 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the metrics of a {@link MetricsRegistry} over HTTP in the Prometheus text format, so they can
+ * be scraped by a monitoring system.
+ * <p>
+ * The endpoint listens on {@link #setPort(int) port} (a value of zero disables the endpoint) and serves
+ * the metrics from {@link #setPath(String) path} (default is <code>/metrics</code>). Requests are handled
+ * on a single worker thread - the server should be stopped via {@link #close()} when it is no longer required.
+ */
+public class MetricsEndpoint implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsEndpoint.class);
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final MetricsRegistry registry;
+	private String host;
+	private int port;
+	private String path = "/metrics";
+
+	// guarded by this
+	private HttpServer server;
+	private ExecutorService executorService;
+
+	public MetricsEndpoint(final MetricsRegistry registry) {
+		this.registry = Preconditions.checkNotNull(registry);
+	}
+
+	/**
+	 * The address to listen on (default is all addresses)
+	 */
+	public void setHost(final String host) {
+		this.host = Strings.emptyToNull(host);
+	}
+
+	/**
+	 * The port to listen on - a value of zero disables the endpoint
+	 */
+	public void setPort(final int port) {
+		Preconditions.checkArgument(port >= 0, "port must not be negative");
+		this.port = port;
+	}
+
+	public void setPath(final String path) {
+		Preconditions.checkArgument(path != null && path.startsWith("/"), "path must start with /");
+		this.path = path;
+	}
+
+	public boolean isEnabled() {
+		return port > 0;
+	}
+
+	/**
+	 * Starts listening for requests (if enabled)
+	 */
+	public synchronized void start() throws IOException {
+		if (!isEnabled() || server != null) {
+			return;
+		}
+
+		final InetSocketAddress address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+		executorService = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("metrics-endpoint-%d")
+				.setDaemon(true)
+				.build());
+
+		server = HttpServer.create(address, 0);
+		server.createContext(path, new MetricsHandler());
+		server.setExecutor(executorService);
+		server.start();
+
+		LOGGER.info("Serving metrics from http://{}:{}{}", address.getHostString(), port, path);
+	}
+
+	/**
+	 * Stops the server
+	 */
+	@Override
+	public synchronized void close() {
+		if (server != null) {
+			server.stop(0);
+			server = null;
+		}
+
+		if (executorService != null) {
+			executorService.shutdown();
+			executorService = null;
+		}
+	}
+
+	private class MetricsHandler implements HttpHandler {
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				if (!"GET".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+
+				final StringBuilder text = new StringBuilder();
+				registry.writeText(text);
+				final byte[] body = text.toString().getBytes(Charsets.UTF_8);
+
+				exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+				exchange.sendResponseHeaders(200, body.length);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.flush();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
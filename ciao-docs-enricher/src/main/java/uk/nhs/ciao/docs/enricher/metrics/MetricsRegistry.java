@@ -0,0 +1,239 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Holds the named {@link Distribution distributions}, {@link Counter counters} and {@link Gauge gauges} of the application.
+ * <p>
+ * Metrics are created on first use and shared by every caller requesting the same {@link MetricName}. If
+ * {@link #setJmxEnabled(boolean) jmxEnabled}, each metric is also registered as an MBean with the platform
+ * MBean server (under {@link #setJmxDomain(String) jmxDomain}, with the metric name and tags as key properties).
+ * The MBeans are unregistered by {@link #close()}.
+ * <p>
+ * All metrics can be written in the Prometheus text format via {@link #writeText(Appendable)} (see
+ * {@link MetricsEndpoint}) - distributions are reported as summaries with p50, p99 and p999 quantiles.
+ */
+public class MetricsRegistry implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsRegistry.class);
+
+	public static final String DEFAULT_JMX_DOMAIN = "uk.nhs.ciao.docs.enricher";
+
+	private final ConcurrentMap<MetricName, Object> metrics = Maps.newConcurrentMap();
+	private final Set<ObjectName> registeredNames = Sets.newConcurrentHashSet();
+	private boolean jmxEnabled = true;
+	private String jmxDomain = DEFAULT_JMX_DOMAIN;
+
+	/**
+	 * Whether metrics should be registered as MBeans (default is true)
+	 */
+	public void setJmxEnabled(final boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	public void setJmxDomain(final String jmxDomain) {
+		this.jmxDomain = Preconditions.checkNotNull(jmxDomain);
+	}
+
+	/**
+	 * Returns the distribution with the specified name and tags (creating it if required)
+	 *
+	 * @param tags Alternating tag keys and values
+	 */
+	public Distribution distribution(final String name, final String... tags) {
+		return getOrCreate(MetricName.of(name, tags), Distribution.class);
+	}
+
+	/**
+	 * Returns the counter with the specified name and tags (creating it if required)
+	 *
+	 * @param tags Alternating tag keys and values
+	 */
+	public Counter counter(final String name, final String... tags) {
+		return getOrCreate(MetricName.of(name, tags), Counter.class);
+	}
+
+	/**
+	 * Returns the gauge with the specified name and tags (creating it if required)
+	 *
+	 * @param tags Alternating tag keys and values
+	 */
+	public Gauge gauge(final String name, final String... tags) {
+		return getOrCreate(MetricName.of(name, tags), Gauge.class);
+	}
+
+	/**
+	 * All registered metrics - sorted by name
+	 */
+	public Map<MetricName, Object> getMetrics() {
+		return ImmutableSortedMap.copyOf(metrics);
+	}
+
+	private <T> T getOrCreate(final MetricName name, final Class<T> type) {
+		Object metric = metrics.get(name);
+		if (metric == null) {
+			try {
+				metric = type.newInstance();
+			} catch (Exception e) {
+				throw new IllegalStateException("Could not create metric " + name, e);
+			}
+
+			final Object existing = metrics.putIfAbsent(name, metric);
+			if (existing == null) {
+				register(name, metric);
+			} else {
+				metric = existing;
+			}
+		}
+
+		Preconditions.checkArgument(type.isInstance(metric), "Metric %s is not a %s", name, type.getSimpleName());
+		return type.cast(metric);
+	}
+
+	private void register(final MetricName name, final Object metric) {
+		if (!jmxEnabled) {
+			return;
+		}
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			final ObjectName objectName = getObjectName(name);
+			try {
+				server.registerMBean(metric, objectName);
+			} catch (InstanceAlreadyExistsException e) {
+				// Left behind by a previous registry which was not closed (e.g. a restarted context)
+				server.unregisterMBean(objectName);
+				server.registerMBean(metric, objectName);
+			}
+			registeredNames.add(objectName);
+		} catch (JMException e) {
+			LOGGER.warn("Unable to register metric {} with JMX", name, e);
+		}
+	}
+
+	private ObjectName getObjectName(final MetricName name) throws JMException {
+		final Hashtable<String, String> properties = new Hashtable<String, String>();
+		for (final Map.Entry<String, String> tag: name.getTags().entrySet()) {
+			properties.put(tag.getKey(), quote(tag.getValue()));
+		}
+		properties.put("name", quote(name.getName()));
+		return new ObjectName(jmxDomain, properties);
+	}
+
+	private static String quote(final String value) {
+		return value.matches("[\\w.\\-]+") ? value : ObjectName.quote(value);
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format
+	 */
+	public void writeText(final Appendable out) throws IOException {
+		String previousName = null;
+		for (final Map.Entry<MetricName, Object> entry: getMetrics().entrySet()) {
+			final MetricName name = entry.getKey();
+			final Object metric = entry.getValue();
+			final boolean isDistribution = metric instanceof Distribution;
+
+			if (!name.getName().equals(previousName)) {
+				out.append("# TYPE ").append(name.getName()).append(' ').append(getType(metric)).append('\n');
+				previousName = name.getName();
+			}
+
+			if (isDistribution) {
+				final Distribution.Snapshot snapshot = ((Distribution) metric).getSnapshot();
+				writeSample(out, name.getName(), name, "0.5", snapshot.get50thPercentile());
+				writeSample(out, name.getName(), name, "0.99", snapshot.get99thPercentile());
+				writeSample(out, name.getName(), name, "0.999", snapshot.get999thPercentile());
+				writeSample(out, name.getName() + "_sum", name, null, snapshot.getSum());
+				writeSample(out, name.getName() + "_count", name, null, snapshot.getCount());
+			} else if (metric instanceof Gauge) {
+				writeSample(out, name.getName(), name, null, ((Gauge) metric).getValue());
+			} else {
+				writeSample(out, name.getName(), name, null, ((Counter) metric).getCount());
+			}
+		}
+	}
+
+	private static String getType(final Object metric) {
+		if (metric instanceof Distribution) {
+			return "summary";
+		} else if (metric instanceof Gauge) {
+			return "gauge";
+		} else {
+			return "counter";
+		}
+	}
+
+	private static void writeSample(final Appendable out, final String sampleName, final MetricName name,
+			final String quantile, final long value) throws IOException {
+		out.append(sampleName);
+
+		boolean first = true;
+		for (final Map.Entry<String, String> tag: name.getTags().entrySet()) {
+			out.append(first ? '{' : ',');
+			writeLabel(out, tag.getKey(), tag.getValue());
+			first = false;
+		}
+		if (quantile != null) {
+			out.append(first ? '{' : ',');
+			writeLabel(out, "quantile", quantile);
+			first = false;
+		}
+		if (!first) {
+			out.append('}');
+		}
+
+		out.append(' ').append(Long.toString(value)).append('\n');
+	}
+
+	private static void writeLabel(final Appendable out, final String key, final String value) throws IOException {
+		out.append(key).append("=\"");
+		for (int index = 0; index < value.length(); index++) {
+			final char c = value.charAt(index);
+			if (c == '\\' || c == '"') {
+				out.append('\\').append(c);
+			} else if (c == '\n') {
+				out.append("\\n");
+			} else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Unregisters the metric MBeans
+	 */
+	@Override
+	public void close() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (final ObjectName objectName: registeredNames) {
+			try {
+				if (server.isRegistered(objectName)) {
+					server.unregisterMBean(objectName);
+				}
+			} catch (JMException e) {
+				LOGGER.debug("Unable to unregister metric MBean {}", objectName, e);
+			}
+		}
+		registeredNames.clear();
+	}
+}
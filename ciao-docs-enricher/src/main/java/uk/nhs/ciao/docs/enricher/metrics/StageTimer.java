@@ -0,0 +1,57 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+
+/**
+ * Times a stage of a Camel route (e.g. unmarshalling the document) and records the duration in a {@link Distribution}
+ * <p>
+ * The {@link #start()} processor should be added before the stage, and the {@link #stop()} processor after it - the
+ * start time is held as an exchange property in the meantime. If the stage fails the duration is not recorded.
+ * <p>
+ * If the distribution is null (i.e. metrics are disabled) both processors do nothing.
+ */
+public class StageTimer {
+	private static final AtomicLong NEXT_ID = new AtomicLong();
+
+	private final Distribution distribution;
+	private final String startTimeProperty;
+
+	public StageTimer(final Distribution distribution) {
+		this.distribution = distribution;
+		this.startTimeProperty = "CiaoStageTimer." + NEXT_ID.incrementAndGet();
+	}
+
+	/**
+	 * Processor which marks the start of the stage
+	 */
+	public Processor start() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) {
+				if (distribution != null) {
+					exchange.setProperty(startTimeProperty, System.nanoTime());
+				}
+			}
+		};
+	}
+
+	/**
+	 * Processor which marks the end of the stage and records the duration
+	 */
+	public Processor stop() {
+		return new Processor() {
+			@Override
+			public void process(final Exchange exchange) {
+				if (distribution != null) {
+					final Object startNanos = exchange.removeProperty(startTimeProperty);
+					if (startNanos instanceof Long) {
+						distribution.recordTimeSince((Long) startNanos);
+					}
+				}
+			}
+		};
+	}
+}
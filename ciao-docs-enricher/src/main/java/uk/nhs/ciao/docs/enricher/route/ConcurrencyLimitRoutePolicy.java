@@ -0,0 +1,77 @@
+package uk.nhs.ciao.docs.enricher.route;
+
+import java.util.Set;
+
+import org.apache.camel.Route;
+import org.apache.camel.ServiceStatus;
+import org.apache.camel.support.RoutePolicySupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+import uk.nhs.ciao.docs.enricher.AdaptiveConcurrencyLimiter;
+
+/**
+ * Route policy which suspends the consumers of its routes while an {@link AdaptiveConcurrencyLimiter} is
+ * saturated, and resumes them once it is no longer saturated
+ * <p>
+ * While the backend is unable to keep up, the routes stop pulling further messages from their input queues
+ * rather than piling more blocked lookups onto the backend. Exchanges already in-flight are not affected.
+ * <p>
+ * Messages already dispatched to a suspended consumer are not returned to the broker - a cached consumer holds
+ * up to its prefetch limit of messages (1000 by default for ActiveMQ queues) until it is resumed. A small route <code>prefetchSize</code> is required for held-back messages to remain
+ * available to other instances.
+ */
+public class ConcurrencyLimitRoutePolicy extends RoutePolicySupport implements AdaptiveConcurrencyLimiter.Listener {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyLimitRoutePolicy.class);
+
+	private final Set<Route> routes = Sets.newCopyOnWriteArraySet();
+	private final Set<Route> suspendedRoutes = Sets.newCopyOnWriteArraySet();
+
+	public ConcurrencyLimitRoutePolicy(final AdaptiveConcurrencyLimiter limiter) {
+		Preconditions.checkNotNull(limiter).addListener(this);
+	}
+
+	@Override
+	public void onInit(final Route route) {
+		routes.add(route);
+	}
+
+	@Override
+	public void onRemove(final Route route) {
+		routes.remove(route);
+		suspendedRoutes.remove(route);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only consumers suspended by this policy are resumed (e.g. routes waiting for the warm-up are not started).
+	 */
+	@Override
+	public void onSaturationChanged(final AdaptiveConcurrencyLimiter limiter, final boolean saturated) {
+		for (final Route route: saturated ? routes : suspendedRoutes) {
+			try {
+				if (saturated) {
+					if (isStarted(route) && stopConsumer(route.getConsumer())) {
+						suspendedRoutes.add(route);
+						LOGGER.info("Suspended consumer of route {} - lookup concurrency limit reached", route.getId());
+					}
+				} else {
+					suspendedRoutes.remove(route);
+					startConsumer(route.getConsumer());
+					LOGGER.info("Resumed consumer of route {}", route.getId());
+				}
+			} catch (Exception e) {
+				LOGGER.warn("Unable to {} consumer of route {}", saturated ? "suspend" : "resume", route.getId(), e);
+			}
+		}
+	}
+
+	private static boolean isStarted(final Route route) {
+		final ServiceStatus status = route.getRouteContext().getCamelContext().getRouteStatus(route.getId());
+		return status != null && status.isStarted();
+	}
+}
@@ -0,0 +1,55 @@
+package uk.nhs.ciao.docs.enricher.route;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.util.AsyncProcessorConverterHelper;
+import org.apache.camel.util.AsyncProcessorHelper;
+import org.slf4j.MDC;
+
+import uk.nhs.ciao.docs.enricher.InstrumentedDocumentPropertiesFinder;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs a processor with the correlation id of the exchange in the logging MDC (as
+ * {@link InstrumentedDocumentPropertiesFinder#CORRELATION_ID_MDC_KEY}) - independently of whether Camel's own
+ * MDC logging is enabled.
+ * <p>
+ * The MDC entry is removed as soon as the delegate returns. Lookups started by an asynchronous delegate are
+ * initiated on the calling thread (so they capture the MDC), but later run elsewhere - the entry is not carried
+ * over to the thread completing the exchange.
+ */
+class CorrelationIdMdcProcessor implements AsyncProcessor {
+	private final AsyncProcessor processor;
+
+	public CorrelationIdMdcProcessor(final Processor processor) {
+		this.processor = AsyncProcessorConverterHelper.convert(Preconditions.checkNotNull(processor));
+	}
+
+	@Override
+	public void process(final Exchange exchange) throws Exception {
+		AsyncProcessorHelper.process(this, exchange);
+	}
+
+	@Override
+	public boolean process(final Exchange exchange, final AsyncCallback callback) {
+		final String previousValue = MDC.get(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY);
+		final String correlationId = exchange.getIn().getHeader(Exchange.CORRELATION_ID, String.class);
+		putOrRemove(correlationId);
+		try {
+			return processor.process(exchange, callback);
+		} finally {
+			putOrRemove(previousValue);
+		}
+	}
+
+	private static void putOrRemove(final String value) {
+		if (value == null) {
+			MDC.remove(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY);
+		} else {
+			MDC.put(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY, value);
+		}
+	}
+}
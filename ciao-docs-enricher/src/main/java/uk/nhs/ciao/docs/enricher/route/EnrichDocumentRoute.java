@@ -2,28 +2,68 @@ package uk.nhs.ciao.docs.enricher.route;
 
 import static uk.nhs.ciao.logging.CiaoCamelLogMessage.camelLogMsg;
 
+import java.util.Arrays;
+
 import org.apache.camel.Exchange;
-import org.apache.camel.model.dataformat.JsonLibrary;
+import org.apache.camel.Processor;
+import org.apache.camel.model.ProcessorDefinition;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.model.TryDefinition;
+import org.apache.camel.component.jackson.JacksonDataFormat;
 import org.apache.camel.spi.Registry;
+import org.apache.camel.spi.RoutePolicy;
 import org.apache.camel.spring.spi.TransactionErrorHandlerBuilder;
 
 import uk.nhs.ciao.camel.BaseRouteBuilder;
 import uk.nhs.ciao.configuration.CIAOConfig;
 import uk.nhs.ciao.docs.enricher.DocumentEnricherProcessor;
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+import uk.nhs.ciao.docs.enricher.StreamingDocumentEnricherProcessor;
+import uk.nhs.ciao.docs.enricher.metrics.Counter;
+import uk.nhs.ciao.docs.enricher.metrics.CountingProcessor;
+import uk.nhs.ciao.docs.enricher.metrics.Distribution;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsAware;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+import uk.nhs.ciao.docs.enricher.metrics.StageTimer;
 import uk.nhs.ciao.docs.parser.HeaderNames;
 import uk.nhs.ciao.docs.parser.ParsedDocument;
 import uk.nhs.ciao.docs.parser.route.InProgressFolderManagerRoute;
 import uk.nhs.ciao.exceptions.CIAOConfigurationException;
 import uk.nhs.ciao.logging.CiaoCamelLogger;
 
+import com.google.common.base.Strings;
+
 /**
  * Creates a Camel route for the specified name / property prefix.
  * <p>
  * Each configurable property is determined by:
  * <ul>
  * <li>Try the specific property: <code>${ROOT_PROPERTY}.${name}.${propertyName}</code></li>
- * <li>If missing fallback to: <code>${ROOT_PROPERTY}.${propertyName}</code></li>
+ * <li>If missing or empty fallback to: <code>${ROOT_PROPERTY}.${propertyName}</code></li>
  * </ul>
+ * <p>
+ * The JMS consumer options (<code>concurrentConsumers</code>, <code>maxConcurrentConsumers</code>,
+ * <code>prefetchSize</code> and <code>cacheLevelName</code>) are optional - if missing or empty, the
+ * JMS component defaults are used.
+ * <p>
+ * If the optional <code>streaming</code> property is <code>true</code>, documents are enriched by a
+ * {@link StreamingDocumentEnricherProcessor} instead of being fully unmarshalled and marshalled.
+ * <p>
+ * If the optional <code>transacted</code> property is <code>false</code>, messages are consumed outside of a JMS
+ * transaction and processed asynchronously (<code>asyncConsumer</code>) - the consumer thread is released while
+ * an {@link uk.nhs.ciao.docs.enricher.AsyncDocumentEnricher} waits for its lookups, instead of being blocked for the
+ * whole exchange (Camel executes transacted routes synchronously). Messages are then acknowledged when they are
+ * received, so a message being enriched when the application stops is lost rather than redelivered.
+ * <p>
+ * JSON is read and written using the shared {@link JsonCodec} registered as {@link #JSON_CODEC_ID} (if available).
+ * <p>
+ * If a {@link MetricsRegistry} is registered as {@link #METRICS_REGISTRY_ID}, the duration of each stage of the route
+ * (unmarshal, enrich, marshal and send) is recorded in the {@link #STAGE_DURATION_METRIC} distributions, and the
+ * number of documents received, enriched and failed in the {@link #DOCUMENTS_METRIC} counters - both tagged by route
+ * name and enricher id. Enrichers which are {@link MetricsAware} are bound to the same registry.
+ * <p>
+ * The enricher is run with the correlation id of the document in the logging MDC, so slow lookups traced by an
+ * {@link uk.nhs.ciao.docs.enricher.InstrumentedDocumentPropertiesFinder} can be tied back to the document.
  */
 public class EnrichDocumentRoute extends BaseRouteBuilder {
 	private static final CiaoCamelLogger LOGGER = CiaoCamelLogger.getLogger(EnrichDocumentRoute.class);
@@ -33,11 +73,44 @@ public class EnrichDocumentRoute extends BaseRouteBuilder {
 	 */
 	public static final String ROOT_PROPERTY = "documentEnricherRoutes";
 	
+	/**
+	 * The registry ID of the shared JSON codec
+	 */
+	public static final String JSON_CODEC_ID = "jsonCodec";
+	
+	/**
+	 * The registry ID of the shared metrics registry
+	 */
+	public static final String METRICS_REGISTRY_ID = "metricsRegistry";
+	
+	/**
+	 * The registry ID of the (optional) route policy applied to all routes - e.g. to suspend the consumers
+	 * while the lookup backend is saturated
+	 */
+	public static final String ROUTE_POLICY_ID = "enrichRoutePolicy";
+	
+	/**
+	 * Duration (in microseconds) of each route stage - tagged by route, enricher and stage
+	 */
+	public static final String STAGE_DURATION_METRIC = "enricher_route_stage_duration_micros";
+	
+	/**
+	 * Number of documents processed by the route - tagged by route, enricher and outcome
+	 */
+	public static final String DOCUMENTS_METRIC = "enricher_route_documents_total";
+	
 	private final String name;
 	private final String inputQueue;
 	private final String enricherId;
 	private final String outputQueue;
+	private final Integer concurrentConsumers;
+	private final Integer maxConcurrentConsumers;
+	private final Integer prefetchSize;
+	private final String cacheLevelName;
+	private final boolean streaming;
+	private final boolean transacted;
 	private String inProgressFolderManagerUri;
+	private boolean autoStartup = true;
 	
 	/**
 	 * Creates a new route builder for the specified name / property prefix
@@ -50,27 +123,123 @@ public class EnrichDocumentRoute extends BaseRouteBuilder {
 		this.inputQueue = findProperty(config, "inputQueue");
 		this.enricherId = findProperty(config, "enricherId");
 		this.outputQueue = findProperty(config, "outputQueue");
+		this.concurrentConsumers = findOptionalIntProperty(config, "concurrentConsumers");
+		this.maxConcurrentConsumers = findOptionalIntProperty(config, "maxConcurrentConsumers");
+		this.prefetchSize = findOptionalIntProperty(config, "prefetchSize");
+		this.cacheLevelName = findOptionalProperty(config, "cacheLevelName");
+		this.streaming = Boolean.parseBoolean(findOptionalProperty(config, "streaming"));
+		
+		final String transactedValue = findOptionalProperty(config, "transacted");
+		this.transacted = transactedValue == null || Boolean.parseBoolean(transactedValue);
 	}
 	
 	public void setInProgressFolderManagerUri(final String inProgressFolderManagerUri) {
 		this.inProgressFolderManagerUri = inProgressFolderManagerUri;
 	}
 	
+	/**
+	 * Whether the route should be started with the Camel context (default is true)
+	 */
+	public void setAutoStartup(final boolean autoStartup) {
+		this.autoStartup = autoStartup;
+	}
+	
+	public String getRouteId() {
+		return "parse-document-" + name;
+	}
+	
+	public String getEnricherId() {
+		return enricherId;
+	}
+	
 	/**
 	 * Try the specific 'named' property then fall back to the general 'all-routes' property
+	 * 
+	 * @throws CIAOConfigurationException If both properties are missing or empty
 	 */
 	private String findProperty(final CIAOConfig config, final String propertyName) throws CIAOConfigurationException {
-		final String specificName = ROOT_PROPERTY + "." + name + "." + propertyName;
-		final String genericName = ROOT_PROPERTY + "." + propertyName;
-		if (config.getConfigKeys().contains(specificName)) {
-			return config.getConfigValue(specificName);
-		} else if (config.getConfigKeys().contains(genericName)) {
-			
-			return config.getConfigValue(genericName);
-		} else {
+		final String value = findOptionalProperty(config, propertyName);
+		if (value == null) {
 			throw new CIAOConfigurationException("Could not find property " + propertyName +
 					" for route " + name);
 		}
+		return value;
+	}
+	
+	/**
+	 * Try the specific 'named' property then fall back to the general 'all-routes' property - empty
+	 * values are skipped
+	 * 
+	 * @return The property value, or null if both properties are missing or empty
+	 */
+	private String findOptionalProperty(final CIAOConfig config, final String propertyName) throws CIAOConfigurationException {
+		final String specificName = ROOT_PROPERTY + "." + name + "." + propertyName;
+		final String genericName = ROOT_PROPERTY + "." + propertyName;
+		for (final String propertyKey: Arrays.asList(specificName, genericName)) {
+			if (config.getConfigKeys().contains(propertyKey)) {
+				final String value = Strings.emptyToNull(config.getConfigValue(propertyKey).trim());
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+		return null;
+	}
+	
+	private Integer findOptionalIntProperty(final CIAOConfig config, final String propertyName) throws CIAOConfigurationException {
+		final String value = findOptionalProperty(config, propertyName);
+		if (value == null) {
+			return null;
+		}
+		
+		try {
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			throw new CIAOConfigurationException("Property " + propertyName + " for route " + name +
+					" is not a valid integer: " + value);
+		}
+	}
+	
+	/**
+	 * The URI of the JMS endpoint to consume incoming documents from (including any configured consumer options)
+	 */
+	String getInputUri() {
+		final StringBuilder uri = new StringBuilder("jms:queue:").append(inputQueue);
+		appendOption(uri, "concurrentConsumers", concurrentConsumers);
+		appendOption(uri, "maxConcurrentConsumers", maxConcurrentConsumers);
+		appendOption(uri, "cacheLevelName", cacheLevelName);
+		if (!transacted) {
+			appendOption(uri, "transacted", false);
+			appendOption(uri, "asyncConsumer", true);
+		}
+		
+		// ActiveMQ destination option - limits how many messages are dispatched to each consumer in advance
+		appendOption(uri, "destination.consumer.prefetchSize", prefetchSize);
+		
+		return uri.toString();
+	}
+	
+	private static JsonCodec getJsonCodec(final Registry registry) {
+		final JsonCodec jsonCodec = registry.lookupByNameAndType(JSON_CODEC_ID, JsonCodec.class);
+		return jsonCodec == null ? new JsonCodec() : jsonCodec;
+	}
+	
+	private StageTimer getStageTimer(final MetricsRegistry metrics, final String stage) {
+		final Distribution distribution = metrics == null ? null
+				: metrics.distribution(STAGE_DURATION_METRIC, "route", name, "enricher", enricherId, "stage", stage);
+		return new StageTimer(distribution);
+	}
+	
+	private Processor getDocumentCounter(final MetricsRegistry metrics, final String outcome) {
+		final Counter counter = metrics == null ? null
+				: metrics.counter(DOCUMENTS_METRIC, "route", name, "enricher", enricherId, "outcome", outcome);
+		return new CountingProcessor(counter);
+	}
+	
+	private static void appendOption(final StringBuilder uri, final String option, final Object value) {
+		if (value != null) {
+			uri.append(uri.indexOf("?") < 0 ? '?' : '&').append(option).append('=').append(value);
+		}
 	}
 
 	/**
@@ -81,33 +250,84 @@ public class EnrichDocumentRoute extends BaseRouteBuilder {
 	public void configure() throws Exception {
 		final Registry registry = getContext().getRegistry();
 		final Object enricher = registry.lookupByName(enricherId);
-		final DocumentEnricherProcessor processor = DocumentEnricherProcessor.createProcessor(enricher);
+		final JsonCodec jsonCodec = getJsonCodec(registry);
+		final Processor processor = new CorrelationIdMdcProcessor(streaming
+				? new StreamingDocumentEnricherProcessor(enricher, jsonCodec)
+				: DocumentEnricherProcessor.createProcessor(enricher));
+		final JacksonDataFormat jsonDataFormat = new JacksonDataFormat(jsonCodec.getObjectMapper(), ParsedDocument.class);
+		
+		final MetricsRegistry metrics = registry.lookupByNameAndType(METRICS_REGISTRY_ID, MetricsRegistry.class);
+		if (metrics != null && enricher instanceof MetricsAware) {
+			((MetricsAware)enricher).bindMetrics(metrics, enricherId);
+		}
+		final StageTimer unmarshalTimer = getStageTimer(metrics, "unmarshal");
+		final StageTimer enrichTimer = getStageTimer(metrics, "enrich");
+		final StageTimer marshalTimer = getStageTimer(metrics, "marshal");
+		final StageTimer sendTimer = getStageTimer(metrics, "send");
+		
+		final RouteDefinition routeDefinition = from(getInputUri())
+		.id(getRouteId())
+		.autoStartup(autoStartup);
+		
+		final RoutePolicy routePolicy = registry.lookupByNameAndType(ROUTE_POLICY_ID, RoutePolicy.class);
+		if (routePolicy != null) {
+			routeDefinition.routePolicy(routePolicy);
+		}
 		
-		from("jms:queue:" + inputQueue)
-		.id("parse-document-" + name)
-		.streamCaching()
-		.errorHandler(new TransactionErrorHandlerBuilder()
-				.maximumRedeliveries(0)) // redeliveries are disabled (enrichment is only tried once)
-		.transacted("PROPAGATION_NOT_SUPPORTED")
+		// redeliveries are disabled (enrichment is only tried once)
+		final ProcessorDefinition<?> start;
+		if (transacted) {
+			start = routeDefinition
+				.streamCaching()
+				.errorHandler(new TransactionErrorHandlerBuilder()
+						.maximumRedeliveries(0))
+				.transacted("PROPAGATION_NOT_SUPPORTED");
+		} else {
+			start = routeDefinition
+				.streamCaching()
+				.errorHandler(defaultErrorHandler()
+						.maximumRedeliveries(0));
+		}
+		
+		final TryDefinition route = start
 		.doTry()
 			.process(LOGGER.info(camelLogMsg("Received JSON document to enrich")
 					.documentId(header(Exchange.CORRELATION_ID))
 					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))))
-			.unmarshal().json(JsonLibrary.Jackson, ParsedDocument.class)
-
-			.process(LOGGER.info(camelLogMsg("Attempting to enrich document")
+			.process(getDocumentCounter(metrics, "received"));
+		
+		// In streaming mode the processor reads and writes the JSON directly
+		if (!streaming) {
+			route.process(unmarshalTimer.start())
+				.unmarshal(jsonDataFormat)
+				.process(unmarshalTimer.stop());
+		}
+		
+		route.process(LOGGER.info(camelLogMsg("Attempting to enrich document")
 					.documentId(header(Exchange.CORRELATION_ID))
 					.eventName(constant("enriching-document"))
 					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))))
+			.process(enrichTimer.start())
 			.process(processor)
+			.process(enrichTimer.stop())
 			
 			.process(LOGGER.info(camelLogMsg("Completed document enrichment")
 					.documentId(header(Exchange.CORRELATION_ID))
 					.eventName(constant("enriched-document"))
-					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))))					
-			.marshal().json(JsonLibrary.Jackson)
+					.originalFileName(header(HeaderNames.SOURCE_FILE_NAME))));
+		
+		if (!streaming) {
+			route.process(marshalTimer.start())
+				.marshal(jsonDataFormat)
+				.process(marshalTimer.stop());
+		}
+		
+		route.process(sendTimer.start())
 			.to("jms:queue:" + outputQueue)
+			.process(sendTimer.stop())
+			.process(getDocumentCounter(metrics, "enriched"))
 		.doCatch(Exception.class)
+			.process(getDocumentCounter(metrics, "failed"))
 			
 			.process(LOGGER.warn(camelLogMsg("Document enrichment failed")
 					.documentId(header(Exchange.CORRELATION_ID))
@@ -0,0 +1,262 @@
+package uk.nhs.ciao.docs.enricher.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * Read-only key/value store backed by a memory-mapped file.
+ * <p>
+ * The file (see {@link MappedPropertiesStoreWriter}) contains a sorted index of UTF-8 keys and the
+ * serialised (UTF-8 JSON) value associated with each key. Lookups binary search the index directly in
+ * the mapped buffers - neither the keys nor the values are loaded onto the heap, and values are only
+ * copied out of the mapping when a key is found.
+ * <p>
+ * The file layout is:
+ * <pre>
+ * header:  magic (int), version (int), entry count (int), reserved (int)
+ * index:   entry count x [key offset (long), key length (int), value length (int)] - sorted by key
+ * data:    key and value bytes - each value immediately follows its key (offsets are relative to the start of the file)
+ * </pre>
+ * A single mapping is limited to 2GB, so the file is mapped in segments of 1GB. Index entries never span two
+ * segments (the header and index entries are 16 bytes, and segments are a multiple of 16 bytes) - keys and values
+ * may.
+ * <p>
+ * Opening a store only checks the header and that the data written for the last entry ends at the end of the file
+ * (catching truncated files) - the time taken does not depend on the number of entries. Each index entry is
+ * bounds checked when it is read by a lookup, so a corrupt entry fails that lookup with an
+ * {@link IllegalStateException}.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class MappedPropertiesStore implements Closeable {
+	static final int MAGIC = 0x43495053; // CIPS
+	static final int VERSION = 2;
+	static final int HEADER_SIZE = 16;
+	static final int INDEX_ENTRY_SIZE = 16;
+	
+	/**
+	 * Segments are 1GB (2^30 bytes)
+	 */
+	static final int DEFAULT_SEGMENT_SHIFT = 30;
+	
+	private final File file;
+	private final RandomAccessFile randomAccessFile;
+	private final int segmentShift;
+	private final long segmentMask;
+	private final MappedByteBuffer[] segments;
+	private final long fileLength;
+	private final int size;
+	
+	/**
+	 * Opens (maps) the specified store file
+	 * 
+	 * @throws IOException If the file could not be opened or is not a valid store file
+	 */
+	public MappedPropertiesStore(final File file) throws IOException {
+		this(file, DEFAULT_SEGMENT_SHIFT);
+	}
+	
+	/**
+	 * Opens (maps) the specified store file in segments of <code>2^segmentShift</code> bytes
+	 */
+	MappedPropertiesStore(final File file, final int segmentShift) throws IOException {
+		Preconditions.checkArgument(segmentShift >= 4 && segmentShift <= 30, "segmentShift must be between 4 and 30");
+		this.file = Preconditions.checkNotNull(file);
+		this.segmentShift = segmentShift;
+		this.segmentMask = (1L << segmentShift) - 1;
+		this.randomAccessFile = new RandomAccessFile(file, "r");
+		
+		boolean opened = false;
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			fileLength = channel.size();
+			if (fileLength < HEADER_SIZE) {
+				throw new IOException("Not a valid store file: " + file);
+			}
+			
+			segments = new MappedByteBuffer[(int)((fileLength + segmentMask) >>> segmentShift)];
+			for (int segment = 0; segment < segments.length; segment++) {
+				final long position = (long)segment << segmentShift;
+				segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(segmentMask + 1, fileLength - position));
+			}
+			
+			if (getInt(0) != MAGIC) {
+				throw new IOException("Not a valid store file: " + file);
+			} else if (getInt(4) != VERSION) {
+				throw new IOException("Unsupported store file version " + getInt(4) + ": " + file);
+			}
+			
+			size = getInt(8);
+			if (size < 0 || HEADER_SIZE + (long)size * INDEX_ENTRY_SIZE > fileLength) {
+				throw new IOException("Store file index is corrupt: " + file);
+			}
+			checkDataLength();
+			opened = true;
+		} finally {
+			if (!opened) {
+				randomAccessFile.close();
+			}
+		}
+	}
+	
+	/**
+	 * Checks that the data of the last entry ends at the end of the file - entries are written in index order, so a
+	 * truncated (or extended) file fails when opened rather than during a lookup
+	 */
+	private void checkDataLength() throws IOException {
+		final long dataEnd;
+		if (size == 0) {
+			dataEnd = getEntryOffset(0);
+		} else {
+			final long entryOffset = getEntryOffset(size - 1);
+			dataEnd = isValidEntry(entryOffset)
+					? getLong(entryOffset) + getInt(entryOffset + 8) + getInt(entryOffset + 12) : -1;
+		}
+		
+		if (dataEnd != fileLength) {
+			throw new IOException("Store file is truncated or corrupt: " + file);
+		}
+	}
+	
+	/**
+	 * Checks that the key and value referenced by the index entry lie within the data section of the file
+	 */
+	private boolean isValidEntry(final long entryOffset) {
+		final long keyOffset = getLong(entryOffset);
+		final int keyLength = getInt(entryOffset + 8);
+		final int valueLength = getInt(entryOffset + 12);
+		return keyOffset >= getEntryOffset(size) && keyLength >= 0 && valueLength >= 0
+				&& keyOffset + keyLength + valueLength <= fileLength;
+	}
+	
+	/**
+	 * Returns the offset of the index entry, after checking that the entry is valid
+	 * 
+	 * @throws IllegalStateException If the index entry is corrupt
+	 */
+	private long getValidEntryOffset(final int entry) {
+		final long entryOffset = getEntryOffset(entry);
+		if (!isValidEntry(entryOffset)) {
+			throw new IllegalStateException("Store file index entry " + entry + " is corrupt: " + file);
+		}
+		return entryOffset;
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * The number of keys in the store
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Finds the serialised value associated with the key
+	 * 
+	 * @return A copy of the value bytes, or null if the key is not in the store
+	 * @throws IllegalStateException If a corrupt index entry is found while searching for the key
+	 */
+	public byte[] get(final String key) {
+		final int entry = find(key.getBytes(Charsets.UTF_8));
+		if (entry < 0) {
+			return null;
+		}
+		
+		final long entryOffset = getValidEntryOffset(entry);
+		final long valueOffset = getLong(entryOffset) + getInt(entryOffset + 8);
+		final byte[] bytes = new byte[getInt(entryOffset + 12)];
+		
+		// The shared segment positions are never changed - duplicates are used for the relative bulk gets
+		int copied = 0;
+		while (copied < bytes.length) {
+			final long position = valueOffset + copied;
+			final ByteBuffer segment = segments[(int)(position >>> segmentShift)].duplicate();
+			segment.position((int)(position & segmentMask));
+			final int count = Math.min(bytes.length - copied, segment.remaining());
+			segment.get(bytes, copied, count);
+			copied += count;
+		}
+		return bytes;
+	}
+	
+	public boolean containsKey(final String key) {
+		return find(key.getBytes(Charsets.UTF_8)) >= 0;
+	}
+	
+	/**
+	 * Binary searches the sorted index
+	 * 
+	 * @return The index entry of the key, or -1 if it is not found
+	 */
+	private int find(final byte[] key) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int comparison = compareKey(middle, key);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Compares the key stored at the index entry with the specified key (as unsigned bytes)
+	 */
+	private int compareKey(final int entry, final byte[] key) {
+		final long entryOffset = getValidEntryOffset(entry);
+		final long keyOffset = getLong(entryOffset);
+		final int keyLength = getInt(entryOffset + 8);
+		
+		final int length = Math.min(keyLength, key.length);
+		for (int index = 0; index < length; index++) {
+			final int difference = (getByte(keyOffset + index) & 0xff) - (key[index] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return keyLength - key.length;
+	}
+	
+	private static long getEntryOffset(final int entry) {
+		return HEADER_SIZE + (long)entry * INDEX_ENTRY_SIZE;
+	}
+	
+	// The header and index fields are aligned so they never span two segments
+	private int getInt(final long offset) {
+		return segments[(int)(offset >>> segmentShift)].getInt((int)(offset & segmentMask));
+	}
+	
+	private long getLong(final long offset) {
+		return segments[(int)(offset >>> segmentShift)].getLong((int)(offset & segmentMask));
+	}
+	
+	private byte getByte(final long offset) {
+		return segments[(int)(offset >>> segmentShift)].get((int)(offset & segmentMask));
+	}
+	
+	/**
+	 * Closes the underlying file - the mappings themselves are released once the buffers are garbage collected
+	 */
+	@Override
+	public void close() throws IOException {
+		randomAccessFile.close();
+	}
+}
@@ -0,0 +1,115 @@
+package uk.nhs.ciao.docs.enricher.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+
+/**
+ * Builds a {@link MappedPropertiesStore} file offline from a reference dataset - a JSON object file, an
+ * NDJSON file or a CSV file (see {@link ReferenceDataReader}).
+ * <p>
+ * The builder can be run from the command line:
+ * <pre>
+ * java -cp ... uk.nhs.ciao.docs.enricher.store.MappedPropertiesStoreBuilder [--recordKeySelector selector] output-file input-file...
+ * </pre>
+ */
+public class MappedPropertiesStoreBuilder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MappedPropertiesStoreBuilder.class);
+	
+	private final JsonCodec jsonCodec;
+	private final ReferenceDataReader reader;
+	private final MappedPropertiesStoreWriter writer;
+	
+	public MappedPropertiesStoreBuilder() {
+		this(new JsonCodec());
+	}
+	
+	public MappedPropertiesStoreBuilder(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+		this.reader = new ReferenceDataReader(jsonCodec);
+		this.writer = new MappedPropertiesStoreWriter();
+	}
+	
+	/**
+	 * Selects the store key of each record in an NDJSON source, or the key column of a CSV source
+	 */
+	public void setRecordKeySelector(final String recordKeySelector) {
+		reader.setRecordKeySelector(recordKeySelector);
+	}
+	
+	/**
+	 * The number of entries added so far
+	 */
+	public int size() {
+		return writer.size();
+	}
+	
+	/**
+	 * Adds the records of the source file - the format is determined by the file extension
+	 * 
+	 * @see ReferenceDataReader
+	 */
+	public void add(final File source) throws IOException {
+		reader.read(source, new ReferenceDataReader.RecordHandler() {
+			@Override
+			public void handleRecord(final String key, final Map<String, Object> record) throws IOException {
+				put(key, record);
+			}
+		});
+	}
+	
+	/**
+	 * Adds (or replaces) a single entry
+	 */
+	public void put(final String key, final Map<String, Object> properties) throws IOException {
+		writer.put(key, jsonCodec.getWriter().writeValueAsBytes(properties));
+	}
+	
+	/**
+	 * Writes the store file
+	 */
+	public void build(final File store) throws IOException {
+		writer.write(store);
+		LOGGER.info("Wrote {} entries to store {}", writer.size(), store);
+	}
+	
+	/**
+	 * Builds a store file from the command line
+	 */
+	public static void main(final String[] args) throws Exception {
+		final MappedPropertiesStoreBuilder builder = new MappedPropertiesStoreBuilder();
+		final List<File> sources = Lists.newArrayList();
+		File store = null;
+		
+		for (int index = 0; index < args.length; index++) {
+			if ("--recordKeySelector".equals(args[index]) && index + 1 < args.length) {
+				builder.setRecordKeySelector(args[++index]);
+			} else if (store == null) {
+				store = new File(args[index]);
+			} else {
+				sources.add(new File(args[index]));
+			}
+		}
+		
+		if (store == null || sources.isEmpty()) {
+			System.err.println("Usage: " + MappedPropertiesStoreBuilder.class.getName()
+					+ " [--recordKeySelector selector] output-file input-file...");
+			System.exit(1);
+			return;
+		}
+		
+		for (final File source: sources) {
+			builder.add(source);
+		}
+		builder.build(store);
+	}
+}
@@ -0,0 +1,78 @@
+package uk.nhs.ciao.docs.enricher.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Writes a {@link MappedPropertiesStore} file.
+ * <p>
+ * Entries are collected in memory (as serialised bytes) and written in key order by {@link #write(File)}. The
+ * file is written to a temporary file in the same directory and then atomically renamed over any existing
+ * store, so readers never see a partially written (or missing) store.
+ */
+public class MappedPropertiesStoreWriter {
+	private final SortedMap<byte[], byte[]> entries = Maps.newTreeMap(UnsignedBytes.lexicographicalComparator());
+	
+	/**
+	 * Adds (or replaces) the serialised value associated with the key
+	 */
+	public void put(final String key, final byte[] value) {
+		Preconditions.checkNotNull(key);
+		Preconditions.checkNotNull(value);
+		
+		entries.put(key.getBytes(Charsets.UTF_8), value);
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * Writes the store file
+	 * 
+	 * @throws IOException If the file could not be written. The file system must support atomic renames within
+	 * 		a directory.
+	 */
+	public void write(final File file) throws IOException {
+		final File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(MappedPropertiesStore.MAGIC);
+			out.writeInt(MappedPropertiesStore.VERSION);
+			out.writeInt(entries.size());
+			out.writeInt(0); // reserved - keeps the index entries aligned
+			
+			long offset = MappedPropertiesStore.HEADER_SIZE + (long)entries.size() * MappedPropertiesStore.INDEX_ENTRY_SIZE;
+			for (final Map.Entry<byte[], byte[]> entry: entries.entrySet()) {
+				final int keyLength = entry.getKey().length;
+				final int valueLength = entry.getValue().length;
+				out.writeLong(offset);
+				out.writeInt(keyLength);
+				out.writeInt(valueLength);
+				offset += keyLength + valueLength;
+			}
+			
+			for (final Map.Entry<byte[], byte[]> entry: entries.entrySet()) {
+				out.write(entry.getKey());
+				out.write(entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+		
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,196 @@
+package uk.nhs.ciao.docs.enricher.store;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+import uk.nhs.ciao.docs.parser.PropertySelector;
+
+/**
+ * Reads the keyed records of a reference dataset file (e.g. a JSON dump or a database export).
+ * <p>
+ * The format is determined by the file extension:
+ * <ul>
+ * <li>JSON (any other extension) - a single JSON object whose fields map each key to a JSON object record
+ * <li>NDJSON (<code>.ndjson</code> / <code>.jsonl</code>) - each line is a JSON object record keyed by the
+ * 		value returned by the {@link #setRecordKeySelector(String) recordKeySelector}
+ * <li>CSV (<code>.csv</code>) - the first row contains the column names, and each subsequent row is a record
+ * 		of column name to (non-empty) value keyed by the {@link #setRecordKeySelector(String) recordKeySelector} column
+ * </ul>
+ */
+public class ReferenceDataReader {
+	/**
+	 * Receives each record read from a source
+	 */
+	public interface RecordHandler {
+		void handleRecord(String key, Map<String, Object> record) throws IOException;
+	}
+	
+	private final JsonCodec jsonCodec;
+	private PropertySelector recordKeySelector;
+	
+	public ReferenceDataReader(final JsonCodec jsonCodec) {
+		this.jsonCodec = Preconditions.checkNotNull(jsonCodec);
+	}
+	
+	/**
+	 * Selects the key of each record in an NDJSON source, or the key column of a CSV source
+	 */
+	public void setRecordKeySelector(final String recordKeySelector) {
+		this.recordKeySelector = Strings.isNullOrEmpty(recordKeySelector) ? null : PropertySelector.valueOf(recordKeySelector);
+	}
+	
+	/**
+	 * Reads each record of the source file - records without a key are skipped
+	 */
+	public void read(final File source, final RecordHandler handler) throws IOException {
+		final String name = source.getName().toLowerCase();
+		if (name.endsWith(".ndjson") || name.endsWith(".jsonl")) {
+			readNdjson(source, handler);
+		} else if (name.endsWith(".csv")) {
+			readCsv(source, handler);
+		} else {
+			readJsonObject(source, handler);
+		}
+	}
+	
+	private void readJsonObject(final File source, final RecordHandler handler) throws IOException {
+		final InputStream in = new FileInputStream(source);
+		try {
+			final JsonParser parser = jsonCodec.getObjectMapper().getFactory().createParser(in);
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					throw new JsonParseException("Expected a JSON object", parser.getCurrentLocation());
+				}
+				
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					final String key = parser.getCurrentName();
+					if (parser.nextToken() == JsonToken.START_OBJECT) {
+						handler.handleRecord(key, jsonCodec.readMap(parser));
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} finally {
+				parser.close();
+			}
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+	}
+	
+	private void readNdjson(final File source, final RecordHandler handler) throws IOException {
+		Preconditions.checkState(recordKeySelector != null, "recordKeySelector is required for NDJSON sources");
+		
+		final BufferedReader reader = newReader(source);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					handleRecord(jsonCodec.readMap(line), handler);
+				}
+			}
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+	}
+	
+	private void readCsv(final File source, final RecordHandler handler) throws IOException {
+		Preconditions.checkState(recordKeySelector != null, "recordKeySelector is required for CSV sources");
+		
+		final BufferedReader reader = newReader(source);
+		try {
+			final List<String> columns = readCsvRow(reader);
+			if (columns == null) {
+				return;
+			}
+			
+			List<String> row;
+			while ((row = readCsvRow(reader)) != null) {
+				final Map<String, Object> record = Maps.newLinkedHashMap();
+				for (int index = 0; index < row.size() && index < columns.size(); index++) {
+					if (!row.get(index).isEmpty()) {
+						record.put(columns.get(index), row.get(index));
+					}
+				}
+				
+				if (!record.isEmpty()) {
+					handleRecord(record, handler);
+				}
+			}
+		} finally {
+			Closeables.closeQuietly(reader);
+		}
+	}
+	
+	private void handleRecord(final Map<String, Object> record, final RecordHandler handler) throws IOException {
+		final Object key = recordKeySelector.selectValue(record);
+		if (key != null) {
+			handler.handleRecord(key.toString(), record);
+		}
+	}
+	
+	private BufferedReader newReader(final File source) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(source), Charsets.UTF_8));
+	}
+	
+	/**
+	 * Reads a single RFC 4180 row - quoted values may contain commas, escaped quotes and line breaks
+	 * 
+	 * @return The values of the row, or null if the end of the input has been reached
+	 */
+	static List<String> readCsvRow(final Reader reader) throws IOException {
+		final List<String> values = Lists.newArrayList();
+		final StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		int next = reader.read();
+		if (next < 0) {
+			return null;
+		}
+		
+		while (next >= 0) {
+			final char c = (char)next;
+			next = reader.read();
+			
+			if (quoted) {
+				if (c != '"') {
+					value.append(c);
+				} else if (next == '"') {
+					value.append('"');
+					next = reader.read();
+				} else {
+					quoted = false;
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else if (c == '\n') {
+				break;
+			} else if (c != '\r') {
+				value.append(c);
+			}
+		}
+		
+		values.add(value.toString());
+		return values;
+	}
+}
@@ -0,0 +1,205 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link AdaptiveConcurrencyLimiter}
+ */
+public class AdaptiveConcurrencyLimiterTest {
+	private MetricsRegistry metrics;
+	private AdaptiveConcurrencyLimiter limiter;
+	private ExecutorService executorService;
+
+	@Before
+	public void setup() {
+		metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		limiter = new AdaptiveConcurrencyLimiter(metrics, "limiter");
+		limiter.setMaxLimit(10);
+		limiter.setInitialLimit(4);
+		limiter.setLatencyThreshold(0);
+		limiter.setBackoffRatio(0.5);
+		executorService = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executorService.shutdownNow();
+		limiter.close();
+	}
+
+	@Test
+	public void testFailuresReduceTheLimit() throws Exception {
+		limiter.release(limiter.acquire(), true);
+		Assert.assertEquals(2, limiter.getLimit());
+
+		limiter.release(limiter.acquire(), true);
+		limiter.release(limiter.acquire(), true);
+		Assert.assertEquals("limit should not drop below minLimit", 1, limiter.getLimit());
+		Assert.assertEquals(1, metrics.gauge(AdaptiveConcurrencyLimiter.LIMIT_METRIC, "limiter", "limiter").getValue());
+	}
+
+	@Test
+	public void testSlowCallsReduceTheLimit() throws Exception {
+		limiter.setLatencyThreshold(1);
+
+		final long startNanos = limiter.acquire();
+		Thread.sleep(5);
+		limiter.release(startNanos, false);
+
+		Assert.assertEquals(2, limiter.getLimit());
+	}
+
+	@Test
+	public void testSuccessfulCallsIncreaseTheLimitWhenInUse() throws Exception {
+		// a single call at a time does not use the limit
+		for (int index = 0; index < 20; index++) {
+			limiter.release(limiter.acquire(), false);
+		}
+		Assert.assertEquals(4, limiter.getLimit());
+
+		// the limit increases by one for each limit's worth of calls completed while it is in use
+		for (int round = 0; round < 4; round++) {
+			final List<Long> startTimes = Lists.newArrayList();
+			for (int index = 0; index < 4; index++) {
+				startTimes.add(limiter.acquire());
+			}
+			for (final long startNanos: startTimes) {
+				limiter.release(startNanos, false);
+			}
+		}
+		Assert.assertTrue(limiter.getLimit() > 4);
+		Assert.assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testCallsOverTheLimitWaitAndNotifyListeners() throws Exception {
+		final List<Boolean> notifications = Lists.newArrayList();
+		limiter.addListener(new AdaptiveConcurrencyLimiter.Listener() {
+			@Override
+			public void onSaturationChanged(final AdaptiveConcurrencyLimiter limiter, final boolean saturated) {
+				synchronized (notifications) {
+					notifications.add(saturated);
+				}
+			}
+		});
+
+		final List<Long> startTimes = Lists.newArrayList();
+		for (int index = 0; index < 4; index++) {
+			startTimes.add(limiter.acquire());
+		}
+
+		final Future<Long> waitingCall = executorService.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return limiter.acquire();
+			}
+		});
+
+		while (!limiter.isSaturated()) {
+			Thread.sleep(5);
+		}
+		Assert.assertFalse(waitingCall.isDone());
+
+		limiter.release(startTimes.remove(0), false);
+		startTimes.add(waitingCall.get(5, TimeUnit.SECONDS));
+
+		for (final long startNanos: startTimes) {
+			limiter.release(startNanos, false);
+		}
+		Assert.assertFalse(limiter.isSaturated());
+
+		final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+		while (System.currentTimeMillis() < timeout) {
+			synchronized (notifications) {
+				if (notifications.size() >= 2) {
+					break;
+				}
+			}
+			Thread.sleep(5);
+		}
+		synchronized (notifications) {
+			Assert.assertEquals(Lists.newArrayList(true, false), notifications);
+		}
+	}
+
+	@Test
+	public void testListenersAreNotifiedOutsideTheLock() throws Exception {
+		final CountDownLatch listenerStarted = new CountDownLatch(1);
+		final CountDownLatch listenerReleased = new CountDownLatch(1);
+		final Thread callingThread = Thread.currentThread();
+		final List<Thread> notifiedThreads = Lists.newCopyOnWriteArrayList();
+		limiter.addListener(new AdaptiveConcurrencyLimiter.Listener() {
+			@Override
+			public void onSaturationChanged(final AdaptiveConcurrencyLimiter limiter, final boolean saturated) {
+				notifiedThreads.add(Thread.currentThread());
+				listenerStarted.countDown();
+				try {
+					listenerReleased.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		final List<Long> startTimes = Lists.newArrayList();
+		for (int index = 0; index < 4; index++) {
+			startTimes.add(limiter.acquire());
+		}
+		final Future<Long> waitingCall = executorService.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return limiter.acquire();
+			}
+		});
+		Assert.assertTrue(listenerStarted.await(5, TimeUnit.SECONDS));
+
+		// The blocked listener does not prevent permits being released and acquired
+		limiter.release(startTimes.remove(0), false);
+		startTimes.add(waitingCall.get(5, TimeUnit.SECONDS));
+		for (final long startNanos: startTimes) {
+			limiter.release(startNanos, false);
+		}
+		Assert.assertEquals(0, limiter.getInFlight());
+
+		listenerReleased.countDown();
+		Assert.assertFalse(notifiedThreads.contains(callingThread));
+	}
+
+	@Test(expected=TimeoutException.class)
+	public void testCallsFailAfterMaxWait() throws Exception {
+		limiter.setMaxWait(10);
+		for (int index = 0; index < 4; index++) {
+			limiter.acquire();
+		}
+
+		limiter.acquire();
+	}
+
+	@Test
+	public void testTimedAcquireGivesUpAfterTimeout() throws Exception {
+		for (int index = 0; index < 4; index++) {
+			limiter.acquire();
+		}
+
+		Assert.assertFalse(limiter.tryAcquire(10, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(4, limiter.getInFlight());
+		Assert.assertEquals(1, metrics.counter(AdaptiveConcurrencyLimiter.LIMITED_METRIC, "limiter", "limiter", "outcome", "rejected").getCount());
+	}
+}
@@ -0,0 +1,125 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Unit tests for {@link AsyncDynamicDocumentEnricher}
+ */
+public class AsyncDynamicDocumentEnricherTest {
+	private DocumentPropertiesFinder finder;
+	private BatchingDocumentPropertiesFinder batchingFinder;
+	private AsyncDynamicDocumentEnricher enricher;
+	
+	@Before
+	public void setup() {
+		finder = Mockito.mock(DocumentPropertiesFinder.class, Mockito.RETURNS_DEFAULTS); // empty map by default
+		batchingFinder = new BatchingDocumentPropertiesFinder(finder);
+		batchingFinder.setThreads(2);
+		
+		// The same chain as lookup-database-async.xml
+		final MetricsRegistry metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		enricher = new AsyncDynamicDocumentEnricher(new CachingDocumentPropertiesFinder(
+				new CoalescingDocumentPropertiesFinder(batchingFinder), metrics, "propertiesFinder"));
+	}
+	
+	@After
+	public void tearDown() {
+		batchingFinder.close();
+	}
+	
+	private ParsedDocument createDocument() {
+		final Map<String, Object> properties = Maps.newLinkedHashMap();
+		
+		properties.put("name", "example");
+		properties.put("id", "12");
+		properties.put("authors", Arrays.<Object>asList(
+				person("2"),
+				person("5")));
+		
+		return new ParsedDocument(new Document("example.txt", "hello world".getBytes()), properties);
+	}
+	
+	private Map<String, Object> person(final String id) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put("id", id);
+		return map;
+	}
+	
+	private Map<String, Object> person(final String id, final String name) {
+		final Map<String, Object> person = person(id);
+		person.put("name", name);
+		return person;
+	}
+	
+	private ParsedDocument enrich(final ParsedDocument document) throws Exception {
+		final SettableFuture<ParsedDocument> result = SettableFuture.create();
+		enricher.enrichDocument(document, new AsyncDocumentEnricherCallback() {
+			@Override
+			public void onDocumentWasEnriched(final ParsedDocument enrichedDocument) {
+				result.set(enrichedDocument);
+			}
+			
+			@Override
+			public void onDocumentEnrichmentFailed(final Throwable cause) {
+				result.setException(cause);
+			}
+		});
+		return result.get(10, TimeUnit.SECONDS);
+	}
+	
+	@Test
+	public void testAllSectionsAreEnriched() throws Exception {
+		enricher.setLookupKeySelectors(Arrays.asList("id"));
+		enricher.setEnrichablePropertiesSelectors(Arrays.asList("authors[*]"));
+		
+		Mockito.when(finder.findProperties(person("2"))).thenReturn(person("2", "John Smith"));
+		Mockito.when(finder.findProperties(person("5"))).thenReturn(person("5", "Peter Jones"));
+		
+		final ParsedDocument document = enrich(createDocument());
+		
+		final List<?> authors = (List<?>)document.getProperties().get("authors");
+		Assert.assertEquals(2, authors.size());
+		Assert.assertEquals(authors.get(0), person("2", "John Smith"));
+		Assert.assertEquals(authors.get(1), person("5", "Peter Jones"));
+	}
+	
+	@Test
+	public void testLookupFailureIsPassedToCallback() throws Exception {
+		enricher.setLookupKeySelectors(Arrays.asList("id"));
+		enricher.setEnrichablePropertiesSelectors(Arrays.asList("authors[*]"));
+		
+		final Exception cause = new Exception("lookup failed");
+		Mockito.when(finder.findProperties(person("5"))).thenThrow(cause);
+		
+		try {
+			enrich(createDocument());
+			Assert.fail("Expected enrichment to fail");
+		} catch (ExecutionException e) {
+			Assert.assertSame(cause, e.getCause());
+		}
+	}
+	
+	@Test
+	public void testNullDocumentIsNotEnriched() throws Exception {
+		Assert.assertNull(enrich(null));
+		Mockito.verifyZeroInteractions(finder);
+	}
+}
@@ -0,0 +1,157 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Unit tests for {@link BatchingDocumentPropertiesFinder}
+ */
+public class BatchingDocumentPropertiesFinderTest {
+	private BatchDocumentPropertiesFinder delegate;
+	private BatchingDocumentPropertiesFinder finder;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setup() throws Exception {
+		delegate = Mockito.mock(BatchDocumentPropertiesFinder.class);
+		Mockito.when(delegate.findAllProperties(Mockito.anyList())).thenAnswer(new Answer<List<Map<String, Object>>>() {
+			@Override
+			public List<Map<String, Object>> answer(final InvocationOnMock invocation) throws Throwable {
+				final List<Map<String, Object>> lookupKeys = (List<Map<String, Object>>)invocation.getArguments()[0];
+				final List<Map<String, Object>> results = Lists.newArrayList();
+				for (final Map<String, Object> keys: lookupKeys) {
+					results.add(map("name", "name-" + keys.get("id")));
+				}
+				return results;
+			}
+		});
+
+		finder = new BatchingDocumentPropertiesFinder(delegate);
+	}
+
+	@After
+	public void tearDown() {
+		finder.close();
+	}
+
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testLookupsWithinDelayAreBatched() throws Exception {
+		finder.setMaxDelay(TimeUnit.SECONDS.toMillis(1));
+
+		final ListenableFuture<Map<String, Object>> first = finder.findPropertiesAsync(map("id", "1"));
+		final ListenableFuture<Map<String, Object>> second = finder.findPropertiesAsync(map("id", "2"));
+
+		Assert.assertEquals(map("name", "name-1"), first.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(map("name", "name-2"), second.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(1, finder.getBatchCount());
+		Mockito.verify(delegate, Mockito.times(1)).findAllProperties(Mockito.anyList());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFullBatchIsSentImmediately() throws Exception {
+		finder.setMaxDelay(TimeUnit.MINUTES.toMillis(10));
+		finder.setMaxBatchSize(2);
+
+		final ListenableFuture<Map<String, Object>> first = finder.findPropertiesAsync(map("id", "1"));
+		final ListenableFuture<Map<String, Object>> second = finder.findPropertiesAsync(map("id", "2"));
+
+		Assert.assertEquals(map("name", "name-1"), first.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(map("name", "name-2"), second.get(10, TimeUnit.SECONDS));
+		Mockito.verify(delegate, Mockito.times(1)).findAllProperties(Mockito.anyList());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testZeroDelayDisablesBatching() throws Exception {
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenReturn(map("name", "single"));
+
+		Assert.assertEquals(map("name", "single"), finder.findProperties(map("id", "1")));
+		Mockito.verify(delegate, Mockito.never()).findAllProperties(Mockito.anyList());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testZeroDelaySendsAsyncLookupsIndividuallyAndConcurrently() throws Exception {
+		// Each lookup only completes once both lookups are in flight
+		final CountDownLatch inFlight = new CountDownLatch(2);
+		Mockito.when(delegate.findProperties(Mockito.anyMap())).thenAnswer(new Answer<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+				final Map<String, Object> keys = (Map<String, Object>)invocation.getArguments()[0];
+				inFlight.countDown();
+				Assert.assertTrue("Expected both lookups to be in flight", inFlight.await(10, TimeUnit.SECONDS));
+				return map("name", "single-" + keys.get("id"));
+			}
+		});
+		finder.setThreads(2);
+
+		final ListenableFuture<Map<String, Object>> first = finder.findPropertiesAsync(map("id", "1"));
+		final ListenableFuture<Map<String, Object>> second = finder.findPropertiesAsync(map("id", "2"));
+
+		Assert.assertEquals(map("name", "single-1"), first.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(map("name", "single-2"), second.get(10, TimeUnit.SECONDS));
+		Mockito.verify(delegate, Mockito.never()).findAllProperties(Mockito.anyList());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testLookupsAfterCloseAreRejected() throws Exception {
+		finder.setMaxDelay(TimeUnit.SECONDS.toMillis(1));
+		finder.close();
+
+		try {
+			finder.findProperties(map("id", "1"));
+			Assert.fail("Expected the lookup to be rejected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		Assert.assertEquals(0, finder.getLookupCount());
+		Mockito.verify(delegate, Mockito.never()).findAllProperties(Mockito.anyList());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testLookupsAreRejectedWhenQueueIsFull() throws Exception {
+		finder.setMaxDelay(TimeUnit.MINUTES.toMillis(10));
+		finder.setMaxQueuedLookups(2);
+
+		finder.findPropertiesAsync(map("id", "1"));
+		finder.findPropertiesAsync(map("id", "2"));
+		final ListenableFuture<Map<String, Object>> rejected = finder.findPropertiesAsync(map("id", "3"));
+
+		try {
+			rejected.get(10, TimeUnit.SECONDS);
+			Assert.fail("Expected the lookup to be rejected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+
+		Assert.assertEquals(2, finder.getLookupCount());
+		Mockito.verify(delegate, Mockito.never()).findAllProperties(Mockito.anyList());
+	}
+}
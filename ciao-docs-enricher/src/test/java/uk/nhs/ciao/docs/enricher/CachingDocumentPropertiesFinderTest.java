@@ -0,0 +1,172 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link CachingDocumentPropertiesFinder}
+ */
+public class CachingDocumentPropertiesFinderTest {
+	private MetricsRegistry metrics;
+	private DocumentPropertiesFinder delegate;
+	private CachingDocumentPropertiesFinder finder;
+
+	@Before
+	public void setup() throws Exception {
+		metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		delegate = Mockito.mock(DocumentPropertiesFinder.class);
+		Mockito.when(delegate.findProperties(keys("1"))).thenReturn(map("name", "John Smith"));
+		Mockito.when(delegate.findProperties(keys("2"))).thenReturn(Collections.<String, Object>emptyMap());
+
+		finder = new CachingDocumentPropertiesFinder(delegate, metrics, "finder");
+	}
+
+	private Map<String, Object> keys(final String id) {
+		final Map<String, Object> keys = map("id", id);
+		keys.put("type", "person");
+		return keys;
+	}
+
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+
+	private long getCount(final String name, final String... tags) {
+		return metrics.counter(name, tags).getCount();
+	}
+
+	@Test
+	public void testRepeatedLookupsAreCached() throws Exception {
+		Assert.assertEquals(map("name", "John Smith"), finder.findProperties(keys("1")));
+		Assert.assertEquals(map("name", "John Smith"), finder.findProperties(keys("1")));
+
+		Mockito.verify(delegate, Mockito.times(1)).findProperties(keys("1"));
+		Assert.assertEquals(1, finder.getHitCount());
+		Assert.assertEquals(1, finder.getMissCount());
+		Assert.assertEquals(1, getCount(CachingDocumentPropertiesFinder.LOOKUPS_METRIC, "finder", "finder", "outcome", "hit"));
+		Assert.assertEquals(1, getCount(CachingDocumentPropertiesFinder.LOOKUPS_METRIC, "finder", "finder", "outcome", "miss"));
+	}
+
+	@Test
+	public void testKeyOrderingIsNormalised() throws Exception {
+		final Map<String, Object> reordered = map("type", "person");
+		reordered.put("id", "1");
+
+		finder.findProperties(keys("1"));
+		finder.findProperties(reordered);
+
+		Mockito.verify(delegate, Mockito.times(1)).findProperties(Mockito.<Map<String, Object>>any());
+	}
+
+	@Test
+	public void testReturnedPropertiesAreIsolatedFromCache() throws Exception {
+		finder.findProperties(keys("1")).put("name", "changed");
+
+		Assert.assertEquals(map("name", "John Smith"), finder.findProperties(keys("1")));
+	}
+
+	@Test
+	public void testEmptyResultsCanBeExcluded() throws Exception {
+		finder.setCacheEmptyResults(false);
+
+		finder.findProperties(keys("2"));
+		finder.findProperties(keys("2"));
+
+		Mockito.verify(delegate, Mockito.times(2)).findProperties(keys("2"));
+	}
+
+	@Test
+	public void testSizeIsBounded() throws Exception {
+		finder.setMaximumSize(1);
+
+		finder.findProperties(keys("1"));
+		finder.findProperties(keys("2"));
+		finder.findProperties(keys("1"));
+
+		Mockito.verify(delegate, Mockito.times(2)).findProperties(keys("1"));
+		Assert.assertEquals(1, finder.getSize());
+		Assert.assertTrue(finder.getEvictionCount() > 0);
+		Assert.assertEquals(finder.getEvictionCount(), getCount(CachingDocumentPropertiesFinder.EVICTIONS_METRIC, "finder", "finder"));
+	}
+
+	@Test
+	public void testInvalidatedEntriesAreNotCountedAsEvictions() throws Exception {
+		finder.findProperties(keys("1"));
+		finder.invalidate(keys("1"));
+		finder.findProperties(keys("1"));
+
+		Assert.assertEquals(0, finder.getEvictionCount());
+		Assert.assertEquals(2, finder.getMissCount());
+	}
+
+	@Test
+	public void testZeroSizeDisablesCache() throws Exception {
+		finder.setMaximumSize(0);
+
+		finder.findProperties(keys("1"));
+		finder.findProperties(keys("1"));
+
+		Mockito.verify(delegate, Mockito.times(2)).findProperties(keys("1"));
+	}
+
+	@Test
+	public void testInvalidateMatching() throws Exception {
+		finder.findProperties(keys("1"));
+		finder.findProperties(keys("2"));
+
+		final List<Map<String, Object>> invalidated = finder.invalidateMatching(new Predicate<Map<String, Object>>() {
+			@Override
+			public boolean apply(final Map<String, Object> lookupKeys) {
+				return "1".equals(lookupKeys.get("id"));
+			}
+		});
+
+		Assert.assertEquals(1, invalidated.size());
+		Assert.assertEquals("1", invalidated.get(0).get("id"));
+		Assert.assertEquals(1, finder.getSize());
+
+		finder.findProperties(keys("1"));
+		finder.findProperties(keys("2"));
+		Mockito.verify(delegate, Mockito.times(2)).findProperties(keys("1"));
+		Mockito.verify(delegate, Mockito.times(1)).findProperties(keys("2"));
+	}
+
+	@Test
+	public void testAsyncMissesArePassedToAsyncDelegate() throws Exception {
+		final DocumentPropertiesFinder asyncDelegate = Mockito.mock(DocumentPropertiesFinder.class,
+				Mockito.withSettings().extraInterfaces(AsyncDocumentPropertiesFinder.class));
+		final SettableFuture<Map<String, Object>> lookup = SettableFuture.create();
+		Mockito.when(((AsyncDocumentPropertiesFinder)asyncDelegate).findPropertiesAsync(keys("1"))).thenReturn(lookup);
+		finder = new CachingDocumentPropertiesFinder(asyncDelegate, metrics, "finder");
+
+		final ListenableFuture<Map<String, Object>> miss = finder.findPropertiesAsync(keys("1"));
+		Assert.assertFalse(miss.isDone());
+
+		lookup.set(map("name", "John Smith"));
+		Assert.assertEquals(map("name", "John Smith"), miss.get(10, TimeUnit.SECONDS));
+
+		final ListenableFuture<Map<String, Object>> hit = finder.findPropertiesAsync(keys("1"));
+		Assert.assertTrue(hit.isDone());
+		Assert.assertEquals(map("name", "John Smith"), hit.get());
+		Assert.assertNotSame(miss.get(), hit.get());
+		Mockito.verify((AsyncDocumentPropertiesFinder)asyncDelegate, Mockito.times(1)).findPropertiesAsync(keys("1"));
+		Mockito.verify(asyncDelegate, Mockito.never()).findProperties(Mockito.<Map<String, Object>>any());
+	}
+}
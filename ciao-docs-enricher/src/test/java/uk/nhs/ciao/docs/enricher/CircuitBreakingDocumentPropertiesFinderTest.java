@@ -0,0 +1,157 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.docs.enricher.CircuitBreakingDocumentPropertiesFinder.State;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link CircuitBreakingDocumentPropertiesFinder}
+ */
+public class CircuitBreakingDocumentPropertiesFinderTest {
+	private MetricsRegistry metrics;
+	private DocumentPropertiesFinder delegate;
+	private CircuitBreakingDocumentPropertiesFinder finder;
+
+	@Before
+	public void setup() {
+		metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		delegate = Mockito.mock(DocumentPropertiesFinder.class);
+		finder = new CircuitBreakingDocumentPropertiesFinder(delegate, metrics, "finder");
+		finder.setWindowSize(4);
+		finder.setFailureRateThreshold(50);
+		finder.setOpenDuration(50);
+		finder.setHalfOpenCalls(1);
+	}
+
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+
+	private void findIgnoringFailure(final Map<String, Object> lookupKeys) throws Exception {
+		try {
+			finder.findProperties(lookupKeys);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private void openCircuit() throws Exception {
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenReturn(map("name", "one"));
+		Mockito.when(delegate.findProperties(map("id", "2"))).thenThrow(new IOException("database unavailable"));
+
+		finder.findProperties(map("id", "1"));
+		finder.findProperties(map("id", "1"));
+		findIgnoringFailure(map("id", "2"));
+		Assert.assertEquals(State.CLOSED, finder.getState());
+
+		findIgnoringFailure(map("id", "2"));
+		Assert.assertEquals(State.OPEN, finder.getState());
+		Assert.assertEquals(State.OPEN.ordinal(), metrics.gauge(CircuitBreakingDocumentPropertiesFinder.STATE_METRIC,
+				"finder", "finder").getValue());
+	}
+
+	@Test
+	public void testOpenCircuitFailsFast() throws Exception {
+		openCircuit();
+		Mockito.reset(delegate);
+
+		try {
+			finder.findProperties(map("id", "2"));
+			Assert.fail("Expected the lookup to be rejected");
+		} catch (CircuitOpenException e) {
+			Assert.assertEquals(0, e.getStackTrace().length);
+		}
+
+		Mockito.verifyZeroInteractions(delegate);
+		Assert.assertEquals(1, metrics.counter(CircuitBreakingDocumentPropertiesFinder.REJECTED_METRIC,
+				"finder", "finder", "outcome", "rejected").getCount());
+	}
+
+	@Test
+	public void testOpenCircuitFallsBackToLastKnownProperties() throws Exception {
+		openCircuit();
+		Mockito.reset(delegate);
+
+		Assert.assertEquals(map("name", "one"), finder.findProperties(map("id", "1")));
+		Assert.assertEquals(Arrays.asList(map("name", "one")), finder.findAllProperties(Arrays.asList(map("id", "1"))));
+
+		Mockito.verifyZeroInteractions(delegate);
+		Assert.assertEquals(2, metrics.counter(CircuitBreakingDocumentPropertiesFinder.REJECTED_METRIC,
+				"finder", "finder", "outcome", "fallback").getCount());
+	}
+
+	@Test(expected=CircuitOpenException.class)
+	public void testFallbackCanBeDisabled() throws Exception {
+		finder.setFallbackCacheSize(0);
+		openCircuit();
+
+		finder.findProperties(map("id", "1"));
+	}
+
+	@Test
+	public void testSuccessfulProbeClosesCircuit() throws Exception {
+		openCircuit();
+		Thread.sleep(60);
+
+		Mockito.when(delegate.findProperties(map("id", "3"))).thenReturn(map("name", "three"));
+		Assert.assertEquals(map("name", "three"), finder.findProperties(map("id", "3")));
+		Assert.assertEquals(State.CLOSED, finder.getState());
+	}
+
+	@Test
+	public void testFailedProbeReopensCircuit() throws Exception {
+		openCircuit();
+		Thread.sleep(60);
+
+		findIgnoringFailure(map("id", "2"));
+		Assert.assertEquals(State.OPEN, finder.getState());
+		Mockito.verify(delegate, Mockito.times(3)).findProperties(map("id", "2"));
+	}
+
+	@Test
+	public void testProbeFailingWithErrorIsReleased() throws Exception {
+		openCircuit();
+		Thread.sleep(60);
+
+		Mockito.when(delegate.findProperties(map("id", "3"))).thenThrow(new AssertionError("unexpected"));
+		try {
+			finder.findProperties(map("id", "3"));
+			Assert.fail("Expected the error to be thrown");
+		} catch (AssertionError e) {
+			// expected
+		}
+		Assert.assertEquals(State.OPEN, finder.getState());
+
+		// Once the circuit is half-open again the next probe is permitted
+		Thread.sleep(60);
+		Mockito.when(delegate.findProperties(map("id", "4"))).thenReturn(map("name", "four"));
+		Assert.assertEquals(map("name", "four"), finder.findProperties(map("id", "4")));
+		Assert.assertEquals(State.CLOSED, finder.getState());
+	}
+
+	@Test
+	public void testDisabledCircuitBreakerPassesThroughFailures() throws Exception {
+		finder.setWindowSize(0);
+		Mockito.when(delegate.findProperties(map("id", "2"))).thenThrow(new IOException("database unavailable"));
+
+		for (int index = 0; index < 10; index++) {
+			findIgnoringFailure(map("id", "2"));
+		}
+
+		Mockito.verify(delegate, Mockito.times(10)).findProperties(map("id", "2"));
+		Assert.assertEquals(State.CLOSED, finder.getState());
+	}
+}
@@ -0,0 +1,121 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Unit tests for {@link CoalescingDocumentPropertiesFinder}
+ */
+public class CoalescingDocumentPropertiesFinderTest {
+	private ExecutorService executorService;
+	private DocumentPropertiesFinder delegate;
+	private CoalescingDocumentPropertiesFinder finder;
+	private CountDownLatch lookupStarted;
+	private CountDownLatch releaseLookup;
+
+	@Before
+	public void setup() throws Exception {
+		executorService = Executors.newCachedThreadPool();
+		lookupStarted = new CountDownLatch(1);
+		releaseLookup = new CountDownLatch(1);
+
+		delegate = Mockito.mock(DocumentPropertiesFinder.class);
+		Mockito.when(delegate.findProperties(Mockito.<Map<String, Object>>any())).thenAnswer(new Answer<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+				lookupStarted.countDown();
+				releaseLookup.await(10, TimeUnit.SECONDS);
+				return map("name", "John Smith");
+			}
+		});
+
+		finder = new CoalescingDocumentPropertiesFinder(delegate);
+	}
+
+	@After
+	public void tearDown() {
+		executorService.shutdownNow();
+	}
+
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+
+	private Future<Map<String, Object>> findPropertiesAsync(final Map<String, Object> lookupKeys) {
+		return executorService.submit(new Callable<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> call() throws Exception {
+				return finder.findProperties(lookupKeys);
+			}
+		});
+	}
+
+	@Test
+	public void testConcurrentLookupsAreCoalesced() throws Exception {
+		final Future<Map<String, Object>> first = findPropertiesAsync(map("id", "1"));
+		Assert.assertTrue(lookupStarted.await(10, TimeUnit.SECONDS));
+
+		final Future<Map<String, Object>> second = findPropertiesAsync(map("id", "1"));
+		while (finder.getCoalescedCount() == 0) {
+			Thread.sleep(10);
+		}
+		releaseLookup.countDown();
+
+		Assert.assertEquals(map("name", "John Smith"), first.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(map("name", "John Smith"), second.get(10, TimeUnit.SECONDS));
+		Assert.assertNotSame(first.get(), second.get());
+		Mockito.verify(delegate, Mockito.times(1)).findProperties(Mockito.<Map<String, Object>>any());
+	}
+
+	@Test
+	public void testSequentialLookupsAreNotCoalesced() throws Exception {
+		releaseLookup.countDown();
+
+		finder.findProperties(map("id", "1"));
+		finder.findProperties(map("id", "1"));
+
+		Mockito.verify(delegate, Mockito.times(2)).findProperties(Mockito.<Map<String, Object>>any());
+		Assert.assertEquals(0, finder.getInFlightCount());
+	}
+
+	@Test
+	public void testAsyncLookupsAreCoalescedWithoutBlocking() throws Exception {
+		final DocumentPropertiesFinder asyncDelegate = Mockito.mock(DocumentPropertiesFinder.class,
+				Mockito.withSettings().extraInterfaces(AsyncDocumentPropertiesFinder.class));
+		final SettableFuture<Map<String, Object>> lookup = SettableFuture.create();
+		Mockito.when(((AsyncDocumentPropertiesFinder)asyncDelegate).findPropertiesAsync(map("id", "1"))).thenReturn(lookup);
+		finder = new CoalescingDocumentPropertiesFinder(asyncDelegate);
+
+		final ListenableFuture<Map<String, Object>> first = finder.findPropertiesAsync(map("id", "1"));
+		final ListenableFuture<Map<String, Object>> second = finder.findPropertiesAsync(map("id", "1"));
+		Assert.assertFalse(first.isDone());
+		Assert.assertEquals(1, finder.getCoalescedCount());
+
+		lookup.set(map("name", "John Smith"));
+		Assert.assertEquals(map("name", "John Smith"), first.get(10, TimeUnit.SECONDS));
+		Assert.assertEquals(map("name", "John Smith"), second.get(10, TimeUnit.SECONDS));
+		Assert.assertNotSame(first.get(), second.get());
+		Assert.assertEquals(0, finder.getInFlightCount());
+		Mockito.verify((AsyncDocumentPropertiesFinder)asyncDelegate, Mockito.times(1)).findPropertiesAsync(map("id", "1"));
+		Mockito.verify(asyncDelegate, Mockito.never()).findProperties(Mockito.<Map<String, Object>>any());
+	}
+}
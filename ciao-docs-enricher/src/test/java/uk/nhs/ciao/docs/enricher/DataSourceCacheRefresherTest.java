@@ -0,0 +1,168 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link DataSourceCacheRefresher}
+ */
+public class DataSourceCacheRefresherTest {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceCacheRefresherTest.class);
+
+	private DriverManagerDataSource dataSource;
+	private DocumentPropertiesFinder delegate;
+	private CachingDocumentPropertiesFinder finder;
+	private DataSourceCacheRefresher refresher;
+
+	@Before
+	public void setup() throws Exception {
+		System.setProperty("derby.system.home", "./target/derby-db");
+
+		// Re-boots the embedded driver if another test has shut down the derby engine
+		Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+
+		dataSource = new DriverManagerDataSource();
+		dataSource.setUrl("jdbc:derby:memory:cache_refresher;create=true");
+		execute("CREATE TABLE PATIENT (ID VARCHAR(10) PRIMARY KEY, NAME VARCHAR(50), VERSION INTEGER)");
+		execute("INSERT INTO PATIENT VALUES ('1', 'John Smith', 1)");
+		execute("INSERT INTO PATIENT VALUES ('2', 'Mary Jones', 2)");
+
+		delegate = Mockito.mock(DocumentPropertiesFinder.class);
+		Mockito.when(delegate.findProperties(Mockito.<Map<String, Object>>any())).thenReturn(map("name", "value"));
+		final MetricsRegistry metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		finder = new CachingDocumentPropertiesFinder(delegate, metrics, "finder");
+
+		refresher = new DataSourceCacheRefresher(dataSource, finder);
+		refresher.setChangesSqlQuery("SELECT ID, VERSION FROM PATIENT WHERE VERSION > :?watermark");
+		refresher.setInitialWatermarkSqlQuery("SELECT MAX(VERSION) FROM PATIENT");
+		refresher.setIdColumn("ID");
+		refresher.setWatermarkColumn("VERSION");
+		refresher.setIdSelector("patientId");
+	}
+
+	@After
+	public void tearDown() {
+		refresher.close();
+
+		try {
+			DriverManager.getConnection("jdbc:derby:memory:cache_refresher;drop=true");
+		} catch (SQLException e) {
+			LOGGER.debug("Derby is expected to throw an exception on drop!", e);
+		}
+	}
+
+	private void execute(final String sql) throws SQLException {
+		final Connection connection = dataSource.getConnection();
+		try {
+			final Statement statement = connection.createStatement();
+			statement.execute(sql);
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+
+	@Test
+	public void testOnlyChangedEntriesAreInvalidated() throws Exception {
+		Assert.assertEquals(0, refresher.refresh());
+		Assert.assertEquals(2, refresher.getWatermark());
+
+		finder.findProperties(map("patientId", "1"));
+		finder.findProperties(map("patientId", "2"));
+
+		execute("UPDATE PATIENT SET NAME = 'John Smythe', VERSION = 3 WHERE ID = '1'");
+		Assert.assertEquals(1, refresher.refresh());
+		Assert.assertEquals(3, refresher.getWatermark());
+		Assert.assertEquals(1, refresher.getInvalidatedCount());
+
+		finder.findProperties(map("patientId", "1"));
+		finder.findProperties(map("patientId", "2"));
+		Mockito.verify(delegate, Mockito.times(2)).findProperties(map("patientId", "1"));
+		Mockito.verify(delegate, Mockito.times(1)).findProperties(map("patientId", "2"));
+
+		// No further changes
+		Assert.assertEquals(0, refresher.refresh());
+	}
+
+	@Test
+	public void testLateCommitsAreFoundWithinLookback() throws Exception {
+		refresher.setChangesSqlQuery("SELECT ID, VERSION FROM PATIENT WHERE VERSION >= :?watermark");
+		refresher.setLookback(2);
+		Assert.assertEquals(0, refresher.refresh());
+		finder.findProperties(map("patientId", "1"));
+		finder.findProperties(map("patientId", "2"));
+
+		// Rows in the overlapping window are only reported once
+		Assert.assertEquals(2, refresher.refresh());
+		Assert.assertEquals(0, refresher.refresh());
+
+		execute("UPDATE PATIENT SET VERSION = 4 WHERE ID = '2'");
+		Assert.assertEquals(1, refresher.refresh());
+		Assert.assertEquals(4, refresher.getWatermark());
+
+		// A row committed late with a version behind the watermark is still found
+		finder.findProperties(map("patientId", "1"));
+		execute("UPDATE PATIENT SET VERSION = 3 WHERE ID = '1'");
+		Assert.assertEquals(1, refresher.refresh());
+		Assert.assertEquals(4, refresher.getWatermark());
+		Assert.assertEquals(0, refresher.refresh());
+
+		finder.findProperties(map("patientId", "1"));
+		Mockito.verify(delegate, Mockito.times(3)).findProperties(map("patientId", "1"));
+	}
+
+	@Test
+	public void testSubSecondLookbackOfTimestampWatermark() throws Exception {
+		execute("CREATE TABLE EVENT (ID VARCHAR(10) PRIMARY KEY, UPDATED TIMESTAMP)");
+		execute("INSERT INTO EVENT VALUES ('1', TIMESTAMP('2016-01-01 10:00:01.000'))");
+		execute("INSERT INTO EVENT VALUES ('2', TIMESTAMP('2016-01-01 10:00:01.300'))");
+		
+		refresher.setChangesSqlQuery("SELECT ID, UPDATED FROM EVENT WHERE UPDATED >= :?watermark");
+		refresher.setInitialWatermarkSqlQuery("SELECT MAX(UPDATED) FROM EVENT");
+		refresher.setWatermarkColumn("UPDATED");
+		refresher.setLookback(200);
+		Assert.assertEquals(0, refresher.refresh());
+		Assert.assertEquals(1, refresher.refresh());
+		Assert.assertEquals(0, refresher.refresh());
+		
+		// Committed late - 150 ms behind the watermark, so only found if the lookback keeps its milliseconds
+		execute("UPDATE EVENT SET UPDATED = TIMESTAMP('2016-01-01 10:00:01.150') WHERE ID = '1'");
+		Assert.assertEquals(1, refresher.refresh());
+	}
+
+	@Test
+	public void testChangedEntriesCanBeReloaded() throws Exception {
+		refresher.setReloadChanged(true);
+		refresher.refresh();
+		finder.findProperties(map("patientId", "1"));
+
+		execute("UPDATE PATIENT SET VERSION = 3 WHERE ID = '1'");
+		refresher.refresh();
+
+		Mockito.verify(delegate, Mockito.times(2)).findProperties(map("patientId", "1"));
+		Assert.assertEquals(1, finder.getSize());
+	}
+}
@@ -0,0 +1,327 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Unit tests for {@link DataSourceDocumentPropertiesFinder}
+ */
+public class DataSourceDocumentPropertiesFinderTest {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceDocumentPropertiesFinderTest.class);
+	private static DriverManagerDataSource DATA_SOURCE;
+
+	@BeforeClass
+	public static void createDatabase() throws Exception {
+		System.setProperty("derby.system.home", "./target/derby-db");
+
+		// Re-boots the embedded driver if another test has shut down the derby engine
+		Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+
+		DATA_SOURCE = new DriverManagerDataSource();
+		DATA_SOURCE.setUrl("jdbc:derby:memory:datasource_finder;create=true");
+		DATA_SOURCE.setUsername("PROP_FINDER");
+		DATA_SOURCE.setPassword("PASS");
+
+		insertDBFixtures();
+	}
+
+	/**
+	 * Database tables as created from a script and test data is loaded
+	 */
+	private static void insertDBFixtures() throws Exception {
+		final InputStream in = JdbcDocumentPropertiesFinder.class.getResourceAsStream("jdbc-finder-database.sql");
+		final String script;
+		try {
+			script = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+		} finally {
+			Closeables.closeQuietly(in);
+		}
+
+		final Connection connection = DATA_SOURCE.getConnection();
+		try {
+			final Statement statement = connection.createStatement();
+			for (final String sql: script.split(";")) {
+				if (!sql.trim().isEmpty()) {
+					statement.execute(sql);
+				}
+			}
+			statement.close();
+		} finally {
+			connection.close();
+		}
+	}
+
+	@AfterClass
+	public static void destroyDatabase() {
+		try {
+			// Only drop this in-memory database - other tests may still be using the derby engine
+			DriverManager.getConnection("jdbc:derby:memory:datasource_finder;drop=true");
+		} catch (SQLException e) {
+			LOGGER.debug("Derby is expected to throw an exception on drop!", e);
+		}
+	}
+
+	private DataSourceDocumentPropertiesFinder finder;
+
+	@Before
+	public void setup() {
+		finder = new DataSourceDocumentPropertiesFinder(DATA_SOURCE);
+	}
+
+	@Test
+	public void testQueryColumnsAreMapped() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM NAMES WHERE id = :?pid");
+		finder.setIdParameter("pid");
+
+		final Map<String, Object> properties = finder.findProperties(createKeys(2));
+
+		final Map<String, Object> expected = Maps.newHashMap();
+		expected.put("id", "2");
+		expected.put("name", "Mary Jones");
+		Assert.assertEquals(expected, properties);
+	}
+
+	@Test
+	public void testWarmUpPreparesStatementsOnEachIdleConnection() throws Exception {
+		final BasicDataSource pool = new BasicDataSource();
+		pool.setUrl("jdbc:derby:memory:datasource_finder");
+		pool.setUsername("PROP_FINDER");
+		pool.setPassword("PASS");
+		pool.setInitialSize(3);
+		pool.setMinIdle(3);
+		pool.setPoolPreparedStatements(true);
+		try {
+			finder = new DataSourceDocumentPropertiesFinder(pool);
+			finder.setIdSelector("personId");
+			finder.setSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM NAMES WHERE id = :?pid");
+			finder.setIdParameter("pid");
+			finder.setWarmUpConnections(3);
+
+			finder.warmUp();
+
+			Assert.assertEquals(3, pool.getNumIdle());
+			Assert.assertEquals(0, pool.getNumActive());
+			Assert.assertEquals("Mary Jones", finder.findProperties(createKeys(2)).get("name"));
+		} finally {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testEmbeddedJsonIsMapped() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT * FROM JSON WHERE id = :?pid");
+		finder.setIdParameter("pid");
+		finder.setJsonColumn("JSON");
+
+		final Map<String, Object> properties = finder.findProperties(createKeys(3));
+
+		final Map<String, Object> expected = Maps.newHashMap();
+		expected.put("firstName", "Peter");
+		expected.put("secondName", "Davies");
+		Assert.assertEquals(expected, properties);
+	}
+
+	@Test
+	public void testNoMatchingRow() throws Exception {
+		finder.setIdSelector("documentName");
+		finder.setSqlQuery("SELECT * FROM NAMES WHERE id = :?pid");
+		finder.setIdParameter("pid");
+
+		final Map<String, Object> properties = finder.findProperties(createKeys(2));
+		Assert.assertTrue(properties.isEmpty());
+	}
+
+	@Test(expected=Exception.class)
+	public void testSqlExceptionsArePropegated() throws Exception {
+		finder.setIdSelector("documentName");
+		finder.setSqlQuery("SELECT * FROM INVALID_TABLE WHERE id = :?pid");
+		finder.setIdParameter("pid");
+
+		finder.findProperties(createKeys(2));
+	}
+
+	@Test
+	public void testRowIsMappedWhenEmbeddedJsonIsNull() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT * FROM JSON WHERE id = :?pid");
+		finder.setIdParameter("pid");
+		finder.setJsonColumn("JSON");
+
+		final Map<String, Object> properties = finder.findProperties(createKeys(4));
+
+		// Matches JdbcDocumentPropertiesFinder - the whole row is returned
+		final Map<String, Object> expected = Maps.newHashMap();
+		expected.put("ID", "4");
+		expected.put("JSON", null);
+		Assert.assertEquals(expected, properties);
+	}
+
+	@Test(expected=Exception.class)
+	public void testJsonExceptionsArePropegated() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT * FROM JSON WHERE id = :?pid");
+		finder.setIdParameter("pid");
+		finder.setJsonColumn("JSON");
+
+		finder.findProperties(createKeys(1)); // JSON for id=1 has an invalid format
+	}
+
+	@Test
+	public void testBatchQueryIsMapped() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM NAMES WHERE id = :?pid");
+		finder.setBatchSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM NAMES WHERE id IN (:?pid)");
+		finder.setBatchIdColumn("id");
+		finder.setIdParameter("pid");
+		finder.setBatchSize(2);
+
+		final List<Map<String, Object>> properties = finder.findAllProperties(Arrays.asList(
+				createKeys(3), createKeys(1), createKeys(4), createKeys(3), createKeys(2)));
+
+		Assert.assertEquals(5, properties.size());
+		Assert.assertEquals("Peter Davies", properties.get(0).get("name"));
+		Assert.assertEquals("John Smith", properties.get(1).get("name"));
+		Assert.assertTrue(properties.get(2).isEmpty());
+		Assert.assertEquals("Peter Davies", properties.get(3).get("name"));
+		Assert.assertNotSame(properties.get(0), properties.get(3));
+		Assert.assertEquals("Mary Jones", properties.get(4).get("name"));
+	}
+
+	@Test
+	public void testBatchQueryMatchesPaddedCharIds() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM CODES WHERE id = :?pid");
+		finder.setBatchSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM CODES WHERE id IN (:?pid)");
+		finder.setBatchIdColumn("id");
+		finder.setIdParameter("pid");
+
+		final List<Map<String, Object>> properties = finder.findAllProperties(Arrays.asList(
+				createKeys("B2"), createKeys("A1"), createKeys("C3")));
+
+		Assert.assertEquals("Code B2", properties.get(0).get("name"));
+		Assert.assertEquals("Code A1", properties.get(1).get("name"));
+		Assert.assertTrue(properties.get(2).isEmpty());
+	}
+
+	@Test
+	public void testBatchQueryMatchesNumericIdsByValue() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM AMOUNTS WHERE id = :?pid");
+		finder.setBatchSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM AMOUNTS WHERE id IN (:?pid)");
+		finder.setBatchIdColumn("id");
+		finder.setIdParameter("pid");
+
+		final List<Map<String, Object>> properties = finder.findAllProperties(Arrays.asList(
+				createKeys("2.50"), createKeys(1), createKeys("1.0")));
+
+		Assert.assertEquals("Two and a half", properties.get(0).get("name"));
+		Assert.assertEquals("One", properties.get(1).get("name"));
+		Assert.assertEquals("One", properties.get(2).get("name"));
+		Assert.assertNotSame(properties.get(1), properties.get(2));
+	}
+
+	@Test
+	public void testIdKeysAreNormalised() {
+		final Set<Object> keys = Sets.newHashSet(
+				DataSourceDocumentPropertiesFinder.toIdKey("A1        "),
+				DataSourceDocumentPropertiesFinder.toIdKey(new BigDecimal("2.50")),
+				DataSourceDocumentPropertiesFinder.toIdKey(0L));
+
+		Assert.assertTrue(DataSourceDocumentPropertiesFinder.containsId(keys, "A1"));
+		Assert.assertTrue(DataSourceDocumentPropertiesFinder.containsId(keys, "2.5"));
+		Assert.assertTrue(DataSourceDocumentPropertiesFinder.containsId(keys, 2.5d));
+		Assert.assertTrue(DataSourceDocumentPropertiesFinder.containsId(keys, "0.00"));
+		Assert.assertFalse(DataSourceDocumentPropertiesFinder.containsId(keys, "A2"));
+		Assert.assertFalse(DataSourceDocumentPropertiesFinder.containsId(keys, "25"));
+	}
+
+	@Test
+	public void testBatchWithoutBatchQueryUsesSingleQueries() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT * FROM JSON WHERE id = :?pid");
+		finder.setIdParameter("pid");
+		finder.setJsonColumn("JSON");
+
+		final List<Map<String, Object>> properties = finder.findAllProperties(Arrays.asList(
+				createKeys(2), createKeys(3)));
+
+		Assert.assertEquals("Mary", properties.get(0).get("firstName"));
+		Assert.assertEquals("Peter", properties.get(1).get("firstName"));
+	}
+
+	@Test
+	public void testNamedParameterIsTranslated() {
+		Assert.assertEquals("SELECT * FROM NAMES WHERE id = ?",
+				DataSourceDocumentPropertiesFinder.toPreparedSql("SELECT * FROM NAMES WHERE id = :?pid", "pid").getSql());
+		Assert.assertEquals("SELECT * FROM NAMES WHERE id = ? AND :?pidx = 1",
+				DataSourceDocumentPropertiesFinder.toPreparedSql("SELECT * FROM NAMES WHERE id = :?pid AND :?pidx = 1", "pid").getSql());
+		Assert.assertEquals("SELECT * FROM NAMES WHERE id IN (?, ?, ?)",
+				DataSourceDocumentPropertiesFinder.toPreparedSql("SELECT * FROM NAMES WHERE id IN (:?pid)", "pid", 3).getSql());
+	}
+
+	@Test
+	public void testRepeatedNamedParameterIsCounted() {
+		final DataSourceDocumentPropertiesFinder.PreparedSql sql = DataSourceDocumentPropertiesFinder.toPreparedSql(
+				"SELECT * FROM NAMES WHERE id IN (:?pid) OR name IN (:?pid)", "pid", 2);
+		Assert.assertEquals("SELECT * FROM NAMES WHERE id IN (?, ?) OR name IN (?, ?)", sql.getSql());
+		Assert.assertEquals(2, sql.getOccurrences());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testQueryWithoutNamedParameterIsRejected() {
+		DataSourceDocumentPropertiesFinder.toPreparedSql("SELECT * FROM NAMES WHERE id = ?", "pid");
+	}
+
+	@Test
+	public void testRepeatedNamedParameterIsBound() throws Exception {
+		finder.setIdSelector("personId");
+		finder.setSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM NAMES WHERE id = :?pid OR name = :?pid");
+		finder.setBatchSqlQuery("SELECT ID as \"id\", NAME as \"name\" FROM NAMES WHERE id IN (:?pid) OR name IN (:?pid)");
+		finder.setBatchIdColumn("id");
+		finder.setIdParameter("pid");
+		finder.setBatchSize(2);
+
+		Assert.assertEquals("Mary Jones", finder.findProperties(createKeys(2)).get("name"));
+
+		final List<Map<String, Object>> properties = finder.findAllProperties(Arrays.asList(
+				createKeys(3), createKeys(1), createKeys(2)));
+		Assert.assertEquals("Peter Davies", properties.get(0).get("name"));
+		Assert.assertEquals("John Smith", properties.get(1).get("name"));
+		Assert.assertEquals("Mary Jones", properties.get(2).get("name"));
+	}
+
+	private Map<String, Object> createKeys(final Object id) {
+		final Map<String, Object> lookupKeys = Maps.newHashMap();
+
+		lookupKeys.put("personId", String.valueOf(id));
+		lookupKeys.put("documentName", "another value");
+
+		return lookupKeys;
+	}
+}
@@ -0,0 +1,128 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.ServiceStatus;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.SimpleRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Unit tests for {@link DocumentEnricherWarmUp}
+ */
+public class DocumentEnricherWarmUpTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private AtomicInteger enrichedCount;
+	private Warmable warmable;
+	private DefaultCamelContext context;
+	private DocumentEnricherWarmUp warmUp;
+	
+	@Before
+	public void setup() throws Exception {
+		enrichedCount = new AtomicInteger();
+		warmable = Mockito.mock(Warmable.class);
+		
+		final SimpleRegistry registry = new SimpleRegistry();
+		registry.put("warmable", warmable);
+		registry.put("enricher", new DocumentEnricher() {
+			@Override
+			public ParsedDocument enrichDocument(final ParsedDocument document) throws Exception {
+				enrichedCount.incrementAndGet();
+				return document;
+			}
+		});
+		
+		context = new DefaultCamelContext(registry);
+		context.addRoutes(new RouteBuilder() {
+			@Override
+			public void configure() throws Exception {
+				from("direct:input").routeId("enrich").autoStartup(false).to("mock:output");
+			}
+		});
+		
+		final File sample = folder.newFile("sample.json");
+		Files.write(new JsonCodec().getObjectMapper().writeValueAsBytes(new ParsedDocument(
+				new Document("sample.txt", new byte[] {1, 2, 3}), Maps.<String, Object>newLinkedHashMap())), sample);
+		
+		warmUp = new DocumentEnricherWarmUp();
+		warmUp.setSamples("file:" + folder.getRoot().getAbsolutePath() + "/*.json");
+		warmUp.setIterations(5);
+		warmUp.addRoute("enrich", "enricher");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		context.stop();
+	}
+	
+	@Test
+	public void testRoutesAreStartedAfterWarmUp() throws Exception {
+		context.addStartupListener(warmUp);
+		context.start();
+		
+		final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!warmUp.isCompleted() && System.currentTimeMillis() < timeout) {
+			Thread.sleep(50);
+		}
+		
+		Assert.assertTrue(warmUp.isCompleted());
+		Assert.assertEquals(ServiceStatus.Started, context.getRouteStatus("enrich"));
+		Mockito.verify(warmable).warmUp();
+		Assert.assertEquals(5, enrichedCount.get());
+	}
+	
+	@Test
+	public void testRouteStartFailuresDoNotStopOtherRoutes() throws Exception {
+		context.addRoutes(new RouteBuilder() {
+			@Override
+			public void configure() throws Exception {
+				from("direct:other").routeId("existing").to("mock:output");
+				
+				// Cannot start - the endpoint already has a consumer
+				from("direct:other").routeId("duplicate").autoStartup(false).to("mock:output");
+			}
+		});
+		
+		final DocumentEnricherWarmUp warmUp = new DocumentEnricherWarmUp();
+		warmUp.setIterations(0);
+		warmUp.addRoute("duplicate", "enricher");
+		warmUp.addRoute("enrich", "enricher");
+		context.addStartupListener(warmUp);
+		context.start();
+		
+		final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (!warmUp.isCompleted() && System.currentTimeMillis() < timeout) {
+			Thread.sleep(50);
+		}
+		
+		Assert.assertTrue(warmUp.isCompleted());
+		Assert.assertEquals(ServiceStatus.Started, context.getRouteStatus("enrich"));
+		Assert.assertFalse(context.getRouteStatus("duplicate").isStarted());
+	}
+	
+	@Test
+	public void testWarmUpFailuresAreNotFatal() throws Exception {
+		Mockito.doThrow(new IllegalStateException("expected")).when(warmable).warmUp();
+		
+		warmUp.warmUp(context);
+		
+		Assert.assertEquals(5, enrichedCount.get());
+	}
+}
@@ -3,14 +3,21 @@ package uk.nhs.ciao.docs.enricher;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.google.common.collect.Maps;
 
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
 import uk.nhs.ciao.docs.parser.Document;
 import uk.nhs.ciao.docs.parser.ParsedDocument;
 
@@ -93,4 +100,75 @@ public class DynamicDocumentEnricherTest {
 		Assert.assertEquals(authors.get(0), person("2", "John Smith"));
 		Assert.assertEquals(authors.get(1), person("5", "Peter Jones"));
 	}
+	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testBatchFinderIsCalledOnce() throws Exception {
+		final BatchDocumentPropertiesFinder batchFinder = Mockito.mock(BatchDocumentPropertiesFinder.class);
+		enricher.setPropertiesFinder(batchFinder);
+		enricher.setLookupKeySelectors(Arrays.asList("id"));
+		enricher.setEnrichablePropertiesSelectors(Arrays.asList("authors[*]"));
+		
+		Mockito.when(batchFinder.findAllProperties(Arrays.asList(person("2"), person("5")))).thenReturn(
+				Arrays.asList(person("2", "John Smith"), person("5", "Peter Jones")));
+		
+		final ParsedDocument document = enricher.enrichDocument(createDocument());
+		
+		final List<?> authors = (List<?>)document.getProperties().get("authors");
+		Assert.assertEquals(authors.get(0), person("2", "John Smith"));
+		Assert.assertEquals(authors.get(1), person("5", "Peter Jones"));
+		Mockito.verify(batchFinder).findAllProperties(Mockito.anyList());
+		Mockito.verify(batchFinder, Mockito.never()).findProperties(Mockito.anyMap());
+	}
+	
+	@Test
+	public void testParallelLookups() throws Exception {
+		final ExecutorService executorService = Executors.newFixedThreadPool(2);
+		try {
+			enricher.setExecutorService(executorService);
+			enricher.setMaxParallelism(2);
+			enricher.setLookupKeySelectors(Arrays.asList("id"));
+			enricher.setEnrichablePropertiesSelectors(Arrays.asList("authors[*]"));
+			
+			// Each lookup waits until both are in flight - the barrier times out if they are performed sequentially
+			final CyclicBarrier barrier = new CyclicBarrier(2);
+			Mockito.when(finder.findProperties(person("2"))).thenAnswer(awaitThenReturn(barrier, person("2", "John Smith")));
+			Mockito.when(finder.findProperties(person("5"))).thenAnswer(awaitThenReturn(barrier, person("5", "Peter Jones")));
+			
+			final ParsedDocument document = enricher.enrichDocument(createDocument());
+			
+			final List<?> authors = (List<?>)document.getProperties().get("authors");
+			Assert.assertEquals(2, authors.size());
+			Assert.assertEquals(authors.get(0), person("2", "John Smith"));
+			Assert.assertEquals(authors.get(1), person("5", "Peter Jones"));
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+	
+	private Answer<Map<String, Object>> awaitThenReturn(final CyclicBarrier barrier, final Map<String, Object> properties) {
+		return new Answer<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+				barrier.await(10, TimeUnit.SECONDS);
+				return properties;
+			}
+		};
+	}
+	
+	@Test
+	public void testLookupAndMergeTimesAreRecorded() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		enricher.bindMetrics(metrics, "enricher");
+		enricher.setLookupKeySelectors(Arrays.asList("id"));
+		enricher.setEnrichablePropertiesSelectors(Arrays.asList("authors[*]"));
+		
+		enricher.enrichDocument(createDocument());
+		
+		Assert.assertEquals(2, metrics.distribution(AbstractDynamicDocumentEnricher.ENRICHER_DURATION_METRIC,
+				"enricher", "enricher", "stage", "lookup").getCount());
+		Assert.assertEquals(2, metrics.distribution(AbstractDynamicDocumentEnricher.ENRICHER_DURATION_METRIC,
+				"enricher", "enricher", "stage", "merge").getCount());
+	}
 }
@@ -0,0 +1,135 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link IndexedJsonDocumentPropertiesFinder}
+ */
+public class IndexedJsonDocumentPropertiesFinderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private IndexedJsonDocumentPropertiesFinder finder;
+	
+	@Before
+	public void setup() {
+		finder = new IndexedJsonDocumentPropertiesFinder(new DefaultResourceLoader());
+		finder.setKeySelector("id");
+		finder.setCheckInterval(0);
+	}
+	
+	@After
+	public void tearDown() {
+		finder.close();
+	}
+	
+	private Map<String, Object> lookupKeys(final String id) {
+		final Map<String, Object> lookupKeys = Maps.newLinkedHashMap();
+		lookupKeys.put("id", id);
+		return lookupKeys;
+	}
+	
+	private File write(final File file, final String content) throws Exception {
+		Files.write(content, file, Charsets.UTF_8);
+		return file;
+	}
+	
+	@Test
+	public void testDirectorySource() throws Exception {
+		final File directory = folder.newFolder("people");
+		write(new File(directory, "1.json"), "{\"name\":\"John Smith\"}");
+		write(new File(directory, "2.json"), "{\"name\":\"Mary Jones\"}");
+		write(new File(directory, "ignored.txt"), "not json");
+		
+		finder.setSourcePath("file:" + directory.getAbsolutePath());
+		finder.start();
+		
+		Assert.assertEquals(2, finder.getSize());
+		Assert.assertEquals("Mary Jones", finder.findProperties(lookupKeys("2")).get("name"));
+		Assert.assertTrue(finder.findProperties(lookupKeys("3")).isEmpty());
+	}
+	
+	@Test
+	public void testNdjsonSource() throws Exception {
+		final File file = write(folder.newFile("people.ndjson"),
+				"{\"id\":\"1\",\"name\":\"John Smith\"}\n\n{\"id\":\"2\",\"name\":\"Mary Jones\"}\n");
+		
+		finder.setSourcePath("file:" + file.getAbsolutePath());
+		finder.setRecordKeySelector("id");
+		finder.start();
+		
+		Assert.assertEquals(2, finder.getSize());
+		Assert.assertEquals("John Smith", finder.findProperties(lookupKeys("1")).get("name"));
+	}
+	
+	@Test
+	public void testJsonObjectSource() throws Exception {
+		final File file = write(folder.newFile("people.json"),
+				"{\"1\":{\"name\":\"John Smith\"},\"2\":{\"name\":\"Mary Jones\"}}");
+		
+		finder.setSourcePath("file:" + file.getAbsolutePath());
+		finder.start();
+		
+		Assert.assertEquals("Mary Jones", finder.findProperties(lookupKeys("2")).get("name"));
+	}
+	
+	@Test
+	public void testPropertySelectorSelectsSectionOfIndexedObject() throws Exception {
+		final File file = write(folder.newFile("people.json"),
+				"{\"1\":{\"home\":{\"city\":\"Leeds\"},\"work\":{\"city\":\"York\"}}}");
+		
+		finder.setSourcePath("file:" + file.getAbsolutePath());
+		finder.setPropertySelector("address");
+		finder.start();
+		
+		final Map<String, Object> lookupKeys = lookupKeys("1");
+		lookupKeys.put("address", "work");
+		Assert.assertEquals("York", finder.findProperties(lookupKeys).get("city"));
+		Assert.assertFalse(finder.findProperties(lookupKeys).containsKey("home"));
+		
+		lookupKeys.put("address", "holiday");
+		Assert.assertTrue(finder.findProperties(lookupKeys).isEmpty());
+		
+		lookupKeys.remove("address");
+		Assert.assertTrue(finder.findProperties(lookupKeys).isEmpty());
+	}
+	
+	@Test
+	public void testReturnedPropertiesAreCopies() throws Exception {
+		final File file = write(folder.newFile("people.json"), "{\"1\":{\"name\":\"John Smith\"}}");
+		
+		finder.setSourcePath("file:" + file.getAbsolutePath());
+		finder.findProperties(lookupKeys("1")).put("name", "changed");
+		
+		Assert.assertEquals("John Smith", finder.findProperties(lookupKeys("1")).get("name"));
+	}
+	
+	@Test
+	public void testChangedSourceIsReindexed() throws Exception {
+		final File file = write(folder.newFile("people.json"), "{\"1\":{\"name\":\"John Smith\"}}");
+		
+		finder.setSourcePath("file:" + file.getAbsolutePath());
+		finder.start();
+		Assert.assertFalse(finder.refresh());
+		
+		write(file, "{\"1\":{\"name\":\"John Smith-Jones\"}}");
+		file.setLastModified(file.lastModified() + 2000);
+		
+		Assert.assertTrue(finder.refresh());
+		Assert.assertEquals(2, finder.getLoadCount());
+		Assert.assertEquals("John Smith-Jones", finder.findProperties(lookupKeys("1")).get("name"));
+	}
+}
@@ -0,0 +1,147 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.MDC;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link InstrumentedDocumentPropertiesFinder}
+ */
+public class InstrumentedDocumentPropertiesFinderTest {
+	private MetricsRegistry metrics;
+	private BatchDocumentPropertiesFinder delegate;
+	private InstrumentedDocumentPropertiesFinder finder;
+
+	@Before
+	public void setup() {
+		metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		delegate = Mockito.mock(BatchDocumentPropertiesFinder.class);
+		finder = new InstrumentedDocumentPropertiesFinder(delegate, metrics, "finder");
+	}
+
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+
+	private long getLookupCount(final String outcome) {
+		return metrics.counter(InstrumentedDocumentPropertiesFinder.LOOKUPS_METRIC, "finder", "finder", "outcome", outcome).getCount();
+	}
+
+	@Test
+	public void testLookupOutcomesAreCounted() throws Exception {
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenReturn(map("name", "found"));
+		Mockito.when(delegate.findProperties(map("id", "2"))).thenReturn(Collections.<String, Object>emptyMap());
+		Mockito.when(delegate.findProperties(map("id", "3"))).thenThrow(new IllegalStateException("lookup failed"));
+
+		Assert.assertEquals(map("name", "found"), finder.findProperties(map("id", "1")));
+		Assert.assertTrue(finder.findProperties(map("id", "2")).isEmpty());
+		try {
+			finder.findProperties(map("id", "3"));
+			Assert.fail("Expected the lookup to fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		Assert.assertEquals(1, getLookupCount("found"));
+		Assert.assertEquals(1, getLookupCount("empty"));
+		Assert.assertEquals(1, getLookupCount("error"));
+		Assert.assertEquals(3, metrics.distribution(InstrumentedDocumentPropertiesFinder.LOOKUP_DURATION_METRIC,
+				"finder", "finder", "operation", "single").getCount());
+		Assert.assertEquals(2, metrics.distribution(InstrumentedDocumentPropertiesFinder.RESULT_SIZE_METRIC,
+				"finder", "finder").getSnapshot().getCount());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testBatchLookupsAreRecorded() throws Exception {
+		final List<Map<String, Object>> lookupKeys = Arrays.asList(map("id", "1"), map("id", "2"));
+		Mockito.when(delegate.findAllProperties(lookupKeys)).thenReturn(Arrays.asList(map("name", "found"),
+				Collections.<String, Object>emptyMap()));
+
+		finder.setSlowLookupThreshold(1);
+		Assert.assertEquals(2, finder.findAllProperties(lookupKeys).size());
+
+		Assert.assertEquals(1, getLookupCount("found"));
+		Assert.assertEquals(1, getLookupCount("empty"));
+		Assert.assertEquals(1, metrics.distribution(InstrumentedDocumentPropertiesFinder.LOOKUP_DURATION_METRIC,
+				"finder", "finder", "operation", "batch").getCount());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testBatchedSlowLookupsAreLoggedWithCorrelationIds() throws Exception {
+		Mockito.when(delegate.findAllProperties(Mockito.anyList())).thenAnswer(new Answer<List<Map<String, Object>>>() {
+			@Override
+			public List<Map<String, Object>> answer(final InvocationOnMock invocation) throws Throwable {
+				Thread.sleep(20);
+				return Arrays.asList(map("name", "one"), map("name", "two"));
+			}
+		});
+		finder.setSlowLookupThreshold(1);
+
+		final BatchingDocumentPropertiesFinder batchingFinder = new BatchingDocumentPropertiesFinder(finder);
+		batchingFinder.setMaxDelay(TimeUnit.SECONDS.toMillis(10));
+		batchingFinder.setMaxBatchSize(2);
+
+		final CapturingAppender appender = new CapturingAppender();
+		final Logger logger = Logger.getLogger(InstrumentedDocumentPropertiesFinder.class);
+		logger.addAppender(appender);
+		try {
+			MDC.put(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY, "document-1");
+			final ListenableFuture<Map<String, Object>> first = batchingFinder.findPropertiesAsync(map("id", "1"));
+			MDC.put(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY, "document-2");
+			final ListenableFuture<Map<String, Object>> second = batchingFinder.findPropertiesAsync(map("id", "2"));
+			MDC.remove(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY);
+
+			Assert.assertEquals(map("name", "one"), first.get(5, TimeUnit.SECONDS));
+			Assert.assertEquals(map("name", "two"), second.get(5, TimeUnit.SECONDS));
+		} finally {
+			logger.removeAppender(appender);
+			batchingFinder.close();
+		}
+
+		Assert.assertEquals(1, appender.messages.size());
+		Assert.assertTrue(appender.messages.get(0), appender.messages.get(0).contains("correlationId=document-1,document-2 "));
+	}
+
+	private static class CapturingAppender extends AppenderSkeleton {
+		private final List<String> messages = Lists.newCopyOnWriteArrayList();
+
+		@Override
+		protected void append(final LoggingEvent event) {
+			messages.add(event.getRenderedMessage());
+		}
+
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// NOOP
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
+import com.google.common.base.Charsets;
+
+/**
+ * Unit tests for {@link JsonCodec}
+ */
+public class JsonCodecTest {
+	private JsonCodec jsonCodec;
+	
+	@Before
+	public void setup() {
+		jsonCodec = new JsonCodec();
+	}
+	
+	@Test
+	public void testReadMap() throws Exception {
+		final String json = "{\"name\":\"John Smith\",\"address\":{\"city\":\"Leeds\"}}";
+		
+		final Map<String, Object> fromString = jsonCodec.readMap(json);
+		final Map<String, Object> fromBytes = jsonCodec.readMap(json.getBytes(Charsets.UTF_8));
+		
+		Assert.assertEquals("John Smith", fromString.get("name"));
+		Assert.assertEquals("Leeds", ((Map<?, ?>)fromString.get("address")).get("city"));
+		Assert.assertEquals(fromString, fromBytes);
+	}
+	
+	@Test
+	public void testReadersAreRebuiltWhenFeaturesChange() throws Exception {
+		jsonCodec.setCanonicalizeFieldNames(false);
+		jsonCodec.setInternFieldNames(false);
+		
+		Assert.assertEquals("value", jsonCodec.readMap("{\"key\":\"value\"}").get("key"));
+	}
+	
+	@Test
+	public void testAfterburnerIsRegistered() throws Exception {
+		jsonCodec.setAfterburnerEnabled(true);
+		
+		Assert.assertTrue(jsonCodec.isAfterburnerEnabled());
+		Assert.assertTrue(jsonCodec.getObjectMapper().getRegisteredModuleIds().contains(
+				new AfterburnerModule().getTypeId()));
+		Assert.assertEquals("value", jsonCodec.readMap("{\"key\":\"value\"}").get("key"));
+	}
+}
@@ -0,0 +1,88 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Unit tests for {@link JsonResourceCache}
+ */
+public class JsonResourceCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private JsonResourceCache cache;
+	private File file;
+	private String resourcePath;
+
+	@Before
+	public void setup() throws IOException {
+		cache = new JsonResourceCache(new DefaultResourceLoader(), new ObjectMapper());
+		file = new File(folder.getRoot(), "example.json");
+		resourcePath = file.toURI().toString();
+	}
+
+	private void writeJson(final String json, final long lastModified) throws IOException {
+		Files.write(json, file, Charsets.UTF_8);
+		file.setLastModified(lastModified);
+	}
+
+	@Test
+	public void testMissingResourceReturnsNull() throws IOException {
+		Assert.assertNull(cache.getProperties(resourcePath));
+	}
+
+	@Test
+	public void testCachedPropertiesAreReturnedWithinCheckInterval() throws IOException {
+		cache.setCheckInterval(60000);
+		writeJson("{\"name\": \"first\"}", 10000);
+
+		final Map<String, Object> first = cache.getProperties(resourcePath);
+		Assert.assertEquals("first", first.get("name"));
+
+		writeJson("{\"name\": \"second\"}", 20000);
+		Assert.assertSame(first, cache.getProperties(resourcePath));
+	}
+
+	@Test
+	public void testChangedResourceIsReloaded() throws IOException {
+		cache.setCheckInterval(0);
+		writeJson("{\"name\": \"first\"}", 10000);
+		Assert.assertEquals("first", cache.getProperties(resourcePath).get("name"));
+
+		writeJson("{\"name\": \"second\"}", 20000);
+		Assert.assertEquals("second", cache.getProperties(resourcePath).get("name"));
+	}
+
+	@Test
+	public void testUnchangedContentIsNotReparsed() throws IOException {
+		cache.setCheckInterval(0);
+		writeJson("{\"name\": \"first\"}", 10000);
+		final Map<String, Object> first = cache.getProperties(resourcePath);
+
+		// touched, but with the same content
+		writeJson("{\"name\": \"first\"}", 20000);
+		Assert.assertSame(first, cache.getProperties(resourcePath));
+	}
+
+	@Test
+	public void testDeletedResourceIsDetected() throws IOException {
+		cache.setCheckInterval(0);
+		writeJson("{\"name\": \"first\"}", 10000);
+		Assert.assertNotNull(cache.getProperties(resourcePath));
+
+		Assert.assertTrue(file.delete());
+		Assert.assertNull(cache.getProperties(resourcePath));
+	}
+}
@@ -117,4 +117,16 @@ public class JsonResourceDocumentPropertiesFinderTest {
 		final Map<String, Object> result = finder.findProperties(properties);
 		Assert.assertEquals(additional.get("123"), result);
 	}
+	
+	@Test
+	public void testResourceIsResolvedOncePerName() throws Exception {
+		addResource("/static-root/original name.json", additionalJson);
+		
+		finder.setResourcePath("/static-root");
+		finder.setResourceNameSelector("name");
+		Assert.assertEquals(additional, finder.findProperties(properties));
+		Assert.assertEquals(additional, finder.findProperties(properties));
+		
+		Mockito.verify(resourceLoader, Mockito.times(1)).getResource("/static-root/original name.json");
+	}
 }
@@ -0,0 +1,152 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link KeyValueStoreDocumentPropertiesFinder}
+ */
+public class KeyValueStoreDocumentPropertiesFinderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File storeFile;
+	private File updatesDirectory;
+	private MetricsRegistry metrics;
+	private KeyValueStoreDocumentPropertiesFinder finder;
+	
+	@Before
+	public void setup() throws Exception {
+		metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		
+		storeFile = new File(folder.getRoot(), "reference.db");
+		updatesDirectory = folder.newFolder("updates");
+		
+		final File loadFile = folder.newFile("people.ndjson");
+		write(loadFile, "{\"id\":\"1\",\"name\":\"John Smith\"}\n{\"id\":\"2\",\"name\":\"Mary Jones\"}\n");
+		
+		finder = newFinder();
+		finder.setLoadPath("file:" + loadFile.getAbsolutePath());
+		finder.start();
+	}
+	
+	@After
+	public void tearDown() {
+		finder.close();
+	}
+	
+	private KeyValueStoreDocumentPropertiesFinder newFinder() {
+		final KeyValueStoreDocumentPropertiesFinder finder = new KeyValueStoreDocumentPropertiesFinder(new DefaultResourceLoader(),
+				metrics, "kvStore");
+		finder.setStorePath("file:" + storeFile.getAbsolutePath());
+		finder.setKeySelector("id");
+		finder.setRecordKeySelector("id");
+		finder.setUpdatesPath("file:" + updatesDirectory.getAbsolutePath());
+		finder.setUpdateInterval(0);
+		finder.setDeletedSelector("deleted");
+		return finder;
+	}
+	
+	private void write(final File file, final String content) throws Exception {
+		Files.write(content, file, Charsets.UTF_8);
+	}
+	
+	private Map<String, Object> lookupKeys(final String id) {
+		final Map<String, Object> lookupKeys = Maps.newLinkedHashMap();
+		lookupKeys.put("id", id);
+		return lookupKeys;
+	}
+	
+	@Test
+	public void testInitialLoad() throws Exception {
+		Assert.assertEquals(2, finder.getSize());
+		Assert.assertEquals("Mary Jones", finder.findProperties(lookupKeys("2")).get("name"));
+		Assert.assertTrue(finder.findProperties(lookupKeys("3")).isEmpty());
+		Assert.assertEquals(2, finder.getLookupCount());
+		Assert.assertEquals(1, finder.getHitCount());
+		
+		Assert.assertEquals(1, metrics.counter(KeyValueStoreDocumentPropertiesFinder.LOOKUPS_METRIC,
+				"finder", "kvStore", "outcome", "miss").getCount());
+	}
+	
+	@Test
+	public void testUpdatesAreIngested() throws Exception {
+		write(new File(updatesDirectory, "0001.ndjson"),
+				"{\"id\":\"2\",\"name\":\"Mary Smith\"}\n{\"id\":\"1\",\"deleted\":true}\n{\"id\":\"3\",\"name\":\"Joe Bloggs\"}\n");
+		
+		Assert.assertEquals(1, finder.ingestUpdates());
+		Assert.assertEquals(2, finder.getSize());
+		Assert.assertTrue(finder.findProperties(lookupKeys("1")).isEmpty());
+		Assert.assertEquals("Mary Smith", finder.findProperties(lookupKeys("2")).get("name"));
+		Assert.assertEquals("Joe Bloggs", finder.findProperties(lookupKeys("3")).get("name"));
+		Assert.assertEquals(2, finder.getUpdatedRecordCount());
+		Assert.assertEquals(1, finder.getDeletedRecordCount());
+		Assert.assertTrue(new File(updatesDirectory, "0001.ndjson.done").isFile());
+		
+		Assert.assertEquals(2, metrics.gauge(KeyValueStoreDocumentPropertiesFinder.ENTRIES_METRIC, "finder", "kvStore").getValue());
+		Assert.assertEquals(1, metrics.counter(KeyValueStoreDocumentPropertiesFinder.UPDATE_FILES_METRIC,
+				"finder", "kvStore", "outcome", "ingested").getCount());
+		
+		// Already ingested files are ignored
+		Assert.assertEquals(0, finder.ingestUpdates());
+	}
+	
+	@Test
+	public void testIncompleteUpdateFilesAreIgnored() throws Exception {
+		final File inProgress = new File(updatesDirectory, "0001.ndjson.tmp");
+		write(inProgress, "{\"id\":\"3\",\"name\":\"Joe Bloggs\"}\n");
+		
+		Assert.assertEquals(0, finder.ingestUpdates());
+		Assert.assertTrue(finder.findProperties(lookupKeys("3")).isEmpty());
+		Assert.assertTrue(inProgress.isFile());
+		
+		Assert.assertTrue(inProgress.renameTo(new File(updatesDirectory, "0001.ndjson")));
+		Assert.assertEquals(1, finder.ingestUpdates());
+		Assert.assertEquals("Joe Bloggs", finder.findProperties(lookupKeys("3")).get("name"));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testLookupsAfterCloseAreRejected() throws Exception {
+		finder.close();
+		
+		finder.findProperties(lookupKeys("1"));
+	}
+	
+	@Test
+	public void testFailedUpdateIsRolledBack() throws Exception {
+		write(new File(updatesDirectory, "0001.ndjson"), "{\"id\":\"2\",\"name\":\"Mary Smith\"}\nnot json\n");
+		
+		Assert.assertEquals(0, finder.ingestUpdates());
+		Assert.assertEquals("Mary Jones", finder.findProperties(lookupKeys("2")).get("name"));
+		Assert.assertEquals(1, finder.getFailedUpdateFileCount());
+		Assert.assertTrue(new File(updatesDirectory, "0001.ndjson.failed").isFile());
+	}
+	
+	@Test
+	public void testStoreIsNotReloadedOnRestart() throws Exception {
+		write(new File(updatesDirectory, "0001.ndjson"), "{\"id\":\"3\",\"name\":\"Joe Bloggs\"}\n");
+		finder.ingestUpdates();
+		finder.close();
+		
+		finder = newFinder();
+		finder.start();
+		
+		Assert.assertEquals(3, finder.getSize());
+		Assert.assertEquals("Joe Bloggs", finder.findProperties(lookupKeys("3")).get("name"));
+	}
+}
@@ -0,0 +1,92 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.docs.enricher.store.MappedPropertiesStoreBuilder;
+
+/**
+ * Unit tests for {@link MappedStoreDocumentPropertiesFinder}
+ */
+public class MappedStoreDocumentPropertiesFinderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private File storeFile;
+	private MappedStoreDocumentPropertiesFinder finder;
+	
+	@Before
+	public void setup() throws Exception {
+		storeFile = new File(folder.getRoot(), "people.store");
+		final MappedPropertiesStoreBuilder builder = new MappedPropertiesStoreBuilder();
+		builder.put("1", map("name", "John Smith"));
+		builder.put("2", map("name", "Mary Jones"));
+		builder.build(storeFile);
+		
+		finder = new MappedStoreDocumentPropertiesFinder(new DefaultResourceLoader());
+		finder.setStorePath("file:" + storeFile.getAbsolutePath());
+		finder.setKeySelector("id");
+		finder.setCheckInterval(0);
+		finder.start();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		finder.close();
+	}
+	
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+	
+	@Test
+	public void testFindProperties() throws Exception {
+		Assert.assertEquals(2, finder.getSize());
+		Assert.assertEquals(map("name", "Mary Jones"), finder.findProperties(map("id", "2")));
+		Assert.assertTrue(finder.findProperties(map("id", "3")).isEmpty());
+		Assert.assertTrue(finder.findProperties(map("other", "1")).isEmpty());
+	}
+	
+	@Test
+	public void testEachHitIsDecodedIntoANewInstance() throws Exception {
+		final Map<String, Object> first = finder.findProperties(map("id", "1"));
+		first.put("name", "changed");
+		
+		Assert.assertEquals("John Smith", finder.findProperties(map("id", "1")).get("name"));
+	}
+	
+	@Test
+	public void testReplacedStoreIsRemapped() throws Exception {
+		Assert.assertFalse(finder.refresh());
+		
+		final MappedPropertiesStoreBuilder builder = new MappedPropertiesStoreBuilder();
+		builder.put("1", map("name", "John Smyth"));
+		builder.put("2", map("name", "Mary Jones"));
+		builder.put("3", map("name", "Peter Brown"));
+		builder.build(storeFile);
+		storeFile.setLastModified(storeFile.lastModified() + 2000); // beyond the filesystem timestamp resolution
+		
+		Assert.assertTrue(finder.refresh());
+		Assert.assertEquals(3, finder.getSize());
+		Assert.assertEquals(map("name", "John Smyth"), finder.findProperties(map("id", "1")));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testLookupsAfterCloseAreRejected() throws Exception {
+		finder.close();
+		
+		finder.findProperties(map("id", "1"));
+	}
+}
@@ -0,0 +1,75 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import uk.nhs.ciao.docs.parser.Document;
+import uk.nhs.ciao.docs.parser.ParsedDocument;
+
+/**
+ * Unit tests for {@link StreamingDocumentEnricherProcessor}
+ */
+public class StreamingDocumentEnricherProcessorTest {
+	private ObjectMapper objectMapper;
+	private StreamingDocumentEnricherProcessor processor;
+	
+	@Before
+	public void setup() {
+		objectMapper = new ObjectMapper();
+		processor = new StreamingDocumentEnricherProcessor(new DocumentEnricher() {
+			@Override
+			public ParsedDocument enrichDocument(final ParsedDocument document) throws Exception {
+				document.getProperties().put("author", "John Smith");
+				return document;
+			}
+		}, new JsonCodec(objectMapper));
+	}
+	
+	@Test
+	public void testPropertiesAreEnrichedAndOtherFieldsAreCopied() throws Exception {
+		final Map<String, Object> properties = Maps.newLinkedHashMap();
+		properties.put("key1", "value1");
+		final ParsedDocument document = new ParsedDocument(new Document("somefile.txt", new byte[]{1,2,3,4,5,6}), properties);
+		
+		final Map<String, Object> expected = toMap(objectMapper.writeValueAsBytes(document));
+		@SuppressWarnings("unchecked")
+		final Map<String, Object> expectedProperties = (Map<String, Object>)expected.get("properties");
+		expectedProperties.put("author", "John Smith");
+		
+		final Map<String, Object> actual = toMap(enrich(objectMapper.writeValueAsBytes(document)));
+		Assert.assertEquals(expected, actual);
+	}
+	
+	@Test
+	public void testMissingPropertiesAreAdded() throws Exception {
+		final Map<String, Object> actual = toMap(enrich("{\"originalDocument\":{\"name\":\"somefile.txt\"}}".getBytes(Charsets.UTF_8)));
+		
+		Assert.assertEquals("somefile.txt", ((Map<?, ?>)actual.get("originalDocument")).get("name"));
+		Assert.assertEquals("John Smith", ((Map<?, ?>)actual.get("properties")).get("author"));
+	}
+	
+	@Test(expected=Exception.class)
+	public void testNonObjectInputIsRejected() throws Exception {
+		enrich("[1, 2, 3]".getBytes(Charsets.UTF_8));
+	}
+	
+	private byte[] enrich(final byte[] json) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		processor.enrichDocument(new ByteArrayInputStream(json), out);
+		return out.toByteArray();
+	}
+	
+	private Map<String, Object> toMap(final byte[] json) throws Exception {
+		return objectMapper.readValue(json, new TypeReference<Map<String, Object>>() {});
+	}
+}
@@ -0,0 +1,448 @@
+package uk.nhs.ciao.docs.enricher;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link TimeoutDocumentPropertiesFinder}
+ */
+public class TimeoutDocumentPropertiesFinderTest {
+	private static final Logger LOGGER = LoggerFactory.getLogger(TimeoutDocumentPropertiesFinderTest.class);
+	private static final AtomicBoolean SLOW_QUERY_INTERRUPTED = new AtomicBoolean();
+
+	private MetricsRegistry metrics;
+	private DocumentPropertiesFinder delegate;
+	private TimeoutDocumentPropertiesFinder finder;
+
+	@Before
+	public void setup() {
+		metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		delegate = Mockito.mock(DocumentPropertiesFinder.class);
+		finder = new TimeoutDocumentPropertiesFinder(delegate, metrics, "finder");
+	}
+
+	@After
+	public void tearDown() {
+		finder.close();
+	}
+
+	private Map<String, Object> map(final String key, final Object value) {
+		final Map<String, Object> map = Maps.newLinkedHashMap();
+		map.put(key, value);
+		return map;
+	}
+
+	private long getCount(final String name, final String... tags) {
+		return metrics.counter(name, tags).getCount();
+	}
+
+	/**
+	 * Makes enough fast lookups for the hedge delay to be calculated
+	 */
+	private void observeFastLookups() throws Exception {
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenReturn(map("name", "one"));
+		for (int index = 0; index < 200; index++) {
+			finder.findProperties(map("id", "1"));
+		}
+		Thread.sleep(1100); // allow the hedge delay to be recalculated
+	}
+
+	/**
+	 * The first attempt of each lookup is slow - any further attempts return immediately
+	 */
+	private void stubSlowFirstAttempts(final long delayMillis) throws Exception {
+		final Set<Object> attemptedIds = Sets.newConcurrentHashSet();
+		Mockito.when(delegate.findProperties(Mockito.<Map<String, Object>>any())).thenAnswer(new Answer<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+				@SuppressWarnings("unchecked")
+				final Object id = ((Map<String, Object>) invocation.getArguments()[0]).get("id");
+				if (attemptedIds.add(id)) {
+					Thread.sleep(delayMillis);
+				}
+				return map("name", "slow");
+			}
+		});
+	}
+
+	@Test
+	public void testLookupsCompletingInTimeAreReturned() throws Exception {
+		finder.setTimeout(1000);
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenReturn(map("name", "one"));
+
+		Assert.assertEquals(map("name", "one"), finder.findProperties(map("id", "1")));
+	}
+
+	@Test
+	public void testSlowLookupsAreAbandonedWithoutInterrupting() throws Exception {
+		finder.setTimeout(50);
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		final CountDownLatch completed = new CountDownLatch(1);
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenAnswer(new Answer<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					interrupted.set(true);
+				}
+				completed.countDown();
+				return map("name", "one");
+			}
+		});
+
+		try {
+			finder.findProperties(map("id", "1"));
+			Assert.fail("Expected the lookup to time out");
+		} catch (TimeoutException e) {
+			// expected
+		}
+
+		Assert.assertTrue("lookup should complete", completed.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse("lookup should not be interrupted", interrupted.get());
+		Assert.assertEquals(1, getCount(TimeoutDocumentPropertiesFinder.TIMEOUTS_METRIC, "finder", "finder"));
+	}
+
+	@Test(expected=RejectedExecutionException.class)
+	public void testLookupsAfterCloseAreRejected() throws Exception {
+		finder.setTimeout(1000);
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenReturn(map("name", "one"));
+		Assert.assertEquals(map("name", "one"), finder.findProperties(map("id", "1")));
+
+		finder.close();
+		finder.findProperties(map("id", "1"));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testTimeoutShorterThanQueryTimeoutIsRejected() {
+		finder.setTimeout(1000);
+		finder.setQueryTimeout(5);
+
+		finder.start();
+	}
+
+	@Test
+	public void testTimeoutCoveringQueryTimeoutIsAccepted() {
+		finder.setTimeout(5000);
+		finder.setQueryTimeout(5);
+		finder.start();
+
+		finder.setTimeout(0);
+		finder.setQueryTimeout(30);
+		finder.start();
+	}
+
+	/**
+	 * Derby function used by the slow query - lookups of IDs prefixed with <code>slow-</code> are delayed
+	 */
+	public static String delayedId(final String id) throws InterruptedException {
+		if (!id.startsWith("slow-")) {
+			return id;
+		}
+
+		try {
+			Thread.sleep(500);
+		} catch (InterruptedException e) {
+			SLOW_QUERY_INTERRUPTED.set(true);
+			throw e;
+		}
+		return id.substring("slow-".length());
+	}
+
+	@Test
+	public void testTimedOutQueryDoesNotBreakPooledConnection() throws Exception {
+		System.setProperty("derby.system.home", "./target/derby-db");
+
+		// Re-boots the embedded driver if another test has shut down the derby engine
+		Class.forName("org.apache.derby.jdbc.EmbeddedDriver").newInstance();
+
+		// A single pooled connection - it is reused by each lookup
+		final BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setUrl("jdbc:derby:memory:timeout_finder;create=true");
+		dataSource.setMaxTotal(1);
+		try {
+			final Connection connection = dataSource.getConnection();
+			try {
+				final Statement statement = connection.createStatement();
+				statement.execute("CREATE TABLE PEOPLE (ID VARCHAR(20) PRIMARY KEY, NAME VARCHAR(50))");
+				statement.execute("INSERT INTO PEOPLE VALUES ('2', 'Mary Jones')");
+				statement.execute("CREATE FUNCTION DELAYED_ID(ID VARCHAR(20)) RETURNS VARCHAR(20) PARAMETER STYLE JAVA "
+						+ "NO SQL LANGUAGE JAVA EXTERNAL NAME '" + getClass().getName() + ".delayedId'");
+				statement.close();
+			} finally {
+				connection.close();
+			}
+
+			final DataSourceDocumentPropertiesFinder jdbcFinder = new DataSourceDocumentPropertiesFinder(dataSource);
+			jdbcFinder.setIdSelector("id");
+			jdbcFinder.setSqlQuery("SELECT NAME as \"name\" FROM PEOPLE WHERE ID = DELAYED_ID(:?id)");
+			jdbcFinder.setIdParameter("id");
+			jdbcFinder.setQueryTimeout(1);
+
+			finder.close();
+			finder = new TimeoutDocumentPropertiesFinder(jdbcFinder, metrics, "finder");
+			finder.setTimeout(100);
+
+			// The lookup is abandoned, but the query is left to complete on its connection
+			try {
+				finder.findProperties(map("id", "slow-2"));
+				Assert.fail("Expected the lookup to time out");
+			} catch (TimeoutException e) {
+				// expected
+			}
+
+			// The next lookup waits for the pooled connection and can still use it
+			finder.setTimeout(5000);
+			Assert.assertEquals(map("name", "Mary Jones"), finder.findProperties(map("id", "2")));
+			Assert.assertFalse(SLOW_QUERY_INTERRUPTED.get());
+		} finally {
+			dataSource.close();
+			try {
+				DriverManager.getConnection("jdbc:derby:memory:timeout_finder;drop=true");
+			} catch (SQLException e) {
+				LOGGER.debug("Derby is expected to throw an exception on drop!", e);
+			}
+		}
+	}
+
+	@Test(expected=IOException.class)
+	public void testLookupFailuresAreRethrown() throws Exception {
+		finder.setTimeout(1000);
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenThrow(new IOException("lookup failed"));
+
+		finder.findProperties(map("id", "1"));
+	}
+
+	@Test
+	public void testSlowLookupsAreHedged() throws Exception {
+		finder.setTimeout(5000);
+		finder.setHedgePercentile(95);
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenReturn(map("name", "one"));
+		for (int index = 0; index < 200; index++) {
+			finder.findProperties(map("id", "1"));
+		}
+		Thread.sleep(1100); // allow the hedge delay to be recalculated
+
+		// The first attempt hangs - the hedged attempt returns immediately
+		final AtomicBoolean firstAttempt = new AtomicBoolean(true);
+		Mockito.when(delegate.findProperties(map("id", "2"))).thenAnswer(new Answer<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+				if (firstAttempt.getAndSet(false)) {
+					Thread.sleep(5000);
+				}
+				return map("name", "two");
+			}
+		});
+
+		final long startNanos = System.nanoTime();
+		Assert.assertEquals(map("name", "two"), finder.findProperties(map("id", "2")));
+		Assert.assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(2));
+
+		Assert.assertEquals(1, getCount(TimeoutDocumentPropertiesFinder.HEDGED_METRIC, "finder", "finder", "outcome", "sent"));
+		Assert.assertEquals(1, getCount(TimeoutDocumentPropertiesFinder.HEDGED_METRIC, "finder", "finder", "outcome", "won"));
+	}
+
+	@Test
+	public void testHedgesAreLimitedByBudget() throws Exception {
+		finder.setTimeout(5000);
+		finder.setHedgePercentile(95);
+		finder.setHedgeBudget(1);
+		observeFastLookups();
+
+		stubSlowFirstAttempts(300);
+		for (int index = 0; index < 4; index++) {
+			Assert.assertEquals(map("name", "slow"), finder.findProperties(map("id", "slow-" + index)));
+		}
+
+		// 200 lookups at 1% only allow two hedges
+		Assert.assertEquals(2, getCount(TimeoutDocumentPropertiesFinder.HEDGED_METRIC, "finder", "finder", "outcome", "sent"));
+		Assert.assertEquals(2, getCount(TimeoutDocumentPropertiesFinder.HEDGED_METRIC, "finder", "finder", "outcome", "throttled"));
+	}
+
+	@Test
+	public void testHedgesRequireConcurrencyLimiterPermit() throws Exception {
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(metrics, "limiter");
+		limiter.setInitialLimit(1);
+		limiter.setMaxLimit(1);
+		finder.setTimeout(5000);
+		finder.setHedgePercentile(95);
+		finder.setConcurrencyLimiter(limiter);
+		try {
+			observeFastLookups();
+
+			// The only permit is held by the first attempt of the lookup
+			stubSlowFirstAttempts(300);
+			Assert.assertEquals(map("name", "slow"), finder.findProperties(map("id", "slow")));
+
+			Assert.assertEquals(0, getCount(TimeoutDocumentPropertiesFinder.HEDGED_METRIC, "finder", "finder", "outcome", "sent"));
+			Assert.assertEquals(1, getCount(TimeoutDocumentPropertiesFinder.HEDGED_METRIC, "finder", "finder", "outcome", "throttled"));
+			Assert.assertEquals(0, limiter.getInFlight());
+		} finally {
+			limiter.close();
+		}
+	}
+
+	@Test
+	public void testTimedOutLookupHoldsPermitUntilItFinishes() throws Exception {
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(metrics, "limiter");
+		limiter.setInitialLimit(2);
+		limiter.setMaxLimit(2);
+		finder.setTimeout(50);
+		finder.setConcurrencyLimiter(limiter);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			Mockito.when(delegate.findProperties(map("id", "1"))).thenAnswer(new Answer<Map<String, Object>>() {
+				@Override
+				public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+					release.await(5, TimeUnit.SECONDS);
+					return map("name", "one");
+				}
+			});
+
+			try {
+				finder.findProperties(map("id", "1"));
+				Assert.fail("Expected the lookup to time out");
+			} catch (TimeoutException e) {
+				// expected
+			}
+
+			// The abandoned attempt is still running - its permit is only released once it finishes
+			Assert.assertEquals(1, limiter.getInFlight());
+			release.countDown();
+			final long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (limiter.getInFlight() > 0 && System.nanoTime() < deadlineNanos) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(0, limiter.getInFlight());
+		} finally {
+			limiter.close();
+		}
+	}
+
+	@Test
+	public void testLookupsOverTheConcurrencyLimitWaitForPermit() throws Exception {
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(metrics, "limiter");
+		limiter.setInitialLimit(1);
+		limiter.setMaxLimit(1);
+		finder.setTimeout(5000);
+		finder.setConcurrencyLimiter(limiter);
+		final ExecutorService executorService = Executors.newCachedThreadPool();
+		try {
+			final CountDownLatch lookupStarted = new CountDownLatch(1);
+			final CountDownLatch lookupReleased = new CountDownLatch(1);
+			Mockito.when(delegate.findProperties(map("id", "1"))).thenAnswer(new Answer<Map<String, Object>>() {
+				@Override
+				public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+					lookupStarted.countDown();
+					lookupReleased.await(5, TimeUnit.SECONDS);
+					return map("name", "one");
+				}
+			});
+
+			final Callable<Map<String, Object>> lookup = new Callable<Map<String, Object>>() {
+				@Override
+				public Map<String, Object> call() throws Exception {
+					return finder.findProperties(map("id", "1"));
+				}
+			};
+			final Future<Map<String, Object>> first = executorService.submit(lookup);
+			Assert.assertTrue(lookupStarted.await(5, TimeUnit.SECONDS));
+			final Future<Map<String, Object>> second = executorService.submit(lookup);
+
+			// The second lookup waits for the permit held by the first
+			final long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (!limiter.isSaturated() && System.nanoTime() < deadlineNanos) {
+				Thread.sleep(5);
+			}
+			Assert.assertTrue(limiter.isSaturated());
+			Mockito.verify(delegate, Mockito.times(1)).findProperties(map("id", "1"));
+
+			lookupReleased.countDown();
+			Assert.assertEquals(map("name", "one"), first.get(5, TimeUnit.SECONDS));
+			Assert.assertEquals(map("name", "one"), second.get(5, TimeUnit.SECONDS));
+			Assert.assertEquals(0, limiter.getInFlight());
+		} finally {
+			executorService.shutdownNow();
+			limiter.close();
+		}
+	}
+
+	@Test
+	public void testLookupWaitingForPermitTimesOut() throws Exception {
+		final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(metrics, "limiter");
+		limiter.setInitialLimit(1);
+		limiter.setMaxLimit(1);
+		finder.setTimeout(100);
+		finder.setConcurrencyLimiter(limiter);
+		try {
+			// The only permit is held elsewhere - the lookup must not wait for it indefinitely
+			final long permitStartNanos = limiter.acquire();
+			final long startNanos = System.nanoTime();
+			try {
+				finder.findProperties(map("id", "1"));
+				Assert.fail("Expected the lookup to time out");
+			} catch (TimeoutException e) {
+				// expected
+			}
+			final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+			Assert.assertTrue("lookup should time out after about 100 ms: " + elapsedMillis, elapsedMillis < 1000);
+			Mockito.verifyZeroInteractions(delegate);
+			Assert.assertEquals(1, getCount(TimeoutDocumentPropertiesFinder.TIMEOUTS_METRIC, "finder", "finder"));
+			Assert.assertEquals(1, limiter.getInFlight());
+
+			limiter.release(permitStartNanos, false);
+			Assert.assertEquals(0, limiter.getInFlight());
+		} finally {
+			limiter.close();
+		}
+	}
+
+	@Test
+	public void testDisabledFinderCallsDelegateDirectly() throws Exception {
+		final Thread callingThread = Thread.currentThread();
+		final AtomicBoolean calledOnSameThread = new AtomicBoolean();
+		Mockito.when(delegate.findProperties(map("id", "1"))).thenAnswer(new Answer<Map<String, Object>>() {
+			@Override
+			public Map<String, Object> answer(final InvocationOnMock invocation) throws Throwable {
+				calledOnSameThread.set(Thread.currentThread() == callingThread);
+				return map("name", "one");
+			}
+		});
+
+		Assert.assertEquals(map("name", "one"), finder.findProperties(map("id", "1")));
+		Assert.assertTrue(calledOnSameThread.get());
+	}
+}
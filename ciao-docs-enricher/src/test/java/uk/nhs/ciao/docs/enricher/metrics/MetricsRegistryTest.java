@@ -0,0 +1,129 @@
+package uk.nhs.ciao.docs.enricher.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MetricsRegistry}
+ */
+public class MetricsRegistryTest {
+	private MetricsRegistry registry;
+
+	@Before
+	public void setup() {
+		registry = new MetricsRegistry();
+		registry.setJmxDomain("uk.nhs.ciao.docs.enricher.test");
+	}
+
+	@After
+	public void tearDown() {
+		registry.close();
+	}
+
+	@Test
+	public void testMetricsAreSharedByName() {
+		final Distribution distribution = registry.distribution("duration", "route", "default", "stage", "enrich");
+
+		// tags are matched regardless of order
+		Assert.assertSame(distribution, registry.distribution("duration", "stage", "enrich", "route", "default"));
+		Assert.assertNotSame(distribution, registry.distribution("duration", "route", "default", "stage", "marshal"));
+		Assert.assertSame(registry.counter("documents"), registry.counter("documents"));
+		Assert.assertSame(registry.gauge("limit"), registry.gauge("limit"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testMetricTypeMustMatch() {
+		registry.counter("documents");
+		registry.distribution("documents");
+	}
+
+	@Test
+	public void testDistributionPercentiles() {
+		final Distribution distribution = registry.distribution("duration");
+		for (int value = 1; value <= 1000; value++) {
+			distribution.record(value);
+		}
+
+		final Distribution.Snapshot snapshot = distribution.getSnapshot();
+		Assert.assertEquals(1000, snapshot.getCount());
+		Assert.assertEquals(500500, snapshot.getSum());
+		Assert.assertEquals(500, snapshot.get50thPercentile());
+		Assert.assertEquals(990, snapshot.get99thPercentile());
+		Assert.assertEquals(999, snapshot.get999thPercentile());
+		Assert.assertEquals(1000, snapshot.getMax());
+
+		distribution.reset();
+		Assert.assertEquals(0, distribution.getCount());
+	}
+
+	@Test
+	public void testDistributionPercentilesUseSlidingWindow() throws Exception {
+		final Distribution distribution = new Distribution(50, 2);
+		distribution.record(1000);
+		Assert.assertEquals(1000, distribution.getSnapshot().get99thPercentile());
+
+		Thread.sleep(150); // the first interval leaves the window
+		distribution.record(10);
+
+		final Distribution.Snapshot snapshot = distribution.getSnapshot();
+		Assert.assertEquals(10, snapshot.get99thPercentile());
+		Assert.assertEquals(10, snapshot.getMax());
+		Assert.assertEquals(1, distribution.getWindowCount());
+		Assert.assertEquals(2, snapshot.getCount());
+		Assert.assertEquals(1010, snapshot.getSum());
+	}
+
+	@Test
+	public void testDistributionGettersShareSnapshot() {
+		final Distribution distribution = new Distribution();
+		distribution.record(10);
+		Assert.assertEquals(10, distribution.getMax());
+
+		// The cached snapshot is reused by the percentile getters, but the count is always current
+		distribution.record(20);
+		Assert.assertEquals(10, distribution.get50thPercentile());
+		Assert.assertEquals(2, distribution.getCount());
+		Assert.assertEquals(20, distribution.getSnapshot().getMax());
+	}
+
+	@Test
+	public void testMetricsAreRegisteredWithJmx() throws Exception {
+		registry.counter("documents", "route", "default").increment(3);
+
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName("uk.nhs.ciao.docs.enricher.test:name=documents,route=default");
+		Assert.assertEquals(3L, server.getAttribute(name, "Count"));
+
+		registry.close();
+		Assert.assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testWriteText() throws Exception {
+		registry.setJmxEnabled(false);
+		registry.counter("documents", "route", "default").increment();
+		registry.distribution("duration", "route", "default").record(10);
+		registry.gauge("limit", "finder", "jdbc").set(5);
+
+		final StringBuilder text = new StringBuilder();
+		registry.writeText(text);
+
+		Assert.assertEquals("# TYPE documents counter\n"
+				+ "documents{route=\"default\"} 1\n"
+				+ "# TYPE duration summary\n"
+				+ "duration{route=\"default\",quantile=\"0.5\"} 10\n"
+				+ "duration{route=\"default\",quantile=\"0.99\"} 10\n"
+				+ "duration{route=\"default\",quantile=\"0.999\"} 10\n"
+				+ "duration_sum{route=\"default\"} 10\n"
+				+ "duration_count{route=\"default\"} 1\n"
+				+ "# TYPE limit gauge\n"
+				+ "limit{finder=\"jdbc\"} 5\n", text.toString());
+	}
+}
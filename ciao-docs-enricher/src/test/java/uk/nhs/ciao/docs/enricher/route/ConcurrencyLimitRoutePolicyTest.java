@@ -0,0 +1,107 @@
+package uk.nhs.ciao.docs.enricher.route;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Consumer;
+import org.apache.camel.ServiceStatus;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.util.ServiceHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.docs.enricher.AdaptiveConcurrencyLimiter;
+import uk.nhs.ciao.docs.enricher.metrics.MetricsRegistry;
+
+/**
+ * Unit tests for {@link ConcurrencyLimitRoutePolicy}
+ */
+public class ConcurrencyLimitRoutePolicyTest {
+	private AdaptiveConcurrencyLimiter limiter;
+	private ExecutorService executorService;
+	private DefaultCamelContext context;
+
+	@Before
+	public void setup() throws Exception {
+		final MetricsRegistry metrics = new MetricsRegistry();
+		metrics.setJmxEnabled(false);
+		limiter = new AdaptiveConcurrencyLimiter(metrics, "limiter");
+		limiter.setMaxLimit(1);
+		limiter.setInitialLimit(1);
+		executorService = Executors.newCachedThreadPool();
+
+		final ConcurrencyLimitRoutePolicy policy = new ConcurrencyLimitRoutePolicy(limiter);
+		context = new DefaultCamelContext();
+		context.addRoutes(new RouteBuilder() {
+			@Override
+			public void configure() throws Exception {
+				from("seda:input").routeId("enrich").routePolicy(policy).to("mock:output");
+
+				// Not started yet (e.g. waiting for the warm-up)
+				from("seda:waiting").routeId("waiting").routePolicy(policy).autoStartup(false).to("mock:output");
+
+				// Suspended by something other than the policy
+				from("seda:paused").routeId("paused").routePolicy(policy).to("mock:output");
+			}
+		});
+		context.start();
+		context.suspendRoute("paused");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executorService.shutdownNow();
+		limiter.close();
+		context.stop();
+	}
+
+	@Test
+	public void testConsumersAreSuspendedWhileTheLimiterIsSaturated() throws Exception {
+		final Consumer consumer = context.getRoute("enrich").getConsumer();
+
+		// One call in flight and another waiting for the limit
+		final long startNanos = limiter.acquire();
+		final Future<Long> waitingCall = executorService.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return limiter.acquire();
+			}
+		});
+
+		awaitSuspended(consumer, true);
+		Assert.assertTrue(limiter.isSaturated());
+
+		limiter.release(startNanos, false);
+		limiter.release(waitingCall.get(5, TimeUnit.SECONDS), false);
+		Assert.assertFalse(limiter.isSaturated());
+
+		awaitSuspended(consumer, false);
+		Assert.assertEquals(ServiceStatus.Started, context.getRouteStatus("enrich"));
+
+		// Only the consumer suspended by the policy is resumed
+		Assert.assertEquals(ServiceStatus.Stopped, context.getRouteStatus("waiting"));
+		Assert.assertEquals(ServiceStatus.Suspended, context.getRouteStatus("paused"));
+
+		// The resumed consumer picks up further messages
+		final MockEndpoint output = context.getEndpoint("mock:output", MockEndpoint.class);
+		output.expectedBodiesReceived("document");
+		output.setResultWaitTime(TimeUnit.SECONDS.toMillis(5));
+		context.createProducerTemplate().sendBody("seda:input", "document");
+		output.assertIsSatisfied();
+	}
+
+	private void awaitSuspended(final Consumer consumer, final boolean suspended) throws InterruptedException {
+		final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+		while (ServiceHelper.isSuspended(consumer) != suspended && System.currentTimeMillis() < timeout) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals(suspended, ServiceHelper.isSuspended(consumer));
+	}
+}
@@ -0,0 +1,42 @@
+package uk.nhs.ciao.docs.enricher.route;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import uk.nhs.ciao.docs.enricher.InstrumentedDocumentPropertiesFinder;
+
+/**
+ * Unit tests for {@link CorrelationIdMdcProcessor}
+ */
+public class CorrelationIdMdcProcessorTest {
+	@After
+	public void tearDown() {
+		MDC.remove(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY);
+	}
+
+	@Test
+	public void testCorrelationIdIsInMdcWhileProcessing() throws Exception {
+		final AtomicReference<String> correlationId = new AtomicReference<String>();
+		final CorrelationIdMdcProcessor processor = new CorrelationIdMdcProcessor(new Processor() {
+			@Override
+			public void process(final Exchange exchange) {
+				correlationId.set(MDC.get(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY));
+			}
+		});
+
+		final Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+		exchange.getIn().setHeader(Exchange.CORRELATION_ID, "document-1");
+		processor.process(exchange);
+
+		Assert.assertEquals("document-1", correlationId.get());
+		Assert.assertNull(MDC.get(InstrumentedDocumentPropertiesFinder.CORRELATION_ID_MDC_KEY));
+	}
+}
@@ -0,0 +1,79 @@
+package uk.nhs.ciao.docs.enricher.route;
+
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.nhs.ciao.configuration.CIAOConfig;
+import uk.nhs.ciao.configuration.impl.MemoryCipProperties;
+import uk.nhs.ciao.exceptions.CIAOConfigurationException;
+
+/**
+ * Unit tests for {@link EnrichDocumentRoute}
+ */
+public class EnrichDocumentRouteTest {
+	private Properties properties;
+
+	@Before
+	public void setup() {
+		properties = new Properties();
+		properties.setProperty("documentEnricherRoutes.inputQueue", "parsed-documents");
+		properties.setProperty("documentEnricherRoutes.enricherId", "enricher");
+		properties.setProperty("documentEnricherRoutes.outputQueue", "enriched-documents");
+	}
+
+	private EnrichDocumentRoute createRoute(final String name) throws Exception {
+		final MemoryCipProperties cipProperties = new MemoryCipProperties("ciao-docs-enricher", "tests");
+		cipProperties.addConfigValues(properties);
+		return new EnrichDocumentRoute(name, new CIAOConfig(cipProperties));
+	}
+
+	@Test
+	public void testConsumerOptionsAreAddedToInputUri() throws Exception {
+		properties.setProperty("documentEnricherRoutes.concurrentConsumers", "2");
+		properties.setProperty("documentEnricherRoutes.default.prefetchSize", "1");
+
+		Assert.assertEquals("jms:queue:parsed-documents?concurrentConsumers=2&destination.consumer.prefetchSize=1",
+				createRoute("default").getInputUri());
+	}
+
+	@Test
+	public void testNonTransactedRouteConsumesAsynchronously() throws Exception {
+		properties.setProperty("documentEnricherRoutes.transacted", "false");
+
+		Assert.assertEquals("jms:queue:parsed-documents?transacted=false&asyncConsumer=true",
+				createRoute("default").getInputUri());
+	}
+
+	@Test
+	public void testMissingConsumerOptionsAreOmitted() throws Exception {
+		properties.setProperty("documentEnricherRoutes.concurrentConsumers", "");
+
+		Assert.assertEquals("jms:queue:parsed-documents", createRoute("default").getInputUri());
+	}
+
+	@Test
+	public void testEmptySpecificPropertyFallsBackToGenericProperty() throws Exception {
+		properties.setProperty("documentEnricherRoutes.default.inputQueue", " ");
+		properties.setProperty("documentEnricherRoutes.concurrentConsumers", "4");
+		properties.setProperty("documentEnricherRoutes.default.concurrentConsumers", "");
+
+		Assert.assertEquals("jms:queue:parsed-documents?concurrentConsumers=4", createRoute("default").getInputUri());
+	}
+
+	@Test(expected=CIAOConfigurationException.class)
+	public void testEmptyRequiredPropertyIsRejected() throws Exception {
+		properties.setProperty("documentEnricherRoutes.inputQueue", "");
+
+		createRoute("default");
+	}
+
+	@Test(expected=CIAOConfigurationException.class)
+	public void testInvalidConsumerCountIsRejected() throws Exception {
+		properties.setProperty("documentEnricherRoutes.concurrentConsumers", "two");
+
+		createRoute("default");
+	}
+}
@@ -0,0 +1,216 @@
+package uk.nhs.ciao.docs.enricher.store;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import uk.nhs.ciao.docs.enricher.JsonCodec;
+
+/**
+ * Unit tests for {@link MappedPropertiesStoreBuilder}, {@link ReferenceDataReader} and {@link MappedPropertiesStore}
+ */
+public class MappedPropertiesStoreBuilderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private JsonCodec jsonCodec;
+	private MappedPropertiesStoreBuilder builder;
+	private File storeFile;
+	
+	@Before
+	public void setup() throws Exception {
+		jsonCodec = new JsonCodec();
+		builder = new MappedPropertiesStoreBuilder(jsonCodec);
+		storeFile = new File(folder.getRoot(), "people.store");
+	}
+	
+	private File write(final String name, final String content) throws Exception {
+		final File file = folder.newFile(name);
+		Files.write(content, file, Charsets.UTF_8);
+		return file;
+	}
+	
+	private Map<String, Object> get(final MappedPropertiesStore store, final String key) throws Exception {
+		final byte[] value = store.get(key);
+		return value == null ? null : jsonCodec.readMap(value);
+	}
+	
+	@Test
+	public void testNdjsonSource() throws Exception {
+		builder.setRecordKeySelector("id");
+		builder.add(write("people.ndjson", "{\"id\":\"2\",\"name\":\"Mary Jones\"}\n\n{\"id\":\"1\",\"name\":\"John Smith\"}\n"));
+		builder.build(storeFile);
+		
+		final MappedPropertiesStore store = new MappedPropertiesStore(storeFile);
+		try {
+			Assert.assertEquals(2, store.size());
+			Assert.assertEquals("John Smith", get(store, "1").get("name"));
+			Assert.assertEquals("Mary Jones", get(store, "2").get("name"));
+			Assert.assertNull(store.get("3"));
+			Assert.assertNull(store.get(""));
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test
+	public void testJsonObjectSource() throws Exception {
+		builder.add(write("people.json", "{\"b\":{\"name\":\"Mary Jones\"},\"a\":{\"name\":\"John Smith\"},\"ignored\":1}"));
+		builder.build(storeFile);
+		
+		final MappedPropertiesStore store = new MappedPropertiesStore(storeFile);
+		try {
+			Assert.assertEquals(2, store.size());
+			Assert.assertTrue(store.containsKey("a"));
+			Assert.assertFalse(store.containsKey("ignored"));
+			Assert.assertEquals("Mary Jones", get(store, "b").get("name"));
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test
+	public void testCsvSource() throws Exception {
+		builder.setRecordKeySelector("id");
+		builder.add(write("people.csv", "id,name,notes\r\n1,\"Smith, John\",\"said \"\"hello\"\"\"\r\n2,Mary Jones,\n"));
+		builder.build(storeFile);
+		
+		final MappedPropertiesStore store = new MappedPropertiesStore(storeFile);
+		try {
+			final Map<String, Object> expected = Maps.newLinkedHashMap();
+			expected.put("id", "1");
+			expected.put("name", "Smith, John");
+			expected.put("notes", "said \"hello\"");
+			Assert.assertEquals(expected, get(store, "1"));
+			Assert.assertFalse(get(store, "2").containsKey("notes"));
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test
+	public void testKeysAreSearchedInUnsignedByteOrder() throws Exception {
+		final String[] keys = { "z", "a", "\u00e9", "\u4e2d", "A", "ab", "aa", "" };
+		for (final String key: keys) {
+			final Map<String, Object> properties = Maps.newLinkedHashMap();
+			properties.put("key", key);
+			builder.put(key, properties);
+		}
+		builder.build(storeFile);
+		
+		final MappedPropertiesStore store = new MappedPropertiesStore(storeFile);
+		try {
+			Assert.assertEquals(keys.length, store.size());
+			for (final String key: keys) {
+				Assert.assertEquals(key, get(store, key).get("key"));
+			}
+			Assert.assertNull(store.get("b"));
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test
+	public void testKeysAndValuesMaySpanSegments() throws Exception {
+		for (int index = 0; index < 50; index++) {
+			final Map<String, Object> properties = Maps.newLinkedHashMap();
+			properties.put("name", "Person " + index);
+			builder.put("key-" + index, properties);
+		}
+		builder.build(storeFile);
+		
+		// 16 byte segments - every key and value spans at least one segment boundary
+		final MappedPropertiesStore store = new MappedPropertiesStore(storeFile, 4);
+		try {
+			Assert.assertEquals(50, store.size());
+			for (int index = 0; index < 50; index++) {
+				Assert.assertEquals("Person " + index, get(store, "key-" + index).get("name"));
+			}
+			Assert.assertNull(store.get("key-50"));
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test(expected = java.io.IOException.class)
+	public void testInvalidFileIsRejected() throws Exception {
+		new MappedPropertiesStore(write("invalid.store", "this is not a store file"));
+	}
+	
+	@Test(expected = java.io.IOException.class)
+	public void testTruncatedFileIsRejected() throws Exception {
+		final Map<String, Object> properties = Maps.newLinkedHashMap();
+		properties.put("name", "John Smith");
+		builder.put("1", properties);
+		builder.build(storeFile);
+		
+		final byte[] content = Files.toByteArray(storeFile);
+		Files.write(Arrays.copyOf(content, content.length - 1), storeFile);
+		
+		new MappedPropertiesStore(storeFile);
+	}
+	
+	@Test
+	public void testCorruptIndexEntryFailsLookup() throws Exception {
+		final Map<String, Object> properties = Maps.newLinkedHashMap();
+		properties.put("name", "John Smith");
+		builder.put("1", properties);
+		builder.put("2", properties);
+		builder.put("3", properties);
+		builder.build(storeFile);
+		
+		// Point the key of the first entry beyond the end of the file
+		final byte[] content = Files.toByteArray(storeFile);
+		Arrays.fill(content, MappedPropertiesStore.HEADER_SIZE, MappedPropertiesStore.HEADER_SIZE + 8, (byte)0x7f);
+		Files.write(content, storeFile);
+		
+		final MappedPropertiesStore store = new MappedPropertiesStore(storeFile);
+		try {
+			Assert.assertEquals("John Smith", get(store, "2").get("name"));
+			store.get("1");
+			Assert.fail("Expected the corrupt entry to be rejected");
+		} catch (IllegalStateException e) {
+			// expected
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test
+	public void testExistingStoreIsReplaced() throws Exception {
+		final Map<String, Object> properties = Maps.newLinkedHashMap();
+		properties.put("name", "John Smith");
+		builder.put("1", properties);
+		builder.build(storeFile);
+		
+		properties.put("name", "Mary Jones");
+		builder.put("1", properties);
+		builder.build(storeFile);
+		
+		final MappedPropertiesStore store = new MappedPropertiesStore(storeFile);
+		try {
+			Assert.assertEquals("Mary Jones", get(store, "1").get("name"));
+			Assert.assertFalse(new File(folder.getRoot(), storeFile.getName() + ".tmp").exists());
+		} finally {
+			store.close();
+		}
+	}
+	
+	@Test
+	public void testReadCsvRow() throws Exception {
+		final StringReader reader = new StringReader("a,\"b\nc\",\n");
+		Assert.assertEquals(Arrays.asList("a", "b\nc", ""), ReferenceDataReader.readCsvRow(reader));
+		Assert.assertNull(ReferenceDataReader.readCsvRow(reader));
+	}
+}
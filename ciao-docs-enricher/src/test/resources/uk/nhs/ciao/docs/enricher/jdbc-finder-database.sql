@@ -1,5 +1,7 @@
 CREATE TABLE NAMES (id VARCHAR(20), name VARCHAR(20));
 CREATE TABLE JSON (id VARCHAR(20), json VARCHAR(400));
+CREATE TABLE CODES (id CHAR(10), name VARCHAR(20));
+CREATE TABLE AMOUNTS (id NUMERIC(5,2), name VARCHAR(20));
 
 INSERT INTO NAMES VALUES ('1', 'John Smith');
 INSERT INTO NAMES VALUES ('2', 'Mary Jones');
@@ -8,3 +10,10 @@ INSERT INTO NAMES VALUES ('3', 'Peter Davies');
 INSERT INTO JSON VALUES ('1', '{"firstName": "John", "secondName": "Smith"  -- with invalid json format--   ');
 INSERT INTO JSON VALUES ('2', '{"firstName": "Mary", "secondName": "Jones"}');
 INSERT INTO JSON VALUES ('3', '{"firstName": "Peter", "secondName": "Davies"}');
+INSERT INTO JSON VALUES ('4', NULL);
+
+INSERT INTO CODES VALUES ('A1', 'Code A1');
+INSERT INTO CODES VALUES ('B2', 'Code B2');
+
+INSERT INTO AMOUNTS VALUES (1, 'One');
+INSERT INTO AMOUNTS VALUES (2.5, 'Two and a half');